@@ -0,0 +1,116 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.calclab.emite.base.crypto.HMac;
+import com.calclab.emite.base.crypto.PBKDF2;
+import com.calclab.emite.base.crypto.SHA1Digest;
+import com.calclab.emite.base.util.Base64;
+import com.calclab.emite.base.util.KeySequencer;
+
+/**
+ * Measures the encoding and hashing used by SASL authentication (SCRAM-SHA-1)
+ * and by the BOSH key sequence.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CryptoBenchmark {
+
+	// The iteration count suggested by RFC 5802 and used by most servers
+	private static final int SCRAM_ITERATIONS = 4096;
+
+	private byte[] data;
+	private String encoded;
+	private byte[] key;
+	private byte[] salt;
+
+	private SHA1Digest digest;
+	private HMac hmac;
+	private KeySequencer keySequencer;
+
+	@Setup
+	public void setup() {
+		final Random random = new Random(42);
+		data = new byte[1024];
+		random.nextBytes(data);
+		encoded = Base64.toBase64(data);
+		key = new byte[20];
+		random.nextBytes(key);
+		salt = new byte[16];
+		random.nextBytes(salt);
+
+		digest = new SHA1Digest();
+		hmac = new HMac(new SHA1Digest());
+		keySequencer = new KeySequencer();
+	}
+
+	@Benchmark
+	public String base64Encode() {
+		return Base64.toBase64(data);
+	}
+
+	@Benchmark
+	public byte[] base64Decode() {
+		return Base64.fromBase64(encoded);
+	}
+
+	@Benchmark
+	public byte[] sha1() {
+		return digest.doHash(data);
+	}
+
+	@Benchmark
+	public byte[] hmacSha1() {
+		return hmac.doMac(key, data);
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public byte[] pbkdf2() {
+		return new PBKDF2().doKey(key, salt, SCRAM_ITERATIONS);
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public String keySequencerReset() {
+		keySequencer.reset();
+		return keySequencer.next();
+	}
+
+}
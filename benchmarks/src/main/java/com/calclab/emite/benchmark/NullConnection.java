@@ -0,0 +1,106 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.benchmark;
+
+import com.calclab.emite.base.xml.HasXML;
+import com.calclab.emite.core.conn.ConnectionSettings;
+import com.calclab.emite.core.conn.StreamSettings;
+import com.calclab.emite.core.conn.XmppConnection;
+import com.calclab.emite.core.events.ConnectionStatusChangedEvent;
+import com.calclab.emite.core.events.PacketReceivedEvent;
+import com.calclab.emite.core.events.PacketSentEvent;
+import com.google.web.bindery.event.shared.EventBus;
+import com.google.web.bindery.event.shared.HandlerRegistration;
+
+/**
+ * A connection which never connects, to wire a session by hand in the
+ * benchmarks.
+ */
+final class NullConnection implements XmppConnection {
+
+	private final EventBus eventBus;
+
+	NullConnection(final EventBus eventBus) {
+		this.eventBus = eventBus;
+	}
+
+	@Override
+	public HandlerRegistration addConnectionStatusChangedHandler(final ConnectionStatusChangedEvent.Handler handler) {
+		return eventBus.addHandlerToSource(ConnectionStatusChangedEvent.TYPE, this, handler);
+	}
+
+	@Override
+	public HandlerRegistration addPacketReceivedHandler(final PacketReceivedEvent.Handler handler) {
+		return eventBus.addHandlerToSource(PacketReceivedEvent.TYPE, this, handler);
+	}
+
+	@Override
+	public HandlerRegistration addPacketSentHandler(final PacketSentEvent.Handler handler) {
+		return eventBus.addHandlerToSource(PacketSentEvent.TYPE, this, handler);
+	}
+
+	@Override
+	public void connect() {
+	}
+
+	@Override
+	public void disconnect() {
+	}
+
+	@Override
+	public StreamSettings getStreamSettings() {
+		return null;
+	}
+
+	@Override
+	public boolean hasErrors() {
+		return false;
+	}
+
+	@Override
+	public boolean isConnected() {
+		return true;
+	}
+
+	@Override
+	public StreamSettings pause() {
+		return null;
+	}
+
+	@Override
+	public void restartStream() {
+	}
+
+	@Override
+	public boolean resume(final StreamSettings settings) {
+		return false;
+	}
+
+	@Override
+	public void send(final HasXML packet) {
+	}
+
+	@Override
+	public void setSettings(final ConnectionSettings settings) {
+	}
+
+}
+
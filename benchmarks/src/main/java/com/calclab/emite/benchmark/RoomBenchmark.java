@@ -0,0 +1,117 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.benchmark;
+
+import java.lang.reflect.Constructor;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.calclab.emite.base.xml.XMLPacket;
+import com.calclab.emite.core.XmppNamespaces;
+import com.calclab.emite.core.XmppURI;
+import com.calclab.emite.core.events.PacketReceivedEvent;
+import com.calclab.emite.core.session.XmppSession;
+import com.calclab.emite.core.session.XmppSessionImpl;
+import com.calclab.emite.core.stanzas.Presence;
+import com.calclab.emite.xep.muc.RoomChat;
+import com.calclab.emite.xep.muc.RoomChatManagerImpl;
+import com.google.web.bindery.event.shared.EventBus;
+import com.google.web.bindery.event.shared.SimpleEventBus;
+
+/**
+ * Measures entering a room: the presences of every occupant, and then our
+ * own presence, go through the session to the room.
+ * 
+ * Each invocation enters a new room with a new session. The room manager is
+ * created by reflection, as its constructor is only meant for the injector.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoomBenchmark {
+
+	private static final XmppURI USER = XmppURI.uri("user@localhost/emite");
+	private static final XmppURI ROOM = XmppURI.uri("room@conference.localhost/me");
+
+	@Param({ "100", "3000" })
+	public int occupants;
+
+	private XMLPacket[] presences;
+	private XmppSessionImpl session;
+	private RoomChat room;
+
+	@Setup
+	public void setupPresences() {
+		presences = new XMLPacket[occupants + 1];
+		for (int i = 0; i <= occupants; i++) {
+			final String nick = i < occupants ? "user" + i : ROOM.getResource();
+			final Presence presence = new Presence();
+			presence.setFrom(XmppURI.uri(ROOM.getNode(), ROOM.getHost(), nick));
+			final XMLPacket x = presence.getXML().addChild("x", XmppNamespaces.MUC_USER);
+			final XMLPacket item = x.addChild("item");
+			item.setAttribute("affiliation", "none");
+			item.setAttribute("role", "participant");
+			item.setAttribute("jid", nick + "@localhost/res");
+			if (i == occupants) {
+				x.addChild("status").setAttribute("code", "110");
+			}
+			presences[i] = presence.getXML();
+		}
+	}
+
+	@Setup(Level.Invocation)
+	public void setupRoom() throws Exception {
+		final EventBus eventBus = new SimpleEventBus();
+		session = new XmppSessionImpl(eventBus, new NullConnection(eventBus)) {
+			@Override
+			public XmppURI getCurrentUserURI() {
+				return USER;
+			}
+		};
+		final Constructor<RoomChatManagerImpl> constructor = RoomChatManagerImpl.class.getDeclaredConstructor(EventBus.class, XmppSession.class);
+		constructor.setAccessible(true);
+		room = constructor.newInstance(eventBus, session).openRoom(ROOM, null);
+	}
+
+	@Benchmark
+	public int enter() {
+		for (final XMLPacket presence : presences) {
+			session.onPacketReceived(new PacketReceivedEvent(presence));
+		}
+		return room.getOccupantsCount();
+	}
+
+}
@@ -0,0 +1,109 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.benchmark;
+
+import java.lang.reflect.Constructor;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.calclab.emite.base.xml.XMLBuilder;
+import com.calclab.emite.base.xml.XMLPacket;
+import com.calclab.emite.core.XmppNamespaces;
+import com.calclab.emite.core.XmppURI;
+import com.calclab.emite.core.events.PacketReceivedEvent;
+import com.calclab.emite.core.session.XmppSession;
+import com.calclab.emite.core.session.XmppSessionImpl;
+import com.calclab.emite.core.stanzas.IQ;
+import com.calclab.emite.core.stanzas.Presence;
+import com.calclab.emite.im.roster.XmppRosterImpl;
+import com.google.web.bindery.event.shared.EventBus;
+import com.google.web.bindery.event.shared.SimpleEventBus;
+
+/**
+ * Measures the presences received by a roster of 5000 contacts, spread over
+ * one or many groups. With the group index, the cost of a presence should
+ * not depend on the number of groups.
+ * 
+ * The roster is created by reflection, as its constructor is only meant for
+ * the injector.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RosterBenchmark {
+
+	private static final int CONTACTS = 5000;
+	// Each contact goes available and unavailable
+	private static final int PRESENCES = 2 * CONTACTS;
+
+	@Param({ "1", "300" })
+	public int groups;
+
+	private XmppSessionImpl session;
+	private XMLPacket[] presences;
+	private int next;
+
+	@Setup
+	public void setup() throws Exception {
+		final EventBus eventBus = new SimpleEventBus();
+		session = new XmppSessionImpl(eventBus, new NullConnection(eventBus)) {
+		};
+		final Constructor<XmppRosterImpl> constructor = XmppRosterImpl.class.getDeclaredConstructor(EventBus.class, XmppSession.class);
+		constructor.setAccessible(true);
+		constructor.newInstance(eventBus, session);
+
+		final IQ push = new IQ(IQ.Type.set);
+		final XMLPacket query = push.addQuery(XmppNamespaces.ROSTER);
+		for (int i = 0; i < CONTACTS; i++) {
+			query.addChild(XMLBuilder.create("item", XmppNamespaces.ROSTER).attribute("jid", "contact" + i + "@localhost").attribute("subscription", "both")
+					.childText("group", "group" + i % groups));
+		}
+		session.onPacketReceived(new PacketReceivedEvent(push.getXML()));
+
+		presences = new XMLPacket[PRESENCES];
+		for (int i = 0; i < PRESENCES; i++) {
+			final Presence presence = new Presence(i % 2 == 0 ? null : Presence.Type.unavailable);
+			presence.setFrom(XmppURI.uri("contact" + i / 2 + "@localhost/res"));
+			presences[i] = presence.getXML();
+		}
+	}
+
+	@Benchmark
+	public void presence() {
+		session.onPacketReceived(new PacketReceivedEvent(presences[next]));
+		next = (next + 1) % PRESENCES;
+	}
+
+}
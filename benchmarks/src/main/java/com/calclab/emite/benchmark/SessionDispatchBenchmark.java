@@ -0,0 +1,130 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.calclab.emite.base.LoggingEventBus;
+import com.calclab.emite.base.xml.XMLBuilder;
+import com.calclab.emite.base.xml.XMLPacket;
+import com.calclab.emite.core.events.IQRequestReceivedEvent;
+import com.calclab.emite.core.events.IQResponseReceivedEvent;
+import com.calclab.emite.core.events.MessageReceivedEvent;
+import com.calclab.emite.core.events.PacketReceivedEvent;
+import com.calclab.emite.core.events.PresenceReceivedEvent;
+import com.calclab.emite.core.session.XmppSessionImpl;
+import com.google.web.bindery.event.shared.EventBus;
+
+/**
+ * Measures the dispatch of a BOSH response body through the session, the
+ * way the BOSH connection does it: every child of the body is fired as a
+ * received packet, and the session turns it into a stanza event.
+ * 
+ * The session is wired by hand to a connection which never connects, as
+ * Guice 3 can not create injectors on recent JVMs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SessionDispatchBenchmark {
+
+	private static final String BODY = "<body xmlns=\"http://jabber.org/protocol/httpbind\" rid=\"1249243564\" sid=\"SomeSID\" ack=\"1249243563\">"
+			+ "<message xmlns=\"jabber:client\" from=\"romeo@montague.lit/orchard\" to=\"juliet@capulet.lit/balcony\" type=\"chat\" id=\"m1\">"
+			+ "<body>Art thou not Romeo, and a Montague?</body><active xmlns=\"http://jabber.org/protocol/chatstates\"/></message>"
+			+ "<presence xmlns=\"jabber:client\" from=\"benvolio@montague.lit/pda\" to=\"juliet@capulet.lit/balcony\">"
+			+ "<show>away</show><status>In the square</status><priority>5</priority></presence>"
+			+ "<iq xmlns=\"jabber:client\" from=\"capulet.lit\" to=\"juliet@capulet.lit/balcony\" type=\"result\" id=\"ping-1\"/>"
+			+ "<iq xmlns=\"jabber:client\" from=\"nurse@capulet.lit/chamber\" to=\"juliet@capulet.lit/balcony\" type=\"get\" id=\"v1\">"
+			+ "<query xmlns=\"jabber:iq:version\"/></iq>"
+			+ "<message xmlns=\"jabber:client\" from=\"nurse@capulet.lit/chamber\" to=\"juliet@capulet.lit/balcony\" type=\"chat\" id=\"m2\">"
+			+ "<body>Your lady mother is coming to your chamber.</body></message>"
+			+ "</body>";
+
+	private XmppSessionImpl session;
+	private XMLPacket body;
+	private int received;
+
+	@Setup
+	public void setup() {
+		final EventBus eventBus = new LoggingEventBus();
+		session = new XmppSessionImpl(eventBus, new NullConnection(eventBus)) {
+		};
+
+		session.addMessageReceivedHandler(new MessageReceivedEvent.Handler() {
+			@Override
+			public void onMessageReceived(final MessageReceivedEvent event) {
+				received += event.getMessage().getBody().length();
+			}
+		});
+		session.addPresenceReceivedHandler(new PresenceReceivedEvent.Handler() {
+			@Override
+			public void onPresenceReceived(final PresenceReceivedEvent event) {
+				received += event.getPresence().getPriority();
+			}
+		});
+		session.addIQRequestReceivedHandler(new IQRequestReceivedEvent.Handler() {
+			@Override
+			public void onIQRequestReceived(final IQRequestReceivedEvent event) {
+				received += event.getIQ().getId().length();
+			}
+		});
+		session.addIQResponseReceivedHandler(new IQResponseReceivedEvent.Handler() {
+			@Override
+			public void onIQResponseReceived(final IQResponseReceivedEvent event) {
+				received += event.getIQ().getId().length();
+			}
+		});
+
+		body = XMLBuilder.fromXML(BODY);
+	}
+
+	@Benchmark
+	public int dispatch() {
+		return dispatch(body);
+	}
+
+	@Benchmark
+	public int parseAndDispatch() {
+		return dispatch(XMLBuilder.fromXML(BODY));
+	}
+
+	private int dispatch(final XMLPacket response) {
+		for (final XMLPacket packet : response.getChildren()) {
+			session.onPacketReceived(new PacketReceivedEvent(packet));
+		}
+		return received;
+	}
+
+}
@@ -0,0 +1,95 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.calclab.emite.base.stringprep.IDNA;
+import com.calclab.emite.base.stringprep.IDNAException;
+import com.calclab.emite.base.stringprep.NFKC;
+import com.calclab.emite.base.stringprep.Stringprep;
+import com.calclab.emite.base.stringprep.StringprepException;
+
+/**
+ * Measures the stringprep profiles used to prepare each part of a JID, on
+ * plain ASCII input and on input which needs case folding and NFKC.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StringprepBenchmark {
+
+	@Param({ "ascii", "unicode" })
+	public String input;
+
+	private String node;
+	private String domain;
+	private String resource;
+
+	@Setup
+	public void setup() {
+		if ("ascii".equals(input)) {
+			node = "Juliet.Capulet";
+			domain = "example.com";
+			resource = "Balcony Phone";
+		} else {
+			node = "J\u00dcLIET.\ufb01ne";
+			domain = "b\u00fccher.example";
+			resource = "Balcon\u0301 \u2163";
+		}
+	}
+
+	@Benchmark
+	public String nodeprep() throws StringprepException {
+		return Stringprep.nodeprep(node);
+	}
+
+	@Benchmark
+	public String resourceprep() throws StringprepException {
+		return Stringprep.resourceprep(resource);
+	}
+
+	@Benchmark
+	public String nfkc() {
+		return NFKC.normalizeNFKC(resource);
+	}
+
+	@Benchmark
+	public String idnaToASCII() throws IDNAException {
+		return IDNA.toASCII(domain);
+	}
+
+}
@@ -0,0 +1,135 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.benchmark;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.calclab.emite.base.xml.XMLPacket;
+import com.calclab.emite.base.xml.XMLPacketFactory;
+import com.calclab.emite.base.xml.XMLPacketImpl;
+import com.calclab.emite.base.xml.XMLPacketImplLite;
+import com.calclab.emite.base.xml.XMLSerializerNIO;
+import com.calclab.emite.base.xml.XMLStreamParser;
+
+/**
+ * Compares the DOM based and the lightweight XMLPacket implementations when
+ * parsing, navigating and serializing a typical message stanza, the direct
+ * UTF-8 serializer against encoding the serialized String, and parsing
+ * straight from UTF-8 bytes against decoding them into a String first.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class XMLPacketBenchmark {
+
+	private static final String STANZA = "<message xmlns=\"jabber:client\" from=\"romeo@montague.lit/orchard\" to=\"juliet@capulet.lit\" type=\"chat\" id=\"msg-42\">"
+			+ "<thread>e0ffe42b28561960c6b12b944a092794b9683a38</thread>"
+			+ "<body>Art thou not Romeo, and a Montague? &amp; &lt;more&gt;</body>"
+			+ "<active xmlns=\"http://jabber.org/protocol/chatstates\"/>"
+			+ "<x xmlns=\"jabber:x:event\"><composing/><offline/></x>"
+			+ "</message>";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	@Param({ "dom", "lite" })
+	public String impl;
+
+	private XMLPacketFactory factory;
+	private XMLPacket packet;
+	private byte[] bytes;
+
+	@Setup
+	public void setup() {
+		factory = "dom".equals(impl) ? XMLPacketImpl.FACTORY : XMLPacketImplLite.FACTORY;
+		packet = factory.parse(STANZA);
+		bytes = STANZA.getBytes(UTF8);
+	}
+
+	@Benchmark
+	public XMLPacket parse() {
+		return factory.parse(STANZA);
+	}
+
+	@Benchmark
+	public XMLPacket parseDecodedBytes() {
+		return factory.parse(new String(bytes, UTF8));
+	}
+
+	@Benchmark
+	public XMLPacket parseBytes() {
+		return XMLStreamParser.parse(factory, bytes, 0, bytes.length);
+	}
+
+	@Benchmark
+	public void navigate(final Blackhole bh) {
+		bh.consume(packet.getAttribute("from"));
+		bh.consume(packet.getAttribute("type"));
+		bh.consume(packet.getChildText("body"));
+		bh.consume(packet.getChildText("thread"));
+		bh.consume(packet.getFirstChild("active", "http://jabber.org/protocol/chatstates"));
+		bh.consume(packet.getFirstChild("x", "jabber:x:event").hasChild("composing"));
+	}
+
+	@Benchmark
+	public String serialize() {
+		return packet.toString();
+	}
+
+	@Benchmark
+	public byte[] serializeToBytes() throws UnsupportedEncodingException {
+		return packet.toString().getBytes("UTF-8");
+	}
+
+	@Benchmark
+	public ByteBuffer serializeToBuffer() {
+		return XMLSerializerNIO.toByteBuffer(packet);
+	}
+
+	@Benchmark
+	public String build() {
+		final XMLPacket message = factory.create("message", "jabber:client");
+		message.setAttribute("to", "juliet@capulet.lit");
+		message.setAttribute("type", "chat");
+		message.setChildText("body", "Art thou not Romeo, and a Montague?");
+		message.addChild("active", "http://jabber.org/protocol/chatstates");
+		return message.toString();
+	}
+
+}
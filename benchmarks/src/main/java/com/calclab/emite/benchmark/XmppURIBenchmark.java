@@ -0,0 +1,87 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.calclab.emite.core.XmppURI;
+
+/**
+ * Measures the parsing of XMPP URIs with and without the URI cache, over a
+ * set of full JIDs like the ones found in a roster.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class XmppURIBenchmark {
+
+	private static final int URIS = 1024;
+
+	@Param({ "true", "false" })
+	public boolean cache;
+
+	private String[] uris;
+	private int next;
+
+	@Setup
+	public void setup() {
+		XmppURI.setCacheSize(cache ? XmppURI.DEFAULT_CACHE_SIZE : 0);
+
+		uris = new String[URIS];
+		for (int i = 0; i < URIS; i++) {
+			uris[i] = "Contact" + i + "@Example" + i % 8 + ".com/Resource " + i % 3;
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		XmppURI.setCacheSize(XmppURI.DEFAULT_CACHE_SIZE);
+	}
+
+	@Benchmark
+	public XmppURI uri() {
+		next = next + 1 & URIS - 1;
+		return XmppURI.uri(uris[next]);
+	}
+
+	@Benchmark
+	public XmppURI jid() {
+		next = next + 1 & URIS - 1;
+		return XmppURI.jid(uris[next]);
+	}
+
+}
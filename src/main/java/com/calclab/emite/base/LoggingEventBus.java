@@ -20,6 +20,7 @@
 
 package com.calclab.emite.base;
 
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import com.google.web.bindery.event.shared.Event;
@@ -36,13 +37,17 @@ public class LoggingEventBus extends SimpleEventBus {
 
 	@Override
 	public void fireEvent(final Event<?> event) {
-		logger.finest("FIRE: " + event.toDebugString());
+		if (logger.isLoggable(Level.FINEST)) {
+			logger.finest("FIRE: " + event.toDebugString());
+		}
 		super.fireEvent(event);
 	}
 
 	@Override
 	public void fireEventFromSource(final Event<?> event, final Object source) {
-		logger.finest("FIRE|" + source.toString() + ": " + event.toDebugString());
+		if (logger.isLoggable(Level.FINEST)) {
+			logger.finest("FIRE|" + source.toString() + ": " + event.toDebugString());
+		}
 		super.fireEventFromSource(event, source);
 	}
 }
@@ -25,108 +25,191 @@ package com.calclab.emite.base.stringprep;
 
 /**
  * This class offers static methods for Unicode NFKC string normalization.
+ *
+ * The decomposition, combining class and composition tables are merged
+ * into a two-stage lookup table when the class is loaded. Strings which
+ * only contain characters that are stable under NFKC (the quick check)
+ * are returned as they are, which is the common case.
  */
 public class NFKC
 {
+  /** Index in DecompositionMappings plus one, or 0. */
+  private static final int DECOMPOSITION_MASK = 0x00000FFF;
+  private static final int CLASS_SHIFT = 12;
+  private static final int CLASS_MASK = 0xFF;
+  /** The character is not stable under NFKC. */
+  private static final int MAYBE = 0x00100000;
+  /** Index in the composition tables plus one, or 0. */
+  private static final int COMPOSE_SHIFT = 21;
+
   /**
-   * Applies NFKC normalization to a string.
+   * Entire hangul code copied from:
+   * http://www.unicode.org/unicode/reports/tr15/
    *
-   * @param in The string to normalize.
-   * @return An NFKC normalized string.
+   * Several hangul specific constants
    */
-  public static String normalizeNFKC(String in)
+  static final int SBase = 0xAC00;
+  static final int LBase = 0x1100;
+  static final int VBase = 0x1161;
+  static final int TBase = 0x11A7;
+  static final int LCount = 19;
+  static final int VCount = 21;
+  static final int TCount = 28;
+  static final int NCount = VCount * TCount;
+  static final int SCount = LCount * NCount;
+
+  private static final int BLOCK_SHIFT = 8;
+  private static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+  private static final int BLOCK_MASK = BLOCK_SIZE - 1;
+
+  /** Block of each high byte, as an offset in the data array. */
+  private static final char[] index;
+  /** Properties of each code point, identical blocks are shared. */
+  private static final int[] data;
+
+  static
   {
-    StringBuffer out = new StringBuffer();
+    int[] props = new int[0x10000];
 
-    for (int i = 0; i < in.length(); i++) {
-      char code = in.charAt(i);
+    for (int i = 0; i < DecompositionKeys.k.length; i += 2) {
+      props[DecompositionKeys.k[i]] |= DecompositionKeys.k[i + 1] + 1;
+    }
 
-      // In Unicode 3.0, Hangul was defined as the block from U+AC00
-      // to U+D7A3, however, since Unicode 3.2 the block extends until
-      // U+D7AF. The decomposeHangul function only decomposes until
-      // U+D7A3. Should this be changed?
-      if (code >= 0xAC00 && code <= 0xD7AF) {
-	out.append(decomposeHangul(code));
-      } else {
-	int index = decomposeIndex(code);
-	if (index == -1) {
-	  out.append(code);
-	} else {
-	  out.append(DecompositionMappings.m[index]);
+    for (int h = 0; h < CombiningClass.i.length; h++) {
+      int page = CombiningClass.i[h];
+      if (page > -1) {
+	for (int l = 0; l < BLOCK_SIZE; l++) {
+	  props[h << 8 | l] |= CombiningClass.c[page][l] << CLASS_SHIFT;
 	}
       }
     }
 
-    // Bring the stringbuffer into canonical order.
-    canonicalOrdering(out);
-
-    // Do the canonical composition.
-    int last_cc = 0;
-    int last_start = 0;
-
-    for (int i = 0; i < out.length(); i++) {
-      int cc = combiningClass(out.charAt(i));
-
-      if (i > 0 && (last_cc == 0 || last_cc != cc)) {
-	  // Try to combine characters
-	  char a = out.charAt(last_start);
-	  char b = out.charAt(i);
-
-	  int c = compose(a, b);
-
-	  if (c != -1) {
-	      out.setCharAt(last_start, (char) c);
-	      out.deleteCharAt(i);
-	      i--;
-
-	  if (i == last_start) {
-	    last_cc = 0;
-	  } else {
-	    last_cc = combiningClass(out.charAt(i-1));
-	  }
-	  continue;
+    for (int h = 0; h < Composition.composePage.length; h++) {
+      int page = Composition.composePage[h];
+      if (page != -1) {
+	for (int l = 0; l < BLOCK_SIZE; l++) {
+	  props[h << 8 | l] |= (Composition.composeData[page][l] + 1) << COMPOSE_SHIFT;
 	}
       }
+    }
 
-      if (cc == 0) {
-	  last_start = i;
+    // A character is stable if NFKC maps it to itself, it is a
+    // starter and it never combines with a previous character
+    for (int c = 0; c < props.length; c++) {
+      int p = props[c];
+      int d = p & DECOMPOSITION_MASK;
+      int ci = (p >>> COMPOSE_SHIFT) - 1;
+      if ((d != 0 && !recomposes(props, (char) c, DecompositionMappings.m[d - 1])) ||
+	  (p >> CLASS_SHIFT & CLASS_MASK) != 0 ||
+	  (ci >= Composition.multiSecondStart && ci < Composition.singleFirstStart) ||
+	  ci >= Composition.singleSecondStart ||
+	  (c >= VBase && c < VBase + VCount) ||
+	  (c > TBase && c < TBase + TCount)) {
+	props[c] |= MAYBE;
       }
+    }
 
-      last_cc = cc;
+    // Share the identical blocks
+    int blocks = props.length >> BLOCK_SHIFT;
+    index = new char[blocks];
+    int[] shared = new int[props.length];
+    int used = 0;
+    for (int block = 0; block < blocks; block++) {
+      int start = block << BLOCK_SHIFT;
+      int offset = 0;
+      while (offset < used && !sameBlock(props, start, shared, offset)) {
+	offset += BLOCK_SIZE;
+      }
+      if (offset == used) {
+	System.arraycopy(props, start, shared, used, BLOCK_SIZE);
+	used += BLOCK_SIZE;
+      }
+      index[block] = (char) offset;
     }
 
-    return out.toString();
+    data = new int[used];
+    System.arraycopy(shared, 0, data, 0, used);
   }
 
-
   /**
-   * Returns the index inside the decomposition table, implemented
-   * using a binary search.
+   * Applies NFKC normalization to a string.
    *
-   * @param c Character to look up.
-   * @return Index if found, -1 otherwise.
+   * @param in The string to normalize.
+   * @return An NFKC normalized string.
    */
-  static int decomposeIndex(char c)
+  public static String normalizeNFKC(String in)
   {
+    int length = in.length();
+
+    // Quick check
     int start = 0;
-    int end = DecompositionKeys.k.length/2;
+    while (start < length && (get(in.charAt(start)) & MAYBE) == 0) {
+      start++;
+    }
+    if (start == length) {
+      return in;
+    }
 
-    while (true) {
-      int half = (start + end) / 2;
-      int code = DecompositionKeys.k[half*2];
+    // The last stable character may still compose with the next ones
+    if (start > 0) {
+      start--;
+    }
 
-      if (c == code) {
-	return DecompositionKeys.k[half*2 + 1];
-      }
-      if (half == start) {
-	// Character not found
-	return -1;
-      } else if (c > code) {
-	start = half;
+    // Decompose the rest of the string, inserting each combining mark
+    // in canonical order
+    char[] out = new char[length - start + 16];
+    int n = 0;
+    for (int i = start; i < length; i++) {
+      char code = in.charAt(i);
+      int d = get(code) & DECOMPOSITION_MASK;
+      if (d == 0) {
+	if (n == out.length) {
+	  out = grow(out, 1);
+	}
+	n = insert(out, n, code);
       } else {
-	end = half;
+	String mapping = DecompositionMappings.m[d - 1];
+	if (n + mapping.length() > out.length) {
+	  out = grow(out, mapping.length());
+	}
+	for (int j = 0; j < mapping.length(); j++) {
+	  n = insert(out, n, mapping.charAt(j));
+	}
+      }
+    }
+
+    // Do the canonical composition. Hangul syllables are never
+    // decomposed, they can only compose with a following jamo.
+    int starter = 0;
+    int lastClass = combiningClass(out[0]);
+    if (lastClass != 0) {
+      // No starter to compose with
+      lastClass = 256;
+    }
+    int w = 1;
+    for (int r = 1; r < n; r++) {
+      char code = out[r];
+      int cc = combiningClass(code);
+      if (lastClass == 0 || lastClass < cc) {
+	int c = compose(out[starter], code);
+	if (c != -1) {
+	  out[starter] = (char) c;
+	  continue;
+	}
       }
+      if (cc == 0) {
+	starter = w;
+      }
+      lastClass = cc;
+      out[w++] = code;
     }
+
+    return new StringBuilder(start + w).append(in, 0, start).append(out, 0, w).toString();
+  }
+
+  private static int get(char c)
+  {
+    return data[index[c >> BLOCK_SHIFT] + (c & BLOCK_MASK)];
   }
 
   /**
@@ -137,49 +220,37 @@ public class NFKC
    */
   static int combiningClass(char c)
   {
-    int h = c >> 8;
-    int l = c & 0xff;
-
-    int i = CombiningClass.i[h];
-    if (i > -1) {
-      return CombiningClass.c[i][l];
-    } else {
-      return 0;
-    }
+    return get(c) >> CLASS_SHIFT & CLASS_MASK;
   }
 
   /**
-   * Rearranges characters in a stringbuffer in order to respect the
-   * canonical ordering properties.
+   * Appends a character, moving it before the combining marks with a
+   * higher combining class.
    *
-   * @param The StringBuffer to rearrange.
+   * @param out The buffer, with room for one more character.
+   * @param n The length of the buffer.
+   * @param c The character to append.
+   * @return The new length of the buffer.
    */
-  static void canonicalOrdering(StringBuffer in)
+  private static int insert(char[] out, int n, char c)
   {
-    boolean isOrdered = false;
-
-    while (!isOrdered) {
-      isOrdered = true;
-
-      int lastCC = combiningClass(in.charAt(0));
-
-      for (int i = 0; i < in.length()-1; i++) {
-	int nextCC = combiningClass(in.charAt(i+1));
-	if (nextCC != 0 && lastCC > nextCC) {
-	  for (int j = i+1; j > 0; j--) {
-	    if (combiningClass(in.charAt(j-1)) <= nextCC) {
-	      break;
-	    }
-	    char t = in.charAt(j);
-	    in.setCharAt(j, in.charAt(j-1));
-	    in.setCharAt(j-1, t);
-	    isOrdered = false;
-	  }
-	  nextCC = lastCC;
-	}
-	lastCC = nextCC;
+    int cc = combiningClass(c);
+    int j = n;
+    if (cc != 0) {
+      while (j > 0 && combiningClass(out[j - 1]) > cc) {
+	out[j] = out[j - 1];
+	j--;
       }
     }
+    out[j] = c;
+    return n + 1;
+  }
+
+  private static char[] grow(char[] out, int needed)
+  {
+    char[] result = new char[Math.max(out.length * 2, out.length + needed)];
+    System.arraycopy(out, 0, result, 0, out.length);
+    return result;
   }
 
   /**
@@ -190,14 +261,7 @@ public class NFKC
    */
   static int composeIndex(char a)
   {
-    if (a>>8 >= Composition.composePage.length) {
-      return -1;
-    }
-    int ap = Composition.composePage[a>>8];
-    if (ap == -1) {
-      return -1;
-    }
-    return Composition.composeData[ap][a & 0xff];
+    return (get(a) >>> COMPOSE_SHIFT) - 1;
   }
 
   /**
@@ -209,14 +273,17 @@ public class NFKC
    * found.
    */
   static int compose(char a, char b)
+  {
+    return compose(a, composeIndex(a), b, composeIndex(b));
+  }
+
+  private static int compose(char a, int ai, char b, int bi)
   {
     int h = composeHangul(a, b);
     if (h != -1) {
       return h;
     }
 
-    int ai = composeIndex(a);
-
     if (ai >= Composition.singleFirstStart && ai < Composition.singleSecondStart) {
       if (b == Composition.singleFirst[ai - Composition.singleFirstStart][0]) {
 	return Composition.singleFirst[ai - Composition.singleFirstStart][1];
@@ -225,8 +292,6 @@ public class NFKC
       }
     }
 
-    int bi = composeIndex(b);
-
     if (bi >= Composition.singleSecondStart) {
       if (a == Composition.singleSecond[bi - Composition.singleSecondStart][0]) {
 	return Composition.singleSecond[bi - Composition.singleSecondStart][1];
@@ -253,46 +318,6 @@ public class NFKC
     return -1;
   }
 
-  /**
-   * Entire hangul code copied from:
-   * http://www.unicode.org/unicode/reports/tr15/
-   *
-   * Several hangul specific constants
-   */
-  static final int SBase = 0xAC00;
-  static final int LBase = 0x1100;
-  static final int VBase = 0x1161;
-  static final int TBase = 0x11A7;
-  static final int LCount = 19;
-  static final int VCount = 21;
-  static final int TCount = 28;
-  static final int NCount = VCount * TCount;
-  static final int SCount = LCount * NCount;
-
-  /**
-   * Decomposes a hangul character.
-   *
-   * @param s A character to decompose.
-   * @return A string containing the hangul decomposition of the input
-   * character. If no hangul decomposition can be found, a string
-   * containing the character itself is returned.
-   */
-  static String decomposeHangul(char s)
-  {
-    int SIndex = s - SBase;
-    if (SIndex < 0 || SIndex >= SCount) {
-      return String.valueOf(s);
-    }
-    StringBuffer result = new StringBuffer();
-    int L = LBase + SIndex / NCount;
-    int V = VBase + (SIndex % NCount) / TCount;
-    int T = TBase + SIndex % TCount;
-    result.append((char)L);
-    result.append((char)V);
-    if (T != TBase) result.append((char)T);
-    return result.toString();
-  }
-
   /**
    * Composes two hangul characters.
    *
@@ -317,11 +342,40 @@ public class NFKC
     int SIndex = a - SBase;
     if (0 <= SIndex && SIndex < SCount && (SIndex % TCount) == 0) {
       int TIndex = b - TBase;
-      if (0 <= TIndex && TIndex <= TCount) {
+      if (0 < TIndex && TIndex < TCount) {
 	// make syllable of form LVT
 	return a+TIndex;
       }
     }
     return -1;
   }
+
+  /**
+   * Checks if a decomposition composes back to its character, while
+   * the lookup table is being built.
+   *
+   * @param props The properties of each character.
+   * @param c The decomposed character.
+   * @param mapping The decomposition of the character.
+   * @return true if the mapping composes back to the character.
+   */
+  private static boolean recomposes(int[] props, char c, String mapping)
+  {
+    int r = mapping.charAt(0);
+    for (int i = 1; i < mapping.length() && r != -1; i++) {
+      char b = mapping.charAt(i);
+      r = compose((char) r, (props[r] >>> COMPOSE_SHIFT) - 1, b, (props[b] >>> COMPOSE_SHIFT) - 1);
+    }
+    return r == c;
+  }
+
+  private static boolean sameBlock(int[] a, int aStart, int[] b, int bStart)
+  {
+    for (int i = 0; i < BLOCK_SIZE; i++) {
+      if (a[aStart + i] != b[bStart + i]) {
+	return false;
+      }
+    }
+    return true;
+  }
 }
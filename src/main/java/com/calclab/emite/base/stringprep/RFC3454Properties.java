@@ -0,0 +1,164 @@
+/**
+ * Copyright (C) 2004, 2005, 2006, 2007, 2008, 2009, 2010, 2011 Free
+ * Software Foundation, Inc.
+ *
+ * This file is part of GNU Libidn.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package com.calclab.emite.base.stringprep;
+
+import java.util.Arrays;
+
+/**
+ * Per code point properties from the RFC3454 tables.
+ *
+ * The tables are merged into a two-stage lookup table when the class
+ * is loaded, so each property check is a couple of array reads
+ * instead of a scan over all the ranges of a table.
+ */
+final class RFC3454Properties
+{
+  /** Table A.1: unassigned code point. */
+  static final int UNASSIGNED = 0x0001;
+  /** Table B.1: mapped to nothing. */
+  static final int MAP_TO_NOTHING = 0x0002;
+  /** Table B.2: mapped for case folding. */
+  static final int CASE_FOLDED = 0x0004;
+  /** Tables C.1.2, C.2.2 and C.3 to C.8: prohibited by all the profiles. */
+  static final int PROHIBITED = 0x0008;
+  /** Table C.1.1: ASCII space. */
+  static final int ASCII_SPACE = 0x0010;
+  /** Table C.2.1: ASCII control character. */
+  static final int ASCII_CONTROL = 0x0020;
+  /** Characters prohibited by RFC3920 nodeprep outside of RFC3454. */
+  static final int NODEPREP_PROHIBITED = 0x0040;
+  /** Table D.1: RandALCat character. */
+  static final int RANDAL = 0x0080;
+  /** Table D.2: LCat character. */
+  static final int L = 0x0100;
+
+  private static final int BLOCK_SHIFT = 8;
+  private static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+  private static final int BLOCK_MASK = BLOCK_SIZE - 1;
+
+  /** Block of each high byte, as an offset in the data array. */
+  private static final char[] index;
+  /** Properties of each code point, identical blocks are shared. */
+  private static final char[] data;
+
+  static
+  {
+    char[] props = new char[0x10000];
+
+    set(props, RFC3454.A1, UNASSIGNED);
+    set(props, RFC3454.B1, MAP_TO_NOTHING);
+    set(props, RFC3454.B2search, CASE_FOLDED);
+    set(props, RFC3454.C12, PROHIBITED);
+    set(props, RFC3454.C22, PROHIBITED);
+    set(props, RFC3454.C3, PROHIBITED);
+    set(props, RFC3454.C4, PROHIBITED);
+    set(props, RFC3454.C5, PROHIBITED);
+    set(props, RFC3454.C6, PROHIBITED);
+    set(props, RFC3454.C7, PROHIBITED);
+    set(props, RFC3454.C8, PROHIBITED);
+    set(props, RFC3454.C11, ASCII_SPACE);
+    set(props, RFC3454.C21, ASCII_CONTROL);
+    set(props, new char[] {
+	'\u0022', '\u0026', '\'',     '\u002F',
+	'\u003A', '\u003C', '\u003E', '\u0040'
+      }, NODEPREP_PROHIBITED);
+    // Table C.9 only contains code points > 0xFFFF
+    set(props, RFC3454.D1, RANDAL);
+    set(props, RFC3454.D2, L);
+
+    // Share the identical blocks
+    int blocks = props.length >> BLOCK_SHIFT;
+    index = new char[blocks];
+    char[] shared = new char[props.length];
+    int used = 0;
+    for (int block = 0; block < blocks; block++) {
+      int start = block << BLOCK_SHIFT;
+      int offset = 0;
+      while (offset < used && !sameBlock(props, start, shared, offset)) {
+	offset += BLOCK_SIZE;
+      }
+      if (offset == used) {
+	System.arraycopy(props, start, shared, used, BLOCK_SIZE);
+	used += BLOCK_SIZE;
+      }
+      index[block] = (char) offset;
+    }
+
+    data = new char[used];
+    System.arraycopy(shared, 0, data, 0, used);
+  }
+
+  /**
+   * Returns the properties of a character.
+   *
+   * @param c the character.
+   * @return the property flags of the character.
+   */
+  static int get(char c)
+  {
+    return data[index[c >> BLOCK_SHIFT] + (c & BLOCK_MASK)];
+  }
+
+  /**
+   * Returns the case folding of a character from table B.2.
+   *
+   * @param c a character with the CASE_FOLDED property.
+   * @return the mapped string.
+   */
+  static String caseFold(char c)
+  {
+    return RFC3454.B2replace[Arrays.binarySearch(RFC3454.B2search, c)];
+  }
+
+  private static void set(char[] props, char[] table, int flag)
+  {
+    for (int i = 0; i < table.length; i++) {
+      props[table[i]] |= flag;
+    }
+  }
+
+  private static void set(char[] props, char[][] table, int flag)
+  {
+    for (int i = 0; i < table.length; i++) {
+      char[] r = table[i];
+      char to = r.length == 2 ? r[1] : r[0];
+      for (int c = r[0]; c <= to; c++) {
+	props[c] |= flag;
+      }
+    }
+  }
+
+  private static boolean sameBlock(char[] a, int aStart, char[] b, int bStart)
+  {
+    for (int i = 0; i < BLOCK_SIZE; i++) {
+      if (a[aStart + i] != b[bStart + i]) {
+	return false;
+      }
+    }
+    return true;
+  }
+
+  private RFC3454Properties()
+  {
+  }
+}
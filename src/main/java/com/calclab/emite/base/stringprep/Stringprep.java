@@ -69,67 +69,9 @@ public class Stringprep
     throws StringprepException,
 	   NullPointerException
   {
-    if (input == null) {
-      throw new NullPointerException();
-    }
-
-    StringBuffer s = new StringBuffer(input);
-
-    if (!allowUnassigned && contains(s, RFC3454.A1)) {
-      throw new StringprepException(StringprepException.CONTAINS_UNASSIGNED);
-    }
-
-    filter(s, RFC3454.B1);
-    map(s, RFC3454.B2search, RFC3454.B2replace);
-
-    s = new StringBuffer(NFKC.normalizeNFKC(s.toString()));
-    // B.3 is only needed if NFKC is not used, right?
-    // map(s, RFC3454.B3search, RFC3454.B3replace);
-
-    if (contains(s, RFC3454.C12) ||
-	contains(s, RFC3454.C22) ||
-	contains(s, RFC3454.C3) ||
-	contains(s, RFC3454.C4) ||
-	contains(s, RFC3454.C5) ||
-	contains(s, RFC3454.C6) ||
-	contains(s, RFC3454.C7) ||
-	contains(s, RFC3454.C8)) {
-      // Table C.9 only contains code points > 0xFFFF which Java
-      // doesn't handle
-      throw new StringprepException(StringprepException.CONTAINS_PROHIBITED);
-    }
-
-    // Bidi handling
-    boolean r = contains(s, RFC3454.D1);
-    boolean l = contains(s, RFC3454.D2);
-
-    // RFC 3454, section 6, requirement 1: already handled above (table C.8)
-
-    // RFC 3454, section 6, requirement 2
-    if (r && l) {
-      throw new StringprepException(StringprepException.BIDI_BOTHRAL);
-    }
-
-    // RFC 3454, section 6, requirement 3
-    if (r) {
-      if (!contains(s.charAt(0), RFC3454.D1) ||
-	  !contains(s.charAt(s.length()-1), RFC3454.D1)) {
-	throw new StringprepException(StringprepException.BIDI_LTRAL);
-      }
-    }
-
-    return s.toString();
+    return prepare(input, allowUnassigned, true, RFC3454Properties.PROHIBITED);
   }
 
-  /**
-   * Characters prohibited by RFC3920 nodeprep that aren't defined as
-   * part of the RFC3454 tables.
-   */
-  private static final char [] RFC3920_NODEPREP_PROHIBIT = new char [] {
-    '\u0022', '\u0026', '\'',     '\u002F',
-    '\u003A', '\u003C', '\u003E', '\u0040'
-  };
-
   /**
    * Preps a node name according to the Stringprep profile defined in
    * RFC3920. Unassigned code points are not allowed.
@@ -163,57 +105,11 @@ public class Stringprep
     throws StringprepException,
 	   NullPointerException
   {
-    if (input == null) {
-      throw new NullPointerException();
-    }
-
-    StringBuffer s = new StringBuffer(input);
-
-    if (!allowUnassigned && contains(s, RFC3454.A1)) {
-      throw new StringprepException(StringprepException.CONTAINS_UNASSIGNED);
-    }
-
-    filter(s, RFC3454.B1);
-    map(s, RFC3454.B2search, RFC3454.B2replace);
-
-    s = new StringBuffer(NFKC.normalizeNFKC(s.toString()));
-    
-    if (contains(s, RFC3454.C11) ||
-	contains(s, RFC3454.C12) ||
-	contains(s, RFC3454.C21) ||
-	contains(s, RFC3454.C22) ||
-	contains(s, RFC3454.C3) ||
-	contains(s, RFC3454.C4) ||
-	contains(s, RFC3454.C5) ||
-	contains(s, RFC3454.C6) ||
-	contains(s, RFC3454.C7) ||
-	contains(s, RFC3454.C8) ||
-	contains(s, RFC3920_NODEPREP_PROHIBIT)) {                           
-      // Table C.9 only contains code points > 0xFFFF which Java
-      // doesn't handle
-      throw new StringprepException(StringprepException.CONTAINS_PROHIBITED);
-    }
-
-    // Bidi handling
-    boolean r = contains(s, RFC3454.D1);
-    boolean l = contains(s, RFC3454.D2);
-
-    // RFC 3454, section 6, requirement 1: already handled above (table C.8)
-
-    // RFC 3454, section 6, requirement 2
-    if (r && l) {
-      throw new	StringprepException(StringprepException.BIDI_BOTHRAL);
-    }
-    
-    // RFC 3454, section 6, requirement 3
-    if (r) {
-      if (!contains(s.charAt(0), RFC3454.D1) ||
-	  !contains(s.charAt(s.length() - 1), RFC3454.D1)) {
-	throw new StringprepException(StringprepException.BIDI_LTRAL);
-      }
-    }
-    
-    return s.toString();
+    return prepare(input, allowUnassigned, true,
+		   RFC3454Properties.PROHIBITED |
+		   RFC3454Properties.ASCII_SPACE |
+		   RFC3454Properties.ASCII_CONTROL |
+		   RFC3454Properties.NODEPREP_PROHIBITED);
   }
 
   /**
@@ -248,178 +144,85 @@ public class Stringprep
   public static String resourceprep(String input, boolean allowUnassigned)
     throws StringprepException,
 	   NullPointerException
+  {
+    return prepare(input, allowUnassigned, false,
+		   RFC3454Properties.PROHIBITED |
+		   RFC3454Properties.ASCII_CONTROL);
+  }
+
+  /**
+   * Preps a string in a single pass over its characters.
+   *
+   * @param input the string to prep.
+   * @param allowUnassigned true if the string may contain unassigned
+   * code points.
+   * @param caseFold true to map the string with table B.2.
+   * @param prohibited the properties of the prohibited characters.
+   * @return the prepped string.
+   * @throws StringprepException If the string cannot be prepped.
+   * @throws NullPointerException If the string is null.
+   */
+  static String prepare(String input, boolean allowUnassigned, boolean caseFold, int prohibited)
+    throws StringprepException,
+	   NullPointerException
   {
     if (input == null) {
       throw new NullPointerException();
     }
 
-    StringBuffer s = new StringBuffer(input);
-    
-    if (!allowUnassigned && contains(s, RFC3454.A1)) {
-      throw new StringprepException(StringprepException.CONTAINS_UNASSIGNED);
-    }
+    // Mapping (tables B.1 and B.2)
+    StringBuilder s = new StringBuilder(input.length());
+    for (int i = 0; i < input.length(); i++) {
+      char c = input.charAt(i);
+      int props = RFC3454Properties.get(c);
 
-    filter(s, RFC3454.B1);
-    
-    s = new StringBuffer(NFKC.normalizeNFKC(s.toString()));
-    
-    if (contains(s, RFC3454.C12) ||
-	contains(s, RFC3454.C21) ||
-	contains(s, RFC3454.C22) ||
-	contains(s, RFC3454.C3) ||
-	contains(s, RFC3454.C4) ||
-	contains(s, RFC3454.C5) ||
-	contains(s, RFC3454.C6) ||
-	contains(s, RFC3454.C7) ||
-	contains(s, RFC3454.C8)) {
-      // Table C.9 only contains code points > 0xFFFF which Java
-      // doesn't handle
-      throw new StringprepException(StringprepException.CONTAINS_PROHIBITED);
-    }
-    
-    // Bidi handling
-    boolean r = contains(s, RFC3454.D1);
-    boolean l = contains(s, RFC3454.D2);
-    
-    // RFC 3454, section 6, requirement 1: already handled above (table C.8)
-    
-    // RFC 3454, section 6, requirement 2
-    if (r && l) {
-      throw new	StringprepException(StringprepException.BIDI_BOTHRAL);
-    }
-
-    // RFC 3454, section 6, requirement 3
-    if (r) {
-      if (!contains(s.charAt(0), RFC3454.D1) ||
-	  !contains(s.charAt(s.length() - 1), RFC3454.D1)) {
-	throw new StringprepException(StringprepException.BIDI_LTRAL);
+      if (!allowUnassigned && (props & RFC3454Properties.UNASSIGNED) != 0) {
+	throw new StringprepException(StringprepException.CONTAINS_UNASSIGNED);
       }
-    }
-    
-    return s.toString();
-  }
 
-  static boolean contains(StringBuffer s, char[] p)
-  {
-    for (int i = 0; i < p.length; i++) {
-      char c = p[i];
-      for (int j = 0; j < s.length(); j++) {
-	if (c == s.charAt(j)) {
-	  return true;
-	}
+      if ((props & RFC3454Properties.MAP_TO_NOTHING) != 0) {
+	continue;
       }
-    }
-    return false;
-  }
 
-  static boolean contains(StringBuffer s, char[][] p)
-  {
-    for (int i = 0; i < p.length; i++) {
-      char[] r = p[i];
-      if (1 == r.length) {
-	char c = r[0];
-	for (int j = 0; j < s.length(); j++) {
-	  if (c == s.charAt(j)) {
-	    return true;
-	  }
-	}
-      } else if (2 == r.length) {
-	char f = r[0];
-	char t = r[1];
-	for (int j = 0; j < s.length(); j++) {
-	  if (f <= s.charAt(j) && t >= s.charAt(j)) {
-	    return true;
-	  }
-	}
+      if (caseFold && (props & RFC3454Properties.CASE_FOLDED) != 0) {
+	s.append(RFC3454Properties.caseFold(c));
+      } else {
+	s.append(c);
       }
     }
-    return false;
-  }
-
-  static boolean contains(char c, char[][] p)
-  {
-    for (int i = 0; i < p.length; i++) {
-      char[] r = p[i];
-      if (1 == r.length) {
-	if (c == r[0]) {
-	  return true;
-	}
-      } else if (2 == r.length) {
-	char f = r[0];
-	char t = r[1];
-	if (f <= c && t >= c) {
-	  return true;
-	}
-      }
-    }
-    return false;
-  }
 
-  static void filter(StringBuffer s, char[] f)
-  {
-    for (int i = 0; i < f.length; i++) {
-      char c = f[i];
+    // Stable strings, like ASCII ones, are returned as they are
+    String output = NFKC.normalizeNFKC(s.toString());
+    // B.3 is only needed if NFKC is not used, right?
 
-      int j = 0;
-      while (j < s.length()) {
-	if (c == s.charAt(j)) {
-	  s.deleteCharAt(j);
-	} else {
-	  j++;
-	}
+    // Prohibited characters and bidi properties. Table C.9 only
+    // contains code points > 0xFFFF which Java doesn't handle
+    boolean r = false;
+    boolean l = false;
+    for (int i = 0; i < output.length(); i++) {
+      int props = RFC3454Properties.get(output.charAt(i));
+      if ((props & prohibited) != 0) {
+	throw new StringprepException(StringprepException.CONTAINS_PROHIBITED);
       }
+      r |= (props & RFC3454Properties.RANDAL) != 0;
+      l |= (props & RFC3454Properties.L) != 0;
     }
-  }
-
-  static void filter(StringBuffer s, char[][] f)
-  {
-    for (int i = 0; i < f.length; i++) {
-      char[] r = f[i];
-
-      if (1 == r.length) {
-	char c = r[0];
 
-	int j = 0;
-	while (j < s.length()) {
-	  if (c == s.charAt(j)) {
-	    s.deleteCharAt(j);
-	  } else {
-	    j++;
-	  }
-	}
-      } else if (2 == r.length) {
-	char from = r[0];
-	char to = r[1];
+    // RFC 3454, section 6, requirement 1: already handled above (table C.8)
 
-	int j = 0;
-	while (j < s.length()) {
-	  if (from <= s.charAt(j) && to >= s.charAt(j)) {
-	    s.deleteCharAt(j);
-	  } else {
-	    j++;
-	  }
-	}
-      }
+    // RFC 3454, section 6, requirement 2
+    if (r && l) {
+      throw new StringprepException(StringprepException.BIDI_BOTHRAL);
     }
-  }
 
-  static void map(StringBuffer s, char[] search, String[] replace)
-  {
-    for (int i = 0; i < search.length; i++) {
-      char c = search[i];
-
-      int j = 0;
-      while (j < s.length()) {
-	if (c == s.charAt(j)) {
-	  s.deleteCharAt(j);
-	  if (null != replace[i]) {
-	    s.insert(j, replace[i]);
-	    j += replace[i].length()-1;
-	  }
-	} else {
-	  j++;
-	}
+    // RFC 3454, section 6, requirement 3
+    if (r) {
+      if ((RFC3454Properties.get(output.charAt(0)) & RFC3454Properties.RANDAL) == 0 ||
+	  (RFC3454Properties.get(output.charAt(output.length() - 1)) & RFC3454Properties.RANDAL) == 0) {
+	throw new StringprepException(StringprepException.BIDI_LTRAL);
       }
     }
+
+    return output;
   }
 }
@@ -0,0 +1,53 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.base.util;
+
+import com.calclab.emite.base.xml.XMLPacket;
+import com.calclab.emite.core.AsyncResult;
+
+/**
+ * Sends the requests of a BOSH connection.
+ * 
+ * Engines serialize the request and parse the response themselves, so they
+ * can work on the bytes they move instead of intermediate strings.
+ * 
+ * Each injector binds its own engine: {@link HttpEngineGWT} in a browser,
+ * {@link HttpEngineNIO} on a JVM.
+ * 
+ * @see com.calclab.emite.core.EmiteCoreModule#bindHttpEngine()
+ */
+public interface HttpEngine {
+
+	/**
+	 * Send a POST request with a XML body.
+	 * 
+	 * The callback fails if the response status is not 200 OK, or the
+	 * response body is not a XML document.
+	 * 
+	 * @param url the URL to send the request
+	 * @param request the request body
+	 * @param timeout time to wait for the response (in milliseconds), or 0
+	 *            to wait forever
+	 * @param callback a callback to process the parsed response body
+	 */
+	void sendXML(String url, XMLPacket request, int timeout, AsyncResult<XMLPacket> callback);
+
+}
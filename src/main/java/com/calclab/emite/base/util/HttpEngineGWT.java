@@ -0,0 +1,37 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.base.util;
+
+import com.calclab.emite.base.xml.XMLPacket;
+import com.calclab.emite.core.AsyncResult;
+
+/**
+ * Sends HTTP requests with a GWT RequestBuilder, through
+ * {@link Platform#sendXML}.
+ */
+public final class HttpEngineGWT implements HttpEngine {
+
+	@Override
+	public void sendXML(final String url, final XMLPacket request, final int timeout, final AsyncResult<XMLPacket> callback) {
+		Platform.sendXML(url, request, timeout, callback);
+	}
+
+}
@@ -0,0 +1,821 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.base.util;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+import com.calclab.emite.base.xml.XMLBuilder;
+import com.calclab.emite.base.xml.XMLPacket;
+import com.calclab.emite.base.xml.XMLSerializerNIO;
+import com.calclab.emite.base.xml.XMLParserNIO;
+import com.calclab.emite.core.AsyncResult;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Sends HTTP requests with non-blocking NIO sockets.
+ * 
+ * A single network thread moves the bytes of all the requests. Connections
+ * are kept alive and reused, up to a maximum number of connections per host;
+ * further requests wait for a free connection. The response callbacks run on
+ * the {@link SerialExecutor} that sent the request, or on the network thread
+ * if it was sent from outside any serial executor.
+ * 
+ * Requests are serialized straight into UTF-8 buffers. Responses are decoded
+ * in chunks from the buffer they were read into and fed to the parser, so
+ * they never become a single string. The buffer then goes back to a pool of
+ * read buffers.
+ * 
+ * Host names are resolved on a separate thread and kept for a minute, so a
+ * slow lookup only delays the requests to that host.
+ * 
+ * This engine speaks plain HTTP/1.1 only. The https requests are sent
+ * through a {@link HttpEngineURLConnection}, which negotiates TLS and pools
+ * its own connections. Only available on a JVM.
+ */
+public final class HttpEngineNIO implements HttpEngine {
+
+	/**
+	 * Default maximum number of connections to each host.
+	 */
+	public static final int DEFAULT_MAX_CONNECTIONS = 256;
+
+	private static final Logger logger = Logger.getLogger(HttpEngineNIO.class.getName());
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+	private static final int BUFFER_SIZE = 16 * 1024;
+	private static final int KEEP_ALIVE = 30000;
+	private static final int POOLED_BUFFERS = 64;
+	private static final int RESOLVED_TTL = 60000;
+
+	private static final ExecutorService resolver = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("emite-resolver-%d")
+			.setDaemon(true).build());
+
+	private final int maxConnections;
+	private final HttpEngine secure;
+	private final Queue<Exchange> submitted;
+	private final Queue<Runnable> resolved;
+	private final Queue<byte[]> buffers;
+	private final AtomicInteger pooledBuffers;
+
+	// Only used by the network thread
+	private final Map<String, Route> routes;
+	private final ByteBuffer input;
+
+	@Nullable private Selector selector;
+	private volatile boolean shutdown;
+
+	/**
+	 * Create a new engine, with up to {@link #DEFAULT_MAX_CONNECTIONS}
+	 * connections to each host.
+	 */
+	public HttpEngineNIO() {
+		this(DEFAULT_MAX_CONNECTIONS);
+	}
+
+	/**
+	 * Create a new engine.
+	 * 
+	 * @param maxConnections the maximum number of connections to each host
+	 */
+	public HttpEngineNIO(final int maxConnections) {
+		checkArgument(maxConnections > 0, "The maximum number of connections must be positive");
+		this.maxConnections = maxConnections;
+		secure = new HttpEngineURLConnection();
+		submitted = new ConcurrentLinkedQueue<Exchange>();
+		resolved = new ConcurrentLinkedQueue<Runnable>();
+		buffers = new ConcurrentLinkedQueue<byte[]>();
+		pooledBuffers = new AtomicInteger();
+		routes = Maps.newHashMap();
+		input = ByteBuffer.allocate(BUFFER_SIZE);
+	}
+
+	@Override
+	public void sendXML(final String url, final XMLPacket request, final int timeout, final AsyncResult<XMLPacket> callback) {
+		final Exchange exchange;
+		try {
+			final URI uri = new URI(url);
+			if ("https".equalsIgnoreCase(uri.getScheme())) {
+				if (shutdown) {
+					callback.onError(new IOException("The HTTP engine is shut down"));
+				} else {
+					secure.sendXML(url, request, timeout, callback);
+				}
+				return;
+			}
+			exchange = new Exchange(uri, request, timeout, SerialExecutor.current(), callback);
+		} catch (final URISyntaxException e) {
+			callback.onError(e);
+			return;
+		} catch (final IllegalArgumentException e) {
+			callback.onError(e);
+			return;
+		}
+
+		final Selector current;
+		try {
+			current = start();
+		} catch (final IOException e) {
+			callback.onError(e);
+			return;
+		}
+		submitted.add(exchange);
+		current.wakeup();
+	}
+
+	/**
+	 * Closes all the connections and stops the network thread.
+	 * 
+	 * The plain HTTP requests in progress fail, and so do all the requests
+	 * sent later.
+	 */
+	public void shutdown() {
+		shutdown = true;
+		synchronized (this) {
+			if (selector != null) {
+				selector.wakeup();
+			}
+		}
+	}
+
+	private synchronized Selector start() throws IOException {
+		if (shutdown)
+			throw new IOException("The HTTP engine is shut down");
+
+		if (selector == null) {
+			selector = Selector.open();
+			final Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					loop();
+				}
+			}, "emite-http");
+			thread.setDaemon(true);
+			thread.start();
+		}
+		return selector;
+	}
+
+	private void loop() {
+		try {
+			while (!shutdown) {
+				final long next = expire(System.currentTimeMillis());
+				selector.select(next);
+
+				for (final SelectionKey key : selector.selectedKeys()) {
+					final Connection connection = (Connection) key.attachment();
+					try {
+						if (key.isValid() && key.isConnectable()) {
+							connection.finishConnect();
+						}
+						if (key.isValid() && key.isWritable()) {
+							connection.write();
+						}
+						if (key.isValid() && key.isReadable()) {
+							connection.read();
+						}
+					} catch (final IOException e) {
+						connection.fail(e, true);
+					}
+				}
+				selector.selectedKeys().clear();
+
+				Runnable lookup;
+				while ((lookup = resolved.poll()) != null) {
+					lookup.run();
+				}
+				Exchange exchange;
+				while ((exchange = submitted.poll()) != null) {
+					dispatch(exchange);
+				}
+			}
+		} catch (final IOException e) {
+			logger.log(Level.SEVERE, "HTTP engine failed", e);
+		} finally {
+			close();
+		}
+	}
+
+	/**
+	 * Fails the requests that timed out and closes the connections idle for
+	 * too long.
+	 * 
+	 * @return the time until the next expiration (in milliseconds), or 0 if
+	 *         there is nothing to expire
+	 */
+	private long expire(final long now) {
+		long next = Long.MAX_VALUE;
+		for (final Route route : routes.values()) {
+			for (final Connection connection : Lists.newArrayList(route.busy)) {
+				final long deadline = connection.exchange.deadline;
+				if (deadline != 0 && deadline <= now) {
+					connection.fail(new IOException("Request timed out"), false);
+				} else if (deadline != 0) {
+					next = Math.min(next, deadline);
+				}
+			}
+			for (final Iterator<Exchange> it = route.waiting.iterator(); it.hasNext();) {
+				final Exchange exchange = it.next();
+				if (exchange.deadline != 0 && exchange.deadline <= now) {
+					it.remove();
+					exchange.fail(new IOException("Request timed out"));
+				} else if (exchange.deadline != 0) {
+					next = Math.min(next, exchange.deadline);
+				}
+			}
+			for (final Iterator<Connection> it = route.idle.iterator(); it.hasNext();) {
+				final Connection connection = it.next();
+				final long expires = connection.idleSince + KEEP_ALIVE;
+				if (expires <= now) {
+					it.remove();
+					connection.close();
+				} else {
+					next = Math.min(next, expires);
+				}
+			}
+		}
+		return next == Long.MAX_VALUE ? 0 : Math.max(1, next - now);
+	}
+
+	private byte[] takeBuffer() {
+		final byte[] buffer = buffers.poll();
+		if (buffer == null)
+			return new byte[BUFFER_SIZE];
+
+		pooledBuffers.decrementAndGet();
+		return buffer;
+	}
+
+	private void recycle(final byte[] buffer) {
+		if (buffer.length == BUFFER_SIZE && pooledBuffers.incrementAndGet() <= POOLED_BUFFERS) {
+			buffers.add(buffer);
+		} else if (buffer.length == BUFFER_SIZE) {
+			pooledBuffers.decrementAndGet();
+		}
+	}
+
+	private void dispatch(final Exchange exchange) {
+		Route route = routes.get(exchange.route);
+		if (route == null) {
+			route = new Route(exchange.host, exchange.port);
+			routes.put(exchange.route, route);
+		}
+
+		final Connection idle = route.idle.pollLast();
+		if (idle != null) {
+			idle.start(exchange);
+		} else if (route.open >= maxConnections) {
+			route.waiting.add(exchange);
+		} else if (route.address == null || route.resolvedAt + RESOLVED_TTL <= System.currentTimeMillis()) {
+			route.waiting.add(exchange);
+			resolve(route);
+		} else {
+			connect(route, exchange);
+		}
+	}
+
+	private void connect(final Route route, final Exchange exchange) {
+		try {
+			new Connection(route).start(exchange);
+		} catch (final IOException e) {
+			exchange.fail(e);
+		}
+	}
+
+	/**
+	 * Looks the host of a route up on the resolver thread, then opens
+	 * connections for the requests waiting for it.
+	 */
+	private void resolve(final Route route) {
+		if (route.resolving)
+			return;
+
+		route.resolving = true;
+		final Selector current = selector;
+		resolver.execute(new Runnable() {
+			@Override
+			public void run() {
+				final InetSocketAddress address = new InetSocketAddress(route.host, route.port);
+				resolved.add(new Runnable() {
+					@Override
+					public void run() {
+						onResolved(route, address);
+					}
+				});
+				current.wakeup();
+			}
+		});
+	}
+
+	private void onResolved(final Route route, final InetSocketAddress address) {
+		route.resolving = false;
+		if (address.isUnresolved()) {
+			final IOException error = new UnknownHostException(route.host);
+			Exchange exchange;
+			while ((exchange = route.waiting.poll()) != null) {
+				exchange.fail(error);
+			}
+			return;
+		}
+
+		route.address = address;
+		route.resolvedAt = System.currentTimeMillis();
+		while (route.open < maxConnections && !route.waiting.isEmpty()) {
+			connect(route, route.waiting.poll());
+		}
+	}
+
+	private void close() {
+		final IOException error = new IOException("The HTTP engine is shut down");
+		for (final Route route : routes.values()) {
+			for (final Connection connection : Lists.newArrayList(route.busy)) {
+				connection.fail(error, false);
+			}
+			for (final Connection connection : route.idle) {
+				connection.close();
+			}
+			for (final Exchange exchange : route.waiting) {
+				exchange.fail(error);
+			}
+		}
+		routes.clear();
+
+		Exchange exchange;
+		while ((exchange = submitted.poll()) != null) {
+			exchange.fail(error);
+		}
+		try {
+			selector.close();
+		} catch (final IOException e) {
+			logger.log(Level.FINE, "Error closing selector", e);
+		}
+	}
+
+	/**
+	 * The connections to a host.
+	 */
+	private static final class Route {
+
+		private final String host;
+		private final int port;
+		private final LinkedList<Connection> idle;
+		private final List<Connection> busy;
+		private final LinkedList<Exchange> waiting;
+		private int open;
+
+		@Nullable private InetSocketAddress address;
+		private long resolvedAt;
+		private boolean resolving;
+
+		private Route(final String host, final int port) {
+			this.host = host;
+			this.port = port;
+			idle = Lists.newLinkedList();
+			busy = Lists.newLinkedList();
+			waiting = Lists.newLinkedList();
+		}
+
+	}
+
+	/**
+	 * A request and its callback.
+	 */
+	private final class Exchange {
+
+		private final String route;
+		private final String host;
+		private final int port;
+		private final ByteBuffer head;
+		private final ByteBuffer body;
+		private final long deadline;
+		@Nullable private final SerialExecutor executor;
+		private final AsyncResult<XMLPacket> callback;
+		private boolean retried;
+
+		private Exchange(final URI uri, final XMLPacket request, final int timeout, @Nullable final SerialExecutor executor, final AsyncResult<XMLPacket> callback) {
+			checkArgument("http".equalsIgnoreCase(uri.getScheme()) && uri.getHost() != null, "Only absolute http and https URLs are supported: %s", uri);
+			host = uri.getHost();
+			port = uri.getPort() != -1 ? uri.getPort() : 80;
+			route = host + ':' + port;
+
+			final String path = uri.getRawPath() == null || uri.getRawPath().length() == 0 ? "/" : uri.getRawPath();
+			final String query = uri.getRawQuery() != null ? "?" + uri.getRawQuery() : "";
+			body = XMLSerializerNIO.toByteBuffer(request);
+			head = ASCII.encode("POST " + path + query + " HTTP/1.1\r\nHost: " + (uri.getPort() != -1 ? route : uri.getHost())
+					+ "\r\nContent-Type: text/xml; charset=utf-8\r\nContent-Length: " + body.remaining() + "\r\n\r\n");
+
+			deadline = timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+			this.executor = executor;
+			this.callback = callback;
+		}
+
+		/**
+		 * Parses the response body and passes it to the callback.
+		 * 
+		 * @param data the buffer with the response, owned by the callback now
+		 * @param start the start of the response body
+		 * @param end the end of the response body
+		 */
+		private void succeed(final byte[] data, final int start, final int end) {
+			run(new Runnable() {
+				@Override
+				public void run() {
+					final XMLPacket response = XMLParserNIO.parse(XMLBuilder.getFactory(), ByteBuffer.wrap(data, start, end - start));
+					if (response == null) {
+						final String text = new String(data, start, end - start, UTF8);
+						recycle(data);
+						callback.onError(new IOException("Bad response: " + text));
+					} else {
+						recycle(data);
+						callback.onSuccess(response);
+					}
+				}
+			});
+		}
+
+		private void fail(final Throwable error) {
+			run(new Runnable() {
+				@Override
+				public void run() {
+					callback.onError(error);
+				}
+			});
+		}
+
+		private void run(final Runnable task) {
+			if (executor != null) {
+				executor.execute(task);
+				return;
+			}
+			try {
+				task.run();
+			} catch (final RuntimeException e) {
+				logger.log(Level.SEVERE, "Error in HTTP callback", e);
+			}
+		}
+
+	}
+
+	/**
+	 * A keep-alive connection, running one request at a time.
+	 */
+	private final class Connection {
+
+		private final Route route;
+		private final SocketChannel channel;
+		private final SelectionKey key;
+
+		@Nullable private Exchange exchange;
+		@Nullable private ByteBuffer[] output;
+		private boolean reused;
+		private long idleSince;
+
+		// The response received so far
+		private byte[] data;
+		private int length;
+		private int bodyStart;
+		private int status;
+		private String reason;
+		private int contentLength;
+		private boolean chunked;
+		private boolean closing;
+
+		private Connection(final Route route) throws IOException {
+			this.route = route;
+			channel = SocketChannel.open();
+			try {
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+				channel.connect(route.address);
+				key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+			} catch (final IOException e) {
+				channel.close();
+				throw e;
+			}
+			route.open++;
+			data = takeBuffer();
+		}
+
+		private void start(final Exchange exchange) {
+			this.exchange = exchange;
+			output = new ByteBuffer[] { exchange.head.duplicate(), exchange.body.duplicate() };
+			length = 0;
+			bodyStart = -1;
+			route.busy.add(this);
+			if (channel.isConnected()) {
+				key.interestOps(SelectionKey.OP_WRITE);
+			}
+		}
+
+		private void finishConnect() throws IOException {
+			if (channel.finishConnect()) {
+				key.interestOps(exchange != null ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+			}
+		}
+
+		private void write() throws IOException {
+			channel.write(output);
+			if (!output[1].hasRemaining()) {
+				key.interestOps(SelectionKey.OP_READ);
+			}
+		}
+
+		private void read() throws IOException {
+			input.clear();
+			final int read = channel.read(input);
+			if (read < 0) {
+				if (exchange == null) {
+					// The server closed an idle connection
+					route.idle.remove(this);
+					close();
+				} else if (bodyStart >= 0 && contentLength < 0 && !chunked) {
+					// The body ends with the connection
+					closing = true;
+					finish(length);
+				} else {
+					throw new IOException("Connection closed by server");
+				}
+				return;
+			}
+			if (exchange == null) {
+				route.idle.remove(this);
+				close();
+				return;
+			}
+
+			if (length + read > data.length) {
+				final byte[] bigger = new byte[Math.max(data.length * 2, length + read)];
+				System.arraycopy(data, 0, bigger, 0, length);
+				data = bigger;
+			}
+			input.flip();
+			input.get(data, length, read);
+			length += read;
+
+			if (bodyStart < 0 && !parseHead())
+				return;
+			if (contentLength >= 0) {
+				if (length - bodyStart >= contentLength) {
+					finish(bodyStart + contentLength);
+				}
+			} else if (chunked) {
+				final int end = dechunk();
+				if (end >= 0) {
+					finish(end);
+				}
+			}
+		}
+
+		/**
+		 * Parses the status line and the headers, once they are complete.
+		 */
+		private boolean parseHead() throws IOException {
+			int end = -1;
+			for (int i = 3; i < length; i++) {
+				if (data[i] == '\n' && data[i - 1] == '\r' && data[i - 2] == '\n' && data[i - 3] == '\r') {
+					end = i + 1;
+					break;
+				}
+			}
+			if (end < 0)
+				return false;
+
+			final String[] lines = new String(data, 0, end - 4, ASCII).split("\r\n");
+			final String[] statusLine = lines[0].split(" ", 3);
+			if (statusLine.length < 2 || !statusLine[0].startsWith("HTTP/"))
+				throw new IOException("Invalid status line: " + lines[0]);
+			try {
+				status = Integer.parseInt(statusLine[1]);
+			} catch (final NumberFormatException e) {
+				throw new IOException("Invalid status line: " + lines[0]);
+			}
+			reason = statusLine.length > 2 ? statusLine[2] : "";
+			contentLength = -1;
+			chunked = false;
+			closing = statusLine[0].equals("HTTP/1.0");
+			for (int i = 1; i < lines.length; i++) {
+				final int colon = lines[i].indexOf(':');
+				if (colon < 0) {
+					continue;
+				}
+				final String name = lines[i].substring(0, colon).trim();
+				final String value = lines[i].substring(colon + 1).trim();
+				if ("Content-Length".equalsIgnoreCase(name)) {
+					try {
+						contentLength = Integer.parseInt(value);
+					} catch (final NumberFormatException e) {
+						throw new IOException("Invalid content length: " + value);
+					}
+				} else if ("Transfer-Encoding".equalsIgnoreCase(name)) {
+					chunked = value.toLowerCase().contains("chunked");
+				} else if ("Connection".equalsIgnoreCase(name)) {
+					closing = value.equalsIgnoreCase("close") || closing && !value.equalsIgnoreCase("keep-alive");
+				}
+			}
+			if (chunked) {
+				contentLength = -1;
+			}
+
+			if (status / 100 == 1) {
+				// Skip interim responses
+				System.arraycopy(data, end, data, 0, length - end);
+				length -= end;
+				return length > 0 && parseHead();
+			}
+			bodyStart = end;
+			return true;
+		}
+
+		/**
+		 * Joins the chunks of the body in place, once the last one arrived.
+		 * 
+		 * @return the end of the joined body, or -1 if it is not complete
+		 */
+		private int dechunk() throws IOException {
+			int pos = bodyStart;
+			while (true) {
+				final int lineEnd = lineEnd(pos);
+				if (lineEnd < 0)
+					return -1;
+				final int chunk = chunkSize(pos, lineEnd);
+				pos = lineEnd + 2;
+				if (chunk == 0) {
+					break;
+				}
+				pos += chunk + 2;
+				if (pos > length)
+					return -1;
+			}
+			// Skip the trailers, up to an empty line
+			while (true) {
+				final int lineEnd = lineEnd(pos);
+				if (lineEnd < 0)
+					return -1;
+				if (lineEnd == pos) {
+					break;
+				}
+				pos = lineEnd + 2;
+			}
+
+			int from = bodyStart;
+			int to = bodyStart;
+			while (true) {
+				final int lineEnd = lineEnd(from);
+				final int chunk = chunkSize(from, lineEnd);
+				if (chunk == 0)
+					return to;
+				System.arraycopy(data, lineEnd + 2, data, to, chunk);
+				to += chunk;
+				from = lineEnd + 2 + chunk + 2;
+			}
+		}
+
+		private int chunkSize(final int start, final int end) throws IOException {
+			String size = new String(data, start, end - start, ASCII);
+			final int extension = size.indexOf(';');
+			if (extension >= 0) {
+				size = size.substring(0, extension);
+			}
+			try {
+				return Integer.parseInt(size.trim(), 16);
+			} catch (final NumberFormatException e) {
+				throw new IOException("Invalid chunk size: " + size);
+			}
+		}
+
+		private int lineEnd(final int from) {
+			for (int i = from + 1; i < length; i++) {
+				if (data[i] == '\n' && data[i - 1] == '\r')
+					return i - 1;
+			}
+			return -1;
+		}
+
+		private void finish(final int end) {
+			final Exchange done = exchange;
+			exchange = null;
+			route.busy.remove(this);
+
+			if (status == 200) {
+				// Hand the buffer over instead of copying the body
+				done.succeed(data, bodyStart, end);
+				data = takeBuffer();
+			} else {
+				done.fail(new IOException("Invalid status " + status + ": " + reason));
+			}
+
+			if (closing) {
+				close();
+			} else {
+				release();
+			}
+		}
+
+		/**
+		 * Returns the connection to the pool, or gives it to the next request.
+		 */
+		private void release() {
+			reused = true;
+			if (data.length > BUFFER_SIZE) {
+				data = takeBuffer();
+			}
+			final Exchange next = route.waiting.poll();
+			if (next != null) {
+				start(next);
+			} else {
+				idleSince = System.currentTimeMillis();
+				route.idle.add(this);
+				key.interestOps(SelectionKey.OP_READ);
+			}
+		}
+
+		/**
+		 * Closes the connection and fails its request.
+		 * 
+		 * @param error the reason of the failure
+		 * @param retry whether to send the request again on another
+		 *            connection, if this was a reused connection closed before
+		 *            responding
+		 */
+		private void fail(final IOException error, final boolean retry) {
+			final Exchange failed = exchange;
+			exchange = null;
+			route.busy.remove(this);
+			route.idle.remove(this);
+			close();
+			if (failed == null)
+				return;
+
+			if (retry && reused && length == 0 && !failed.retried) {
+				logger.fine("Kept alive connection closed, sending the request again");
+				failed.retried = true;
+				dispatch(failed);
+			} else {
+				failed.fail(error);
+			}
+		}
+
+		private void close() {
+			recycle(data);
+			key.cancel();
+			try {
+				channel.close();
+			} catch (final IOException e) {
+				logger.log(Level.FINE, "Error closing HTTP connection", e);
+			}
+			route.open--;
+
+			// Make room for the waiting requests
+			final Exchange next = route.waiting.poll();
+			if (next != null) {
+				dispatch(next);
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,165 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.base.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+import com.calclab.emite.base.xml.XMLBuilder;
+import com.calclab.emite.base.xml.XMLPacket;
+import com.calclab.emite.base.xml.XMLParserNIO;
+import com.calclab.emite.base.xml.XMLSerializerNIO;
+import com.calclab.emite.core.AsyncResult;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Sends HTTP requests with {@link HttpURLConnection}.
+ * 
+ * Each request blocks a thread of a shared pool while it waits for its
+ * response. The JDK negotiates TLS and keeps the connections alive and
+ * pooled. The response callbacks run on the {@link SerialExecutor} that sent
+ * the request, or on the pool thread if it was sent from outside any serial
+ * executor.
+ * 
+ * {@link HttpEngineNIO} sends its https requests through this engine. Only
+ * available on a JVM.
+ */
+public final class HttpEngineURLConnection implements HttpEngine {
+
+	private static final Logger logger = Logger.getLogger(HttpEngineURLConnection.class.getName());
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final ExecutorService requests = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("emite-http-%d")
+			.setDaemon(true).build());
+
+	@Override
+	public void sendXML(final String url, final XMLPacket request, final int timeout, final AsyncResult<XMLPacket> callback) {
+		final SerialExecutor executor = SerialExecutor.current();
+		// The packet belongs to the session, serialize it before leaving
+		final ByteBuffer body = XMLSerializerNIO.toByteBuffer(request);
+		requests.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					final XMLPacket response = post(url, body, timeout);
+					deliver(executor, new Runnable() {
+						@Override
+						public void run() {
+							callback.onSuccess(response);
+						}
+					});
+				} catch (final IOException e) {
+					deliver(executor, new Runnable() {
+						@Override
+						public void run() {
+							callback.onError(e);
+						}
+					});
+				}
+			}
+		});
+	}
+
+	private static XMLPacket post(final String url, final ByteBuffer body, final int timeout) throws IOException {
+		final URLConnection opened = new URL(url).openConnection();
+		if (!(opened instanceof HttpURLConnection))
+			throw new IOException("Only http and https URLs are supported: " + url);
+
+		final HttpURLConnection connection = (HttpURLConnection) opened;
+		connection.setRequestMethod("POST");
+		connection.setDoOutput(true);
+		connection.setUseCaches(false);
+		connection.setConnectTimeout(timeout);
+		connection.setReadTimeout(timeout);
+		connection.setRequestProperty("Content-Type", "text/xml; charset=utf-8");
+		connection.setFixedLengthStreamingMode(body.remaining());
+
+		final OutputStream out = connection.getOutputStream();
+		try {
+			out.write(body.array(), body.arrayOffset() + body.position(), body.remaining());
+		} finally {
+			out.close();
+		}
+
+		final int status = connection.getResponseCode();
+		if (status != HttpURLConnection.HTTP_OK) {
+			// Reading the error body keeps the connection alive
+			final InputStream error = connection.getErrorStream();
+			if (error != null) {
+				drain(error);
+			}
+			throw new IOException("Invalid status " + status + ": " + connection.getResponseMessage());
+		}
+
+		// Parsed while it is read, in chunks
+		final Reader in = new InputStreamReader(connection.getInputStream(), UTF8);
+		final XMLPacket response;
+		try {
+			response = XMLParserNIO.parse(XMLBuilder.getFactory(), in);
+		} finally {
+			in.close();
+		}
+		if (response == null)
+			throw new IOException("Bad response: not a XML document");
+
+		return response;
+	}
+
+	private static void drain(final InputStream in) throws IOException {
+		try {
+			final byte[] buffer = new byte[4096];
+			int read;
+			do {
+				read = in.read(buffer);
+			} while (read >= 0);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void deliver(@Nullable final SerialExecutor executor, final Runnable task) {
+		if (executor != null) {
+			executor.execute(task);
+			return;
+		}
+		try {
+			task.run();
+		} catch (final RuntimeException e) {
+			logger.log(Level.SEVERE, "Error in HTTP callback", e);
+		}
+	}
+
+}
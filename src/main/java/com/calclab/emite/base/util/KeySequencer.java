@@ -31,22 +31,24 @@ import com.google.common.collect.Lists;
 
 public final class KeySequencer {
 	
-	private static final Random random = new Random();
-	private static final Digest digest = new SHA1Digest();
-
+	// Digests keep state between calls, so they can not be shared between sessions
+	private final Random random;
+	private final Digest digest;
 	private final LinkedList<String> keyList;
 
 	public KeySequencer() {
+		random = new Random();
+		digest = new SHA1Digest();
 		keyList = Lists.newLinkedList();
 	}
 
-	private static final String seed() {
+	private final String seed() {
 		final byte[] seed = new byte[50];
 		random.nextBytes(seed);
 		return Hex.encodeHexString(digest.doHash(seed));
 	}
 
-	private static final String nextDigest(final String current) {
+	private final String nextDigest(final String current) {
 		return Hex.encodeHexString(digest.doHash(current.getBytes()));
 	}
 
@@ -30,6 +30,7 @@ import com.calclab.emite.base.xml.XMLPacket;
 import com.calclab.emite.core.AsyncResult;
 import com.google.common.collect.Lists;
 import com.google.common.net.HttpHeaders;
+import com.google.gwt.core.client.GWT;
 import com.google.gwt.http.client.Request;
 import com.google.gwt.http.client.RequestBuilder;
 import com.google.gwt.http.client.RequestCallback;
@@ -41,17 +42,22 @@ import com.google.gwt.user.client.Window;
 /**
  * Methods with a special GWT implementation.
  * 
- * TODO: create Java versions of these methods.
+ * Sessions use them through the {@link ActionScheduler} and the
+ * {@link HttpEngine} bound in their injector, which have JVM versions.
  */
 public final class Platform {
 
 	private static final Logger logger = Logger.getLogger(Platform.class.getName());
 
-	private static final List<Request> requests;
+	private static final List<Request> requests = Lists.newArrayList();
 	
 	static {
-		requests = Lists.newArrayList();
-		
+		if (GWT.isClient()) {
+			addClosingHandler();
+		}
+	}
+	
+	private static final void addClosingHandler() {
 		// On close it cancels all the pending requests except the "terminate" request
 		Window.addWindowClosingHandler(new Window.ClosingHandler() {
 			@Override
@@ -82,19 +88,31 @@ public final class Platform {
 	}
 
 	/**
-	 * Send a BOSH HTTP request to a server.
+	 * Send a BOSH HTTP request to a server, waiting forever for the response.
 	 * 
 	 * @param httpBase the base URL to send the request
 	 * @param request the request contents
 	 * @param callback a callback to process the response
 	 */
 	public static final void sendXML(final String httpBase, final XMLPacket request, final AsyncResult<XMLPacket> callback) {
+		sendXML(httpBase, request, 0, callback);
+	}
+	
+	/**
+	 * Send a BOSH HTTP request to a server.
+	 * 
+	 * @param httpBase the base URL to send the request
+	 * @param request the request contents
+	 * @param timeout time to wait for the response (in milliseconds), or 0 to
+	 *            wait forever
+	 * @param callback a callback to process the response
+	 */
+	public static final void sendXML(final String httpBase, final XMLPacket request, final int timeout, final AsyncResult<XMLPacket> callback) {
 		final RequestBuilder builder = new RequestBuilder(RequestBuilder.POST, httpBase);
 		builder.setHeader(HttpHeaders.CONTENT_TYPE, "text/xml; charset=utf-8");
 		//builder.setHeader(HttpHeaders.CACHE_CONTROL, "no-cache");
 		//builder.setHeader(HttpHeaders.PRAGMA, "no-cache");
-		// TODO : Hard coded timeout to 6s, but we should set it to the wait + a delta
-		// builder.setTimeoutMillis(6000);
+		builder.setTimeoutMillis(timeout);
 		try {
 			final Request req = builder.sendRequest(request.toString(), new RequestCallback() {
 				@Override
@@ -0,0 +1,71 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.base.util;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+
+/**
+ * Runs the scheduled actions of a session on the JVM.
+ * 
+ * Each session has its own scheduler, bound to the {@link SerialExecutor} of
+ * the session: when an action is due it runs on that executor, so it never
+ * races with the rest of the session. A single timer thread waits for the
+ * actions of all the sessions.
+ * 
+ * Only available on a JVM.
+ */
+public final class SerialActionScheduler implements ActionScheduler {
+
+	private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+			.setNameFormat("emite-timer").setDaemon(true).build());
+
+	private final SerialExecutor executor;
+
+	@Inject
+	public SerialActionScheduler(final SerialExecutor executor) {
+		this.executor = checkNotNull(executor);
+	}
+
+	@Override
+	public void schedule(final int msecs, final ScheduledAction action) {
+		final Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				action.run();
+			}
+		};
+
+		timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				executor.execute(task);
+			}
+		}, msecs, TimeUnit.MILLISECONDS);
+	}
+
+}
@@ -0,0 +1,132 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.base.util;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+/**
+ * An executor that runs its tasks one at a time, in submission order, on
+ * a shared pool of worker threads.
+ * 
+ * Each session owns one serial executor, so its state is never touched by
+ * two threads at once while many sessions share a few threads. Tasks
+ * submitted from inside a task are queued, never run inline.
+ * 
+ * Only available on a JVM.
+ */
+public final class SerialExecutor implements Executor {
+
+	private static final Logger logger = Logger.getLogger(SerialExecutor.class.getName());
+
+	// Tasks run before giving the worker thread back to other executors
+	private static final int BATCH_SIZE = 64;
+
+	private static final ThreadLocal<SerialExecutor> current = new ThreadLocal<SerialExecutor>();
+
+	/**
+	 * Returns the serial executor running the current task.
+	 * 
+	 * @return the current executor, or {@code null} if not running inside one
+	 */
+	@Nullable
+	public static final SerialExecutor current() {
+		return current.get();
+	}
+
+	private final Executor workers;
+	private final Queue<Runnable> tasks;
+	private final AtomicBoolean scheduled;
+	private final Runnable drainTask;
+
+	public SerialExecutor(final Executor workers) {
+		this.workers = checkNotNull(workers);
+		tasks = new ConcurrentLinkedQueue<Runnable>();
+		scheduled = new AtomicBoolean();
+		drainTask = new Runnable() {
+			@Override
+			public void run() {
+				drain();
+			}
+		};
+	}
+
+	@Override
+	public void execute(final Runnable task) {
+		tasks.add(checkNotNull(task));
+		schedule();
+	}
+
+	/**
+	 * Checks whether the calling thread is running a task of this executor.
+	 * 
+	 * @return true if called from a task of this executor
+	 */
+	public boolean isCurrent() {
+		return current.get() == this;
+	}
+
+	private void schedule() {
+		if (scheduled.compareAndSet(false, true)) {
+			try {
+				workers.execute(drainTask);
+			} catch (final RejectedExecutionException e) {
+				scheduled.set(false);
+				throw e;
+			}
+		}
+	}
+
+	private void drain() {
+		final SerialExecutor previous = current.get();
+		current.set(this);
+		try {
+			for (int i = 0; i < BATCH_SIZE; i++) {
+				final Runnable task = tasks.poll();
+				if (task == null) {
+					break;
+				}
+
+				try {
+					task.run();
+				} catch (final RuntimeException e) {
+					logger.log(Level.SEVERE, "Uncaught exception in task", e);
+				}
+			}
+		} finally {
+			current.set(previous);
+			scheduled.set(false);
+			if (!tasks.isEmpty()) {
+				schedule();
+			}
+		}
+	}
+
+}
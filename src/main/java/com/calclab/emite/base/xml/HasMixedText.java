@@ -0,0 +1,51 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.base.xml;
+
+import javax.annotation.Nullable;
+
+/**
+ * Implemented by the XML packets that keep text mixed with their child
+ * elements, like {@code <p>a<b>b</b>c</p>}.
+ * 
+ * The {@link XMLStreamParser} and the {@link XMLSerializer} use it to keep
+ * such text in place. {@link XMLPacket#getText()} still returns all the text
+ * of the element, in document order.
+ */
+interface HasMixedText {
+
+	/**
+	 * Appends some text after the last child of this element.
+	 * 
+	 * @param text the text to append
+	 */
+	void appendText(String text);
+
+	/**
+	 * Returns the text between a child and the next one.
+	 * 
+	 * @param child a child of this element, or {@code null} for the text
+	 *            before the first child
+	 * @return the text, or an empty string if there is none
+	 */
+	String getTextAfter(@Nullable XMLPacket child);
+
+}
@@ -24,11 +24,36 @@ import static com.google.common.base.Preconditions.checkNotNull;
 
 import javax.annotation.Nullable;
 
+import com.google.gwt.core.client.GWT;
+
 /**
  * Helper class to build and parse XML packets.
  */
 public final class XMLBuilder implements HasXML {
 	
+	private static XMLPacketFactory factory = GWT.isClient() ? XMLPacketImplGWT.FACTORY : XMLPacketImplLite.FACTORY;
+	
+	/**
+	 * Returns the XMLPacket implementation used to create and parse packets.
+	 * 
+	 * @return the current factory
+	 */
+	public static final XMLPacketFactory getFactory() {
+		return factory;
+	}
+	
+	/**
+	 * Changes the XMLPacket implementation used to create and parse packets.
+	 * 
+	 * Inside a GWT client the browser DOM is used by default, while on a JVM
+	 * the default is {@link XMLPacketImplLite}.
+	 * 
+	 * @param factory the factory for new packets
+	 */
+	public static final void setFactory(final XMLPacketFactory factory) {
+		XMLBuilder.factory = checkNotNull(factory);
+	}
+	
 	/**
 	 * Parses a XML string into a {@link XMLPacket}.
 	 * 
@@ -37,7 +62,7 @@ public final class XMLBuilder implements HasXML {
 	 */
 	@Nullable
 	public static final XMLPacket fromXML(final String xml) {
-		return XMLPacketImplGWT.fromString(xml);
+		return factory.parse(xml);
 	}
 	
 	/**
@@ -47,7 +72,7 @@ public final class XMLBuilder implements HasXML {
 	 * @return the new XMLPacket
 	 */
 	public static final XMLBuilder create(final String name) {
-		return new XMLBuilder(new XMLPacketImplGWT(name));
+		return new XMLBuilder(factory.create(name, null));
 	}
 	
 	/**
@@ -58,7 +83,7 @@ public final class XMLBuilder implements HasXML {
 	 * @return the new XMLPacket
 	 */
 	public static final XMLBuilder create(final String name, @Nullable final String namespace) {
-		return new XMLBuilder(new XMLPacketImplGWT(name, namespace));
+		return new XMLBuilder(factory.create(name, namespace));
 	}
 	
 	private final XMLPacket xml;
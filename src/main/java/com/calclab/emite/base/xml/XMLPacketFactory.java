@@ -0,0 +1,50 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.base.xml;
+
+import javax.annotation.Nullable;
+
+/**
+ * Creates and parses {@link XMLPacket} instances of a given implementation.
+ * 
+ * @see XMLBuilder#setFactory(XMLPacketFactory)
+ */
+public interface XMLPacketFactory {
+
+	/**
+	 * Creates a new XMLPacket with a given tag name and namespace.
+	 * 
+	 * @param name the tag name for the new XML element
+	 * @param namespace the namespace for the new XML element
+	 * @return the new XMLPacket
+	 */
+	XMLPacket create(String name, @Nullable String namespace);
+
+	/**
+	 * Parses a XML string into a {@link XMLPacket}.
+	 * 
+	 * @param xml the String to be parsed
+	 * @return the parsed XMLPacket, or {@code null} if there was an error
+	 */
+	@Nullable
+	XMLPacket parse(String xml);
+
+}
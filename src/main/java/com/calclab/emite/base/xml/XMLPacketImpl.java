@@ -23,20 +23,10 @@ package com.calclab.emite.base.xml;
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
-import java.io.ByteArrayInputStream;
-import java.io.StringWriter;
-
 import javax.annotation.Nullable;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerConfigurationException;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
 
 import org.w3c.dom.Attr;
 import org.w3c.dom.Document;
@@ -52,27 +42,34 @@ import com.google.common.collect.ImmutableMap;
 /**
  * Java 6 implementation of XMLPacket.
  */
-public final class XMLPacketImpl implements XMLPacket {
-
-	private static final DocumentBuilder docBuilder;
-	private static final Transformer transformer;
-
-	static {
-		try {
-			final DocumentBuilderFactory docBuilderFactory = DocumentBuilderFactory.newInstance();
-			docBuilderFactory.setIgnoringElementContentWhitespace(true);
-			docBuilderFactory.setIgnoringComments(true);
-
-			docBuilder = docBuilderFactory.newDocumentBuilder();
-			transformer = TransformerFactory.newInstance().newTransformer();
-			transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
-			transformer.setOutputProperty(OutputKeys.INDENT, "no");
-		} catch (final ParserConfigurationException e) {
-			throw new InternalError("Error creating Document Builder");
-		} catch (final TransformerConfigurationException e) {
-			throw new InternalError("Error creating Transformer");
+public final class XMLPacketImpl implements XMLPacket, HasMixedText {
+
+	/**
+	 * Factory for Java 6 XML packets.
+	 */
+	public static final XMLPacketFactory FACTORY = new XMLPacketFactory() {
+		@Override
+		public XMLPacket create(final String name, @Nullable final String namespace) {
+			return new XMLPacketImpl(name, namespace);
 		}
-	}
+
+		@Override
+		public XMLPacket parse(final String xml) {
+			return fromString(xml);
+		}
+	};
+
+	// DocumentBuilder is not thread-safe
+	private static final ThreadLocal<DocumentBuilder> docBuilder = new ThreadLocal<DocumentBuilder>() {
+		@Override
+		protected DocumentBuilder initialValue() {
+			try {
+				return DocumentBuilderFactory.newInstance().newDocumentBuilder();
+			} catch (final ParserConfigurationException e) {
+				throw new InternalError("Error creating Document Builder");
+			}
+		}
+	};
 
 	private final Document document;
 	private final Element element;
@@ -82,7 +79,7 @@ public final class XMLPacketImpl implements XMLPacket {
 	}
 
 	protected XMLPacketImpl(final String name, @Nullable final String namespace) {
-		document = docBuilder.newDocument();
+		document = docBuilder.get().newDocument();
 		if (namespace != null) {
 			element = document.createElementNS(namespace, name);
 		} else {
@@ -303,6 +300,26 @@ public final class XMLPacketImpl implements XMLPacket {
 		return element.getTextContent();
 	}
 
+	@Override
+	public void appendText(final String text) {
+		element.appendChild(document.createTextNode(text));
+	}
+
+	@Override
+	public String getTextAfter(@Nullable final XMLPacket child) {
+		checkArgument(child == null || child instanceof XMLPacketImpl);
+
+		final StringBuilder result = new StringBuilder();
+		Node node = child == null ? element.getFirstChild() : ((XMLPacketImpl) child).element.getNextSibling();
+		while (node != null && node.getNodeType() != Node.ELEMENT_NODE) {
+			if (node.getNodeType() == Node.TEXT_NODE || node.getNodeType() == Node.CDATA_SECTION_NODE) {
+				result.append(node.getNodeValue());
+			}
+			node = node.getNextSibling();
+		}
+		return result.toString();
+	}
+
 	@Override
 	public String getChildText(final String name) {
 		return getChildText(name, "*");
@@ -349,23 +366,12 @@ public final class XMLPacketImpl implements XMLPacket {
 	 * @return the resulting packet
 	 */
 	public static XMLPacket fromString(final String xml) {
-		try {
-			final Document doc = docBuilder.parse(new ByteArrayInputStream(xml.getBytes()));
-			return new XMLPacketImpl(doc.getDocumentElement());
-		} catch (final Exception e) {
-			return null;
-		}
+		return XMLStreamParser.parse(FACTORY, xml);
 	}
 
 	@Override
 	public String toString() {
-		try {
-			final StringWriter buffer = new StringWriter();
-			transformer.transform(new DOMSource(element), new StreamResult(buffer));
-			return buffer.toString();
-		} catch (final TransformerException e) {
-			throw new InternalError("Transformer error");
-		}
+		return XMLSerializer.toString(this);
 	}
 
 }
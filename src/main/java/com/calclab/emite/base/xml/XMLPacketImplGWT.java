@@ -41,7 +41,22 @@ import com.google.gwt.xml.client.impl.DOMParseException;
 /**
  * GWT implementation of XMLPacket
  */
-public final class XMLPacketImplGWT implements XMLPacket {
+public final class XMLPacketImplGWT implements XMLPacket, HasMixedText {
+
+	/**
+	 * Factory for GWT XML packets.
+	 */
+	public static final XMLPacketFactory FACTORY = new XMLPacketFactory() {
+		@Override
+		public XMLPacket create(final String name, @Nullable final String namespace) {
+			return new XMLPacketImplGWT(name, namespace);
+		}
+
+		@Override
+		public XMLPacket parse(final String xml) {
+			return fromString(xml);
+		}
+	};
 
 	private final Document document;
 	private final Element element;
@@ -277,6 +292,26 @@ public final class XMLPacketImplGWT implements XMLPacket {
 		return result.toString();
 	}
 
+	@Override
+	public void appendText(final String text) {
+		element.appendChild(document.createTextNode(text));
+	}
+
+	@Override
+	public String getTextAfter(@Nullable final XMLPacket child) {
+		checkArgument(child == null || child instanceof XMLPacketImplGWT);
+
+		final StringBuilder result = new StringBuilder();
+		Node node = child == null ? element.getFirstChild() : ((XMLPacketImplGWT) child).element.getNextSibling();
+		while (node != null && node.getNodeType() != Node.ELEMENT_NODE) {
+			if (node.getNodeType() == Node.TEXT_NODE || node.getNodeType() == Node.CDATA_SECTION_NODE) {
+				result.append(node.getNodeValue());
+			}
+			node = node.getNextSibling();
+		}
+		return result.toString();
+	}
+
 	@Override
 	public String getChildText(final String name) {
 		return getChildText(name, "*");
@@ -0,0 +1,483 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ *
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.base.xml;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Lightweight implementation of XMLPacket.
+ *
+ * Each element only stores its name, namespace, attributes, children and
+ * text in plain arrays, without any DOM document behind. It has the same
+ * semantics as {@link XMLPacketImpl} and works both on GWT and on a JVM.
+ */
+public final class XMLPacketImplLite implements XMLPacket, HasMixedText {
+
+	/**
+	 * Factory for lightweight XML packets.
+	 */
+	public static final XMLPacketFactory FACTORY = new XMLPacketFactory() {
+		@Override
+		public XMLPacket create(final String name, @Nullable final String namespace) {
+			return new XMLPacketImplLite(name, namespace);
+		}
+
+		@Override
+		public XMLPacket parse(final String xml) {
+			return fromString(xml);
+		}
+	};
+
+	private static final String[] NO_ATTRIBUTES = new String[0];
+	private static final XMLPacketImplLite[] NO_CHILDREN = new XMLPacketImplLite[0];
+
+	private final String name;
+	@Nullable private final String namespace;
+	@Nullable private XMLPacketImplLite parent;
+
+	// Attribute names and values, interleaved
+	private String[] attributes;
+	private int attributeCount;
+	private XMLPacketImplLite[] children;
+	private int childCount;
+	@Nullable private String text;
+	// The text after each child, only for mixed content
+	@Nullable private String[] tails;
+
+	private XMLPacketImplLite(final String name, @Nullable final String namespace) {
+		this.name = checkNotNull(name);
+		this.namespace = namespace;
+		attributes = NO_ATTRIBUTES;
+		children = NO_CHILDREN;
+	}
+
+	@Override
+	public String getTagName() {
+		return name;
+	}
+
+	@Override
+	public String getNamespace() {
+		return namespace;
+	}
+
+	@Override
+	public XMLPacket getParent() {
+		return parent;
+	}
+
+	@Override
+	public XMLPacket getFirstParent() {
+		XMLPacketImplLite root = this;
+		while (root.parent != null) {
+			root = root.parent;
+		}
+		return root;
+	}
+
+	@Override
+	public boolean hasAttribute(final String name) {
+		return indexOfAttribute(checkNotNull(name)) >= 0;
+	}
+
+	@Override
+	public ImmutableMap<String, String> getAttributes() {
+		final ImmutableMap.Builder<String, String> result = ImmutableMap.builder();
+		for (int i = 0; i < attributeCount; i += 2) {
+			result.put(attributes[i], attributes[i + 1]);
+		}
+		return result.build();
+	}
+
+	@Override
+	public String getAttribute(final String name) {
+		final int index = indexOfAttribute(checkNotNull(name));
+		return index >= 0 ? attributes[index + 1] : null;
+	}
+
+	@Override
+	public void setAttribute(final String name, @Nullable final String value) {
+		final int index = indexOfAttribute(checkNotNull(name));
+		if (value == null) {
+			if (index >= 0) {
+				System.arraycopy(attributes, index + 2, attributes, index, attributeCount - index - 2);
+				attributeCount -= 2;
+				attributes[attributeCount] = null;
+				attributes[attributeCount + 1] = null;
+			}
+		} else if (index >= 0) {
+			attributes[index + 1] = value;
+		} else {
+			if (attributeCount == attributes.length) {
+				final String[] newAttributes = new String[Math.max(4, attributeCount * 2)];
+				System.arraycopy(attributes, 0, newAttributes, 0, attributeCount);
+				attributes = newAttributes;
+			}
+			attributes[attributeCount++] = name;
+			attributes[attributeCount++] = value;
+		}
+	}
+
+	@Override
+	public boolean hasChild(final String name) {
+		return hasChild(name, "*");
+	}
+
+	@Override
+	public boolean hasChild(final String name, final String namespace) {
+		return getFirstChild(name, namespace) != null;
+	}
+
+	@Override
+	public XMLPacket addChild(final String name) {
+		return addChild(name, null);
+	}
+
+	@Override
+	public XMLPacket addChild(final String name, @Nullable final String namespace) {
+		return append(new XMLPacketImplLite(name, namespace));
+	}
+
+	@Override
+	public XMLPacket addChild(final HasXML child) {
+		return append(copyOf(checkNotNull(child.getXML())));
+	}
+
+	@Override
+	public XMLPacket getFirstChild(final String name) {
+		return getFirstChild(name, "*");
+	}
+
+	@Override
+	public XMLPacket getFirstChild(final String name, final String namespace) {
+		checkNotNull(name);
+		checkNotNull(namespace);
+
+		for (int i = 0; i < childCount; i++) {
+			if (children[i].matches(name, namespace))
+				return children[i];
+		}
+
+		return null;
+	}
+
+	@Override
+	public XMLPacket getFirstChild(final Predicate<XMLPacket> matcher) {
+		checkNotNull(matcher);
+
+		for (int i = 0; i < childCount; i++) {
+			if (matcher.apply(children[i]))
+				return children[i];
+		}
+
+		return null;
+	}
+
+	@Override
+	public ImmutableList<XMLPacket> getChildren() {
+		final ImmutableList.Builder<XMLPacket> result = ImmutableList.builder();
+		for (int i = 0; i < childCount; i++) {
+			result.add(children[i]);
+		}
+		return result.build();
+	}
+
+	@Override
+	public ImmutableList<XMLPacket> getChildren(final String name) {
+		return getChildren(name, "*");
+	}
+
+	@Override
+	public ImmutableList<XMLPacket> getChildren(final String name, final String namespace) {
+		checkNotNull(name);
+		checkNotNull(namespace);
+
+		final ImmutableList.Builder<XMLPacket> result = ImmutableList.builder();
+		for (int i = 0; i < childCount; i++) {
+			if (children[i].matches(name, namespace)) {
+				result.add(children[i]);
+			}
+		}
+		return result.build();
+	}
+
+	@Override
+	public ImmutableList<XMLPacket> getChildren(final Predicate<XMLPacket> matcher) {
+		checkNotNull(matcher);
+
+		final ImmutableList.Builder<XMLPacket> result = ImmutableList.builder();
+		for (int i = 0; i < childCount; i++) {
+			if (matcher.apply(children[i])) {
+				result.add(children[i]);
+			}
+		}
+		return result.build();
+	}
+
+	@Override
+	public void removeChild(final HasXML child) {
+		final XMLPacket packet = child.getXML();
+		for (int i = 0; i < childCount; i++) {
+			if (children[i] == packet) {
+				children[i].parent = null;
+				if (tails != null) {
+					// The text around the child is joined
+					if (i == 0) {
+						text = concat(text, tails[0]);
+					} else {
+						tails[i - 1] = concat(tails[i - 1], tails[i]);
+					}
+					System.arraycopy(tails, i + 1, tails, i, childCount - i - 1);
+					tails[childCount - 1] = null;
+				}
+				System.arraycopy(children, i + 1, children, i, childCount - i - 1);
+				children[--childCount] = null;
+				return;
+			}
+		}
+
+		throw new IllegalArgumentException("Not a child of this element");
+	}
+
+	@Override
+	public String getText() {
+		if (childCount == 0)
+			return text != null ? text : "";
+
+		final StringBuilder result = new StringBuilder();
+		collectText(result);
+		return result.toString();
+	}
+
+	@Override
+	public void appendText(final String text) {
+		if (text.length() == 0)
+			return;
+
+		if (childCount == 0) {
+			this.text = concat(this.text, text);
+		} else {
+			if (tails == null) {
+				tails = new String[children.length];
+			}
+			tails[childCount - 1] = concat(tails[childCount - 1], text);
+		}
+	}
+
+	@Override
+	public String getTextAfter(@Nullable final XMLPacket child) {
+		if (child == null)
+			return text != null ? text : "";
+
+		for (int i = 0; i < childCount; i++) {
+			if (children[i] == child)
+				return tails != null && tails[i] != null ? tails[i] : "";
+		}
+
+		throw new IllegalArgumentException("Not a child of this element");
+	}
+
+	@Override
+	public String getChildText(final String name) {
+		return getChildText(name, "*");
+	}
+
+	@Override
+	public String getChildText(final String name, final String namespace) {
+		final XMLPacket child = getFirstChild(name, namespace);
+		if (child == null)
+			return null;
+
+		return child.getText();
+	}
+
+	@Override
+	public void setText(@Nullable final String text) {
+		// Like DOM setTextContent, the text replaces all the children
+		for (int i = 0; i < childCount; i++) {
+			children[i].parent = null;
+			children[i] = null;
+		}
+		childCount = 0;
+		tails = null;
+		this.text = text != null && text.length() > 0 ? text : null;
+	}
+
+	@Override
+	public void setChildText(final String name, @Nullable final String text) {
+		setChildText(name, null, text);
+	}
+
+	@Override
+	public void setChildText(final String name, @Nullable final String namespace, @Nullable final String text) {
+		XMLPacket child = getFirstChild(name, namespace != null ? namespace : "*");
+		if (child == null) {
+			child = addChild(name, namespace);
+		}
+
+		child.setText(text);
+	}
+
+	@Override
+	public XMLPacket getXML() {
+		return this;
+	}
+
+	/**
+	 * Parses a string into a XMLPacket.
+	 *
+	 * @param xml the string to parse
+	 * @return the resulting packet
+	 */
+	public static XMLPacket fromString(final String xml) {
+		return XMLStreamParser.parse(FACTORY, xml);
+	}
+
+	@Override
+	public String toString() {
+		return XMLSerializer.toString(this);
+	}
+
+	int attributeCount() {
+		return attributeCount / 2;
+	}
+
+	String attributeName(final int index) {
+		return attributes[index * 2];
+	}
+
+	String attributeValue(final int index) {
+		return attributes[index * 2 + 1];
+	}
+
+	int childCount() {
+		return childCount;
+	}
+
+	XMLPacketImplLite childAt(final int index) {
+		return children[index];
+	}
+
+	/**
+	 * Returns the text before the child at an index, or after the last child
+	 * for the child count.
+	 */
+	@Nullable
+	String textAt(final int index) {
+		if (index == 0)
+			return text;
+
+		return tails != null ? tails[index - 1] : null;
+	}
+
+	private boolean matches(final String name, final String namespace) {
+		return ("*".equals(name) || name.equals(this.name)) && ("*".equals(namespace) || namespace.equals(this.namespace));
+	}
+
+	private int indexOfAttribute(final String name) {
+		for (int i = 0; i < attributeCount; i += 2) {
+			if (name.equals(attributes[i]))
+				return i;
+		}
+		return -1;
+	}
+
+	private XMLPacketImplLite append(final XMLPacketImplLite child) {
+		if (childCount == children.length) {
+			final XMLPacketImplLite[] newChildren = new XMLPacketImplLite[Math.max(2, childCount * 2)];
+			System.arraycopy(children, 0, newChildren, 0, childCount);
+			children = newChildren;
+			if (tails != null) {
+				final String[] newTails = new String[newChildren.length];
+				System.arraycopy(tails, 0, newTails, 0, childCount);
+				tails = newTails;
+			}
+		}
+		children[childCount++] = child;
+		child.parent = this;
+		return child;
+	}
+
+	private void collectText(final StringBuilder result) {
+		if (text != null) {
+			result.append(text);
+		}
+		for (int i = 0; i < childCount; i++) {
+			children[i].collectText(result);
+			if (tails != null && tails[i] != null) {
+				result.append(tails[i]);
+			}
+		}
+	}
+
+	@Nullable
+	private static String concat(@Nullable final String first, @Nullable final String second) {
+		if (first == null)
+			return second;
+		if (second == null)
+			return first;
+
+		return first + second;
+	}
+
+	private static XMLPacketImplLite copyOf(final XMLPacket packet) {
+		final XMLPacketImplLite result = new XMLPacketImplLite(packet.getTagName(), packet.getNamespace());
+		if (packet instanceof XMLPacketImplLite) {
+			final XMLPacketImplLite source = (XMLPacketImplLite) packet;
+			result.attributes = source.attributeCount > 0 ? source.attributes.clone() : NO_ATTRIBUTES;
+			result.attributeCount = source.attributeCount;
+			result.text = source.text;
+			for (int i = 0; i < source.childCount; i++) {
+				result.append(copyOf(source.children[i]));
+			}
+			if (source.tails != null) {
+				result.tails = new String[result.children.length];
+				System.arraycopy(source.tails, 0, result.tails, 0, source.childCount);
+			}
+		} else {
+			for (final Map.Entry<String, String> attribute : packet.getAttributes().entrySet()) {
+				result.setAttribute(attribute.getKey(), attribute.getValue());
+			}
+			final ImmutableList<XMLPacket> packetChildren = packet.getChildren();
+			if (packetChildren.isEmpty()) {
+				result.setText(packet.getText());
+			} else if (packet instanceof HasMixedText) {
+				result.appendText(((HasMixedText) packet).getTextAfter(null));
+			}
+			for (final XMLPacket child : packetChildren) {
+				result.append(copyOf(child));
+				if (packet instanceof HasMixedText) {
+					result.appendText(((HasMixedText) packet).getTextAfter(child));
+				}
+			}
+		}
+		return result;
+	}
+
+}
@@ -0,0 +1,116 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.base.xml;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+import javax.annotation.Nullable;
+
+/**
+ * Parses XML documents straight from NIO buffers and readers.
+ * 
+ * The input is decoded in small chunks that are fed to a
+ * {@link XMLStreamParser}, so the document is never copied into a byte array
+ * or a string as a whole.
+ * 
+ * Only available on a JVM.
+ */
+public final class XMLParserNIO {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int CHUNK_SIZE = 4096;
+
+	/**
+	 * Parses a complete XML document encoded in UTF-8. Malformed bytes are
+	 * replaced, as {@link String#String(byte[], Charset)} does.
+	 * 
+	 * @param factory the factory for the new packets
+	 * @param data the document, from its position to its limit, which is
+	 *            consumed
+	 * @return the root element, or {@code null} if the document is malformed
+	 */
+	@Nullable
+	public static final XMLPacket parse(final XMLPacketFactory factory, final ByteBuffer data) {
+		final CharsetDecoder decoder = UTF8.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		// Room for a surrogate pair at least
+		final CharBuffer chars = CharBuffer.allocate(Math.max(2, Math.min(CHUNK_SIZE, data.remaining())));
+		final XMLStreamParser parser = XMLStreamParser.newDocumentParser(factory);
+		try {
+			while (decoder.decode(data, chars, true).isOverflow()) {
+				feed(parser, chars);
+			}
+			while (decoder.flush(chars).isOverflow()) {
+				feed(parser, chars);
+			}
+			feed(parser, chars);
+		} catch (final XMLParseException e) {
+			return null;
+		}
+
+		return parser.getDocument();
+	}
+
+	/**
+	 * Parses a complete XML document from a reader, which is not closed.
+	 * 
+	 * @param factory the factory for the new packets
+	 * @param reader the document
+	 * @return the root element, or {@code null} if the document is malformed
+	 * @throws IOException if the reader fails
+	 */
+	@Nullable
+	public static final XMLPacket parse(final XMLPacketFactory factory, final Reader reader) throws IOException {
+		checkNotNull(reader);
+		final CharBuffer chars = CharBuffer.allocate(CHUNK_SIZE);
+		final XMLStreamParser parser = XMLStreamParser.newDocumentParser(factory);
+		try {
+			while (reader.read(chars) >= 0) {
+				feed(parser, chars);
+			}
+		} catch (final XMLParseException e) {
+			return null;
+		}
+
+		return parser.getDocument();
+	}
+
+	private static void feed(final XMLStreamParser parser, final CharBuffer chars) throws XMLParseException {
+		chars.flip();
+		if (chars.hasRemaining()) {
+			// The parser copies what it needs, so the buffer can be reused
+			parser.feed(chars);
+		}
+		chars.clear();
+	}
+
+	private XMLParserNIO() {
+	}
+
+}
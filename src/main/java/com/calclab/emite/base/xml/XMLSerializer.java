@@ -0,0 +1,298 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.base.xml;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+/**
+ * Serializes XML packets without going through a DOM or a Transformer.
+ * 
+ * Packets are written element by element to any {@link Appendable}
+ * (including a {@link StringBuilder} or a Writer). The same walk is used to
+ * compute the UTF-8 length of a packet before writing it, so the byte size
+ * of a request body can be known without building an intermediate String.
+ * 
+ * An element with a prefixed name declares its prefix itself (unless it has
+ * the declaration as an attribute), so a stanza such as
+ * {@code stream:features} can be written on its own.
+ */
+public final class XMLSerializer {
+
+	/**
+	 * Returns the XML representation of a packet.
+	 * 
+	 * @param packet the packet to serialize
+	 * @return the XML string
+	 */
+	public static final String toString(final XMLPacket packet) {
+		final StringBuilder result = new StringBuilder(128);
+		try {
+			write(packet, null, result);
+		} catch (final IOException e) {
+			// StringBuilder never throws
+			throw new AssertionError(e);
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Writes the XML representation of a packet.
+	 * 
+	 * @param packet the packet to serialize
+	 * @param out the destination
+	 * @throws IOException if the destination fails
+	 */
+	public static final void write(final XMLPacket packet, final Appendable out) throws IOException {
+		write(packet, null, out);
+	}
+
+	/**
+	 * Returns the number of bytes needed to encode a packet in UTF-8.
+	 * 
+	 * @param packet the packet to measure
+	 * @return the UTF-8 length of the packet
+	 */
+	public static final int utf8Length(final XMLPacket packet) {
+		final UTF8Counter counter = new UTF8Counter();
+		try {
+			write(packet, null, counter);
+		} catch (final IOException e) {
+			throw new AssertionError(e);
+		}
+		return counter.length;
+	}
+
+	/**
+	 * Returns the number of bytes needed to encode some characters in UTF-8.
+	 * 
+	 * Surrogate pairs take four bytes. Unpaired surrogates are encoded as
+	 * '?', like the JDK encoder does.
+	 * 
+	 * @param csq the characters to measure
+	 * @param start the first character
+	 * @param end the character after the last one
+	 * @return the UTF-8 length of the characters
+	 */
+	public static final int utf8Length(final CharSequence csq, final int start, final int end) {
+		int length = end - start;
+		for (int i = start; i < end; i++) {
+			final char c = csq.charAt(i);
+			if (c < 0x80) {
+				continue;
+			} else if (c < 0x800) {
+				length += 1;
+			} else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(csq.charAt(i + 1))) {
+				length += 2;
+				i++;
+			} else if (!Character.isHighSurrogate(c) && !Character.isLowSurrogate(c)) {
+				length += 2;
+			}
+		}
+		return length;
+	}
+
+	private static void write(final XMLPacket packet, @Nullable final String parentNamespace, final Appendable out) throws IOException {
+		if (packet instanceof XMLPacketImplLite) {
+			writeLite((XMLPacketImplLite) packet, parentNamespace, out);
+			return;
+		}
+
+		final String name = packet.getTagName();
+		final String namespace = packet.getNamespace();
+		final Map<String, String> attributes = packet.getAttributes();
+		final String declaration = declaration(name);
+
+		startTag(name, namespace, parentNamespace, declaration, attributes.containsKey(declaration), out);
+		for (final Map.Entry<String, String> attribute : attributes.entrySet()) {
+			attribute(attribute.getKey(), attribute.getValue(), out);
+		}
+
+		final List<XMLPacket> children = packet.getChildren();
+		if (children.isEmpty()) {
+			final String text = packet.getText();
+			if (text == null || text.length() == 0) {
+				out.append("/>");
+				return;
+			}
+			out.append('>');
+			escape(text, out, false);
+		} else {
+			out.append('>');
+			final String childNamespace = defaultNamespace(namespace, parentNamespace, declaration);
+			final HasMixedText mixed = packet instanceof HasMixedText ? (HasMixedText) packet : null;
+			if (mixed != null) {
+				escape(mixed.getTextAfter(null), out, false);
+			}
+			for (final XMLPacket child : children) {
+				write(child, childNamespace, out);
+				if (mixed != null) {
+					escape(mixed.getTextAfter(child), out, false);
+				}
+			}
+		}
+		endTag(name, out);
+	}
+
+	// Same as above, without copying attributes and children into immutable collections
+	private static void writeLite(final XMLPacketImplLite packet, @Nullable final String parentNamespace, final Appendable out) throws IOException {
+		final String name = packet.getTagName();
+		final String namespace = packet.getNamespace();
+		final String declaration = declaration(name);
+
+		startTag(name, namespace, parentNamespace, declaration, packet.hasAttribute(declaration), out);
+		for (int i = 0; i < packet.attributeCount(); i++) {
+			attribute(packet.attributeName(i), packet.attributeValue(i), out);
+		}
+
+		final int childCount = packet.childCount();
+		if (childCount == 0) {
+			final String text = packet.getText();
+			if (text.length() == 0) {
+				out.append("/>");
+				return;
+			}
+			out.append('>');
+			escape(text, out, false);
+		} else {
+			out.append('>');
+			final String childNamespace = defaultNamespace(namespace, parentNamespace, declaration);
+			for (int i = 0; i < childCount; i++) {
+				writeText(packet.textAt(i), out);
+				writeLite(packet.childAt(i), childNamespace, out);
+			}
+			writeText(packet.textAt(childCount), out);
+		}
+		endTag(name, out);
+	}
+
+	/**
+	 * Returns the attribute declaring the namespace of an element: xmlns, or
+	 * xmlns:prefix if the name has a prefix.
+	 */
+	private static String declaration(final String name) {
+		final int colon = name.indexOf(':');
+		return colon > 0 ? "xmlns:" + name.substring(0, colon) : "xmlns";
+	}
+
+	/**
+	 * Returns the default namespace of the children of an element. A
+	 * prefixed element does not change it.
+	 */
+	@Nullable
+	private static String defaultNamespace(@Nullable final String namespace, @Nullable final String parentNamespace, final String declaration) {
+		return namespace != null && declaration.length() == 5 ? namespace : parentNamespace;
+	}
+
+	private static void startTag(final String name, @Nullable final String namespace, @Nullable final String parentNamespace, final String declaration,
+			final boolean declared, final Appendable out) throws IOException {
+		out.append('<').append(name);
+		if (namespace != null && !declared && (declaration.length() > 5 || !namespace.equals(parentNamespace))) {
+			attribute(declaration, namespace, out);
+		}
+	}
+
+	private static void attribute(final String name, final String value, final Appendable out) throws IOException {
+		out.append(' ').append(name).append("=\"");
+		escape(value, out, true);
+		out.append('"');
+	}
+
+	private static void writeText(@Nullable final String text, final Appendable out) throws IOException {
+		if (text != null) {
+			escape(text, out, false);
+		}
+	}
+
+	private static void endTag(final String name, final Appendable out) throws IOException {
+		out.append("</").append(name).append('>');
+	}
+
+	private static void escape(final String value, final Appendable out, final boolean attribute) throws IOException {
+		final int length = value.length();
+		int start = 0;
+		for (int i = 0; i < length; i++) {
+			final String entity;
+			switch (value.charAt(i)) {
+			case '&':
+				entity = "&amp;";
+				break;
+			case '<':
+				entity = "&lt;";
+				break;
+			case '>':
+				entity = "&gt;";
+				break;
+			case '"':
+				entity = attribute ? "&quot;" : null;
+				break;
+			// Attribute values are normalized to spaces when parsed
+			case '\t':
+				entity = attribute ? "&#9;" : null;
+				break;
+			case '\n':
+				entity = attribute ? "&#10;" : null;
+				break;
+			case '\r':
+				entity = attribute ? "&#13;" : null;
+				break;
+			default:
+				entity = null;
+			}
+
+			if (entity != null) {
+				out.append(value, start, i).append(entity);
+				start = i + 1;
+			}
+		}
+		out.append(value, start, length);
+	}
+
+	private static final class UTF8Counter implements Appendable {
+		private int length;
+
+		@Override
+		public Appendable append(final char c) {
+			// Single characters are always ASCII markup
+			length++;
+			return this;
+		}
+
+		@Override
+		public Appendable append(final CharSequence csq) {
+			length += utf8Length(csq, 0, csq.length());
+			return this;
+		}
+
+		@Override
+		public Appendable append(final CharSequence csq, final int start, final int end) {
+			length += utf8Length(csq, start, end);
+			return this;
+		}
+	}
+
+	private XMLSerializer() {
+	}
+
+}
@@ -0,0 +1,115 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.base.xml;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Serializes XML packets as UTF-8 directly into NIO buffers.
+ * 
+ * Only available on a JVM.
+ */
+public final class XMLSerializerNIO {
+
+	/**
+	 * Returns a new buffer, ready to be read, with the packet encoded in
+	 * UTF-8. The buffer is allocated with the exact size of the packet.
+	 * 
+	 * @param packet the packet to serialize
+	 * @return the encoded packet
+	 */
+	public static final ByteBuffer toByteBuffer(final XMLPacket packet) {
+		final ByteBuffer buffer = ByteBuffer.allocate(XMLSerializer.utf8Length(packet));
+		write(packet, buffer);
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Writes a packet encoded in UTF-8 at the current buffer position.
+	 * 
+	 * @param packet the packet to serialize
+	 * @param buffer the destination buffer
+	 * @throws java.nio.BufferOverflowException if there is not enough room
+	 *             (see {@link XMLSerializer#utf8Length(XMLPacket)})
+	 */
+	public static final void write(final XMLPacket packet, final ByteBuffer buffer) {
+		try {
+			XMLSerializer.write(packet, new UTF8Encoder(checkNotNull(buffer)));
+		} catch (final IOException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	// Must agree with XMLSerializer.utf8Length
+	private static final class UTF8Encoder implements Appendable {
+		private final ByteBuffer buffer;
+
+		UTF8Encoder(final ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public Appendable append(final char c) {
+			// Single characters are always ASCII markup
+			buffer.put((byte) c);
+			return this;
+		}
+
+		@Override
+		public Appendable append(final CharSequence csq) {
+			return append(csq, 0, csq.length());
+		}
+
+		@Override
+		public Appendable append(final CharSequence csq, final int start, final int end) {
+			for (int i = start; i < end; i++) {
+				final char c = csq.charAt(i);
+				if (c < 0x80) {
+					buffer.put((byte) c);
+				} else if (c < 0x800) {
+					buffer.put((byte) (0xC0 | c >> 6));
+					buffer.put((byte) (0x80 | c & 0x3F));
+				} else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(csq.charAt(i + 1))) {
+					final int codePoint = Character.toCodePoint(c, csq.charAt(++i));
+					buffer.put((byte) (0xF0 | codePoint >> 18));
+					buffer.put((byte) (0x80 | codePoint >> 12 & 0x3F));
+					buffer.put((byte) (0x80 | codePoint >> 6 & 0x3F));
+					buffer.put((byte) (0x80 | codePoint & 0x3F));
+				} else if (Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+					buffer.put((byte) '?');
+				} else {
+					buffer.put((byte) (0xE0 | c >> 12));
+					buffer.put((byte) (0x80 | c >> 6 & 0x3F));
+					buffer.put((byte) (0x80 | c & 0x3F));
+				}
+			}
+			return this;
+		}
+	}
+
+	private XMLSerializerNIO() {
+	}
+
+}
@@ -0,0 +1,581 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ *
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.base.xml;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.UnsupportedEncodingException;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * An incremental XML parser for XMPP streams.
+ *
+ * The input can be fed in chunks of any size. The root element is reported
+ * as the stream header as soon as its start tag is complete, and every child
+ * of the root element is reported as a stanza as soon as its end tag arrives.
+ *
+ * This parser only supports the XML subset allowed in XMPP: DTDs and entity
+ * declarations are rejected, comments and processing instructions are
+ * skipped. Text mixed with child elements is kept in place when the packets
+ * support it, as all the packets of this package do.
+ */
+public final class XMLStreamParser {
+
+	/**
+	 * Receives the parsed pieces of the stream.
+	 */
+	public interface Handler {
+
+		/**
+		 * Called when the start tag of the root element arrives.
+		 *
+		 * @param header the root element, with its attributes but without
+		 *            children
+		 */
+		void onStreamStart(XMLPacket header);
+
+		/**
+		 * Called when a child of the root element is complete.
+		 *
+		 * @param stanza the parsed stanza
+		 */
+		void onStanza(XMLPacket stanza);
+
+		/**
+		 * Called when the end tag of the root element arrives.
+		 */
+		void onStreamEnd();
+
+	}
+
+	/**
+	 * Parses a complete XML document.
+	 *
+	 * @param factory the factory for the new packets
+	 * @param xml the document to parse
+	 * @return the root element, or {@code null} if the document is malformed
+	 */
+	@Nullable
+	public static XMLPacket parse(final XMLPacketFactory factory, final String xml) {
+		final XMLStreamParser parser = newDocumentParser(factory);
+		try {
+			parser.feed(xml);
+		} catch (final XMLParseException e) {
+			return null;
+		}
+
+		return parser.getDocument();
+	}
+
+	/**
+	 * Parses a complete XML document encoded in UTF-8.
+	 *
+	 * @param factory the factory for the new packets
+	 * @param data the buffer containing the document
+	 * @param offset the position of the document in the buffer
+	 * @param length the length of the document
+	 * @return the root element, or {@code null} if the document is malformed
+	 */
+	@Nullable
+	public static XMLPacket parse(final XMLPacketFactory factory, final byte[] data, final int offset, final int length) {
+		final String xml;
+		try {
+			xml = new String(data, offset, length, "UTF-8");
+		} catch (final UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+		return parse(factory, xml);
+	}
+
+	/**
+	 * Creates a new parser for a single XML document, which can be fed in
+	 * chunks of any size.
+	 *
+	 * @param factory the factory for the new packets
+	 * @return the new parser
+	 * @see #getDocument()
+	 */
+	public static XMLStreamParser newDocumentParser(final XMLPacketFactory factory) {
+		final XMLPacket[] result = new XMLPacket[1];
+		final XMLStreamParser parser = new XMLStreamParser(factory, 0, new Handler() {
+			@Override
+			public void onStreamStart(final XMLPacket header) {
+			}
+
+			@Override
+			public void onStanza(final XMLPacket stanza) {
+				result[0] = stanza;
+			}
+
+			@Override
+			public void onStreamEnd() {
+			}
+		});
+		parser.document = result;
+		return parser;
+	}
+
+	/**
+	 * Returns the document of a parser created with
+	 * {@link #newDocumentParser(XMLPacketFactory)}.
+	 *
+	 * @return the root element, or {@code null} if it is not complete yet
+	 */
+	@Nullable
+	public XMLPacket getDocument() {
+		checkState(document != null, "Not a document parser");
+		return stack.isEmpty() ? document[0] : null;
+	}
+
+	private static final class Frame {
+		private final String name;
+		private final XMLPacket packet;
+		@Nullable private final Map<String, String> namespaces;
+		private boolean hasChildren;
+
+		private Frame(final String name, final XMLPacket packet, @Nullable final Map<String, String> namespaces) {
+			this.name = name;
+			this.packet = packet;
+			this.namespaces = namespaces;
+		}
+	}
+
+	private final XMLPacketFactory factory;
+	private final int stanzaDepth;
+	private final Handler handler;
+	private final StringBuilder buffer;
+	private CharSequence input;
+	private final StringBuilder rawText;
+	private final StringBuilder text;
+	private final List<Frame> stack;
+
+	private int pos;
+	private int scan;
+	private char quote;
+	private boolean resetRequested;
+
+	// The root element, when parsing a single document
+	@Nullable private XMLPacket[] document;
+
+	/**
+	 * Creates a new parser for a XMPP stream.
+	 *
+	 * @param factory the factory for the new packets
+	 * @param handler the handler for the parsed stream
+	 */
+	public XMLStreamParser(final XMLPacketFactory factory, final Handler handler) {
+		this(factory, 1, handler);
+	}
+
+	private XMLStreamParser(final XMLPacketFactory factory, final int stanzaDepth, final Handler handler) {
+		this.factory = checkNotNull(factory);
+		this.stanzaDepth = stanzaDepth;
+		this.handler = checkNotNull(handler);
+
+		buffer = new StringBuilder();
+		input = buffer;
+		rawText = new StringBuilder();
+		text = new StringBuilder();
+		stack = Lists.newArrayList();
+	}
+
+	/**
+	 * Discards all the pending input and waits for a new stream.
+	 *
+	 * It can be safely called from the handler methods (i.e. when the stream
+	 * is restarted after authentication).
+	 */
+	public void reset() {
+		buffer.setLength(0);
+		rawText.setLength(0);
+		text.setLength(0);
+		stack.clear();
+		pos = 0;
+		scan = 0;
+		quote = 0;
+		input = buffer;
+		resetRequested = true;
+	}
+
+	/**
+	 * Parses more characters of the stream.
+	 *
+	 * @param chars the received characters
+	 * @throws XMLParseException if the stream is not well formed
+	 */
+	public void feed(final CharSequence chars) throws XMLParseException {
+		if (buffer.length() == 0) {
+			// Parse the characters in place, only incomplete markup is copied
+			input = chars;
+		} else {
+			buffer.append(chars);
+			input = buffer;
+		}
+		parse();
+	}
+
+	private void parse() throws XMLParseException {
+		resetRequested = false;
+
+		while (pos < input.length()) {
+			if (input.charAt(pos) != '<') {
+				int end = indexOf("<", pos);
+				if (end < 0) {
+					end = input.length();
+				}
+				if (stack.size() > stanzaDepth) {
+					rawText.append(input, pos, end);
+				}
+				pos = end;
+				continue;
+			}
+
+			final int end = findMarkupEnd();
+			if (end < 0) {
+				break;
+			}
+
+			handleMarkup(pos, end);
+			if (resetRequested)
+				return;
+
+			pos = end + 1;
+			scan = pos;
+			quote = 0;
+		}
+
+		// Keep the incomplete markup for the next feed
+		if (input == buffer) {
+			buffer.delete(0, pos);
+		} else {
+			buffer.append(input, pos, input.length());
+			input = buffer;
+		}
+		scan -= pos;
+		pos = 0;
+	}
+
+	private int indexOf(final String target, final int from) {
+		if (input instanceof String)
+			return ((String) input).indexOf(target, from);
+		if (input instanceof StringBuilder)
+			return ((StringBuilder) input).indexOf(target, from);
+
+		for (int i = from; i <= input.length() - target.length(); i++) {
+			int j = 0;
+			while (j < target.length() && input.charAt(i + j) == target.charAt(j)) {
+				j++;
+			}
+			if (j == target.length())
+				return i;
+		}
+		return -1;
+	}
+
+	private String substring(final int start, final int end) {
+		return input.subSequence(start, end).toString();
+	}
+
+	/**
+	 * Finds the end of the markup starting at the current position.
+	 *
+	 * @return the position of the last character of the markup, or -1 if
+	 *         more input is needed
+	 */
+	private int findMarkupEnd() {
+		if (startsWith("<!--"))
+			return endOf("-->", pos + 4);
+		if (startsWith("<![CDATA["))
+			return endOf("]]>", pos + 9);
+		if (startsWith("<?"))
+			return endOf("?>", pos + 2);
+		if (input.length() - pos < 9 && (isPrefix("<!--") || isPrefix("<![CDATA[")))
+			return -1;
+
+		// Scan the tag respecting quoted attribute values
+		for (scan = Math.max(scan, pos + 1); scan < input.length(); scan++) {
+			final char c = input.charAt(scan);
+			if (quote != 0) {
+				if (c == quote) {
+					quote = 0;
+				}
+			} else if (c == '"' || c == '\'') {
+				quote = c;
+			} else if (c == '>')
+				return scan;
+		}
+		return -1;
+	}
+
+	private boolean startsWith(final String prefix) {
+		return input.length() - pos >= prefix.length() && isPrefix(prefix);
+	}
+
+	private boolean isPrefix(final String prefix) {
+		final int length = Math.min(prefix.length(), input.length() - pos);
+		for (int i = 0; i < length; i++) {
+			if (input.charAt(pos + i) != prefix.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	private int endOf(final String terminator, final int from) {
+		final int index = indexOf(terminator, Math.max(from, scan - terminator.length()));
+		if (index < 0) {
+			scan = input.length();
+			return -1;
+		}
+		return index + terminator.length() - 1;
+	}
+
+	private void handleMarkup(final int start, final int end) throws XMLParseException {
+		final char type = input.charAt(start + 1);
+		if (type == '?')
+			return;
+
+		if (type == '!') {
+			if (startsWith("<![CDATA[")) {
+				flushRawText();
+				if (stack.size() > stanzaDepth) {
+					text.append(input, start + 9, end - 2);
+				}
+				return;
+			} else if (startsWith("<!--"))
+				return;
+
+			throw new XMLParseException("DTDs are not allowed");
+		}
+
+		flushRawText();
+		if (type == '/') {
+			closeElement(substring(start + 2, end).trim());
+		} else {
+			final boolean empty = input.charAt(end - 1) == '/';
+			openElement(start + 1, empty ? end - 1 : end);
+			if (empty) {
+				closeElement(stack.get(stack.size() - 1).name);
+			}
+		}
+	}
+
+	private void openElement(final int start, final int end) throws XMLParseException {
+		int i = start;
+		while (i < end && !isWhitespace(input.charAt(i))) {
+			i++;
+		}
+		final String name = substring(start, i);
+		if (name.length() == 0)
+			throw new XMLParseException("Missing tag name");
+
+		// Read the attributes and namespace declarations
+		List<String> attributes = null;
+		Map<String, String> namespaces = null;
+		while (true) {
+			while (i < end && isWhitespace(input.charAt(i))) {
+				i++;
+			}
+			if (i >= end) {
+				break;
+			}
+
+			final int nameStart = i;
+			while (i < end && input.charAt(i) != '=' && !isWhitespace(input.charAt(i))) {
+				i++;
+			}
+			final String attribute = substring(nameStart, i);
+			while (i < end && isWhitespace(input.charAt(i))) {
+				i++;
+			}
+			if (i >= end || input.charAt(i) != '=')
+				throw new XMLParseException("Missing value for attribute " + attribute);
+			i++;
+			while (i < end && isWhitespace(input.charAt(i))) {
+				i++;
+			}
+			final char delimiter = i < end ? input.charAt(i) : 0;
+			if (delimiter != '"' && delimiter != '\'')
+				throw new XMLParseException("Unquoted value for attribute " + attribute);
+			final int valueEnd = indexOf(String.valueOf(delimiter), i + 1);
+			if (valueEnd < 0 || valueEnd >= end)
+				throw new XMLParseException("Unterminated value for attribute " + attribute);
+			final StringBuilder value = new StringBuilder();
+			decode(input, i + 1, valueEnd, value);
+			i = valueEnd + 1;
+
+			if ("xmlns".equals(attribute) || attribute.startsWith("xmlns:")) {
+				if (namespaces == null) {
+					namespaces = Maps.newHashMap();
+				}
+				namespaces.put(attribute.length() > 5 ? attribute.substring(6) : "", value.toString());
+			}
+			// Prefix declarations stay on the element, for prefixed attributes
+			if (!"xmlns".equals(attribute)) {
+				if (attributes == null) {
+					attributes = Lists.newArrayList();
+				}
+				attributes.add(attribute);
+				attributes.add(value.toString());
+			}
+		}
+
+		final String namespace = resolve(name, namespaces);
+		final int depth = stack.size();
+		final XMLPacket packet;
+		if (depth > stanzaDepth) {
+			final Frame parent = stack.get(depth - 1);
+			if (text.length() > 0) {
+				appendText(parent.packet, text.toString());
+			}
+			parent.hasChildren = true;
+			packet = parent.packet.addChild(name, namespace);
+		} else {
+			packet = factory.create(name, namespace);
+		}
+
+		if (attributes != null) {
+			for (int a = 0; a < attributes.size(); a += 2) {
+				packet.setAttribute(attributes.get(a), attributes.get(a + 1));
+			}
+		}
+
+		stack.add(new Frame(name, packet, namespaces));
+		text.setLength(0);
+
+		if (depth < stanzaDepth) {
+			handler.onStreamStart(packet);
+		}
+	}
+
+	private void closeElement(final String name) throws XMLParseException {
+		if (stack.isEmpty())
+			throw new XMLParseException("Unexpected end tag " + name);
+
+		final Frame frame = stack.remove(stack.size() - 1);
+		if (!frame.name.equals(name))
+			throw new XMLParseException("Expected end tag " + frame.name + " but found " + name);
+
+		if (text.length() > 0) {
+			if (frame.hasChildren) {
+				appendText(frame.packet, text.toString());
+			} else {
+				frame.packet.setText(text.toString());
+			}
+		}
+		text.setLength(0);
+
+		final int depth = stack.size();
+		if (depth == stanzaDepth) {
+			handler.onStanza(frame.packet);
+		} else if (depth == 0) {
+			handler.onStreamEnd();
+		}
+	}
+
+	@Nullable
+	private String resolve(final String name, @Nullable final Map<String, String> declared) {
+		final int colon = name.indexOf(':');
+		final String prefix = colon > 0 ? name.substring(0, colon) : "";
+		if (declared != null && declared.containsKey(prefix))
+			return declared.get(prefix);
+
+		for (int i = stack.size() - 1; i >= 0; i--) {
+			final Map<String, String> namespaces = stack.get(i).namespaces;
+			if (namespaces != null && namespaces.containsKey(prefix))
+				return namespaces.get(prefix);
+		}
+		return null;
+	}
+
+	private static void appendText(final XMLPacket packet, final String text) {
+		if (packet instanceof HasMixedText) {
+			((HasMixedText) packet).appendText(text);
+		}
+	}
+
+	private void flushRawText() throws XMLParseException {
+		if (rawText.length() > 0) {
+			decode(rawText, 0, rawText.length(), text);
+			rawText.setLength(0);
+		}
+	}
+
+	private static boolean isWhitespace(final char c) {
+		return c == ' ' || c == '\n' || c == '\t' || c == '\r';
+	}
+
+	/**
+	 * Appends a string replacing the predefined and character entities.
+	 */
+	private static void decode(final CharSequence source, final int start, final int end, final StringBuilder target) throws XMLParseException {
+		for (int i = start; i < end; i++) {
+			final char c = source.charAt(i);
+			if (c != '&') {
+				target.append(c);
+				continue;
+			}
+
+			int semicolon = i + 1;
+			while (semicolon < end && source.charAt(semicolon) != ';') {
+				semicolon++;
+			}
+			if (semicolon >= end)
+				throw new XMLParseException("Unterminated entity");
+
+			final String entity = source.subSequence(i + 1, semicolon).toString();
+			if ("lt".equals(entity)) {
+				target.append('<');
+			} else if ("gt".equals(entity)) {
+				target.append('>');
+			} else if ("amp".equals(entity)) {
+				target.append('&');
+			} else if ("quot".equals(entity)) {
+				target.append('"');
+			} else if ("apos".equals(entity)) {
+				target.append('\'');
+			} else if (entity.startsWith("#")) {
+				final int codePoint;
+				try {
+					codePoint = entity.startsWith("#x") ? Integer.parseInt(entity.substring(2), 16) : Integer.parseInt(entity.substring(1));
+				} catch (final NumberFormatException e) {
+					throw new XMLParseException("Invalid character reference &" + entity + ";");
+				}
+				if (codePoint >= 0x10000) {
+					target.append((char) ((codePoint - 0x10000 >> 10) + 0xD800));
+					target.append((char) ((codePoint - 0x10000 & 0x3FF) + 0xDC00));
+				} else {
+					target.append((char) codePoint);
+				}
+			} else
+				throw new XMLParseException("Unknown entity &" + entity + ";");
+
+			i = semicolon;
+		}
+	}
+
+}
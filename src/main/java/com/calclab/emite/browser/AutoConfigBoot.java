@@ -229,6 +229,9 @@ public class AutoConfigBoot implements Scheduler.ScheduledCommand, Window.Closin
 		map.put("wait", stream.wait);
 		map.put("inactivity", stream.getInactivityString());
 		map.put("maxPause", stream.getMaxPauseString());
+		map.put("requests", stream.getRequestsString());
+		map.put("hold", stream.getHoldString());
+		map.put("polling", stream.getPollingString());
 		map.put("user", user);
 
 		final String serialized = cookieJoiner.join(map);
@@ -258,6 +261,9 @@ public class AutoConfigBoot implements Scheduler.ScheduledCommand, Window.Closin
 		stream.wait = map.get("wait");
 		stream.setInactivity(map.get("inactivity"));
 		stream.setMaxPause(map.get("maxPause"));
+		stream.setHold(map.get("hold"));
+		stream.setRequests(map.get("requests"));
+		stream.setPolling(map.get("polling"));
 		final XmppURI user = uri(map.get("user"));
 		session.resume(user, stream);
 		return true;
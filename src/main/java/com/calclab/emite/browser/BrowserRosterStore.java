@@ -0,0 +1,126 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.browser;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import com.calclab.emite.base.xml.XMLBuilder;
+import com.calclab.emite.base.xml.XMLPacket;
+import com.calclab.emite.core.XmppURI;
+import com.calclab.emite.im.roster.RosterStore;
+import com.calclab.emite.im.roster.SubscriptionState;
+import com.google.common.collect.Lists;
+import com.google.gwt.storage.client.Storage;
+
+/**
+ * A roster store kept in the browser local storage.
+ * 
+ * Every roster item is kept in its own key, so a roster push only writes one
+ * item. Use {@link #getIfSupported()} to check the browser support.
+ */
+public final class BrowserRosterStore implements RosterStore {
+
+	private static final String PREFIX = "emite.roster.";
+
+	/**
+	 * Returns a roster store for the local storage of the browser.
+	 * 
+	 * @return the roster store, or {@code null} if the browser has no local
+	 *         storage
+	 */
+	@Nullable
+	public static final BrowserRosterStore getIfSupported() {
+		final Storage storage = Storage.getLocalStorageIfSupported();
+		return storage != null ? new BrowserRosterStore(storage) : null;
+	}
+
+	private final Storage storage;
+
+	private BrowserRosterStore(final Storage storage) {
+		this.storage = checkNotNull(storage);
+	}
+
+	@Override
+	@Nullable
+	public String getVersion(final XmppURI user) {
+		return storage.getItem(versionKey(user));
+	}
+
+	@Override
+	public List<XMLPacket> getItems(final XmppURI user) {
+		final String prefix = itemPrefix(user);
+		final List<XMLPacket> items = Lists.newArrayList();
+		for (int i = 0; i < storage.getLength(); i++) {
+			final String key = storage.key(i);
+			if (key != null && key.startsWith(prefix)) {
+				final XMLPacket item = XMLBuilder.fromXML(storage.getItem(key));
+				if (item != null) {
+					items.add(item);
+				}
+			}
+		}
+		return items;
+	}
+
+	@Override
+	public void setRoster(final XmppURI user, final String version, final List<XMLPacket> items) {
+		final String prefix = itemPrefix(user);
+		final List<String> oldKeys = Lists.newArrayList();
+		for (int i = 0; i < storage.getLength(); i++) {
+			final String key = storage.key(i);
+			if (key != null && key.startsWith(prefix)) {
+				oldKeys.add(key);
+			}
+		}
+		for (final String key : oldKeys) {
+			storage.removeItem(key);
+		}
+
+		for (final XMLPacket item : items) {
+			storage.setItem(prefix + item.getAttribute("jid"), item.toString());
+		}
+		storage.setItem(versionKey(user), checkNotNull(version));
+	}
+
+	@Override
+	public void updateItem(final XmppURI user, final String version, final XMLPacket item) {
+		final String key = itemPrefix(user) + item.getAttribute("jid");
+		if (SubscriptionState.remove.name().equals(item.getAttribute("subscription"))) {
+			storage.removeItem(key);
+		} else {
+			storage.setItem(key, item.toString());
+		}
+		storage.setItem(versionKey(user), checkNotNull(version));
+	}
+
+	private static final String versionKey(final XmppURI user) {
+		return PREFIX + user.getJID() + ".ver";
+	}
+
+	private static final String itemPrefix(final XmppURI user) {
+		return PREFIX + user.getJID() + ".item.";
+	}
+
+}
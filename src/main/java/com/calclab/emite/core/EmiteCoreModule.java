@@ -21,6 +21,10 @@
 package com.calclab.emite.core;
 
 import com.calclab.emite.base.LoggingEventBus;
+import com.calclab.emite.base.util.ActionScheduler;
+import com.calclab.emite.base.util.HttpEngine;
+import com.calclab.emite.base.util.HttpEngineGWT;
+import com.calclab.emite.base.util.TimerActionScheduler;
 import com.calclab.emite.core.conn.XmppConnection;
 import com.calclab.emite.core.conn.XmppConnectionBosh;
 import com.calclab.emite.core.session.XmppSession;
@@ -39,8 +43,40 @@ public class EmiteCoreModule extends AbstractGinModule {
 	protected void configure() {
 		bind(EventBus.class).annotatedWith(Names.named("emite")).to(LoggingEventBus.class).in(Singleton.class);
 
-		bind(XmppConnection.class).to(XmppConnectionBosh.class);
+		bindConnection();
+		bindHttpEngine();
+		bindScheduler();
 		bind(XmppSession.class).to(XmppSessionImpl.class);
 	}
 
+	/**
+	 * Binds the XMPP connection implementation.
+	 * 
+	 * By default the connection uses BOSH, override this method to use other
+	 * transports.
+	 */
+	protected void bindConnection() {
+		bind(XmppConnection.class).to(XmppConnectionBosh.class);
+	}
+
+	/**
+	 * Binds the engine sending the BOSH requests.
+	 * 
+	 * By default the requests use a GWT RequestBuilder, override this method
+	 * to send them another way.
+	 */
+	protected void bindHttpEngine() {
+		bind(HttpEngine.class).to(HttpEngineGWT.class);
+	}
+
+	/**
+	 * Binds the scheduler running the delayed actions of the session.
+	 * 
+	 * By default the actions use GWT timers, override this method to run
+	 * them another way.
+	 */
+	protected void bindScheduler() {
+		bind(ActionScheduler.class).to(TimerActionScheduler.class);
+	}
+
 }
@@ -0,0 +1,97 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.core;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.calclab.emite.base.util.ActionScheduler;
+import com.calclab.emite.base.util.HttpEngine;
+import com.calclab.emite.base.util.HttpEngineNIO;
+import com.calclab.emite.base.util.SerialActionScheduler;
+import com.calclab.emite.base.util.SerialExecutor;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+
+/**
+ * Emite core module for BOSH sessions running on a JVM.
+ * 
+ * This module only works on a JVM, use it with Guice through a
+ * {@code GinModuleAdapter}, creating one injector per session.
+ * 
+ * Every session gets its own {@link SerialExecutor}, running on a pool of
+ * worker threads shared by all the sessions in the JVM, and its own
+ * {@link SerialActionScheduler}, running the delayed actions on that
+ * executor. The BOSH requests of all the sessions share the kept alive
+ * connections of a single {@link HttpEngineNIO}, unless
+ * {@link #bindHttpEngine()} is overridden. See the
+ * {@link com.calclab.emite.core} package for the threading rules.
+ */
+public class EmiteJvmModule extends EmiteCoreModule {
+
+	@Override
+	protected void configure() {
+		super.configure();
+
+		bind(SerialExecutor.class).toProvider(SessionExecutorProvider.class).in(Singleton.class);
+	}
+
+	@Override
+	protected void bindScheduler() {
+		bind(ActionScheduler.class).to(SerialActionScheduler.class).in(Singleton.class);
+	}
+
+	@Override
+	protected void bindHttpEngine() {
+		bind(HttpEngine.class).toProvider(HttpEngineProvider.class);
+	}
+
+	/**
+	 * Creates the serial executor of a session.
+	 */
+	static final class SessionExecutorProvider implements Provider<SerialExecutor> {
+
+		private static final ExecutorService workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+				new ThreadFactoryBuilder().setNameFormat("emite-worker-%d").setDaemon(true).build());
+
+		@Override
+		public SerialExecutor get() {
+			return new SerialExecutor(workers);
+		}
+
+	}
+
+	/**
+	 * Provides the HTTP engine shared by all the sessions.
+	 */
+	static final class HttpEngineProvider implements Provider<HttpEngine> {
+
+		private static final HttpEngine httpEngine = new HttpEngineNIO();
+
+		@Override
+		public HttpEngine get() {
+			return httpEngine;
+		}
+
+	}
+
+}
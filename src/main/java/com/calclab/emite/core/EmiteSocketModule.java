@@ -0,0 +1,40 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.core;
+
+import com.calclab.emite.core.conn.XmppConnection;
+import com.calclab.emite.core.conn.XmppConnectionSocket;
+
+/**
+ * Emite core module using a TCP socket connection instead of BOSH.
+ * 
+ * This module only works on a JVM, use it with Guice through a
+ * {@code GinModuleAdapter}, creating one injector per session. It shares the
+ * threading model of {@link EmiteJvmModule}.
+ */
+public class EmiteSocketModule extends EmiteJvmModule {
+
+	@Override
+	protected void bindConnection() {
+		bind(XmppConnection.class).to(XmppConnectionSocket.class);
+	}
+
+}
@@ -45,6 +45,8 @@ public final class XmppNamespaces {
 	/** {@value} */
 	public static final String PRIVACY = "jabber:iq:privacy";
 
+	/** {@value} */
+	public static final String STREAMS = "http://etherx.jabber.org/streams";
 	/** {@value} */
 	public static final String XBOSH = "urn:xmpp:xbosh";
 	/** {@value} */
@@ -55,6 +57,12 @@ public final class XmppNamespaces {
 	public static final String BIND = "urn:ietf:params:xml:ns:xmpp-bind";
 	/** {@value} */
 	public static final String SASL = "urn:ietf:params:xml:ns:xmpp-sasl";
+	/** {@value} */
+	public static final String STANZAS = "urn:ietf:params:xml:ns:xmpp-stanzas";
+	/** {@value} */
+	public static final String SM = "urn:xmpp:sm:3";
+	/** {@value} */
+	public static final String ROSTER_VER = "urn:xmpp:features:rosterver";
 
 	/** {@value} */
 	public static final String DISCO_INFO = "http://jabber.org/protocol/disco#info";
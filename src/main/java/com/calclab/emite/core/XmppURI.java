@@ -22,7 +22,7 @@ package com.calclab.emite.core;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
-import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.Immutable;
@@ -31,7 +31,9 @@ import com.calclab.emite.base.stringprep.IDNA;
 import com.calclab.emite.base.stringprep.Stringprep;
 import com.google.common.base.Objects;
 import com.google.common.base.Strings;
-import com.google.common.collect.Maps;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
 
 /**
  * Defines a XMPP URI.
@@ -43,8 +45,55 @@ import com.google.common.collect.Maps;
 @Immutable
 public final class XmppURI {
 	
-	// TODO: replace with Cache when available in GWT
-	private static final Map<String, XmppURI> cache = Maps.newHashMap();
+	/**
+	 * Default maximum number of parsed URIs kept in the cache.
+	 */
+	public static final int DEFAULT_CACHE_SIZE = 10000;
+
+	// Parsed URIs, keyed by the parsed string
+	private static volatile Cache<String, XmppURI> cache = newCache(DEFAULT_CACHE_SIZE);
+
+	// The GWT version of Cache does not record stats
+	private static final AtomicLong cacheHits = new AtomicLong();
+	private static final AtomicLong cacheMisses = new AtomicLong();
+	private static final AtomicLong cacheInserts = new AtomicLong();
+	private static final AtomicLong invalidURIs = new AtomicLong();
+
+	private static final Cache<String, XmppURI> newCache(final int maximumSize) {
+		return CacheBuilder.newBuilder().maximumSize(maximumSize).build();
+	}
+
+	/**
+	 * Changes the maximum number of parsed URIs kept in the cache.
+	 * 
+	 * The current cache and its stats are discarded.
+	 * 
+	 * @param maximumSize
+	 *            the new maximum size, or 0 to disable the cache
+	 */
+	public static final void setCacheSize(final int maximumSize) {
+		cache = newCache(maximumSize);
+		cacheHits.set(0);
+		cacheMisses.set(0);
+		cacheInserts.set(0);
+		invalidURIs.set(0);
+	}
+
+	/**
+	 * Returns the stats of the URI cache.
+	 * 
+	 * A load is the parsing of a URI string not found in the cache, which
+	 * fails if the string is not a valid URI.
+	 * 
+	 * @return a snapshot of the cache stats
+	 */
+	public static final CacheStats getCacheStats() {
+		// Every invalid URI is a miss first, so read it before the misses
+		final long invalid = invalidURIs.get();
+		final long misses = cacheMisses.get();
+		final long evictions = Math.max(0, cacheInserts.get() - cache.size());
+		return new CacheStats(cacheHits.get(), misses, misses - invalid, invalid, 0, evictions);
+	}
 
 	/**
 	 * Parse a string and return a URI.
@@ -58,9 +107,25 @@ public final class XmppURI {
 		if (Strings.isNullOrEmpty(uri))
 			return null;
 		
-		if (cache.containsKey(uri))
-			return cache.get(uri);
+		final Cache<String, XmppURI> current = cache;
+		final XmppURI cached = current.getIfPresent(uri);
+		if (cached != null) {
+			cacheHits.incrementAndGet();
+			return cached;
+		}
+		cacheMisses.incrementAndGet();
 		
+		final XmppURI result = parse(uri);
+		if (result == null) {
+			invalidURIs.incrementAndGet();
+		} else if (current.asMap().putIfAbsent(uri, result) == null) {
+			cacheInserts.incrementAndGet();
+		}
+		return result;
+	}
+
+	@Nullable
+	private static final XmppURI parse(final String uri) {
 		String node = null;
 		String domain = null;
 		String resource = null;
@@ -84,9 +149,7 @@ public final class XmppURI {
 		if (domain.length() == 0)
 			return null;
 
-		final XmppURI result = uri(node, domain, resource);
-		cache.put(uri, result);
-		return result;
+		return uri(node, domain, resource);
 	}
 	
 	/**
@@ -120,9 +183,11 @@ public final class XmppURI {
 			final String shost = IDNA.toASCII(host);
 			final String sresource = resource != null ? Stringprep.resourceprep(resource) : null;
 			
-			final XmppURI result = new XmppURI(snode, shost, sresource);
-			cache.put(result.toString(), result);
-			return result;
+			// Parts can not be empty, even after mapping characters to nothing
+			if ("".equals(snode) || "".equals(sresource))
+				return null;
+			
+			return new XmppURI(snode, shost, sresource);
 		} catch (Exception e) {
 			return null;
 		}
@@ -132,6 +197,9 @@ public final class XmppURI {
 	@Nullable private final String node;
 	@Nullable private final String resource;
 
+	// Lazily created, it does not matter if two threads create it at once
+	@Nullable private XmppURI jid;
+
 	private XmppURI(@Nullable final String node, final String host, @Nullable final String resource) {
 		this.host = checkNotNull(host);
 		this.node = node;
@@ -144,7 +212,14 @@ public final class XmppURI {
 	 * @return the JID for this URI
 	 */
 	public final XmppURI getJID() {
-		return uri(node, host, null);
+		if (resource == null)
+			return this;
+
+		// The node and host are already prepared
+		if (jid == null) {
+			jid = new XmppURI(node, host, null);
+		}
+		return jid;
 	}
 
 	/**
@@ -162,7 +237,10 @@ public final class XmppURI {
 	 * @return a new URI with the same host as this one
 	 */
 	public final XmppURI getHostURI() {
-		return uri(null, host, null);
+		if (node == null && resource == null)
+			return this;
+
+		return new XmppURI(null, host, null);
 	}
 
 	/**
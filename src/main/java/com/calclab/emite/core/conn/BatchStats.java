@@ -0,0 +1,86 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.core.conn;
+
+import javax.annotation.concurrent.Immutable;
+
+import com.google.common.base.Objects;
+
+/**
+ * A snapshot of the stanza batches sent by a BOSH connection.
+ * 
+ * @see XmppConnectionBosh#getBatchStats()
+ */
+@Immutable
+public final class BatchStats {
+
+	private final long batches;
+	private final long stanzas;
+	private final int largest;
+
+	BatchStats(final long batches, final long stanzas, final int largest) {
+		this.batches = batches;
+		this.stanzas = stanzas;
+		this.largest = largest;
+	}
+
+	/**
+	 * Returns the number of requests sent with at least one stanza.
+	 * 
+	 * @return the number of batches
+	 */
+	public long getBatches() {
+		return batches;
+	}
+
+	/**
+	 * Returns the number of stanzas sent in all the batches.
+	 * 
+	 * @return the number of stanzas
+	 */
+	public long getStanzas() {
+		return stanzas;
+	}
+
+	/**
+	 * Returns the number of stanzas in the largest batch.
+	 * 
+	 * @return the size of the largest batch
+	 */
+	public int getLargestBatch() {
+		return largest;
+	}
+
+	/**
+	 * Returns the average number of stanzas per batch.
+	 * 
+	 * @return the average batch size, or 0 if no batch was sent
+	 */
+	public double getAverageBatch() {
+		return batches == 0 ? 0 : (double) stanzas / batches;
+	}
+
+	@Override
+	public String toString() {
+		return Objects.toStringHelper(this).add("batches", batches).add("stanzas", stanzas).add("largest", largest).toString();
+	}
+
+}
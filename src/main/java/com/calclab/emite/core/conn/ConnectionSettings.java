@@ -30,7 +30,11 @@ public final class ConnectionSettings {
 	
 	/**
 	 * Maximum number of open BOSH requests.
+	 * 
+	 * @deprecated the connection manager advertises it, see
+	 *             {@link StreamSettings#getRequests()}
 	 */
+	@Deprecated
 	public static final int MAX_REQUESTS = 2;
 
 	private final String httpBase;
@@ -0,0 +1,61 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.core.conn;
+
+import java.util.List;
+
+import com.calclab.emite.base.xml.XMLPacket;
+
+/**
+ * The packets a session keeps until its connection has room to send them.
+ * 
+ * A BOSH connection takes them when it can send a request, and a socket
+ * connection when it has written the previous ones, so the session decides
+ * their order while they wait.
+ * 
+ * @see XmppConnection#setOutbox(Outbox)
+ */
+public interface Outbox {
+
+	/**
+	 * Returns the number of waiting packets.
+	 * 
+	 * @return the number of packets
+	 */
+	int size();
+
+	/**
+	 * Returns the UTF-8 size of the waiting packets.
+	 * 
+	 * @return the size in bytes
+	 */
+	int bytes();
+
+	/**
+	 * Moves the next packets to send to a list, in the order they must be
+	 * sent. Some packets may be left for the next call.
+	 * 
+	 * @param target the list of packets to send
+	 * @return the number of packets added to the list
+	 */
+	int drainTo(List<XMLPacket> target);
+
+}
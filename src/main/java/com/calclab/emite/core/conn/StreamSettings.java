@@ -22,6 +22,9 @@ package com.calclab.emite.core.conn;
 
 /**
  * BOSH stream settings.
+ * 
+ * Until the session creation response arrives, only one request can be open
+ * and none is held by the connection manager.
  */
 public final class StreamSettings {
 	
@@ -31,9 +34,13 @@ public final class StreamSettings {
 	private int inactivity;
 	long lastRequestTime;
 	private int maxPause;
+	private int requests;
+	private int hold;
+	private int polling;
 
 	public StreamSettings() {
 		rid = (long) (Math.random() * 10000000) + 1000;
+		requests = 1;
 	}
 
 	public int getInactivity() {
@@ -52,6 +59,47 @@ public final class StreamSettings {
 		return Integer.toString(maxPause);
 	}
 
+	/**
+	 * Returns the maximum number of simultaneous requests allowed by the
+	 * connection manager.
+	 * 
+	 * @return the maximum number of open requests
+	 */
+	public int getRequests() {
+		return requests;
+	}
+
+	public String getRequestsString() {
+		return Integer.toString(requests);
+	}
+
+	/**
+	 * Returns the number of requests the connection manager keeps waiting
+	 * for data to send.
+	 * 
+	 * @return the number of held requests
+	 */
+	public int getHold() {
+		return hold;
+	}
+
+	public String getHoldString() {
+		return Integer.toString(hold);
+	}
+
+	/**
+	 * Returns the shortest allowable polling interval, in seconds.
+	 * 
+	 * @return the polling interval
+	 */
+	public int getPolling() {
+		return polling;
+	}
+
+	public String getPollingString() {
+		return Integer.toString(polling);
+	}
+
 	public String getNextRid() {
 		rid++;
 		return String.valueOf(rid);
@@ -73,4 +121,42 @@ public final class StreamSettings {
 		}
 	}
 
+	/**
+	 * Sets the number of held requests.
+	 * 
+	 * @param hold the number of held requests, 1 if not a number
+	 */
+	public void setHold(final String hold) {
+		try {
+			this.hold = Math.max(0, Integer.parseInt(hold));
+		} catch (final NumberFormatException e) {
+			this.hold = 1;
+		}
+	}
+
+	/**
+	 * Sets the maximum number of simultaneous requests. Set the number of
+	 * held requests first: it is lowered to leave at least one request free
+	 * to send stanzas.
+	 * 
+	 * @param requests the maximum number of open requests, one more than the
+	 *            held requests if not a number
+	 */
+	public void setRequests(final String requests) {
+		try {
+			this.requests = Math.max(1, Integer.parseInt(requests));
+		} catch (final NumberFormatException e) {
+			this.requests = hold + 1;
+		}
+		hold = Math.min(hold, this.requests - 1);
+	}
+
+	public void setPolling(final String polling) {
+		try {
+			this.polling = Math.max(0, Integer.parseInt(polling));
+		} catch (final NumberFormatException e) {
+			this.polling = 0;
+		}
+	}
+
 }
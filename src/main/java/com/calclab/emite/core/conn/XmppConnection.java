@@ -130,11 +130,30 @@ public interface XmppConnection {
 	/**
 	 * Send a packet into the connection channel.
 	 * 
+	 * The packet goes ahead of the ones waiting in the outbox.
+	 * 
 	 * @param packet
 	 *            the packet to be sent
 	 */
 	void send(HasXML packet);
 
+	/**
+	 * Send the packets waiting in the outbox as soon as the connection has
+	 * room for them.
+	 * 
+	 * @see #setOutbox(Outbox)
+	 */
+	void flush();
+
+	/**
+	 * Set the outbox the connection takes packets from whenever it has room
+	 * to send them.
+	 * 
+	 * @param outbox
+	 *            the outbox of the session
+	 */
+	void setOutbox(Outbox outbox);
+
 	/**
 	 * Set the connection settings.
 	 * 
@@ -1,333 +1,631 @@
-/*
- * ((e)) emite: A pure Google Web Toolkit XMPP library
- * Copyright (c) 2008-2011 The Emite development team
- * 
- * This file is part of Emite.
- *
- * Emite is free software: you can redistribute it and/or modify
- * it under the terms of the GNU Lesser General Public License as
- * published by the Free Software Foundation, either version 3
- * of the License, or (at your option) any later version.
- *
- * Emite is distributed in the hope that it will be useful, but
- * WITHOUT ANY WARRANTY; without even the implied warranty of
- * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
- * GNU Lesser General Public License for more details.
- * 
- * You should have received a copy of the GNU Lesser General Public
- * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
- */
-
-package com.calclab.emite.core.conn;
-
-import static com.google.common.base.Preconditions.checkNotNull;
-import static com.google.common.base.Preconditions.checkState;
-
-import java.util.List;
-import java.util.logging.Logger;
-
-import javax.annotation.Nullable;
-
-import com.calclab.emite.base.util.KeySequencer;
-import com.calclab.emite.base.util.Platform;
-import com.calclab.emite.base.util.ScheduledAction;
-import com.calclab.emite.base.xml.HasXML;
-import com.calclab.emite.base.xml.XMLBuilder;
-import com.calclab.emite.base.xml.XMLPacket;
-import com.calclab.emite.core.AsyncResult;
-import com.calclab.emite.core.XmppNamespaces;
-import com.calclab.emite.core.events.ConnectionStatusChangedEvent;
-import com.calclab.emite.core.events.PacketReceivedEvent;
-import com.calclab.emite.core.events.PacketSentEvent;
-import com.google.common.collect.Lists;
-import com.google.inject.Inject;
-import com.google.inject.Singleton;
-import com.google.inject.name.Named;
-import com.google.web.bindery.event.shared.EventBus;
-import com.google.web.bindery.event.shared.HandlerRegistration;
-
-/**
- * A BOSH XMPP connection implementation.
- * 
- * @see XmppConnection
- */
-@Singleton
-public final class XmppConnectionBosh implements XmppConnection {
-
-	private static final Logger logger = Logger.getLogger(XmppConnectionBosh.class.getName());
-
-	private final EventBus eventBus;
-	private final KeySequencer keySequencer;
-	private final List<XMLPacket> currentRequests;
-	
-	@Nullable private ConnectionSettings settings;
-	@Nullable private StreamSettings stream;
-	@Nullable private XMLPacket currentBody;
-
-	private int errors;
-	private boolean active;
-	private boolean shouldCollectResponses;
-
-	@Inject
-	protected XmppConnectionBosh(@Named("emite") final EventBus eventBus) {
-		this.eventBus = checkNotNull(eventBus);
-		keySequencer = new KeySequencer();
-		currentRequests = Lists.newArrayList();
-	}
-
-	@Override
-	public HandlerRegistration addConnectionStatusChangedHandler(final ConnectionStatusChangedEvent.Handler handler) {
-		return eventBus.addHandlerToSource(ConnectionStatusChangedEvent.TYPE, this, handler);
-	}
-
-	@Override
-	public HandlerRegistration addPacketReceivedHandler(final PacketReceivedEvent.Handler handler) {
-		return eventBus.addHandlerToSource(PacketReceivedEvent.TYPE, this, handler);
-	}
-
-	@Override
-	public HandlerRegistration addPacketSentHandler(final PacketSentEvent.Handler handler) {
-		return eventBus.addHandlerToSource(PacketSentEvent.TYPE, this, handler);
-	}
-
-	@Override
-	public void connect() {
-		checkState(settings != null, "You must set connection settings before connecting!");
-
-		if (!active) {
-			active = true;
-			errors = 0;
-			currentRequests.clear();
-			stream = new StreamSettings();
-			createInitialBody();
-			sendBody(false);
-		}
-	}
-
-	@Override
-	public void disconnect() {
-		logger.finer("BoshConnection - Disconnected called - Clearing current body and send a priority 'terminate' stanza.");
-		// Clearing all queued stanzas
-		currentBody = null;
-		// Create a new terminate stanza and force the send
-		createBodyIfNeeded();
-		currentBody.setAttribute("type", "terminate");
-		sendBody(true);
-		active = false;
-		stream.sid = null;
-		eventBus.fireEventFromSource(new ConnectionStatusChangedEvent(ConnectionStatus.disconnected, "logged out"), this);
-	}
-
-	@Override
-	public boolean isConnected() {
-		return stream != null;
-	}
-
-	@Override
-	public StreamSettings pause() {
-		if (stream != null && stream.sid != null) {
-			createBodyIfNeeded();
-			currentBody.setAttribute("pause", stream.getMaxPauseString());
-			sendBody(true);
-			return stream;
-		}
-		return null;
-	}
-
-	@Override
-	public void restartStream() {
-		createBodyIfNeeded();
-		currentBody.setAttribute("xmlns:xmpp", XmppNamespaces.BIND);
-		currentBody.setAttribute("xmpp:restart", "true");
-		currentBody.setAttribute("to", settings.getHostName());
-		currentBody.setAttribute("xml:lang", "en");
-	}
-
-	@Override
-	public boolean resume(final StreamSettings settings) {
-		active = true;
-		stream = settings;
-		continueConnection(null);
-		return active;
-	}
-
-	@Override
-	public void send(final HasXML packet) {
-		createBodyIfNeeded();
-		currentBody.addChild(packet);
-		sendBody(false);
-		eventBus.fireEventFromSource(new PacketSentEvent(packet.getXML()), this);
-	}
-	
-	@Override
-	public boolean hasErrors() {
-		return errors != 0;
-	}
-
-	/**
-	 * @return the stream settings
-	 */
-	@Override
-	public StreamSettings getStreamSettings() {
-		return stream;
-	}
-	
-	@Override
-	public void setSettings(final ConnectionSettings settings) {
-		logger.finer("Setting connection settings.");
-		this.settings = settings;
-	}
-
-	@Override
-	public String toString() {
-		return "Bosh in " + (active ? "active" : "inactive") + " stream=" + stream;
-	}
-
-	private void continueConnection(@Nullable final String ack) {
-		if (isConnected() && currentRequests.isEmpty()) {
-			if (currentBody != null) {
-				sendBody(false);
-			} else {
-				final long currentRID = stream.rid;
-				Platform.schedule(300, new ScheduledAction() {
-					@Override
-					public void run() {
-						if (currentBody == null && stream.rid == currentRID) {
-							createBodyIfNeeded();
-							// Whitespace keep-alive
-							// getCurrentBody().setText(" ");
-							sendBody(false);
-						}
-					}
-				});
-			}
-		}
-	}
-
-	private void createBodyIfNeeded() {
-		if (currentBody != null)
-			return;
-		
-		currentBody = XMLBuilder.create("body", XmppNamespaces.HTTPBIND).getXML();
-		currentBody.setAttribute("key", keySequencer.next());
-		if (!keySequencer.hasNext()) {
-			keySequencer.reset();
-			currentBody.setAttribute("newkey", keySequencer.next());
-		}
-		currentBody.setAttribute("rid", stream.getNextRid());
-		if (stream != null) {
-			currentBody.setAttribute("sid", stream.sid);
-		}
-	}
-
-	private void createInitialBody() {
-		keySequencer.reset();
-		currentBody = XMLBuilder.create("body", XmppNamespaces.HTTPBIND).getXML();
-		currentBody.setAttribute("content", "text/xml; charset=utf-8");
-		currentBody.setAttribute("xml:lang", "en");
-		currentBody.setAttribute("xmlns:xmpp", XmppNamespaces.BIND);
-		currentBody.setAttribute("xmpp:version", "1.0");
-		currentBody.setAttribute("ver", "1.6");
-		currentBody.setAttribute("ack", "1");
-		currentBody.setAttribute("secure", String.valueOf(settings.isSecure()));
-		currentBody.setAttribute("newkey", keySequencer.next());
-		currentBody.setAttribute("rid", stream.getNextRid());
-		currentBody.setAttribute("to", settings.getHostName());
-		if (settings.getRouteHost() != null) {
-			currentBody.setAttribute("route", "xmpp:" + settings.getRouteHost() + ":" + settings.getRoutePort());
-		}
-		currentBody.setAttribute("hold", String.valueOf(settings.getHold()));
-		currentBody.setAttribute("wait", String.valueOf(settings.getWait()));
-	}
-
-	private void handleResponse(final XMLPacket response) {
-		final String type = response.getAttribute("type");
-		// Openfire bug: terminal instead of terminate
-		if ("terminate".equals(type) || "terminal".equals(type)) {
-			stream.sid = null;
-			active = false;
-			eventBus.fireEventFromSource(new ConnectionStatusChangedEvent(ConnectionStatus.disconnected, "disconnected by server"), this);
-		} else {
-			if (stream.sid == null) {
-				initStream(response);
-				eventBus.fireEventFromSource(new ConnectionStatusChangedEvent(ConnectionStatus.connected), this);
-			}
-			shouldCollectResponses = true;
-			for (final XMLPacket packet : response.getChildren()) {
-				eventBus.fireEventFromSource(new PacketReceivedEvent(packet), this);
-			}
-			shouldCollectResponses = false;
-			continueConnection(response.getAttribute("ack"));
-		}
-	}
-
-	private void initStream(final XMLPacket response) {
-		stream.sid = response.getAttribute("sid");
-		stream.wait = response.getAttribute("wait");
-		stream.setInactivity(response.getAttribute("inactivity"));
-		stream.setMaxPause(response.getAttribute("maxpause"));
-	}
-
-	/**
-	 * Sends a new request (and count the activeConnections).
-	 * 
-	 * @param request the request contents
-	 */
-	private void send(final XMLPacket request) {
-		currentRequests.add(request);
-		Platform.sendXML(settings.getHttpBase(), request, new AsyncResult<XMLPacket>() {
-			@Override
-			public void onSuccess(final XMLPacket result) {
-				if (!active)
-					return;
-				
-				errors = 0;
-				currentRequests.remove(request);
-				handleResponse(result);
-			}
-
-			@Override
-			public void onError(final Throwable error) {
-				if (!active)
-					return;
-				
-				final int e = ++errors;
-				logger.severe("Connection error #" + e + ": " + error.getMessage());
-				if (e > RetryControl.maxRetries) {
-					eventBus.fireEventFromSource(new ConnectionStatusChangedEvent(ConnectionStatus.error, "Connection error: " + error.toString()), this);
-					disconnect();
-				} else {
-					final int scedTime = RetryControl.retry(e);
-					eventBus.fireEventFromSource(new ConnectionStatusChangedEvent(ConnectionStatus.waitingForRetry, "The connection will try to re-connect in " + scedTime + " milliseconds.", scedTime), this);
-					Platform.schedule(scedTime, new ScheduledAction() {
-						@Override
-						public void run() {
-							logger.info("Error retry: " + e);
-							send(request);
-						}
-					});
-				}
-			}
-		});
-		stream.lastRequestTime = System.currentTimeMillis();
-	}
-
-	private void sendBody(final boolean force) {
-		// TODO: better semantics
-		if (force || !shouldCollectResponses && active && currentRequests.size() < ConnectionSettings.MAX_REQUESTS && !hasErrors()) {
-			send(currentBody);
-			currentBody = null;
-		} else {
-			logger.finer("Send body simply queued");
-		}
-	}
-
-	private static class RetryControl {
-		public static int maxRetries = 8;
-
-		public static final int retry(final int nbErrors) {
-			return 500 + (nbErrors - 1) * nbErrors * 550;
-		}
-	}
-	
-}
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.core.conn;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+import com.calclab.emite.base.util.ActionScheduler;
+import com.calclab.emite.base.util.HttpEngine;
+import com.calclab.emite.base.util.KeySequencer;
+import com.calclab.emite.base.util.ScheduledAction;
+import com.calclab.emite.base.xml.HasXML;
+import com.calclab.emite.base.xml.XMLBuilder;
+import com.calclab.emite.base.xml.XMLPacket;
+import com.calclab.emite.base.xml.XMLSerializer;
+import com.calclab.emite.core.AsyncResult;
+import com.calclab.emite.core.XmppNamespaces;
+import com.calclab.emite.core.events.ConnectionStatusChangedEvent;
+import com.calclab.emite.core.events.PacketReceivedEvent;
+import com.calclab.emite.core.events.PacketSentEvent;
+import com.google.common.base.Objects;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import com.google.web.bindery.event.shared.EventBus;
+import com.google.web.bindery.event.shared.HandlerRegistration;
+
+/**
+ * A BOSH XMPP connection implementation.
+ * 
+ * If the connection manager acknowledges requests (XEP-0124 section 9), the
+ * requests are kept by rid until their response arrives. A failed request
+ * the connection manager already acknowledged is not sent again, and a
+ * request is only retransmitted when the connection manager reports its
+ * response as lost.
+ * 
+ * Packets wait in the outbox of the session while all the requests allowed
+ * by the connection manager are open, and every new request takes the next
+ * ones.
+ * 
+ * When a response carries several availability presences from the same
+ * entity, only the last one is dispatched, as it supersedes the others.
+ * 
+ * @see XmppConnection
+ */
+@Singleton
+public final class XmppConnectionBosh implements XmppConnection {
+
+	private static final Logger logger = Logger.getLogger(XmppConnectionBosh.class.getName());
+
+	// Extra time (in seconds) to wait for a response after the 'wait' of the stream
+	private static final int RESPONSE_MARGIN = 10;
+
+	private final EventBus eventBus;
+	private final HttpEngine httpEngine;
+	private final ActionScheduler actionScheduler;
+	private final KeySequencer keySequencer;
+	private final List<XMLPacket> currentRequests;
+	private final SortedMap<Long, XMLPacket> unanswered;
+	// Requests the connection manager reported lost, sent before any new body
+	private final LinkedList<XMLPacket> lost;
+	// Requests reported lost while still open, lost if they fail
+	private final Set<Long> reported;
+	// Packets sent directly, ahead of the outbox
+	private final LinkedList<XMLPacket> queued;
+	
+	@Nullable private Outbox outbox;
+	@Nullable private ConnectionSettings settings;
+	@Nullable private StreamSettings stream;
+	@Nullable private XMLPacket currentBody;
+
+	private int errors;
+	private boolean active;
+	private boolean shouldCollectResponses;
+	private boolean acknowledgements;
+	private long serverAck;
+
+	private int batchStanzas;
+	private int batchBytes;
+	private int batchDelay;
+	private int queuedBytes;
+	private int flushGeneration;
+	private boolean flushScheduled;
+	private long batches;
+	private long batchedStanzas;
+	private int largestBatch;
+	private long coalescedPresences;
+
+	@Inject
+	protected XmppConnectionBosh(@Named("emite") final EventBus eventBus, final HttpEngine httpEngine, final ActionScheduler actionScheduler) {
+		this.eventBus = checkNotNull(eventBus);
+		this.httpEngine = checkNotNull(httpEngine);
+		this.actionScheduler = checkNotNull(actionScheduler);
+		keySequencer = new KeySequencer();
+		batchStanzas = 1;
+		currentRequests = Lists.newArrayList();
+		unanswered = Maps.newTreeMap();
+		lost = Lists.newLinkedList();
+		reported = Sets.newHashSet();
+		queued = Lists.newLinkedList();
+	}
+
+	@Override
+	public HandlerRegistration addConnectionStatusChangedHandler(final ConnectionStatusChangedEvent.Handler handler) {
+		return eventBus.addHandlerToSource(ConnectionStatusChangedEvent.TYPE, this, handler);
+	}
+
+	@Override
+	public HandlerRegistration addPacketReceivedHandler(final PacketReceivedEvent.Handler handler) {
+		return eventBus.addHandlerToSource(PacketReceivedEvent.TYPE, this, handler);
+	}
+
+	@Override
+	public HandlerRegistration addPacketSentHandler(final PacketSentEvent.Handler handler) {
+		return eventBus.addHandlerToSource(PacketSentEvent.TYPE, this, handler);
+	}
+
+	@Override
+	public void connect() {
+		checkState(settings != null, "You must set connection settings before connecting!");
+
+		if (!active) {
+			active = true;
+			errors = 0;
+			currentRequests.clear();
+			unanswered.clear();
+			lost.clear();
+			reported.clear();
+			acknowledgements = false;
+			serverAck = 0;
+			stream = new StreamSettings();
+			createInitialBody();
+			sendBody(false);
+		}
+	}
+
+	@Override
+	public void disconnect() {
+		logger.finer("BoshConnection - Disconnected called - Clearing current body and send a priority 'terminate' stanza.");
+		// Clearing all queued stanzas, the outbox is left to the session
+		currentBody = null;
+		queued.clear();
+		queuedBytes = 0;
+		// Create a new terminate stanza and force the send
+		createBodyIfNeeded();
+		currentBody.setAttribute("type", "terminate");
+		send(currentBody);
+		currentBody = null;
+		active = false;
+		stream.sid = null;
+		eventBus.fireEventFromSource(new ConnectionStatusChangedEvent(ConnectionStatus.disconnected, "logged out"), this);
+	}
+
+	@Override
+	public boolean isConnected() {
+		return stream != null;
+	}
+
+	@Override
+	public StreamSettings pause() {
+		if (stream != null && stream.sid != null) {
+			createBodyIfNeeded();
+			currentBody.setAttribute("pause", stream.getMaxPauseString());
+			sendBody(true);
+			return stream;
+		}
+		return null;
+	}
+
+	@Override
+	public void restartStream() {
+		createBodyIfNeeded();
+		currentBody.setAttribute("xmlns:xmpp", XmppNamespaces.BIND);
+		currentBody.setAttribute("xmpp:restart", "true");
+		currentBody.setAttribute("to", settings.getHostName());
+		currentBody.setAttribute("xml:lang", "en");
+	}
+
+	@Override
+	public boolean resume(final StreamSettings settings) {
+		active = true;
+		stream = settings;
+		// Nothing is known about the requests sent before pausing
+		currentRequests.clear();
+		unanswered.clear();
+		lost.clear();
+		reported.clear();
+		acknowledgements = false;
+		continueConnection();
+		return active;
+	}
+
+	@Override
+	public void send(final HasXML packet) {
+		final XMLPacket xml = packet.getXML();
+		queued.add(xml);
+		queuedBytes += batchBytes > 0 ? XMLSerializer.utf8Length(xml) : 0;
+		flush();
+	}
+
+	@Override
+	public void flush() {
+		if (!hasQueuedBody())
+			return;
+
+		final int stanzas = queued.size() + (outbox != null ? outbox.size() : 0);
+		final int bytes = queuedBytes + (outbox != null ? outbox.bytes() : 0);
+		if (batchDelay == 0 || stanzas >= batchStanzas || batchBytes > 0 && bytes >= batchBytes) {
+			sendBody(false);
+		} else if (!flushScheduled) {
+			scheduleFlush();
+		}
+	}
+
+	@Override
+	public void setOutbox(final Outbox outbox) {
+		this.outbox = checkNotNull(outbox);
+	}
+
+	/**
+	 * Coalesce the stanzas sent in a short time into a single request.
+	 * 
+	 * Queued stanzas are sent when there are enough stanzas or bytes, or
+	 * when the first one has waited long enough, whichever comes first.
+	 * They are also sent with the next request, if one is sent earlier.
+	 * Batching is disabled by default.
+	 * 
+	 * @param maxStanzas the number of stanzas that fills a batch
+	 * @param maxBytes the UTF-8 size of the stanzas that fills a batch, or 0
+	 *            for no size limit
+	 * @param maxDelay the longest time a stanza is queued (in milliseconds),
+	 *            or 0 to disable batching
+	 */
+	public void setBatching(final int maxStanzas, final int maxBytes, final int maxDelay) {
+		checkArgument(maxStanzas > 0, "The batch size must be positive");
+		checkArgument(maxBytes >= 0 && maxDelay >= 0, "The batch limits can not be negative");
+		batchStanzas = maxStanzas;
+		batchBytes = maxBytes;
+		batchDelay = maxDelay;
+	}
+
+	/**
+	 * Returns the counters of the stanza batches sent by this connection.
+	 * 
+	 * @return a snapshot of the batch counters
+	 */
+	public BatchStats getBatchStats() {
+		return new BatchStats(batches, batchedStanzas, largestBatch);
+	}
+	
+	/**
+	 * Returns the number of received presences not dispatched because a
+	 * later presence from the same entity arrived in the same response.
+	 * 
+	 * @return the number of coalesced presences
+	 */
+	public long getCoalescedPresences() {
+		return coalescedPresences;
+	}
+
+	@Override
+	public boolean hasErrors() {
+		return errors != 0;
+	}
+
+	/**
+	 * @return the stream settings
+	 */
+	@Override
+	public StreamSettings getStreamSettings() {
+		return stream;
+	}
+	
+	@Override
+	public void setSettings(final ConnectionSettings settings) {
+		logger.finer("Setting connection settings.");
+		this.settings = settings;
+	}
+
+	@Override
+	public String toString() {
+		return "Bosh in " + (active ? "active" : "inactive") + " stream=" + stream;
+	}
+
+	private void continueConnection() {
+		if (!isConnected())
+			return;
+		
+		// Lost requests go first, then the packets which waited while the
+		// window was full, which may need several requests
+		while (!lost.isEmpty() && canSendBody()) {
+			send(lost.removeFirst());
+		}
+		while (lost.isEmpty() && hasQueuedBody() && canSendBody()) {
+			sendBody(false);
+		}
+
+		if (stream.getHold() > 0) {
+			// Keep 'hold' requests waiting in the connection manager, so it can
+			// push stanzas at once, and a free slot to send ours
+			while (!hasQueuedBody() && currentRequests.size() < stream.getHold()) {
+				createBodyIfNeeded();
+				sendBody(false);
+			}
+		} else if (!hasQueuedBody() && currentRequests.isEmpty()) {
+			// Polling session: the connection manager answers every request at once
+			final long currentRID = stream.rid;
+			actionScheduler.schedule(Math.max(300, stream.getPolling() * 1000), new ScheduledAction() {
+				@Override
+				public void run() {
+					if (!hasQueuedBody() && stream.rid == currentRID) {
+						createBodyIfNeeded();
+						sendBody(false);
+					}
+				}
+			});
+		}
+	}
+
+	private void createBodyIfNeeded() {
+		if (currentBody != null)
+			return;
+		
+		currentBody = XMLBuilder.create("body", XmppNamespaces.HTTPBIND).getXML();
+		currentBody.setAttribute("key", keySequencer.next());
+		if (!keySequencer.hasNext()) {
+			keySequencer.reset();
+			currentBody.setAttribute("newkey", keySequencer.next());
+		}
+		currentBody.setAttribute("rid", stream.getNextRid());
+		if (stream != null) {
+			currentBody.setAttribute("sid", stream.sid);
+		}
+	}
+
+	private void createInitialBody() {
+		keySequencer.reset();
+		currentBody = XMLBuilder.create("body", XmppNamespaces.HTTPBIND).getXML();
+		currentBody.setAttribute("content", "text/xml; charset=utf-8");
+		currentBody.setAttribute("xml:lang", "en");
+		currentBody.setAttribute("xmlns:xmpp", XmppNamespaces.BIND);
+		currentBody.setAttribute("xmpp:version", "1.0");
+		currentBody.setAttribute("ver", "1.6");
+		currentBody.setAttribute("ack", "1");
+		currentBody.setAttribute("secure", String.valueOf(settings.isSecure()));
+		currentBody.setAttribute("newkey", keySequencer.next());
+		currentBody.setAttribute("rid", stream.getNextRid());
+		currentBody.setAttribute("to", settings.getHostName());
+		if (settings.getRouteHost() != null) {
+			currentBody.setAttribute("route", "xmpp:" + settings.getRouteHost() + ":" + settings.getRoutePort());
+		}
+		currentBody.setAttribute("hold", String.valueOf(settings.getHold()));
+		currentBody.setAttribute("wait", String.valueOf(settings.getWait()));
+	}
+
+	private void handleResponse(final long rid, final XMLPacket response) {
+		final String type = response.getAttribute("type");
+		// Openfire bug: terminal instead of terminate
+		if ("terminate".equals(type) || "terminal".equals(type)) {
+			stream.sid = null;
+			active = false;
+			eventBus.fireEventFromSource(new ConnectionStatusChangedEvent(ConnectionStatus.disconnected, "disconnected by server"), this);
+		} else {
+			if (stream.sid == null) {
+				initStream(response);
+				// The connection manager acknowledges the session creation request if it supports acks
+				acknowledgements = String.valueOf(rid).equals(response.getAttribute("ack"));
+				eventBus.fireEventFromSource(new ConnectionStatusChangedEvent(ConnectionStatus.connected), this);
+			} else if (acknowledgements) {
+				handleAcknowledgement(rid, response);
+			}
+			shouldCollectResponses = true;
+			final List<XMLPacket> packets = response.getChildren();
+			final Map<String, XMLPacket> presences = latestPresences(packets);
+			for (final XMLPacket packet : packets) {
+				if (presences != null && "presence".equals(packet.getTagName()) && !isLatestPresence(packet, presences)) {
+					coalescedPresences++;
+					continue;
+				}
+				eventBus.fireEventFromSource(new PacketReceivedEvent(packet), this);
+			}
+			shouldCollectResponses = false;
+			continueConnection();
+		}
+	}
+
+	/**
+	 * Finds the last availability presence of every sender in a response.
+	 * 
+	 * @param packets the stanzas of the response
+	 * @return the last presences by sender, or {@code null} if no presence
+	 *         is superseded
+	 */
+	@Nullable
+	private static Map<String, XMLPacket> latestPresences(final List<XMLPacket> packets) {
+		Map<String, XMLPacket> presences = null;
+		boolean superseded = false;
+		for (final XMLPacket packet : packets) {
+			if ("presence".equals(packet.getTagName()) && isAvailability(packet)) {
+				if (presences == null) {
+					presences = Maps.newHashMap();
+				}
+				superseded |= presences.put(String.valueOf(packet.getAttribute("from")), packet) != null;
+			}
+		}
+		return superseded ? presences : null;
+	}
+
+	private static boolean isLatestPresence(final XMLPacket presence, final Map<String, XMLPacket> presences) {
+		return !isAvailability(presence) || presences.get(String.valueOf(presence.getAttribute("from"))) == presence;
+	}
+
+	private static boolean isAvailability(final XMLPacket presence) {
+		final String type = presence.getAttribute("type");
+		return type == null || "unavailable".equals(type);
+	}
+
+	private void handleAcknowledgement(final long rid, final XMLPacket response) {
+		// Without 'ack', the response acknowledges its own request
+		final long ack = parseLong(response.getAttribute("ack"), rid);
+		serverAck = Math.max(serverAck, ack);
+
+		final String report = response.getAttribute("report");
+		if (report != null) {
+			// Sent again by continueConnection, within the request window
+			final long reportedRid = parseLong(report, 0);
+			final XMLPacket request = unanswered.get(reportedRid);
+			if (request != null && currentRequests.contains(request)) {
+				// Still open here: queued to be sent again only if it fails
+				reported.add(reportedRid);
+			} else if (request != null && !lost.contains(request)) {
+				logger.info("Response to request " + report + " lost " + response.getAttribute("time") + " ms ago, queued to be sent again");
+				lost.add(request);
+			}
+		}
+	}
+
+	private void initStream(final XMLPacket response) {
+		stream.sid = response.getAttribute("sid");
+		stream.wait = response.getAttribute("wait");
+		stream.setInactivity(response.getAttribute("inactivity"));
+		stream.setMaxPause(response.getAttribute("maxpause"));
+		// The connection manager may lower the hold we asked for, never raise it
+		stream.setHold(Objects.firstNonNull(response.getAttribute("hold"), String.valueOf(settings.getHold())));
+		stream.setRequests(response.getAttribute("requests"));
+		stream.setPolling(response.getAttribute("polling"));
+	}
+
+	/**
+	 * Sends a new request (and count the activeConnections).
+	 * 
+	 * @param request the request contents
+	 */
+	private void send(final XMLPacket request) {
+		final long rid = parseLong(request.getAttribute("rid"), 0);
+		// Retransmissions are sent unchanged
+		if (!unanswered.containsKey(rid)) {
+			// Tell the connection manager the responses we are still waiting for
+			if (acknowledgements && !unanswered.isEmpty()) {
+				request.setAttribute("ack", String.valueOf(unanswered.firstKey() - 1));
+			}
+			unanswered.put(rid, request);
+		}
+		if (!currentRequests.contains(request)) {
+			currentRequests.add(request);
+		}
+		// The connection manager may hold the request for 'wait' seconds
+		final long wait = parseLong(stream.wait, settings.getWait());
+		httpEngine.sendXML(settings.getHttpBase(), request, (int) (wait + RESPONSE_MARGIN) * 1000, new AsyncResult<XMLPacket>() {
+			@Override
+			public void onSuccess(final XMLPacket result) {
+				if (!active)
+					return;
+				
+				if (!"body".equals(result.getTagName())) {
+					onError(new IllegalStateException("Bad response: " + result));
+					return;
+				}
+				
+				errors = 0;
+				currentRequests.remove(request);
+				unanswered.remove(rid);
+				reported.remove(rid);
+				handleResponse(rid, result);
+			}
+
+			@Override
+			public void onError(final Throwable error) {
+				if (!active)
+					return;
+				
+				if (acknowledgements && rid <= serverAck) {
+					// The connection manager has it, and will report the response if it was lost
+					currentRequests.remove(request);
+					logger.fine("Acknowledged request " + rid + " failed: " + error.getMessage());
+					if (reported.remove(rid) && !lost.contains(request)) {
+						logger.info("Response to request " + rid + " already reported lost, queued to be sent again");
+						lost.add(request);
+					}
+					continueConnection();
+					return;
+				}
+
+				final int e = ++errors;
+				logger.severe("Connection error #" + e + ": " + error.getMessage());
+				if (e > RetryControl.maxRetries) {
+					eventBus.fireEventFromSource(new ConnectionStatusChangedEvent(ConnectionStatus.error, "Connection error: " + error.toString()), this);
+					disconnect();
+				} else {
+					final int scedTime = RetryControl.retry(e);
+					eventBus.fireEventFromSource(new ConnectionStatusChangedEvent(ConnectionStatus.waitingForRetry, "The connection will try to re-connect in " + scedTime + " milliseconds.", scedTime), this);
+					actionScheduler.schedule(scedTime, new ScheduledAction() {
+						@Override
+						public void run() {
+							logger.info("Error retry: " + e);
+							send(request);
+						}
+					});
+				}
+			}
+		});
+		stream.lastRequestTime = System.currentTimeMillis();
+	}
+
+	private boolean hasQueuedBody() {
+		return currentBody != null || !queued.isEmpty() || outbox != null && outbox.size() > 0;
+	}
+
+	private boolean canSendBody() {
+		// Never open more requests than the connection manager allows
+		return !shouldCollectResponses && active && currentRequests.size() < stream.getRequests() && !hasErrors();
+	}
+
+	private void sendBody(final boolean force) {
+		if (force || canSendBody()) {
+			createBodyIfNeeded();
+			final List<XMLPacket> packets = Lists.newArrayList(queued);
+			queued.clear();
+			queuedBytes = 0;
+			if (outbox != null) {
+				outbox.drainTo(packets);
+			}
+			for (final XMLPacket packet : packets) {
+				currentBody.addChild(packet);
+			}
+			send(currentBody);
+			currentBody = null;
+			final int stanzas = packets.size();
+			if (stanzas > 0) {
+				batches++;
+				batchedStanzas += stanzas;
+				largestBatch = Math.max(largestBatch, stanzas);
+			}
+			flushGeneration++;
+			flushScheduled = false;
+			for (final XMLPacket packet : packets) {
+				eventBus.fireEventFromSource(new PacketSentEvent(packet), this);
+			}
+		} else {
+			logger.finer("Send body simply queued");
+		}
+	}
+
+	private void scheduleFlush() {
+		flushScheduled = true;
+		final int generation = flushGeneration;
+		actionScheduler.schedule(batchDelay, new ScheduledAction() {
+			@Override
+			public void run() {
+				// Ignore it if the batch was already sent
+				if (flushGeneration == generation) {
+					flushScheduled = false;
+					if (hasQueuedBody()) {
+						sendBody(false);
+					}
+				}
+			}
+		});
+	}
+
+	private static long parseLong(@Nullable final String value, final long defaultValue) {
+		if (value == null)
+			return defaultValue;
+
+		try {
+			return Long.parseLong(value);
+		} catch (final NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	private static class RetryControl {
+		public static int maxRetries = 8;
+
+		public static final int retry(final int nbErrors) {
+			return 500 + (nbErrors - 1) * nbErrors * 550;
+		}
+	}
+	
+}
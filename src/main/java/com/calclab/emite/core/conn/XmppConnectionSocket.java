@@ -0,0 +1,623 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.core.conn;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+import com.calclab.emite.base.util.SerialExecutor;
+import com.calclab.emite.base.xml.HasXML;
+import com.calclab.emite.base.xml.XMLBuilder;
+import com.calclab.emite.base.xml.XMLPacket;
+import com.calclab.emite.base.xml.XMLParseException;
+import com.calclab.emite.base.xml.XMLSerializerNIO;
+import com.calclab.emite.base.xml.XMLStreamParser;
+import com.calclab.emite.core.XmppNamespaces;
+import com.calclab.emite.core.events.ConnectionStatusChangedEvent;
+import com.calclab.emite.core.events.PacketReceivedEvent;
+import com.calclab.emite.core.events.PacketSentEvent;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import com.google.web.bindery.event.shared.EventBus;
+import com.google.web.bindery.event.shared.HandlerRegistration;
+
+/**
+ * A XMPP connection over a plain TCP stream (RFC 6120), using non-blocking
+ * NIO sockets.
+ * 
+ * This connection is only available when running on a JVM. It connects to
+ * the route host and port of the connection settings. A single network thread
+ * moves the bytes of all the connections in the JVM: the stream is parsed and
+ * every event is fired on the session {@link SerialExecutor}. Host names are
+ * resolved on a separate thread, so a slow lookup never stalls the network
+ * thread.
+ * 
+ * Packets are taken from the outbox of the session once the previous ones
+ * are written, so they wait in the session while the socket is busy.
+ * 
+ * TLS is not negotiated, so the server must allow plain connections.
+ * 
+ * @see com.calclab.emite.core.EmiteSocketModule
+ */
+@Singleton
+public final class XmppConnectionSocket implements XmppConnection, XMLStreamParser.Handler {
+
+	private static final Logger logger = Logger.getLogger(XmppConnectionSocket.class.getName());
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int BUFFER_SIZE = 16 * 1024;
+	private static final String STREAM_END = "</stream:stream>";
+
+	private static final IOLoop ioLoop = new IOLoop();
+	private static final ExecutorService resolver = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("emite-resolver-%d")
+			.setDaemon(true).build());
+
+	private final EventBus eventBus;
+	private final SerialExecutor executor;
+	private final XMLStreamParser parser;
+
+	@Nullable private Outbox outbox;
+	@Nullable private ConnectionSettings settings;
+	@Nullable private volatile Link link;
+
+	private volatile int errors;
+
+	@Inject
+	protected XmppConnectionSocket(@Named("emite") final EventBus eventBus, final SerialExecutor executor) {
+		this.eventBus = checkNotNull(eventBus);
+		this.executor = checkNotNull(executor);
+		parser = new XMLStreamParser(XMLBuilder.getFactory(), this);
+	}
+
+	@Override
+	public HandlerRegistration addConnectionStatusChangedHandler(final ConnectionStatusChangedEvent.Handler handler) {
+		return eventBus.addHandlerToSource(ConnectionStatusChangedEvent.TYPE, this, handler);
+	}
+
+	@Override
+	public HandlerRegistration addPacketReceivedHandler(final PacketReceivedEvent.Handler handler) {
+		return eventBus.addHandlerToSource(PacketReceivedEvent.TYPE, this, handler);
+	}
+
+	@Override
+	public HandlerRegistration addPacketSentHandler(final PacketSentEvent.Handler handler) {
+		return eventBus.addHandlerToSource(PacketSentEvent.TYPE, this, handler);
+	}
+
+	@Override
+	public void connect() {
+		checkState(settings != null, "You must set connection settings before connecting!");
+
+		if (link == null) {
+			errors = 0;
+			parser.reset();
+			final Link newLink = new Link(settings.getRouteHost(), settings.getRoutePort());
+			link = newLink;
+			openStream();
+			newLink.open();
+		}
+	}
+
+	@Override
+	public void disconnect() {
+		final Link current = link;
+		if (current != null) {
+			logger.finer("SocketConnection - Disconnect called - Closing the stream.");
+			enqueue(STREAM_END);
+			current.close();
+			link = null;
+			eventBus.fireEventFromSource(new ConnectionStatusChangedEvent(ConnectionStatus.disconnected, "logged out"), this);
+		}
+	}
+
+	@Override
+	public boolean isConnected() {
+		return link != null;
+	}
+
+	@Override
+	public boolean hasErrors() {
+		return errors != 0;
+	}
+
+	/**
+	 * TCP streams have no BOSH stream settings.
+	 * 
+	 * @return always {@code null}
+	 */
+	@Override
+	public StreamSettings getStreamSettings() {
+		return null;
+	}
+
+	/**
+	 * TCP streams can not be paused.
+	 * 
+	 * @return always {@code null}
+	 */
+	@Override
+	public StreamSettings pause() {
+		return null;
+	}
+
+	/**
+	 * TCP streams can not be paused.
+	 * 
+	 * @return always {@code false}
+	 */
+	@Override
+	public boolean resume(final StreamSettings settings) {
+		return false;
+	}
+
+	@Override
+	public void restartStream() {
+		parser.reset();
+		openStream();
+	}
+
+	@Override
+	public void send(final HasXML packet) {
+		enqueue(XMLSerializerNIO.toByteBuffer(packet.getXML()));
+		eventBus.fireEventFromSource(new PacketSentEvent(packet.getXML()), this);
+	}
+
+	@Override
+	public void flush() {
+		final Link current = link;
+		if (current != null && outbox != null && outbox.size() > 0 && current.isWritten()) {
+			final List<XMLPacket> packets = Lists.newArrayList();
+			outbox.drainTo(packets);
+			for (final XMLPacket packet : packets) {
+				send(packet);
+			}
+		}
+	}
+
+	@Override
+	public void setOutbox(final Outbox outbox) {
+		this.outbox = checkNotNull(outbox);
+	}
+
+	@Override
+	public void setSettings(final ConnectionSettings settings) {
+		logger.finer("Setting connection settings.");
+		this.settings = settings;
+	}
+
+	@Override
+	public void onStreamStart(final XMLPacket header) {
+		// The stream features arrive as a stanza
+	}
+
+	@Override
+	public void onStanza(final XMLPacket stanza) {
+		eventBus.fireEventFromSource(new PacketReceivedEvent(stanza), this);
+	}
+
+	@Override
+	public void onStreamEnd() {
+		final Link current = link;
+		if (current != null) {
+			current.close();
+			link = null;
+			eventBus.fireEventFromSource(new ConnectionStatusChangedEvent(ConnectionStatus.disconnected, "disconnected by server"), this);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "Socket in " + (link != null ? "active" : "inactive") + " to " + (settings != null ? settings.getRouteHost() : null);
+	}
+
+	private void openStream() {
+		enqueue("<?xml version='1.0'?><stream:stream to='" + settings.getHostName() + "' version='1.0' xml:lang='en' xmlns='" + XmppNamespaces.CLIENT
+				+ "' xmlns:stream='" + XmppNamespaces.STREAMS + "'>");
+	}
+
+	private void enqueue(final String data) {
+		enqueue(UTF8.encode(data));
+	}
+
+	private void enqueue(final ByteBuffer data) {
+		final Link current = link;
+		if (current != null) {
+			current.outgoing.add(data);
+			ioLoop.ready(current);
+		}
+	}
+
+	private void onConnected(final Link source) {
+		if (link != source)
+			return;
+
+		eventBus.fireEventFromSource(new ConnectionStatusChangedEvent(ConnectionStatus.connected), this);
+	}
+
+	private void onWritten(final Link source) {
+		if (link != source)
+			return;
+
+		flush();
+	}
+
+	private void onInput(final Link source, final String input) {
+		if (link != source)
+			return;
+
+		try {
+			parser.feed(input);
+		} catch (final XMLParseException e) {
+			source.close();
+			onError(source, new IOException("Invalid XML stream: " + e.getMessage()));
+		}
+	}
+
+	private void onError(final Link source, final IOException error) {
+		if (link != source)
+			return;
+
+		link = null;
+		fireError(error);
+	}
+
+	private void fireError(final IOException error) {
+		errors++;
+		logger.severe("Connection error: " + error.getMessage());
+		eventBus.fireEventFromSource(new ConnectionStatusChangedEvent(ConnectionStatus.error, "Connection error: " + error.toString()), this);
+		eventBus.fireEventFromSource(new ConnectionStatusChangedEvent(ConnectionStatus.disconnected, "connection lost"), this);
+	}
+
+	/**
+	 * The socket of a connection, driven by the shared {@link IOLoop}.
+	 * 
+	 * Everything it receives is handed over to the session executor.
+	 */
+	private final class Link {
+
+		private final String host;
+		private final int port;
+		private final Queue<ByteBuffer> outgoing;
+		private final ByteBuffer input;
+		private final CharBuffer chars;
+		private final CharsetDecoder decoder;
+
+		@Nullable private volatile InetSocketAddress address;
+		private volatile boolean closing;
+		// Set while the session waits for the outgoing bytes to be written
+		private volatile boolean waiting;
+
+		// Only used by the network thread
+		@Nullable private SocketChannel channel;
+		@Nullable private SelectionKey key;
+
+		private Link(final String host, final int port) {
+			this.host = host;
+			this.port = port;
+			outgoing = new ConcurrentLinkedQueue<ByteBuffer>();
+			input = ByteBuffer.allocate(BUFFER_SIZE);
+			chars = CharBuffer.allocate(BUFFER_SIZE);
+			decoder = UTF8.newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+		}
+
+		/**
+		 * Resolves the address on the resolver thread, then registers the link
+		 * with the network thread.
+		 */
+		private void open() {
+			resolver.execute(new Runnable() {
+				@Override
+				public void run() {
+					final InetSocketAddress resolved = new InetSocketAddress(host, port);
+					try {
+						if (resolved.isUnresolved())
+							throw new UnknownHostException(host);
+
+						address = resolved;
+						ioLoop.register(Link.this);
+					} catch (final IOException e) {
+						report(e);
+					}
+				}
+			});
+		}
+
+		private void close() {
+			closing = true;
+			ioLoop.ready(this);
+		}
+
+		/**
+		 * Checks if everything was written, or asks the network thread to tell
+		 * the session when it is.
+		 */
+		private boolean isWritten() {
+			waiting = true;
+			if (!outgoing.isEmpty())
+				return false;
+
+			waiting = false;
+			return true;
+		}
+
+		private void connect(final Selector selector) throws IOException {
+			channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			channel.connect(address);
+			key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+		}
+
+		private void finishConnect() throws IOException {
+			if (channel.finishConnect()) {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						onConnected(Link.this);
+					}
+				});
+			}
+		}
+
+		/**
+		 * Closes the socket once a closing link has written everything, or
+		 * waits for writes while there is something to write.
+		 */
+		private void update() {
+			if (channel == null)
+				return;
+
+			if (closing && outgoing.isEmpty()) {
+				shut();
+			} else if (channel.isConnected()) {
+				key.interestOps(outgoing.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			}
+		}
+
+		private void read() throws IOException {
+			if (channel.read(input) < 0)
+				throw new IOException("Stream closed by server");
+
+			input.flip();
+			decoder.decode(input, chars, false);
+			input.compact();
+
+			chars.flip();
+			if (chars.hasRemaining()) {
+				final String data = chars.toString();
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						onInput(Link.this, data);
+					}
+				});
+			}
+			chars.clear();
+		}
+
+		private void write() throws IOException {
+			ByteBuffer buffer;
+			while ((buffer = outgoing.peek()) != null) {
+				channel.write(buffer);
+				if (buffer.hasRemaining())
+					return;
+				outgoing.poll();
+			}
+			if (waiting) {
+				waiting = false;
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						onWritten(Link.this);
+					}
+				});
+			}
+		}
+
+		private void fail(final IOException error) {
+			shut();
+			report(error);
+		}
+
+		private void report(final IOException error) {
+			if (!closing) {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						onError(Link.this, error);
+					}
+				});
+			}
+		}
+
+		private void shut() {
+			if (channel == null)
+				return;
+
+			try {
+				channel.close();
+			} catch (final IOException e) {
+				logger.log(Level.FINE, "Error closing socket", e);
+			}
+			channel = null;
+			key = null;
+		}
+
+	}
+
+	/**
+	 * The network thread shared by all the socket connections.
+	 * 
+	 * It only moves bytes. The links are registered once their address is
+	 * resolved, and the session executors queue links with something new to
+	 * write or to close.
+	 */
+	private static final class IOLoop implements Runnable {
+
+		private final Queue<Link> registered;
+		private final Queue<Link> ready;
+
+		@Nullable private volatile Selector selector;
+
+		private IOLoop() {
+			registered = new ConcurrentLinkedQueue<Link>();
+			ready = new ConcurrentLinkedQueue<Link>();
+		}
+
+		private void register(final Link link) throws IOException {
+			registered.add(link);
+			start().wakeup();
+		}
+
+		private void ready(final Link link) {
+			ready.add(link);
+
+			final Selector current = selector;
+			if (current != null) {
+				current.wakeup();
+			}
+		}
+
+		private synchronized Selector start() throws IOException {
+			if (selector == null) {
+				selector = Selector.open();
+				final Thread thread = new Thread(this, "emite-socket");
+				thread.setDaemon(true);
+				thread.start();
+			}
+			return selector;
+		}
+
+		@Override
+		public void run() {
+			final Selector current = selector;
+			try {
+				while (true) {
+					current.select();
+
+					for (final SelectionKey key : current.selectedKeys()) {
+						final Link link = (Link) key.attachment();
+						try {
+							if (key.isValid() && key.isConnectable()) {
+								link.finishConnect();
+							}
+							if (key.isValid() && key.isReadable()) {
+								link.read();
+							}
+							if (key.isValid() && key.isWritable()) {
+								link.write();
+							}
+							link.update();
+						} catch (final IOException e) {
+							link.fail(e);
+						} catch (final RuntimeException e) {
+							fail(link, e);
+						}
+					}
+					current.selectedKeys().clear();
+
+					Link link;
+					while ((link = registered.poll()) != null) {
+						if (link.closing) {
+							continue;
+						}
+						try {
+							link.connect(current);
+							link.update();
+						} catch (final IOException e) {
+							link.fail(e);
+						} catch (final RuntimeException e) {
+							fail(link, e);
+						}
+					}
+					while ((link = ready.poll()) != null) {
+						try {
+							link.update();
+						} catch (final RuntimeException e) {
+							fail(link, e);
+						}
+					}
+				}
+			} catch (final IOException e) {
+				stop(current, e);
+			} catch (final RuntimeException e) {
+				stop(current, new IOException(e));
+			}
+		}
+
+		/**
+		 * Fails every link of a broken selector and lets the next registered
+		 * link start a new network thread.
+		 */
+		private void stop(final Selector current, final IOException error) {
+			logger.log(Level.SEVERE, "Socket network thread failed", error);
+			synchronized (this) {
+				selector = null;
+			}
+			if (!current.isOpen())
+				return;
+
+			for (final SelectionKey key : Lists.newArrayList(current.keys())) {
+				((Link) key.attachment()).fail(error);
+			}
+			try {
+				current.close();
+			} catch (final IOException e) {
+				logger.log(Level.FINE, "Error closing selector", e);
+			}
+		}
+
+		/**
+		 * Closes a link that failed unexpectedly, such as a key cancelled
+		 * under it, so the other connections keep running.
+		 */
+		private static void fail(final Link link, final RuntimeException error) {
+			logger.log(Level.WARNING, "Unexpected socket error", error);
+			link.fail(new IOException(error));
+		}
+
+	}
+
+}
@@ -0,0 +1,75 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.core.events;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.calclab.emite.core.stanzas.Stanza;
+import com.google.web.bindery.event.shared.Event;
+
+/**
+ * A stanza waiting in the send queue of a session was dropped, or a new one
+ * was rejected, because the queue was full.
+ */
+public class StanzaDroppedEvent extends Event<StanzaDroppedEvent.Handler> {
+
+	public interface Handler {
+		void onStanzaDropped(StanzaDroppedEvent event);
+	}
+
+	public static final Type<Handler> TYPE = new Type<Handler>();
+
+	private final Stanza stanza;
+	private final boolean rejected;
+
+	public StanzaDroppedEvent(final Stanza stanza, final boolean rejected) {
+		this.stanza = checkNotNull(stanza);
+		this.rejected = rejected;
+	}
+
+	public Stanza getStanza() {
+		return stanza;
+	}
+
+	/**
+	 * @return {@code true} if the stanza was never queued, {@code false} if
+	 *         it was queued and dropped later
+	 */
+	public boolean isRejected() {
+		return rejected;
+	}
+
+	@Override
+	public Type<Handler> getAssociatedType() {
+		return TYPE;
+	}
+
+	@Override
+	protected void dispatch(final Handler handler) {
+		handler.onStanzaDropped(this);
+	}
+
+	@Override
+	public String toDebugString() {
+		return super.toDebugString() + (rejected ? "rejected " : "dropped ") + stanza;
+	}
+
+}
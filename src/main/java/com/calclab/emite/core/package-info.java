@@ -35,6 +35,27 @@
  * applications, which may be layered on top of the core by sending
  * application-specific data qualified by particular XML namespaces [XML-NAMES]
  * 
+ * <h3>Threading</h3>
+ * Inside a browser everything runs on the single JavaScript thread. On a JVM
+ * many sessions can share the same process, following these rules:
+ * <ul>
+ * <li>Each session has its own injector, with {@link EmiteJvmModule} or
+ * {@link EmiteSocketModule}. The session objects (connection, session,
+ * managers and event bus) are not thread-safe: they are confined to the
+ * {@link com.calclab.emite.base.util.SerialExecutor} of the session.</li>
+ * <li>Received packets, connection events and scheduled actions always run
+ * on that executor, one at a time and in order. Calls into the session from
+ * other threads must be submitted to it as well.</li>
+ * <li>The {@link com.calclab.emite.base.util.ActionScheduler} and the
+ * {@link com.calclab.emite.base.util.HttpEngine} are bound in each injector,
+ * never set through static methods.</li>
+ * <li>The serial executors of all the sessions share one pool of worker
+ * threads, so handlers should never block.</li>
+ * <li>The shared state is thread-safe: {@link XmppURI} instances are
+ * immutable and cached in a bounded Guava {@code Cache}, XML parsers are per
+ * connection, and the XML serializer and packet factories keep no shared state.</li>
+ * </ul>
+ * 
  * @see <a href="http://xmpp.org/rfcs/rfc6120.html">RFC 6120</a>
  */
 @ParametersAreNonnullByDefault
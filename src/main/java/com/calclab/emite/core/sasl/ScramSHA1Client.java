@@ -49,6 +49,7 @@ public final class ScramSHA1Client extends AbstractSaslClient {
 	private String snonce;
 	private byte[] salt;
 	private int icount;
+	private byte[] saltedPassword;
 
 	private State state;
 
@@ -88,6 +89,8 @@ public final class ScramSHA1Client extends AbstractSaslClient {
 
 			salt = Base64.fromBase64(split.get(1).substring(2));
 			icount = Integer.parseInt(split.get(2).substring(2));
+			// The slow part, needed for both the proof and the signature
+			saltedPassword = new PBKDF2().doKey(credentials.getPassword().getBytes(), salt, icount);
 
 			state = State.AUTH;
 			return ("c=" + Base64.toBase64(gs2hdr.getBytes()) + ",r=" + snonce + ",p=" + Base64.toBase64(clientProof())).getBytes();
@@ -115,7 +118,6 @@ public final class ScramSHA1Client extends AbstractSaslClient {
 	}
 
 	private final byte[] clientProof() {
-		final byte[] saltedPassword = new PBKDF2().doKey(credentials.getPassword().getBytes(), salt, icount);
 		final byte[] clientKey = new HMac().doMac(saltedPassword, "Client Key".getBytes());
 		final byte[] storedKey = new SHA1Digest().doHash(clientKey);
 		final byte[] clientSignature = new HMac().doMac(storedKey, authMessage());
@@ -123,7 +125,6 @@ public final class ScramSHA1Client extends AbstractSaslClient {
 	}
 
 	private final byte[] serverSignature() {
-		final byte[] saltedPassword = new PBKDF2().doKey(credentials.getPassword().getBytes(), salt, icount);
 		final byte[] serverKey = new HMac().doMac(saltedPassword, "Server Key".getBytes());
 		return new HMac().doMac(serverKey, authMessage());
 	}
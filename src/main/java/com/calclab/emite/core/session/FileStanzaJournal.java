@@ -0,0 +1,162 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.core.session;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+import com.calclab.emite.base.xml.XMLBuilder;
+import com.calclab.emite.base.xml.XMLPacket;
+import com.calclab.emite.base.xml.XMLStreamParser;
+
+/**
+ * A stanza journal kept in a local file.
+ * 
+ * Only available on a JVM. The file starts with the position of the first
+ * stanza not taken yet, followed by a record per stanza with its UTF-8
+ * length and its XML. The stanzas left in the file are taken again when a
+ * new journal opens it, and the file is emptied once every stanza is taken.
+ * 
+ * The journal is not thread safe, like the session using it.
+ */
+public final class FileStanzaJournal implements StanzaJournal, Closeable {
+
+	private static final Logger logger = Logger.getLogger(FileStanzaJournal.class.getName());
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int HEADER = 8;
+
+	private final RandomAccessFile file;
+	private final long maxBytes;
+	private long readPosition;
+	private int size;
+
+	/**
+	 * Opens a journal file, creating it if needed.
+	 * 
+	 * @param file the journal file
+	 * @param maxBytes the largest size of the file, or 0 for no limit
+	 * @throws IOException if the file can not be opened
+	 */
+	public FileStanzaJournal(final File file, final long maxBytes) throws IOException {
+		checkArgument(maxBytes >= 0, "The journal size can not be negative");
+		this.file = new RandomAccessFile(checkNotNull(file), "rw");
+		this.maxBytes = maxBytes;
+
+		final long length = this.file.length();
+		if (length < HEADER) {
+			readPosition = HEADER;
+		} else {
+			this.file.seek(0);
+			readPosition = Math.max(HEADER, Math.min(length, this.file.readLong()));
+		}
+
+		// Count the records left, dropping an incomplete one at the end
+		long position = readPosition;
+		while (position + 4 <= length) {
+			this.file.seek(position);
+			final long next = position + 4 + this.file.readInt();
+			if (next > length) {
+				break;
+			}
+			position = next;
+			size++;
+		}
+		if (size == 0) {
+			position = readPosition = HEADER;
+		}
+		this.file.setLength(position);
+		writeReadPosition();
+	}
+
+	@Override
+	public boolean add(final XMLPacket stanza) {
+		final byte[] data = stanza.toString().getBytes(UTF8);
+		try {
+			final long length = file.length();
+			if (maxBytes > 0 && length + 4 + data.length > maxBytes)
+				return false;
+
+			file.seek(length);
+			file.writeInt(data.length);
+			file.write(data);
+			size++;
+			return true;
+		} catch (final IOException e) {
+			logger.log(Level.WARNING, "Error writing to the stanza journal", e);
+			return false;
+		}
+	}
+
+	@Override
+	@Nullable
+	public XMLPacket poll() {
+		while (size > 0) {
+			try {
+				file.seek(readPosition);
+				final byte[] data = new byte[file.readInt()];
+				file.readFully(data);
+				readPosition += 4 + data.length;
+				size--;
+				if (size == 0) {
+					file.setLength(HEADER);
+					readPosition = HEADER;
+				}
+				writeReadPosition();
+
+				final XMLPacket stanza = XMLStreamParser.parse(XMLBuilder.getFactory(), data, 0, data.length);
+				if (stanza != null)
+					return stanza;
+				logger.warning("Invalid stanza in the journal");
+			} catch (final IOException e) {
+				logger.log(Level.WARNING, "Error reading the stanza journal", e);
+				return null;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public void close() throws IOException {
+		file.close();
+	}
+
+	private void writeReadPosition() throws IOException {
+		file.seek(0);
+		file.writeLong(readPosition);
+	}
+
+}
@@ -20,27 +20,75 @@
 
 package com.calclab.emite.core.session;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.logging.Logger;
 
+import javax.annotation.Nullable;
+
+import com.calclab.emite.base.util.ActionScheduler;
+import com.calclab.emite.base.util.ScheduledAction;
+import com.calclab.emite.base.xml.XMLPacket;
 import com.calclab.emite.core.IQCallback;
+import com.calclab.emite.core.XmppNamespaces;
 import com.calclab.emite.core.events.IQResponseReceivedEvent;
 import com.calclab.emite.core.stanzas.IQ;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
 /**
  * Handles IQ responses.
+ * 
+ * Every request fails with a {@code remote-server-timeout} error if its
+ * response does not arrive in time. A single sweeper, scheduled only while
+ * there are pending requests, looks for expired requests every second. An
+ * expired request still waiting in the send queue of the session is removed
+ * from it, so it is never sent.
+ * 
+ * When too many requests are pending, new ones are queued and sent as soon
+ * as a response arrives or a request expires.
  */
 final class IQManager implements IQResponseReceivedEvent.Handler {
 
+	private static final Logger logger = Logger.getLogger(IQManager.class.getName());
+
+	/**
+	 * Default time to wait for a response, in milliseconds.
+	 */
+	static final int DEFAULT_TIMEOUT = 60000;
+
+	/**
+	 * Default maximum number of requests waiting for a response.
+	 */
+	static final int DEFAULT_MAX_PENDING = 100;
+
+	private static final int SWEEP_INTERVAL = 1000;
+
 	private final XmppSessionImpl session;
-	private final Map<String, IQCallback> iqHandlers;
+	private final ActionScheduler scheduler;
+	private final Map<String, PendingIQ> pending;
+	private final LinkedList<PendingIQ> queued;
+	private final Map<String, Integer> timeouts;
+	private int defaultTimeout;
+	private int maxPending;
 	private int iqId;
+	private boolean sweeping;
+	private long completed;
+	private long expired;
 	
-	protected IQManager(final XmppSessionImpl session) {
+	protected IQManager(final XmppSessionImpl session, final ActionScheduler scheduler) {
 		this.session = checkNotNull(session);
-		iqHandlers = Maps.newHashMap();
+		this.scheduler = checkNotNull(scheduler);
+		pending = Maps.newLinkedHashMap();
+		queued = Lists.newLinkedList();
+		timeouts = Maps.newHashMap();
+		defaultTimeout = DEFAULT_TIMEOUT;
+		maxPending = DEFAULT_MAX_PENDING;
 
 		session.addIQResponseReceivedHandler(this);
 	}
@@ -49,24 +97,148 @@ final class IQManager implements IQResponseReceivedEvent.Handler {
 	public void onIQResponseReceived(final IQResponseReceivedEvent event) {
 		final IQ iq = event.getIQ();
 		
-		final IQCallback handler = iqHandlers.remove(iq.getId());
-		if (handler == null)
+		final PendingIQ request = pending.remove(iq.getId());
+		if (request == null)
+			return;
+
+		completed++;
+		sendQueued();
+
+		if (request.handler == null)
 			return;
 
 		if (IQ.Type.result.equals(iq.getType())) {
-			handler.onIQSuccess(iq);
+			request.handler.onIQSuccess(iq);
 		} else {
-			handler.onIQFailure(iq);
+			request.handler.onIQFailure(iq);
 		}
 	}
 	
-	protected final void sendIQRequest(final String category, final IQ iq, final IQCallback handler, final boolean force) {
+	protected final void sendIQRequest(final String category, final IQ iq, @Nullable final IQCallback handler, final boolean force) {
+		sendIQRequest(category, iq, handler, 0, force);
+	}
+
+	protected final void sendIQRequest(final String category, final IQ iq, @Nullable final IQCallback handler, final int timeout, final boolean force) {
 		if (!IQ.Type.result.equals(iq.getType())) {
 			final String key = category + "_" + iqId++;
-			iqHandlers.put(key, handler);
 			iq.setId(key);
-			session.send(iq, force);
+
+			final PendingIQ request = new PendingIQ(iq, handler, timeout > 0 ? timeout : getTimeout(category), force);
+			// Requests needed to start the session are never queued
+			if (!force && pending.size() >= maxPending) {
+				logger.finer("Too many pending IQs, queuing " + key);
+				queued.add(request);
+			} else {
+				send(request);
+			}
+		}
+	}
+
+	protected final void setTimeout(@Nullable final String category, final int timeout) {
+		checkArgument(timeout > 0, "The timeout must be positive");
+
+		if (category == null) {
+			defaultTimeout = timeout;
+		} else {
+			timeouts.put(category, timeout);
+		}
+	}
+
+	protected final void setMaxPending(final int maxPending) {
+		checkArgument(maxPending > 0, "The maximum number of pending IQs must be positive");
+
+		this.maxPending = maxPending;
+		sendQueued();
+	}
+
+	protected final IQStats getStats() {
+		return new IQStats(pending.size(), queued.size(), completed, expired);
+	}
+
+	private int getTimeout(final String category) {
+		final Integer timeout = timeouts.get(category);
+		return timeout != null ? timeout : defaultTimeout;
+	}
+
+	private void send(final PendingIQ request) {
+		request.deadline = System.currentTimeMillis() + request.timeout;
+		pending.put(request.iq.getId(), request);
+		scheduleSweep();
+		session.send(request.iq, request.force);
+	}
+
+	private void sendQueued() {
+		while (!queued.isEmpty() && pending.size() < maxPending) {
+			send(queued.removeFirst());
+		}
+	}
+
+	private void scheduleSweep() {
+		if (sweeping || pending.isEmpty())
+			return;
+
+		sweeping = true;
+		scheduler.schedule(SWEEP_INTERVAL, new ScheduledAction() {
+			@Override
+			public void run() {
+				sweeping = false;
+				sweep();
+			}
+		});
+	}
+
+	private void sweep() {
+		final long now = System.currentTimeMillis();
+		final List<PendingIQ> expiredRequests = Lists.newArrayList();
+		for (final Iterator<PendingIQ> it = pending.values().iterator(); it.hasNext();) {
+			final PendingIQ request = it.next();
+			if (request.deadline <= now) {
+				it.remove();
+				expiredRequests.add(request);
+			}
+		}
+
+		expired += expiredRequests.size();
+		sendQueued();
+		scheduleSweep();
+
+		for (final PendingIQ request : expiredRequests) {
+			logger.fine("IQ " + request.iq.getId() + " timed out after " + request.timeout + " ms");
+			session.cancelQueued(request.iq);
+			if (request.handler != null) {
+				request.handler.onIQFailure(timeoutError(request.iq));
+			}
+		}
+	}
+
+	/**
+	 * Creates the error a server would send when a request times out.
+	 */
+	private static IQ timeoutError(final IQ request) {
+		final IQ error = new IQ(IQ.Type.error);
+		error.setId(request.getId());
+		error.setFrom(request.getTo());
+		final XMLPacket condition = error.getXML().addChild("error");
+		condition.setAttribute("type", "wait");
+		condition.addChild("remote-server-timeout", XmppNamespaces.STANZAS);
+		return error;
+	}
+
+	private static final class PendingIQ {
+
+		private final IQ iq;
+		@Nullable private final IQCallback handler;
+		private final int timeout;
+		private final boolean force;
+		private long deadline;
+
+		private PendingIQ(final IQ iq, @Nullable final IQCallback handler, final int timeout, final boolean force) {
+			this.iq = iq;
+			this.handler = handler;
+			this.timeout = timeout;
+			this.force = force;
 		}
+
 	}
 	
 }
@@ -0,0 +1,91 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.core.session;
+
+import javax.annotation.concurrent.Immutable;
+
+import com.google.common.base.Objects;
+
+/**
+ * A snapshot of the IQ requests of a session.
+ * 
+ * @see XmppSession#getIQStats()
+ */
+@Immutable
+public final class IQStats {
+
+	private final int pending;
+	private final int queued;
+	private final long completed;
+	private final long expired;
+
+	IQStats(final int pending, final int queued, final long completed, final long expired) {
+		this.pending = pending;
+		this.queued = queued;
+		this.completed = completed;
+		this.expired = expired;
+	}
+
+	/**
+	 * Returns the number of requests sent and waiting for a response.
+	 * 
+	 * @return the number of pending requests
+	 */
+	public int getPending() {
+		return pending;
+	}
+
+	/**
+	 * Returns the number of requests waiting to be sent, because too many
+	 * requests were pending.
+	 * 
+	 * @return the number of queued requests
+	 */
+	public int getQueued() {
+		return queued;
+	}
+
+	/**
+	 * Returns the number of requests which got a result or an error from the
+	 * server.
+	 * 
+	 * @return the number of completed requests
+	 */
+	public long getCompleted() {
+		return completed;
+	}
+
+	/**
+	 * Returns the number of requests which got no response in time, and
+	 * failed with a timeout error.
+	 * 
+	 * @return the number of expired requests
+	 */
+	public long getExpired() {
+		return expired;
+	}
+
+	@Override
+	public String toString() {
+		return Objects.toStringHelper(this).add("pending", pending).add("queued", queued).add("completed", completed).add("expired", expired).toString();
+	}
+
+}
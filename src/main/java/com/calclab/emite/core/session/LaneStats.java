@@ -0,0 +1,148 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.core.session;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import javax.annotation.concurrent.Immutable;
+
+import com.google.common.base.Objects;
+
+/**
+ * A snapshot of the stanzas sent through a lane of a session.
+ * 
+ * The latency of a stanza is the time it waited in the session before the
+ * connection took it. Latencies are kept in a histogram with
+ * power-of-two buckets: bucket {@code i} counts the latencies under
+ * {@code 2^i} milliseconds, and the last bucket counts the rest.
+ * 
+ * @see XmppSession#getLaneStats(StanzaLane)
+ */
+@Immutable
+public final class LaneStats {
+
+	/**
+	 * The number of buckets of the latency histogram.
+	 */
+	public static final int BUCKETS = 18;
+
+	private final StanzaLane lane;
+	private final long stanzas;
+	private final long bytes;
+	private final long maxLatency;
+	private final long[] histogram;
+
+	LaneStats(final StanzaLane lane, final long stanzas, final long bytes, final long maxLatency, final long[] histogram) {
+		this.lane = lane;
+		this.stanzas = stanzas;
+		this.bytes = bytes;
+		this.maxLatency = maxLatency;
+		this.histogram = new long[BUCKETS];
+		System.arraycopy(histogram, 0, this.histogram, 0, BUCKETS);
+	}
+
+	/**
+	 * Returns the histogram bucket of a latency.
+	 * 
+	 * @param latency the latency (in milliseconds)
+	 * @return the bucket index
+	 */
+	static int bucketOf(final long latency) {
+		int bucket = 0;
+		while (bucket < BUCKETS - 1 && latency >= 1L << bucket) {
+			bucket++;
+		}
+		return bucket;
+	}
+
+	/**
+	 * Returns the lane of these stats.
+	 * 
+	 * @return the lane
+	 */
+	public StanzaLane getLane() {
+		return lane;
+	}
+
+	/**
+	 * Returns the number of stanzas sent through the lane.
+	 * 
+	 * @return the number of stanzas
+	 */
+	public long getStanzas() {
+		return stanzas;
+	}
+
+	/**
+	 * Returns the UTF-8 size of the stanzas sent through the lane.
+	 * 
+	 * @return the number of bytes, or 0 if sizes are not measured
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Returns the longest latency of the lane.
+	 * 
+	 * @return the maximum latency (in milliseconds)
+	 */
+	public long getMaxLatency() {
+		return maxLatency;
+	}
+
+	/**
+	 * Returns the number of latencies in a histogram bucket.
+	 * 
+	 * @param bucket the bucket index, from 0 to {@link #BUCKETS} - 1
+	 * @return the number of stanzas in the bucket
+	 */
+	public long getBucket(final int bucket) {
+		checkArgument(bucket >= 0 && bucket < BUCKETS, "Invalid bucket %s", bucket);
+		return histogram[bucket];
+	}
+
+	/**
+	 * Returns an upper bound of a latency percentile, from the histogram.
+	 * 
+	 * @param percentile the percentile, from 0 to 100
+	 * @return the upper bound of the bucket of the percentile, or the maximum
+	 *         latency if it is lower (in milliseconds)
+	 */
+	public long getLatencyPercentile(final double percentile) {
+		checkArgument(percentile >= 0 && percentile <= 100, "Invalid percentile %s", percentile);
+		final double rank = stanzas * percentile / 100;
+		long count = 0;
+		for (int i = 0; i < BUCKETS - 1; i++) {
+			count += histogram[i];
+			if (count > 0 && count >= rank)
+				return Math.min(maxLatency, (1L << i) - 1);
+		}
+		return maxLatency;
+	}
+
+	@Override
+	public String toString() {
+		return Objects.toStringHelper(this).add("lane", lane).add("stanzas", stanzas).add("bytes", bytes).add("p50", getLatencyPercentile(50))
+				.add("p99", getLatencyPercentile(99)).add("max", maxLatency).toString();
+	}
+
+}
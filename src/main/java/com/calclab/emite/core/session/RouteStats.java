@@ -0,0 +1,89 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.core.session;
+
+import javax.annotation.concurrent.Immutable;
+
+import com.google.common.base.Objects;
+
+/**
+ * A snapshot of the stanzas delivered through a route.
+ * 
+ * @see XmppSession#getRouteStats()
+ */
+@Immutable
+public final class RouteStats {
+
+	private final String stanza;
+	private final StanzaRoute route;
+	private final int handlers;
+	private final long matched;
+
+	RouteStats(final String stanza, final StanzaRoute route, final int handlers, final long matched) {
+		this.stanza = stanza;
+		this.route = route;
+		this.handlers = handlers;
+		this.matched = matched;
+	}
+
+	/**
+	 * Returns the kind of stanzas of the route: {@code message},
+	 * {@code presence} or {@code iq} (requests only).
+	 * 
+	 * @return the kind of stanzas
+	 */
+	public String getStanza() {
+		return stanza;
+	}
+
+	/**
+	 * Returns the route.
+	 * 
+	 * @return the route
+	 */
+	public StanzaRoute getRoute() {
+		return route;
+	}
+
+	/**
+	 * Returns the number of handlers registered with the route.
+	 * 
+	 * @return the number of handlers
+	 */
+	public int getHandlers() {
+		return handlers;
+	}
+
+	/**
+	 * Returns the number of stanzas delivered through the route.
+	 * 
+	 * @return the number of matched stanzas
+	 */
+	public long getMatched() {
+		return matched;
+	}
+
+	@Override
+	public String toString() {
+		return Objects.toStringHelper(this).add("stanza", stanza).add("route", route).add("handlers", handlers).add("matched", matched).toString();
+	}
+
+}
@@ -0,0 +1,283 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.core.session;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+import com.calclab.emite.base.xml.XMLPacket;
+import com.calclab.emite.core.stanzas.IQ;
+import com.calclab.emite.core.stanzas.Message;
+import com.calclab.emite.core.stanzas.Presence;
+import com.calclab.emite.core.stanzas.Stanza;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Keeps the stanzas sent while the session is not ready, and sends them
+ * once it is.
+ * 
+ * The queue is bounded: when it is full, the policy decides whether the
+ * oldest stanza is dropped or the new one rejected. If there is a journal,
+ * the stanzas that do not fit go to the journal instead, and are sent after
+ * the ones in memory.
+ */
+final class SendQueue {
+
+	private static final Logger logger = Logger.getLogger(SendQueue.class.getName());
+
+	/**
+	 * Default maximum number of stanzas kept in memory.
+	 */
+	static final int DEFAULT_MAX_SIZE = 10000;
+
+	private final XmppSessionImpl session;
+	private final LinkedList<Queued> queue;
+	private final Map<String, Queued> presences;
+	// Ids of the IQs in the journal that must not be sent anymore
+	private final Set<String> cancelled;
+	private int maxSize;
+	private SendQueuePolicy policy;
+	@Nullable private StanzaJournal journal;
+
+	private int maxDepth;
+	private long dropped;
+	private long rejected;
+	private long coalesced;
+	private long replayed;
+	private long lastReplayTime;
+
+	protected SendQueue(final XmppSessionImpl session) {
+		this.session = checkNotNull(session);
+		queue = Lists.newLinkedList();
+		presences = Maps.newHashMap();
+		cancelled = Sets.newHashSet();
+		maxSize = DEFAULT_MAX_SIZE;
+		policy = SendQueuePolicy.dropOldest;
+	}
+
+	protected final void setLimits(final int maxSize, final SendQueuePolicy policy) {
+		checkArgument(maxSize >= 0, "The queue size can not be negative");
+		this.maxSize = maxSize;
+		this.policy = checkNotNull(policy);
+		if (policy != SendQueuePolicy.coalescePresence) {
+			presences.clear();
+		}
+	}
+
+	protected final void setJournal(@Nullable final StanzaJournal journal) {
+		this.journal = journal;
+	}
+
+	protected final void add(final Stanza stanza) {
+		final String destination = policy == SendQueuePolicy.coalescePresence ? availabilityDestination(stanza) : null;
+		if (destination != null) {
+			final Queued previous = presences.get(destination);
+			if (previous != null) {
+				// Only the last availability matters, sent where the first one was
+				previous.stanza = stanza;
+				coalesced++;
+				return;
+			}
+		}
+
+		// Once a stanza is in the journal, the newer ones must go after it
+		if (journal != null && (journal.size() > 0 || queue.size() >= maxSize)) {
+			if (journal.add(stanza.getXML())) {
+				updateMaxDepth();
+			} else {
+				reject(stanza);
+			}
+			return;
+		}
+
+		while (queue.size() >= maxSize) {
+			if (policy == SendQueuePolicy.reject || queue.isEmpty()) {
+				reject(stanza);
+				return;
+			}
+			final Queued oldest = queue.removeFirst();
+			forget(oldest);
+			dropped++;
+			session.stanzaDropped(oldest.stanza, false);
+		}
+
+		final Queued queued = new Queued(stanza);
+		queue.add(queued);
+		if (destination != null) {
+			presences.put(destination, queued);
+		}
+		updateMaxDepth();
+	}
+
+	/**
+	 * Puts stanzas at the front of the queue, even if it gets too large.
+	 * 
+	 * @param stanzas the stanzas, oldest first
+	 */
+	protected final void addFirst(final List<Stanza> stanzas) {
+		for (int i = stanzas.size() - 1; i >= 0; i--) {
+			queue.addFirst(new Queued(stanzas.get(i)));
+		}
+		updateMaxDepth();
+	}
+
+	/**
+	 * Removes an IQ that must not be sent anymore, because its request
+	 * expired. If it went to the journal, it is skipped when replayed.
+	 * 
+	 * @param iq the IQ, ignored if it is not queued
+	 */
+	protected final void cancel(final IQ iq) {
+		for (final Iterator<Queued> it = queue.iterator(); it.hasNext();) {
+			if (it.next().stanza == iq) {
+				it.remove();
+				return;
+			}
+		}
+		if (journal != null && journal.size() > 0 && iq.getId() != null) {
+			cancelled.add(iq.getId());
+		}
+	}
+
+	/**
+	 * Sends the queued stanzas, oldest first.
+	 * 
+	 * Stanzas queued again while sending (because the connection failed)
+	 * are kept for the next time.
+	 */
+	protected final void replay() {
+		final int count = size();
+		if (count == 0)
+			return;
+
+		logger.finer("Sending " + count + " queued stanzas...");
+		final long start = System.currentTimeMillis();
+		for (int i = 0; i < count; i++) {
+			final Stanza stanza = poll();
+			if (stanza == null) {
+				break;
+			}
+			session.send(stanza, true);
+			replayed++;
+		}
+		lastReplayTime = System.currentTimeMillis() - start;
+	}
+
+	protected final int size() {
+		return queue.size() + (journal != null ? journal.size() : 0);
+	}
+
+	protected final SendQueueStats getStats() {
+		return new SendQueueStats(size(), journal != null ? journal.size() : 0, maxDepth, dropped, rejected, coalesced, replayed, lastReplayTime);
+	}
+
+	@Nullable
+	private Stanza poll() {
+		final Queued queued = queue.poll();
+		if (queued != null) {
+			forget(queued);
+			return queued.stanza;
+		}
+
+		if (journal == null)
+			return null;
+
+		XMLPacket xml = journal.poll();
+		while (xml != null && !cancelled.isEmpty() && "iq".equals(xml.getTagName()) && cancelled.remove(xml.getAttribute("id"))) {
+			xml = journal.poll();
+		}
+		if (journal.size() == 0) {
+			cancelled.clear();
+		}
+		return xml != null ? toStanza(xml) : null;
+	}
+
+	private void reject(final Stanza stanza) {
+		rejected++;
+		session.stanzaDropped(stanza, true);
+	}
+
+	private void forget(final Queued queued) {
+		if (!presences.isEmpty()) {
+			final String destination = availabilityDestination(queued.stanza);
+			if (destination != null && presences.get(destination) == queued) {
+				presences.remove(destination);
+			}
+		}
+	}
+
+	private void updateMaxDepth() {
+		maxDepth = Math.max(maxDepth, size());
+	}
+
+	/**
+	 * Returns the key of an availability presence, so presences to the same
+	 * destination can be coalesced.
+	 * 
+	 * @return the destination, or {@code null} if the stanza is not an
+	 *         availability presence
+	 */
+	@Nullable
+	private static String availabilityDestination(final Stanza stanza) {
+		if (!(stanza instanceof Presence))
+			return null;
+
+		final Presence.Type type = ((Presence) stanza).getType();
+		if (type != null && type != Presence.Type.unavailable)
+			return null;
+
+		return String.valueOf(stanza.getXML().getAttribute("to"));
+	}
+
+	private static Stanza toStanza(final XMLPacket xml) {
+		final String name = xml.getTagName();
+		if ("message".equals(name))
+			return new Message(xml);
+		if ("presence".equals(name))
+			return new Presence(xml);
+		if ("iq".equals(name))
+			return new IQ(xml);
+		return new Stanza(xml) {
+		};
+	}
+
+	private static final class Queued {
+
+		private Stanza stanza;
+
+		private Queued(final Stanza stanza) {
+			this.stanza = stanza;
+		}
+
+	}
+
+}
@@ -0,0 +1,45 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.core.session;
+
+/**
+ * What a session does when its send queue is full.
+ * 
+ * @see XmppSession#setSendQueue(int, SendQueuePolicy)
+ */
+public enum SendQueuePolicy {
+
+	/**
+	 * The oldest queued stanza is dropped to make room for the new one
+	 */
+	dropOldest,
+	/**
+	 * Like {@link #dropOldest}, but a queued presence is replaced by a newer
+	 * presence to the same destination, so the queue only keeps the last
+	 * availability of each destination
+	 */
+	coalescePresence,
+	/**
+	 * The new stanza is not queued
+	 */
+	reject;
+
+}
@@ -0,0 +1,137 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.core.session;
+
+import javax.annotation.concurrent.Immutable;
+
+import com.google.common.base.Objects;
+
+/**
+ * A snapshot of the send queue of a session, which keeps the stanzas sent
+ * while the session is not ready.
+ * 
+ * @see XmppSession#getSendQueueStats()
+ */
+@Immutable
+public final class SendQueueStats {
+
+	private final int depth;
+	private final int journaled;
+	private final int maxDepth;
+	private final long dropped;
+	private final long rejected;
+	private final long coalesced;
+	private final long replayed;
+	private final long lastReplayTime;
+
+	SendQueueStats(final int depth, final int journaled, final int maxDepth, final long dropped, final long rejected, final long coalesced,
+			final long replayed, final long lastReplayTime) {
+		this.depth = depth;
+		this.journaled = journaled;
+		this.maxDepth = maxDepth;
+		this.dropped = dropped;
+		this.rejected = rejected;
+		this.coalesced = coalesced;
+		this.replayed = replayed;
+		this.lastReplayTime = lastReplayTime;
+	}
+
+	/**
+	 * Returns the number of stanzas waiting, in memory or in the journal.
+	 * 
+	 * @return the number of queued stanzas
+	 */
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * Returns the number of stanzas waiting in the journal.
+	 * 
+	 * @return the number of journaled stanzas
+	 */
+	public int getJournaled() {
+		return journaled;
+	}
+
+	/**
+	 * Returns the largest number of stanzas that waited at once.
+	 * 
+	 * @return the maximum depth of the queue
+	 */
+	public int getMaxDepth() {
+		return maxDepth;
+	}
+
+	/**
+	 * Returns the number of queued stanzas dropped to make room for newer
+	 * ones.
+	 * 
+	 * @return the number of dropped stanzas
+	 */
+	public long getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * Returns the number of stanzas not queued because the queue was full.
+	 * 
+	 * @return the number of rejected stanzas
+	 */
+	public long getRejected() {
+		return rejected;
+	}
+
+	/**
+	 * Returns the number of queued presences replaced by a newer one.
+	 * 
+	 * @return the number of coalesced presences
+	 */
+	public long getCoalesced() {
+		return coalesced;
+	}
+
+	/**
+	 * Returns the number of queued stanzas sent once the session was ready.
+	 * 
+	 * @return the number of replayed stanzas
+	 */
+	public long getReplayed() {
+		return replayed;
+	}
+
+	/**
+	 * Returns the time taken to send the queued stanzas the last time the
+	 * session got ready.
+	 * 
+	 * @return the duration of the last replay (in milliseconds)
+	 */
+	public long getLastReplayTime() {
+		return lastReplayTime;
+	}
+
+	@Override
+	public String toString() {
+		return Objects.toStringHelper(this).add("depth", depth).add("journaled", journaled).add("maxDepth", maxDepth).add("dropped", dropped)
+				.add("rejected", rejected).add("coalesced", coalesced).add("replayed", replayed).add("lastReplayTime", lastReplayTime).toString();
+	}
+
+}
@@ -22,13 +22,14 @@ package com.calclab.emite.core.session;
 
 import java.util.logging.Logger;
 
+import com.calclab.emite.base.util.ActionScheduler;
+import com.calclab.emite.base.util.ScheduledAction;
 import com.calclab.emite.core.conn.ConnectionStatus;
 import com.calclab.emite.core.conn.XmppConnection;
 import com.calclab.emite.core.events.AuthorizationResultEvent;
 import com.calclab.emite.core.events.ConnectionStatusChangedEvent;
 import com.calclab.emite.core.events.SessionStatusChangedEvent;
 import com.calclab.emite.core.sasl.Credentials;
-import com.google.gwt.user.client.Timer;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 
@@ -38,14 +39,16 @@ public final class SessionReconnect implements ConnectionStatusChangedEvent.Hand
 	private static final Logger logger = Logger.getLogger(SessionReconnect.class.getName());
 
 	private final XmppSession session;
+	private final ActionScheduler scheduler;
 
 	private Credentials lastSuccessfulCredentials;
 	protected int reconnectionAttempts;
 	private boolean shouldReconnect;
 
 	@Inject
-	protected SessionReconnect(final XmppConnection connection, final XmppSession session) {
+	protected SessionReconnect(final XmppConnection connection, final XmppSession session, final ActionScheduler scheduler) {
 		this.session = session;
+		this.scheduler = scheduler;
 
 		shouldReconnect = false;
 		reconnectionAttempts = 0;
@@ -71,7 +74,7 @@ public final class SessionReconnect implements ConnectionStatusChangedEvent.Hand
 		} else if (SessionStatus.isDisconnected(event.getStatus()) && shouldReconnect) {
 			if (lastSuccessfulCredentials != null) {
 				final double seconds = Math.pow(2, reconnectionAttempts - 1);
-				new Timer() {
+				scheduler.schedule((int) (1000 * seconds), new ScheduledAction() {
 					@Override
 					public void run() {
 						logger.info("Reconnecting...");
@@ -80,7 +83,7 @@ public final class SessionReconnect implements ConnectionStatusChangedEvent.Hand
 							session.login(lastSuccessfulCredentials);
 						}
 					}
-				}.schedule((int) (1000 * seconds));
+				});
 				logger.info("Reconnecting in " + seconds + " seconds.");
 			}
 		} else if (SessionStatus.isReady(event.getStatus())) {
@@ -0,0 +1,62 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.core.session;
+
+import javax.annotation.Nullable;
+
+import com.calclab.emite.base.xml.XMLPacket;
+
+/**
+ * Keeps the stanzas that do not fit in the send queue of a session, outside
+ * of the memory.
+ * 
+ * Stanzas are taken in the same order they were added.
+ * 
+ * @see XmppSession#setSendQueueJournal(StanzaJournal)
+ * @see FileStanzaJournal
+ */
+public interface StanzaJournal {
+
+	/**
+	 * Adds a stanza at the end of the journal.
+	 * 
+	 * @param stanza the stanza to keep
+	 * @return {@code true} if the stanza was kept, {@code false} if the
+	 *         journal is full or failed
+	 */
+	boolean add(XMLPacket stanza);
+
+	/**
+	 * Takes the first stanza of the journal.
+	 * 
+	 * @return the first stanza, or {@code null} if the journal is empty
+	 */
+	@Nullable
+	XMLPacket poll();
+
+	/**
+	 * Returns the number of stanzas in the journal.
+	 * 
+	 * @return the number of stanzas
+	 */
+	int size();
+
+}
@@ -0,0 +1,54 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.core.session;
+
+/**
+ * The priority classes of the stanzas sent by a session.
+ * 
+ * When stanzas have to wait for the connection, the higher lanes are sent
+ * first. The order of the stanzas is kept within each lane, but not between
+ * lanes. Stream elements which are not stanzas (like SASL or stream
+ * management ones) are never reordered with the stanzas.
+ * 
+ * @see XmppSession#send(com.calclab.emite.core.stanzas.Stanza, StanzaLane)
+ */
+
+public enum StanzaLane {
+
+	/**
+	 * IQ results or errors, which other entities are waiting for
+	 */
+	control,
+	/**
+	 * Messages and small IQ requests
+	 */
+	interactive,
+	/**
+	 * Presence broadcasts and subscriptions
+	 */
+	presence,
+	/**
+	 * Large stanzas (like vCard or avatar uploads), which may be taken by the
+	 * connection a few at a time
+	 */
+	bulk;
+
+}
@@ -0,0 +1,179 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.core.session;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import com.calclab.emite.core.XmppURI;
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * The stanzas a handler is interested in, by sender, by the namespace of a
+ * child element and by type.
+ * 
+ * Routes are built from {@link #ANY}, which matches every stanza:
+ * 
+ * <pre>
+ * session.addIQRequestReceivedHandler(StanzaRoute.ANY.withChild(XmppNamespaces.ROSTER), handler);
+ * session.addPresenceReceivedHandler(StanzaRoute.ANY.ofType(&quot;subscribe&quot;), handler);
+ * </pre>
+ * 
+ * @see XmppSession#addMessageReceivedHandler(StanzaRoute,
+ *      com.calclab.emite.core.events.MessageReceivedEvent.Handler)
+ */
+@Immutable
+public final class StanzaRoute {
+
+	/**
+	 * The route matching every stanza.
+	 */
+	public static final StanzaRoute ANY = new StanzaRoute(null, null, null, ImmutableSet.<String> of());
+
+	@Nullable private final String domain;
+	@Nullable private final XmppURI jid;
+	@Nullable private final String namespace;
+	private final ImmutableSet<String> types;
+
+	private StanzaRoute(@Nullable final String domain, @Nullable final XmppURI jid, @Nullable final String namespace, final ImmutableSet<String> types) {
+		this.domain = domain;
+		this.jid = jid;
+		this.namespace = namespace;
+		this.types = types;
+	}
+
+	/**
+	 * Returns a route matching the stanzas of this one sent from the given
+	 * domain. It replaces any sender of this route.
+	 * 
+	 * @param domain
+	 *            the domain of the sender
+	 * @return a new route
+	 */
+	public StanzaRoute fromDomain(final String domain) {
+		return new StanzaRoute(checkNotNull(domain), null, namespace, types);
+	}
+
+	/**
+	 * Returns a route matching the stanzas of this one sent from any resource
+	 * of the given JID. It replaces any sender of this route.
+	 * 
+	 * @param jid
+	 *            the sender (the resource is ignored)
+	 * @return a new route
+	 */
+	public StanzaRoute fromJID(final XmppURI jid) {
+		return new StanzaRoute(null, jid.getJID(), namespace, types);
+	}
+
+	/**
+	 * Returns a route matching the stanzas of this one with a child element in
+	 * the given namespace.
+	 * 
+	 * @param namespace
+	 *            the namespace of the child
+	 * @return a new route
+	 */
+	public StanzaRoute withChild(final String namespace) {
+		return new StanzaRoute(domain, jid, checkNotNull(namespace), types);
+	}
+
+	/**
+	 * Returns a route matching the stanzas of this one with any of the given
+	 * types. It replaces any types of this route.
+	 * 
+	 * @param types
+	 *            the values of the type attribute, the empty string for the
+	 *            stanzas without one (like available presences)
+	 * @return a new route
+	 */
+	public StanzaRoute ofType(final String... types) {
+		return new StanzaRoute(domain, jid, namespace, ImmutableSet.copyOf(types));
+	}
+
+	/**
+	 * Returns the domain of the sender.
+	 * 
+	 * @return the domain, or {@code null} if the route does not filter by
+	 *         domain
+	 */
+	@Nullable
+	public String getDomain() {
+		return domain;
+	}
+
+	/**
+	 * Returns the JID of the sender.
+	 * 
+	 * @return the bare JID, or {@code null} if the route does not filter by
+	 *         JID
+	 */
+	@Nullable
+	public XmppURI getJID() {
+		return jid;
+	}
+
+	/**
+	 * Returns the namespace of a child element of the stanza.
+	 * 
+	 * @return the namespace, or {@code null} if the route does not filter by
+	 *         child
+	 */
+	@Nullable
+	public String getNamespace() {
+		return namespace;
+	}
+
+	/**
+	 * Returns the types of the stanza.
+	 * 
+	 * @return the values of the type attribute, empty if the route does not
+	 *         filter by type
+	 */
+	public ImmutableSet<String> getTypes() {
+		return types;
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hashCode(domain, jid, namespace, types);
+	}
+
+	@Override
+	public boolean equals(@Nullable final Object obj) {
+		if (obj instanceof StanzaRoute) {
+			final StanzaRoute other = (StanzaRoute) obj;
+			return Objects.equal(domain, other.domain) && Objects.equal(jid, other.jid) && Objects.equal(namespace, other.namespace)
+					&& types.equals(other.types);
+		}
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		return Objects.toStringHelper(this).omitNullValues().add("domain", domain).add("jid", jid).add("namespace", namespace)
+				.add("types", types.isEmpty() ? null : types).toString();
+	}
+
+}
@@ -0,0 +1,254 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.core.session;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import com.calclab.emite.base.xml.XMLPacket;
+import com.calclab.emite.core.XmppURI;
+import com.google.common.base.Strings;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.web.bindery.event.shared.HandlerRegistration;
+import com.google.web.bindery.event.shared.UmbrellaException;
+
+/**
+ * Delivers the received stanzas of one kind to the handlers of the matching
+ * routes only.
+ * 
+ * Routes are indexed by the namespace of the child element and then by the
+ * sender, so a stanza costs a few lookups whatever the number of routes. The
+ * handlers are called directly, not through the event bus, so every stanza
+ * is fired on the bus just once by the session.
+ * 
+ * @param <E> the type of the events
+ * @param <H> the type of the handlers
+ */
+abstract class StanzaRouter<E, H> {
+
+	/**
+	 * A registered route with its handlers.
+	 */
+	private static final class Route<H> {
+
+		private final StanzaRoute route;
+		// Copied on write, so handlers can change the routes while called
+		private ImmutableList<H> handlers;
+		private long matched;
+		private int generation;
+
+		private Route(final StanzaRoute route) {
+			this.route = route;
+			handlers = ImmutableList.of();
+		}
+
+		private boolean matches(final String type) {
+			return route.getTypes().isEmpty() || route.getTypes().contains(type);
+		}
+
+		@Override
+		public String toString() {
+			return route.toString();
+		}
+
+	}
+
+	/**
+	 * The routes with the same child namespace, by sender.
+	 */
+	private static final class Node<H> {
+
+		private final List<Route<H>> any = Lists.newArrayList();
+		private final ListMultimap<String, Route<H>> byDomain = ArrayListMultimap.create();
+		private final ListMultimap<XmppURI, Route<H>> byJID = ArrayListMultimap.create();
+
+		private boolean isEmpty() {
+			return any.isEmpty() && byDomain.isEmpty() && byJID.isEmpty();
+		}
+
+	}
+
+	private final String stanza;
+	private final Map<StanzaRoute, Route<H>> routes;
+	// Keyed by child namespace, "" for routes matching any child
+	private final Map<String, Node<H>> nodes;
+
+	// Avoids calling a route twice when several children match it
+	private int generation;
+
+	StanzaRouter(final String stanza) {
+		this.stanza = checkNotNull(stanza);
+		routes = Maps.newLinkedHashMap();
+		nodes = Maps.newHashMap();
+	}
+
+	/**
+	 * Calls a handler with an event.
+	 */
+	protected abstract void dispatch(H handler, E event);
+
+	/**
+	 * Adds a handler for the stanzas matching a route.
+	 */
+	HandlerRegistration addHandler(final StanzaRoute stanzaRoute, final H handler) {
+		checkNotNull(handler);
+		Route<H> route = routes.get(stanzaRoute);
+		if (route == null) {
+			route = new Route<H>(stanzaRoute);
+			routes.put(stanzaRoute, route);
+			index(route);
+		}
+		route.handlers = ImmutableList.<H> builder().addAll(route.handlers).add(handler).build();
+
+		final Route<H> registered = route;
+		return new HandlerRegistration() {
+			private boolean removed;
+
+			@Override
+			public void removeHandler() {
+				if (!removed) {
+					removed = true;
+					release(registered, handler);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Calls the handlers of every route matching the stanza, once per route.
+	 * 
+	 * @throws UmbrellaException if any handler fails, after calling the rest
+	 */
+	void fire(final E event, final XMLPacket packet, @Nullable final XmppURI from) {
+		if (nodes.isEmpty())
+			return;
+
+		generation++;
+		final String type = Strings.nullToEmpty(packet.getAttribute("type"));
+		final List<Route<H>> matched = Lists.newArrayList();
+		collect(matched, nodes.get(""), type, from);
+		for (final XMLPacket child : packet.getChildren()) {
+			final String namespace = child.getNamespace();
+			if (namespace != null) {
+				collect(matched, nodes.get(namespace), type, from);
+			}
+		}
+
+		Set<Throwable> causes = null;
+		for (final Route<H> route : matched) {
+			for (final H handler : route.handlers) {
+				try {
+					dispatch(handler, event);
+				} catch (final RuntimeException e) {
+					if (causes == null) {
+						causes = Sets.newHashSet();
+					}
+					causes.add(e);
+				}
+			}
+		}
+		if (causes != null)
+			throw new UmbrellaException(causes);
+	}
+
+	List<RouteStats> getStats() {
+		final List<RouteStats> result = Lists.newArrayListWithCapacity(routes.size());
+		for (final Route<H> route : routes.values()) {
+			result.add(new RouteStats(stanza, route.route, route.handlers.size(), route.matched));
+		}
+		return result;
+	}
+
+	private void collect(final List<Route<H>> matched, @Nullable final Node<H> node, final String type, @Nullable final XmppURI from) {
+		if (node == null)
+			return;
+
+		collect(matched, node.any, type);
+		if (from != null) {
+			if (!node.byDomain.isEmpty()) {
+				collect(matched, node.byDomain.get(from.getHost()), type);
+			}
+			if (!node.byJID.isEmpty()) {
+				collect(matched, node.byJID.get(from.getJID()), type);
+			}
+		}
+	}
+
+	private void collect(final List<Route<H>> matched, final List<Route<H>> candidates, final String type) {
+		for (final Route<H> route : candidates) {
+			if (route.generation != generation && route.matches(type)) {
+				route.generation = generation;
+				route.matched++;
+				matched.add(route);
+			}
+		}
+	}
+
+	private void index(final Route<H> route) {
+		final String key = Strings.nullToEmpty(route.route.getNamespace());
+		Node<H> node = nodes.get(key);
+		if (node == null) {
+			node = new Node<H>();
+			nodes.put(key, node);
+		}
+
+		if (route.route.getDomain() != null) {
+			node.byDomain.put(route.route.getDomain(), route);
+		} else if (route.route.getJID() != null) {
+			node.byJID.put(route.route.getJID(), route);
+		} else {
+			node.any.add(route);
+		}
+	}
+
+	private void release(final Route<H> route, final H handler) {
+		final List<H> handlers = Lists.newArrayList(route.handlers);
+		handlers.remove(handler);
+		route.handlers = ImmutableList.copyOf(handlers);
+		if (!route.handlers.isEmpty())
+			return;
+
+		routes.remove(route.route);
+		final String key = Strings.nullToEmpty(route.route.getNamespace());
+		final Node<H> node = nodes.get(key);
+		if (route.route.getDomain() != null) {
+			node.byDomain.remove(route.route.getDomain(), route);
+		} else if (route.route.getJID() != null) {
+			node.byJID.remove(route.route.getJID(), route);
+		} else {
+			node.any.remove(route);
+		}
+		if (node.isEmpty()) {
+			nodes.remove(key);
+		}
+	}
+
+}
@@ -0,0 +1,275 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.calclab.emite.core.session;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import com.calclab.emite.base.xml.XMLPacket;
+import com.calclab.emite.base.xml.XMLSerializer;
+import com.calclab.emite.core.conn.Outbox;
+import com.calclab.emite.core.stanzas.Stanza;
+import com.google.common.collect.Lists;
+
+/**
+ * The packets of a session waiting for its connection, one queue per lane.
+ * 
+ * The connection takes the highest lanes first. Bulk stanzas are limited by
+ * size, so a large upload is spread over several requests or writes and the
+ * stanzas sent meanwhile do not wait for all of it.
+ * 
+ * Stream elements which are not stanzas keep their place: they are taken
+ * after every stanza queued before them, and before every stanza queued
+ * after them.
+ */
+abstract class StanzaScheduler implements Outbox {
+
+	/**
+	 * Default UTF-8 size from which a stanza goes to the bulk lane.
+	 */
+	static final int DEFAULT_BULK_THRESHOLD = 4 * 1024;
+
+	/**
+	 * Default UTF-8 size of the bulk stanzas taken at once.
+	 */
+	static final int DEFAULT_BULK_BYTES = 16 * 1024;
+
+	private final List<Lane> lanes;
+	private final LinkedList<Queued> elements;
+	private long sequence;
+	private int size;
+	private int bytes;
+	private int bulkThreshold;
+	private int bulkBytes;
+
+	StanzaScheduler() {
+		lanes = Lists.newArrayList();
+		for (final StanzaLane lane : StanzaLane.values()) {
+			lanes.add(new Lane(lane));
+		}
+		elements = Lists.newLinkedList();
+		bulkThreshold = DEFAULT_BULK_THRESHOLD;
+		bulkBytes = DEFAULT_BULK_BYTES;
+	}
+
+	/**
+	 * Called when the connection takes a stanza.
+	 * 
+	 * @param stanza the stanza
+	 */
+	protected abstract void onStanzaSent(Stanza stanza);
+
+	/**
+	 * Called when the connection takes a stream element which is not a
+	 * stanza.
+	 * 
+	 * @param element the element
+	 */
+	protected abstract void onElementSent(XMLPacket element);
+
+	/**
+	 * Queues a stanza.
+	 * 
+	 * @param stanza the stanza
+	 * @param lane the lane of the stanza, or {@code null} to choose it from
+	 *            the stanza
+	 */
+	void add(final Stanza stanza, @Nullable final StanzaLane lane) {
+		final XMLPacket packet = stanza.getXML();
+		final int length = XMLSerializer.utf8Length(packet);
+		final Queued queued = new Queued(packet, stanza, length, sequence++);
+		lanes.get((lane != null ? lane : laneOf(packet, length)).ordinal()).queue.add(queued);
+		size++;
+		bytes += length;
+	}
+
+	/**
+	 * Queues a stream element which is not a stanza.
+	 * 
+	 * @param packet the element
+	 */
+	void add(final XMLPacket packet) {
+		final int length = XMLSerializer.utf8Length(packet);
+		elements.add(new Queued(packet, null, length, sequence++));
+		size++;
+		bytes += length;
+	}
+
+	/**
+	 * Moves the queued packets to a list, highest lanes first, but never
+	 * past a stream element.
+	 * 
+	 * The first bulk stanza is always taken, the next ones while they fit in
+	 * the bulk size.
+	 */
+	@Override
+	public int drainTo(final List<XMLPacket> target) {
+		final long now = System.currentTimeMillis();
+		int added = 0;
+		int laneBytes = 0;
+		while (true) {
+			// Stanzas queued after the next element wait for it
+			final long limit = elements.isEmpty() ? Long.MAX_VALUE : elements.getFirst().sequence;
+			boolean full = false;
+			for (final Lane lane : lanes) {
+				while (!full && !lane.queue.isEmpty() && lane.queue.getFirst().sequence < limit) {
+					final Queued next = lane.queue.getFirst();
+					if (lane.lane == StanzaLane.bulk && bulkBytes > 0 && laneBytes > 0 && laneBytes + next.length > bulkBytes) {
+						full = true;
+					} else {
+						lane.queue.removeFirst();
+						lane.sent(now - next.queued, next.length);
+						if (lane.lane == StanzaLane.bulk) {
+							laneBytes += next.length;
+						}
+						take(next, target);
+						added++;
+					}
+				}
+			}
+			if (full || elements.isEmpty())
+				return added;
+
+			take(elements.removeFirst(), target);
+			added++;
+		}
+	}
+
+	/**
+	 * Removes every queued packet.
+	 * 
+	 * @return the stanzas which were queued, in the order they were added
+	 */
+	List<Stanza> clear() {
+		final List<Queued> queued = Lists.newArrayList();
+		for (final Lane lane : lanes) {
+			queued.addAll(lane.queue);
+			lane.queue.clear();
+		}
+		elements.clear();
+		size = 0;
+		bytes = 0;
+
+		Collections.sort(queued);
+		final List<Stanza> stanzas = Lists.newArrayList();
+		for (final Queued next : queued) {
+			stanzas.add(next.stanza);
+		}
+		return stanzas;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public int bytes() {
+		return bytes;
+	}
+
+	void setBulkLimits(final int threshold, final int maxBytes) {
+		checkArgument(threshold >= 0 && maxBytes >= 0, "The bulk limits can not be negative");
+		bulkThreshold = threshold;
+		bulkBytes = maxBytes;
+	}
+
+	LaneStats getStats(final StanzaLane lane) {
+		final Lane current = lanes.get(lane.ordinal());
+		return new LaneStats(lane, current.stanzas, current.bytes, current.maxLatency, current.histogram);
+	}
+
+	private void take(final Queued queued, final List<XMLPacket> target) {
+		target.add(queued.packet);
+		size--;
+		bytes -= queued.length;
+		if (queued.stanza != null) {
+			onStanzaSent(queued.stanza);
+		} else {
+			onElementSent(queued.packet);
+		}
+	}
+
+	private StanzaLane laneOf(final XMLPacket packet, final int length) {
+		final String name = packet.getTagName();
+		if ("iq".equals(name)) {
+			final String type = packet.getAttribute("type");
+			if ("result".equals(type) || "error".equals(type))
+				return StanzaLane.control;
+		}
+
+		if (bulkThreshold > 0 && length >= bulkThreshold)
+			return StanzaLane.bulk;
+		return "presence".equals(name) ? StanzaLane.presence : StanzaLane.interactive;
+	}
+
+	private static final class Lane {
+
+		private final StanzaLane lane;
+		private final LinkedList<Queued> queue;
+		private final long[] histogram;
+		private long stanzas;
+		private long bytes;
+		private long maxLatency;
+
+		private Lane(final StanzaLane lane) {
+			this.lane = lane;
+			queue = Lists.newLinkedList();
+			histogram = new long[LaneStats.BUCKETS];
+		}
+
+		private void sent(final long latency, final int length) {
+			histogram[LaneStats.bucketOf(latency)]++;
+			stanzas++;
+			bytes += length;
+			maxLatency = Math.max(maxLatency, latency);
+		}
+
+	}
+
+	private static final class Queued implements Comparable<Queued> {
+
+		private final XMLPacket packet;
+		@Nullable private final Stanza stanza;
+		private final int length;
+		private final long sequence;
+		private final long queued;
+
+		private Queued(final XMLPacket packet, @Nullable final Stanza stanza, final int length, final long sequence) {
+			this.packet = packet;
+			this.stanza = stanza;
+			this.length = length;
+			this.sequence = sequence;
+			queued = System.currentTimeMillis();
+		}
+
+		@Override
+		public int compareTo(final Queued other) {
+			return sequence < other.sequence ? -1 : sequence == other.sequence ? 0 : 1;
+		}
+
+	}
+
+}
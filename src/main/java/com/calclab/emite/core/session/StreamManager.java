@@ -0,0 +1,252 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.core.session;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+import com.calclab.emite.base.util.ActionScheduler;
+import com.calclab.emite.base.util.ScheduledAction;
+import com.calclab.emite.base.xml.XMLBuilder;
+import com.calclab.emite.base.xml.XMLPacket;
+import com.calclab.emite.core.XmppNamespaces;
+import com.calclab.emite.core.XmppURI;
+import com.calclab.emite.core.conn.XmppConnection;
+import com.calclab.emite.core.stanzas.Stanza;
+import com.google.common.collect.Lists;
+
+/**
+ * Handles stream management (XEP-0198).
+ * 
+ * Once enabled, the stanzas sent are kept until the server acknowledges
+ * them, and the stanzas received are counted. Stanzas are kept when the
+ * connection takes them from the outbox of the session, which is the order
+ * the server counts them in. If the connection is lost,
+ * the next login resumes the stream instead of binding a new resource: the
+ * server tells how many stanzas it got, and only the rest are sent again.
+ * 
+ * Counters are 32 bits unsigned numbers, which wrap around.
+ * 
+ * @see <a href="http://xmpp.org/extensions/xep-0198.html">XEP-0198</a>
+ */
+final class StreamManager {
+
+	private static final Logger logger = Logger.getLogger(StreamManager.class.getName());
+
+	private static final long COUNTER_MASK = 0xFFFFFFFFL;
+
+	// Time to wait for more stanzas before asking for an acknowledgement
+	private static final int ACK_REQUEST_DELAY = 1000;
+
+	private final XmppSessionImpl session;
+	private final XmppConnection connection;
+	private final ActionScheduler scheduler;
+	private final LinkedList<Stanza> unacked;
+
+	private boolean available;
+	private boolean enabling;
+	private boolean enabled;
+	private boolean counting;
+	private boolean resuming;
+	private boolean ackRequested;
+	@Nullable private String resumptionId;
+	@Nullable private XmppURI resumptionURI;
+	private long outbound;
+	private long inbound;
+
+	protected StreamManager(final XmppSessionImpl session, final XmppConnection connection, final ActionScheduler scheduler) {
+		this.session = checkNotNull(session);
+		this.connection = checkNotNull(connection);
+		this.scheduler = checkNotNull(scheduler);
+		unacked = Lists.newLinkedList();
+	}
+
+	/**
+	 * Checks if the server supports stream management.
+	 * 
+	 * @param features the stream features after authentication
+	 */
+	protected final void onFeatures(final XMLPacket features) {
+		available = features.hasChild("sm", XmppNamespaces.SM);
+	}
+
+	/**
+	 * Enables stream management, if available, once a resource is bound.
+	 * 
+	 * @param uri the bound user URI
+	 */
+	protected final void enable(final XmppURI uri) {
+		if (!available || enabled || enabling)
+			return;
+
+		reset();
+		enabling = true;
+		resumptionURI = uri;
+		session.sendPacket(XMLBuilder.create("enable", XmppNamespaces.SM).attribute("resume", "true").getXML());
+	}
+
+	/**
+	 * Starts keeping the stanzas sent once the connection takes the request
+	 * to enable stream management, as the server counts from there.
+	 * 
+	 * @param element a stream element taken by the connection
+	 */
+	protected final void onElementSent(final XMLPacket element) {
+		if (enabling && "enable".equals(element.getTagName()) && XmppNamespaces.SM.equals(element.getNamespace())) {
+			enabling = false;
+			enabled = true;
+		}
+	}
+
+	/**
+	 * @return {@code true} if the next login can resume the stream
+	 */
+	protected final boolean canResume() {
+		return resumptionId != null;
+	}
+
+	/**
+	 * Asks the server to resume the stream, instead of binding a resource.
+	 */
+	protected final void resume() {
+		resuming = true;
+		session.sendPacket(XMLBuilder.create("resume", XmppNamespaces.SM).attribute("previd", resumptionId).attribute("h", String.valueOf(inbound))
+				.getXML());
+	}
+
+	/**
+	 * Forgets the stream, so the next login starts a new one.
+	 */
+	protected final void reset() {
+		enabling = false;
+		enabled = false;
+		counting = false;
+		resuming = false;
+		resumptionId = null;
+		resumptionURI = null;
+		outbound = 0;
+		inbound = 0;
+		unacked.clear();
+	}
+
+	protected final void onStanzaSent(final Stanza stanza) {
+		if (!enabled)
+			return;
+
+		unacked.add(stanza);
+		outbound = outbound + 1 & COUNTER_MASK;
+		if (!ackRequested) {
+			ackRequested = true;
+			scheduler.schedule(ACK_REQUEST_DELAY, new ScheduledAction() {
+				@Override
+				public void run() {
+					ackRequested = false;
+					if (enabled && !unacked.isEmpty() && connection.isConnected() && !connection.hasErrors()) {
+						session.sendPacket(XMLBuilder.create("r", XmppNamespaces.SM).getXML());
+					}
+				}
+			});
+		}
+	}
+
+	protected final void onStanzaReceived() {
+		if (counting) {
+			inbound = inbound + 1 & COUNTER_MASK;
+		}
+	}
+
+	/**
+	 * Handles the stream management elements.
+	 * 
+	 * @param packet an element in the stream management namespace
+	 */
+	protected final void handle(final XMLPacket packet) {
+		final String name = packet.getTagName();
+		if ("r".equals(name)) {
+			if (counting) {
+				session.sendPacket(XMLBuilder.create("a", XmppNamespaces.SM).attribute("h", String.valueOf(inbound)).getXML());
+			}
+		} else if ("a".equals(name)) {
+			acknowledge(packet.getAttribute("h"));
+		} else if ("enabled".equals(name)) {
+			counting = true;
+			if ("true".equals(packet.getAttribute("resume")) || "1".equals(packet.getAttribute("resume"))) {
+				resumptionId = packet.getAttribute("id");
+			}
+		} else if ("resumed".equals(name)) {
+			acknowledge(packet.getAttribute("h"));
+			// The stanzas sent again are counted again
+			final List<Stanza> lost = Lists.newArrayList(unacked);
+			outbound = outbound - lost.size() & COUNTER_MASK;
+			unacked.clear();
+			resuming = false;
+			counting = true;
+			logger.info("Stream resumed, sending " + lost.size() + " unacknowledged stanzas again");
+			session.streamResumed(resumptionURI, lost);
+		} else if ("failed".equals(name)) {
+			final boolean failedResume = resuming;
+			final List<Stanza> lost = Lists.newArrayList(unacked);
+			reset();
+			if (failedResume) {
+				logger.info("Stream resumption failed, binding a new resource");
+				session.streamResumeFailed(lost);
+			} else {
+				logger.info("Stream management could not be enabled");
+			}
+		}
+	}
+
+	/**
+	 * The connection was lost: stop counting until the stream is resumed.
+	 */
+	protected final void suspend() {
+		counting = false;
+		resuming = false;
+		if (resumptionId == null) {
+			reset();
+		}
+	}
+
+	private void acknowledge(@Nullable final String value) {
+		final long handled;
+		try {
+			handled = Long.parseLong(value) & COUNTER_MASK;
+		} catch (final NumberFormatException e) {
+			logger.warning("Invalid acknowledgement: " + value);
+			return;
+		}
+
+		// The server handled the oldest stanzas sent, up to 'h'
+		final long pending = outbound - handled & COUNTER_MASK;
+		while (unacked.size() > pending) {
+			unacked.removeFirst();
+		}
+		if (pending > unacked.size()) {
+			logger.warning("The server acknowledged " + handled + " stanzas, but " + outbound + " were sent");
+		}
+	}
+
+}
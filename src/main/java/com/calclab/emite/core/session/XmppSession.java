@@ -20,8 +20,11 @@
 
 package com.calclab.emite.core.session;
 
+import java.util.List;
+
 import javax.annotation.Nullable;
 
+import com.calclab.emite.base.xml.XMLPacket;
 import com.calclab.emite.core.IQCallback;
 import com.calclab.emite.core.XmppURI;
 import com.calclab.emite.core.conn.StreamSettings;
@@ -31,6 +34,7 @@ import com.calclab.emite.core.events.IQResponseReceivedEvent;
 import com.calclab.emite.core.events.MessageReceivedEvent;
 import com.calclab.emite.core.events.PresenceReceivedEvent;
 import com.calclab.emite.core.events.SessionStatusChangedEvent;
+import com.calclab.emite.core.events.StanzaDroppedEvent;
 import com.calclab.emite.core.sasl.Credentials;
 import com.calclab.emite.core.stanzas.IQ;
 import com.calclab.emite.core.stanzas.Stanza;
@@ -52,6 +56,19 @@ public interface XmppSession {
 	 */
 	HandlerRegistration addIQRequestReceivedHandler(IQRequestReceivedEvent.Handler handler);
 
+	/**
+	 * Add a handler to know when an IQ request matching a route has been
+	 * received. Only the matching requests reach the handler.
+	 * 
+	 * @param route
+	 *            the requests the handler is interested in
+	 * @param handler
+	 *            the handler
+	 * @return the handler registration, can be stored in order to remove the
+	 *         handler later
+	 */
+	HandlerRegistration addIQRequestReceivedHandler(StanzaRoute route, IQRequestReceivedEvent.Handler handler);
+
 	/**
 	 * Add a handler to know when an IQ response has been received.
 	 * 
@@ -72,6 +89,19 @@ public interface XmppSession {
 	 */
 	HandlerRegistration addMessageReceivedHandler(MessageReceivedEvent.Handler handler);
 
+	/**
+	 * Add a handler to know when a Message matching a route has been received.
+	 * Only the matching messages reach the handler.
+	 * 
+	 * @param route
+	 *            the messages the handler is interested in
+	 * @param handler
+	 *            the handler
+	 * @return the handler registration, can be stored in order to remove the
+	 *         handler later
+	 */
+	HandlerRegistration addMessageReceivedHandler(StanzaRoute route, MessageReceivedEvent.Handler handler);
+
 	/**
 	 * Add a handler to know when a Presence has been received.
 	 * 
@@ -81,6 +111,19 @@ public interface XmppSession {
 	 *         handler later
 	 */
 	HandlerRegistration addPresenceReceivedHandler(PresenceReceivedEvent.Handler handler);
+
+	/**
+	 * Add a handler to know when a Presence matching a route has been
+	 * received. Only the matching presences reach the handler.
+	 * 
+	 * @param route
+	 *            the presences the handler is interested in
+	 * @param handler
+	 *            the handler
+	 * @return the handler registration, can be stored in order to remove the
+	 *         handler later
+	 */
+	HandlerRegistration addPresenceReceivedHandler(StanzaRoute route, PresenceReceivedEvent.Handler handler);
 	
 	/**
 	 * Add a handler to know when an authorization transaction has a result
@@ -92,6 +135,18 @@ public interface XmppSession {
 	 */
 	HandlerRegistration addAuthorizationResultHandler(AuthorizationResultEvent.Handler handler);
 
+	/**
+	 * Add a handler to know when a stanza waiting to be sent is dropped
+	 * because the send queue is full.
+	 * 
+	 * @see #setSendQueue(int, SendQueuePolicy)
+	 * @param handler
+	 *            the handler
+	 * @return the handler registration, can be stored in order to remove the
+	 *         handler later
+	 */
+	HandlerRegistration addStanzaDroppedHandler(StanzaDroppedEvent.Handler handler);
+
 	/**
 	 * Add a handler to track session status changes.
 	 * 
@@ -140,6 +195,15 @@ public interface XmppSession {
 	 */
 	boolean isReady();
 
+	/**
+	 * Returns the features announced by the server for the current stream.
+	 * 
+	 * @return the stream features, or {@code null} if the session is not
+	 *         authorized yet
+	 */
+	@Nullable
+	XMLPacket getStreamFeatures();
+
 	/**
 	 * Start a login process with the given credentials.
 	 * 
@@ -189,6 +253,18 @@ public interface XmppSession {
 	 */
 	void send(Stanza stanza);
 
+	/**
+	 * Send a stanza to the server through the given lane, instead of the one
+	 * chosen by the session.
+	 * 
+	 * @see #send(Stanza)
+	 * @param stanza
+	 *            the stanza to be sent
+	 * @param lane
+	 *            the priority lane of the stanza
+	 */
+	void send(Stanza stanza, StanzaLane lane);
+
 	/**
 	 * Send a IQ stanza and attach a listener to the response.
 	 * 
@@ -214,4 +290,125 @@ public interface XmppSession {
 	 */
 	void sendIQ(String category, IQ iq, @Nullable IQCallback iqHandler);
 
+	/**
+	 * Send a IQ stanza and attach a listener to the response, waiting for
+	 * the response at most the given time.
+	 * 
+	 * If the response does not arrive in time, the handler gets an error IQ
+	 * with a {@code remote-server-timeout} condition and the response is
+	 * ignored if it arrives later.
+	 * 
+	 * @see #sendIQ(String, IQ, IQCallback)
+	 * @param category
+	 *            a uniqe-per-component string that allows the session to
+	 *            generate a sequential and uniqe id for the IQ
+	 * @param iq
+	 *            the IQ stanza to be sent
+	 * @param iqHandler
+	 *            the handler called when the response arrives or the request
+	 *            times out. It CAN be null
+	 * @param timeout
+	 *            the time to wait for the response (in milliseconds), or 0 to
+	 *            use the timeout of the category
+	 */
+	void sendIQ(String category, IQ iq, @Nullable IQCallback iqHandler, int timeout);
+
+	/**
+	 * Set the time to wait for the responses of the IQs sent with a category.
+	 * 
+	 * By default, IQs wait 60 seconds for their response.
+	 * 
+	 * @param category
+	 *            the category of the IQs, or {@code null} to change the
+	 *            default timeout
+	 * @param timeout
+	 *            the time to wait for a response (in milliseconds)
+	 */
+	void setIQTimeout(@Nullable String category, int timeout);
+
+	/**
+	 * Set the maximum number of IQs waiting for a response.
+	 * 
+	 * Further IQs are queued and sent when a response arrives or a request
+	 * times out. By default, up to 100 IQs can wait for a response.
+	 * 
+	 * @param maxPending
+	 *            the maximum number of IQs waiting for a response
+	 */
+	void setMaxPendingIQs(int maxPending);
+
+	/**
+	 * Returns the counters of the IQs sent by this session.
+	 * 
+	 * @return a snapshot of the IQ counters
+	 */
+	IQStats getIQStats();
+
+	/**
+	 * Set the size of the queue of stanzas sent while the session is not
+	 * ready, and what to do when it is full.
+	 * 
+	 * By default, up to 10000 stanzas are queued and the oldest ones are
+	 * dropped. Every dropped stanza fires a {@link StanzaDroppedEvent}.
+	 * 
+	 * @param maxSize
+	 *            the maximum number of stanzas kept in memory
+	 * @param policy
+	 *            the policy when the queue is full
+	 */
+	void setSendQueue(int maxSize, SendQueuePolicy policy);
+
+	/**
+	 * Set a journal for the stanzas that do not fit in the send queue.
+	 * 
+	 * With a journal, stanzas are only dropped if the journal can not keep
+	 * them.
+	 * 
+	 * @param journal
+	 *            the journal, or {@code null} to keep stanzas in memory only
+	 */
+	void setSendQueueJournal(@Nullable StanzaJournal journal);
+
+	/**
+	 * Returns the counters of the queue of stanzas sent while the session is
+	 * not ready.
+	 * 
+	 * @return a snapshot of the send queue counters
+	 */
+	SendQueueStats getSendQueueStats();
+
+	/**
+	 * Set how large stanzas are sent.
+	 * 
+	 * Stanzas from a given size go to the bulk lane, unless they are IQ
+	 * results or errors. The connection takes bulk stanzas up to a total
+	 * size at once, after the stanzas of the other lanes; a larger stanza is
+	 * taken alone. By default, stanzas from 4 KiB are bulk, and 16 KiB of
+	 * them are taken at once.
+	 * 
+	 * @param threshold
+	 *            the UTF-8 size from which a stanza is bulk, or 0 to never
+	 *            choose the bulk lane
+	 * @param maxBytes
+	 *            the UTF-8 size of the bulk stanzas taken at once, or 0 for
+	 *            no size limit
+	 */
+	void setBulkLimits(int threshold, int maxBytes);
+
+	/**
+	 * Returns the counters and latencies of a lane of this session.
+	 * 
+	 * @param lane
+	 *            the priority lane
+	 * @return a snapshot of the lane stats
+	 */
+	LaneStats getLaneStats(StanzaLane lane);
+
+	/**
+	 * Returns the counters of the routes of the received stanzas.
+	 * 
+	 * @return a snapshot of the counters of every route with handlers
+	 */
+	List<RouteStats> getRouteStats();
+
 }
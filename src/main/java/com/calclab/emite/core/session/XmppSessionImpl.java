@@ -27,6 +27,7 @@ import java.util.logging.Logger;
 
 import javax.annotation.Nullable;
 
+import com.calclab.emite.base.util.ActionScheduler;
 import com.calclab.emite.base.util.Base64;
 import com.calclab.emite.base.xml.XMLBuilder;
 import com.calclab.emite.base.xml.XMLPacket;
@@ -44,6 +45,7 @@ import com.calclab.emite.core.events.MessageReceivedEvent;
 import com.calclab.emite.core.events.PacketReceivedEvent;
 import com.calclab.emite.core.events.PresenceReceivedEvent;
 import com.calclab.emite.core.events.SessionStatusChangedEvent;
+import com.calclab.emite.core.events.StanzaDroppedEvent;
 import com.calclab.emite.core.events.StanzaSentEvent;
 import com.calclab.emite.core.sasl.Credentials;
 import com.calclab.emite.core.sasl.PlainClient;
@@ -82,27 +84,64 @@ public class XmppSessionImpl implements XmppSession, ConnectionStatusChangedEven
 	private final XmppConnection connection;
 	
 	private final IQManager iqManager;
+	private final SendQueue sendQueue;
+	private final StreamManager streamManager;
+	private final StanzaScheduler outbox;
+	private final StanzaRouter<MessageReceivedEvent, MessageReceivedEvent.Handler> messageRouter;
+	private final StanzaRouter<PresenceReceivedEvent, PresenceReceivedEvent.Handler> presenceRouter;
+	private final StanzaRouter<IQRequestReceivedEvent, IQRequestReceivedEvent.Handler> iqRouter;
 
-	private final List<Stanza> queuedStanzas;
 	private SessionStatus status;
 	private SessionMode mode;
 	private SaslClient saslClient;
 	
 	@Nullable private Credentials credentials;
 	@Nullable private XmppURI userUri;
+	@Nullable private XMLPacket streamFeatures;
 
 	@Inject
-	protected XmppSessionImpl(@Named("emite") final EventBus eventBus, final XmppConnection connection) {
+	protected XmppSessionImpl(@Named("emite") final EventBus eventBus, final XmppConnection connection, final ActionScheduler scheduler) {
 		this.eventBus = checkNotNull(eventBus);
 		this.connection = checkNotNull(connection);
 		
-		queuedStanzas = Lists.newArrayList();
 		status = SessionStatus.disconnected;
 		mode = SessionMode.offline;
 		
-		iqManager = new IQManager(this);
+		iqManager = new IQManager(this, scheduler);
+		sendQueue = new SendQueue(this);
+		streamManager = new StreamManager(this, connection, scheduler);
+		outbox = new StanzaScheduler() {
+			@Override
+			protected void onStanzaSent(final Stanza stanza) {
+				streamManager.onStanzaSent(stanza);
+			}
+
+			@Override
+			protected void onElementSent(final XMLPacket element) {
+				streamManager.onElementSent(element);
+			}
+		};
+		messageRouter = new StanzaRouter<MessageReceivedEvent, MessageReceivedEvent.Handler>("message") {
+			@Override
+			protected void dispatch(final MessageReceivedEvent.Handler handler, final MessageReceivedEvent event) {
+				handler.onMessageReceived(event);
+			}
+		};
+		presenceRouter = new StanzaRouter<PresenceReceivedEvent, PresenceReceivedEvent.Handler>("presence") {
+			@Override
+			protected void dispatch(final PresenceReceivedEvent.Handler handler, final PresenceReceivedEvent event) {
+				handler.onPresenceReceived(event);
+			}
+		};
+		iqRouter = new StanzaRouter<IQRequestReceivedEvent, IQRequestReceivedEvent.Handler>("iq") {
+			@Override
+			protected void dispatch(final IQRequestReceivedEvent.Handler handler, final IQRequestReceivedEvent event) {
+				handler.onIQRequestReceived(event);
+			}
+		};
 		new SessionReady(this);
 
+		connection.setOutbox(outbox);
 		connection.addConnectionStatusChangedHandler(this);
 		connection.addPacketReceivedHandler(this);
 	}
@@ -111,9 +150,13 @@ public class XmppSessionImpl implements XmppSession, ConnectionStatusChangedEven
 	public void onConnectionStatusChanged(final ConnectionStatusChangedEvent event) {
 		if (event.is(ConnectionStatus.error)) {
 			logger.severe("Connection error: " + event.getDescription());
+			requeue();
+			streamManager.suspend();
 			setStatus(SessionStatus.error);
 			mode = SessionMode.offline;
 		} else if (event.is(ConnectionStatus.disconnected)) {
+			requeue();
+			streamManager.suspend();
 			setStatus(SessionStatus.disconnected);
 			mode = SessionMode.offline;
 		}
@@ -141,7 +184,7 @@ public class XmppSessionImpl implements XmppSession, ConnectionStatusChangedEven
 						connection.disconnect();
 					}
 					
-					connection.send(XMLBuilder.create("auth", XmppNamespaces.SASL).attribute("mechanism", "ANONYMOUS").getXML());
+					sendPacket(XMLBuilder.create("auth", XmppNamespaces.SASL).attribute("mechanism", "ANONYMOUS").getXML());
 					return;
 				}
 				
@@ -158,12 +201,12 @@ public class XmppSessionImpl implements XmppSession, ConnectionStatusChangedEven
 				}
 				
 				final String encondedAuth = Base64.toBase64(saslClient.getInitialResponse());
-				connection.send(XMLBuilder.create("auth", XmppNamespaces.SASL).attribute("mechanism", saslClient.getMechanismName()).text(encondedAuth).getXML());
+				sendPacket(XMLBuilder.create("auth", XmppNamespaces.SASL).attribute("mechanism", saslClient.getMechanismName()).text(encondedAuth).getXML());
 			} else if ("challenge".equals(name) && XmppNamespaces.SASL.equals(xmlns)) {
 				final byte[] challenge = Base64.fromBase64(stanza.getText());
 				try {
 					final String encondedAuth = Base64.toBase64(saslClient.evaluateChallenge(challenge));
-					connection.send(XMLBuilder.create("response", XmppNamespaces.SASL).text(encondedAuth).getXML());
+					sendPacket(XMLBuilder.create("response", XmppNamespaces.SASL).text(encondedAuth).getXML());
 				} catch (SaslException e) {
 					setStatus(SessionStatus.notAuthorized);
 					mode = SessionMode.offline;
@@ -185,7 +228,11 @@ public class XmppSessionImpl implements XmppSession, ConnectionStatusChangedEven
 				mode = SessionMode.ready;
 				eventBus.fireEventFromSource(new AuthorizationResultEvent(credentials), this);
 				connection.restartStream();
-				bindResource(credentials.isAnoymous() ? null : credentials.getURI().getResource());
+				if (streamManager.canResume()) {
+					streamManager.resume();
+				} else {
+					bindResource(credentials.isAnoymous() ? null : credentials.getURI().getResource());
+				}
 			} else if ("failure".equals(name) && XmppNamespaces.SASL.equals(xmlns)) {
 				setStatus(SessionStatus.notAuthorized);
 				mode = SessionMode.offline;
@@ -193,17 +240,33 @@ public class XmppSessionImpl implements XmppSession, ConnectionStatusChangedEven
 			}
 		} else {
 			if ("message".equals(name)) {
-				eventBus.fireEventFromSource(new MessageReceivedEvent(new Message(stanza)), this);
+				streamManager.onStanzaReceived();
+				final Message message = new Message(stanza);
+				final MessageReceivedEvent messageEvent = new MessageReceivedEvent(message);
+				eventBus.fireEventFromSource(messageEvent, this);
+				messageRouter.fire(messageEvent, stanza, message.getFrom());
 			} else if ("presence".equals(name)) {
-				eventBus.fireEventFromSource(new PresenceReceivedEvent(new Presence(stanza)), this);
+				streamManager.onStanzaReceived();
+				final Presence presence = new Presence(stanza);
+				final PresenceReceivedEvent presenceEvent = new PresenceReceivedEvent(presence);
+				eventBus.fireEventFromSource(presenceEvent, this);
+				presenceRouter.fire(presenceEvent, stanza, presence.getFrom());
 			} else if ("iq".equals(name)) {
+				streamManager.onStanzaReceived();
 				final IQ iq = new IQ(stanza);
 				final IQ.Type type = iq.getType();
 				if (IQ.Type.get.equals(type) || IQ.Type.set.equals(type)) {
-					eventBus.fireEventFromSource(new IQRequestReceivedEvent(iq), this);
+					final IQRequestReceivedEvent iqEvent = new IQRequestReceivedEvent(iq);
+					eventBus.fireEventFromSource(iqEvent, this);
+					iqRouter.fire(iqEvent, stanza, iq.getFrom());
 				} else if (IQ.Type.result.equals(type) || IQ.Type.error.equals(type)) {
 					eventBus.fireEventFromSource(new IQResponseReceivedEvent(iq), this);
 				}
+			} else if (XmppNamespaces.SM.equals(xmlns)) {
+				streamManager.handle(stanza);
+			} else if ("stream:features".equals(name) || "features".equals(name)) {
+				streamFeatures = stanza;
+				streamManager.onFeatures(stanza);
 			}
 		}
 	}
@@ -212,6 +275,11 @@ public class XmppSessionImpl implements XmppSession, ConnectionStatusChangedEven
 	public HandlerRegistration addIQRequestReceivedHandler(final IQRequestReceivedEvent.Handler handler) {
 		return eventBus.addHandlerToSource(IQRequestReceivedEvent.TYPE, this, handler);
 	}
+
+	@Override
+	public HandlerRegistration addIQRequestReceivedHandler(final StanzaRoute route, final IQRequestReceivedEvent.Handler handler) {
+		return iqRouter.addHandler(route, handler);
+	}
 	
 	@Override
 	public HandlerRegistration addIQResponseReceivedHandler(final IQResponseReceivedEvent.Handler handler) {
@@ -223,16 +291,31 @@ public class XmppSessionImpl implements XmppSession, ConnectionStatusChangedEven
 		return eventBus.addHandlerToSource(MessageReceivedEvent.TYPE, this, handler);
 	}
 
+	@Override
+	public HandlerRegistration addMessageReceivedHandler(final StanzaRoute route, final MessageReceivedEvent.Handler handler) {
+		return messageRouter.addHandler(route, handler);
+	}
+
 	@Override
 	public HandlerRegistration addPresenceReceivedHandler(final PresenceReceivedEvent.Handler handler) {
 		return eventBus.addHandlerToSource(PresenceReceivedEvent.TYPE, this, handler);
 	}
+
+	@Override
+	public HandlerRegistration addPresenceReceivedHandler(final StanzaRoute route, final PresenceReceivedEvent.Handler handler) {
+		return presenceRouter.addHandler(route, handler);
+	}
 	
 	@Override
 	public HandlerRegistration addAuthorizationResultHandler(final AuthorizationResultEvent.Handler handler) {
 		return eventBus.addHandlerToSource(AuthorizationResultEvent.TYPE, this, handler);
 	}
 
+	@Override
+	public HandlerRegistration addStanzaDroppedHandler(final StanzaDroppedEvent.Handler handler) {
+		return eventBus.addHandlerToSource(StanzaDroppedEvent.TYPE, this, handler);
+	}
+
 	@Override
 	public HandlerRegistration addSessionStatusChangedHandler(final SessionStatusChangedEvent.Handler handler, final boolean sendCurrent) {
 		if (sendCurrent) {
@@ -252,11 +335,7 @@ public class XmppSessionImpl implements XmppSession, ConnectionStatusChangedEven
 		checkNotNull(newStatus);
 		
 		if (SessionStatus.isReady(newStatus)) {
-			logger.finer("Sending queued stanzas...");
-			for (final Stanza packet : queuedStanzas) {
-				send(packet, true);
-			}
-			queuedStanzas.clear();
+			sendQueue.replay();
 		} else if (SessionStatus.isDisconnected(newStatus)) {
 			userUri = null;
 		}
@@ -276,6 +355,12 @@ public class XmppSessionImpl implements XmppSession, ConnectionStatusChangedEven
 		return userUri != null;
 	}
 
+	@Override
+	@Nullable
+	public XMLPacket getStreamFeatures() {
+		return streamFeatures;
+	}
+
 	@Override
 	public void login(final Credentials credentials) {
 		checkNotNull(credentials);
@@ -284,6 +369,7 @@ public class XmppSessionImpl implements XmppSession, ConnectionStatusChangedEven
 			setStatus(SessionStatus.connecting);
 			mode = SessionMode.login;
 			this.credentials = credentials;
+			streamFeatures = null;
 			connection.connect();
 		}
 	}
@@ -295,7 +381,9 @@ public class XmppSessionImpl implements XmppSession, ConnectionStatusChangedEven
 			// so that only the 'terminate' is sent
 			// Unavailable are handled automatically by the server
 			setStatus(SessionStatus.loggingOut);
+			streamManager.reset();
 			userUri = null;
+			outbox.clear();
 			connection.disconnect();
 			setStatus(SessionStatus.disconnected);
 			mode = SessionMode.offline;
@@ -318,29 +406,157 @@ public class XmppSessionImpl implements XmppSession, ConnectionStatusChangedEven
 
 	@Override
 	public void send(final Stanza stanza) {
-		send(stanza, false);
+		send(stanza, null, false);
+	}
+
+	@Override
+	public void send(final Stanza stanza, final StanzaLane lane) {
+		send(stanza, checkNotNull(lane), false);
 	}
 
 	protected void send(final Stanza stanza, final boolean force) {
+		send(stanza, null, force);
+	}
+
+	private void send(final Stanza stanza, @Nullable final StanzaLane lane, final boolean force) {
 		// Added a condition to check the connection is not retrying...
 		if (connection.hasErrors() || userUri == null && !force) {
 			logger.finer("session queuing stanza" + stanza);
-			queuedStanzas.add(stanza);
+			sendQueue.add(stanza);
 			return;
 		}
 		
 		if (userUri != null) {
 			stanza.setFrom(userUri);
 		}
-		connection.send(stanza);
+		outbox.add(stanza, lane);
+		connection.flush();
 		eventBus.fireEventFromSource(new StanzaSentEvent(stanza), this);
 	}
 
+	/**
+	 * Sends a stream element which is not a stanza (like SASL or stream
+	 * management ones), after the stanzas sent before it.
+	 * 
+	 * @param element the element
+	 */
+	protected final void sendPacket(final XMLPacket element) {
+		outbox.add(element);
+		connection.flush();
+	}
+
 	@Override
 	public void sendIQ(final String category, final IQ iq, final IQCallback handler) {
 		iqManager.sendIQRequest(category, iq, handler, false);
 	}
 
+	@Override
+	public void sendIQ(final String category, final IQ iq, final IQCallback handler, final int timeout) {
+		iqManager.sendIQRequest(category, iq, handler, timeout, false);
+	}
+
+	@Override
+	public void setIQTimeout(@Nullable final String category, final int timeout) {
+		iqManager.setTimeout(category, timeout);
+	}
+
+	@Override
+	public void setMaxPendingIQs(final int maxPending) {
+		iqManager.setMaxPending(maxPending);
+	}
+
+	@Override
+	public IQStats getIQStats() {
+		return iqManager.getStats();
+	}
+
+	@Override
+	public void setSendQueue(final int maxSize, final SendQueuePolicy policy) {
+		sendQueue.setLimits(maxSize, policy);
+	}
+
+	@Override
+	public void setSendQueueJournal(@Nullable final StanzaJournal journal) {
+		sendQueue.setJournal(journal);
+	}
+
+	@Override
+	public SendQueueStats getSendQueueStats() {
+		return sendQueue.getStats();
+	}
+
+	@Override
+	public void setBulkLimits(final int threshold, final int maxBytes) {
+		outbox.setBulkLimits(threshold, maxBytes);
+	}
+
+	@Override
+	public LaneStats getLaneStats(final StanzaLane lane) {
+		return outbox.getStats(checkNotNull(lane));
+	}
+
+	@Override
+	public List<RouteStats> getRouteStats() {
+		final List<RouteStats> result = Lists.newArrayList();
+		result.addAll(messageRouter.getStats());
+		result.addAll(presenceRouter.getStats());
+		result.addAll(iqRouter.getStats());
+		return result;
+	}
+
+	/**
+	 * The stream was resumed after a connection loss: the session is ready
+	 * again without binding a resource or fetching the roster.
+	 * 
+	 * @param uri the user URI of the resumed stream
+	 * @param unacked the stanzas the server did not get
+	 */
+	protected final void streamResumed(final XmppURI uri, final List<Stanza> unacked) {
+		userUri = uri;
+		setStatus(SessionStatus.resume);
+		for (final Stanza stanza : unacked) {
+			send(stanza, true);
+		}
+		setStatus(SessionStatus.ready);
+	}
+
+	/**
+	 * The stream could not be resumed, so a new resource is bound, and the
+	 * stanzas which may not have arrived are sent when the session is ready.
+	 * 
+	 * @param unacked the stanzas the server did not acknowledge
+	 */
+	protected final void streamResumeFailed(final List<Stanza> unacked) {
+		sendQueue.addFirst(unacked);
+		bindResource(credentials.isAnoymous() ? null : credentials.getURI().getResource());
+	}
+
+	/**
+	 * Removes an expired IQ request from the send queue, if it is still
+	 * waiting there.
+	 * 
+	 * @param iq the IQ request
+	 */
+	protected final void cancelQueued(final IQ iq) {
+		sendQueue.cancel(iq);
+	}
+
+	protected final void stanzaDropped(final Stanza stanza, final boolean rejected) {
+		logger.fine((rejected ? "Send queue full, rejected " : "Send queue full, dropped ") + stanza);
+		eventBus.fireEventFromSource(new StanzaDroppedEvent(stanza, rejected), this);
+	}
+
+	/**
+	 * The connection was lost: the stanzas it did not take are sent when the
+	 * session is ready again.
+	 */
+	private void requeue() {
+		final List<Stanza> waiting = outbox.clear();
+		if (!waiting.isEmpty()) {
+			sendQueue.addFirst(waiting);
+		}
+	}
+
 	private void bindResource(@Nullable final String resource) {
 		final IQ iq = new IQ(IQ.Type.set);
 		
@@ -374,6 +590,7 @@ public class XmppSessionImpl implements XmppSession, ConnectionStatusChangedEven
 			@Override
 			public void onIQSuccess(final IQ iq) {
 				userUri = iq.getTo();
+				streamManager.enable(userUri);
 				setStatus(SessionStatus.loggedIn);
 			}
 
@@ -386,7 +603,7 @@ public class XmppSessionImpl implements XmppSession, ConnectionStatusChangedEven
 
 	@Override
 	public String toString() {
-		return "Session " + userUri + " in " + status.toString() + " " + queuedStanzas.size() + " queued stanzas con=" + connection.toString();
+		return "Session " + userUri + " in " + status.toString() + " " + sendQueue.size() + " queued stanzas con=" + connection.toString();
 	}
 
 }
@@ -62,6 +62,8 @@ public final class PairChat {
 	private ChatStatus status;
 
 	@Nullable private String thread;
+	// Updated by the chat manager when a message is sent or received
+	private long lastActivity;
 
 	/**
 	 * Create a new pair chat.
@@ -171,6 +173,7 @@ public final class PairChat {
 		message.setThread(thread);
 
 		eventBus.fireEventFromSource(new BeforeMessageSentEvent(message), this);
+		chatManager.touchChat(this);
 		session.send(message);
 		eventBus.fireEventFromSource(new MessageSentEvent(message), this);
 	}
@@ -189,7 +192,17 @@ public final class PairChat {
 	}
 	
 	public final void setThread(final String thread) {
+		final String oldThread = this.thread;
 		this.thread = checkNotNull(thread);
+		chatManager.threadChanged(this, oldThread);
+	}
+
+	final long getLastActivity() {
+		return lastActivity;
+	}
+
+	final void setLastActivity(final long lastActivity) {
+		this.lastActivity = lastActivity;
 	}
 	
 	/**
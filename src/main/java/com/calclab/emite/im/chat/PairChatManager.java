@@ -59,4 +59,15 @@ public interface PairChatManager {
 	PairChat getChat(XmppURI uri);
 	
 	Collection<PairChat> getChats();
+
+	/**
+	 * Set the time after which a chat without messages is closed.
+	 * 
+	 * By default, chats are never closed for being idle.
+	 * 
+	 * @param msecs
+	 *            the inactivity time (in milliseconds), or 0 to keep idle
+	 *            chats open
+	 */
+	void setIdleTimeout(int msecs);
 }
@@ -20,23 +20,29 @@
 
 package com.calclab.emite.im.chat;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Set;
+import java.util.List;
+import java.util.Map;
 
 import javax.annotation.Nullable;
 
+import com.calclab.emite.base.util.ActionScheduler;
+import com.calclab.emite.base.util.ScheduledAction;
 import com.calclab.emite.core.XmppURI;
 import com.calclab.emite.core.events.ChangedEvent.ChangeType;
 import com.calclab.emite.core.events.MessageReceivedEvent;
 import com.calclab.emite.core.events.SessionStatusChangedEvent;
 import com.calclab.emite.core.session.SessionStatus;
+import com.calclab.emite.core.session.StanzaRoute;
 import com.calclab.emite.core.session.XmppSession;
 import com.calclab.emite.core.stanzas.Message;
 import com.calclab.emite.im.events.PairChatChangedEvent;
-import com.google.common.collect.Sets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.google.inject.name.Named;
@@ -48,20 +54,29 @@ public final class PairChatManagerImpl implements PairChatManager, SessionStatus
 
 	private final EventBus eventBus;
 	private final XmppSession session;
-	private final Set<PairChat> chats;
+	private final ActionScheduler scheduler;
+	// Chats by bare JID, the least recently active first
+	private final Map<XmppURI, PairChat> chats;
+	private final Map<String, PairChat> chatsByThread;
 	
 	@Nullable private XmppURI currentChatUser;
+	private int idleTimeout;
+	private boolean evictionScheduled;
 	
 	@Inject
-	protected PairChatManagerImpl(@Named("emite") final EventBus eventBus, final XmppSession session) {
+	protected PairChatManagerImpl(@Named("emite") final EventBus eventBus, final XmppSession session, final ActionScheduler scheduler) {
 		this.eventBus = checkNotNull(eventBus);
 		this.session = checkNotNull(session);
-		chats = Sets.newHashSet();
+		this.scheduler = checkNotNull(scheduler);
+		chats = Maps.newLinkedHashMap();
+		chatsByThread = Maps.newHashMap();
 		
 		// Control chat status when the user logout and login again
 		session.addSessionStatusChangedHandler(this, true);
 		
-		session.addMessageReceivedHandler(this);
+		// Every message but groupchat ones, which belong to rooms
+		session.addMessageReceivedHandler(StanzaRoute.ANY.ofType("", Message.Type.chat.toString(), Message.Type.normal.toString(),
+				Message.Type.headline.toString(), Message.Type.error.toString()), this);
 	}
 
 	@Override
@@ -72,14 +87,14 @@ public final class PairChatManagerImpl implements PairChatManager, SessionStatus
 				currentChatUser = currentUser;
 			}
 			if (currentUser.equalsNoResource(currentChatUser)) {
-				for (final PairChat chat : chats) {
+				for (final PairChat chat : chats.values()) {
 					chat.open();
 				}
 			}
 		} else if (SessionStatus.loggingOut.equals(event.getStatus()) || SessionStatus.disconnected.equals(event.getStatus())) {
 			// check both status: loggingOut is preferred, but not
 			// always fired (i.e. error)
-			for (final PairChat chat : chats) {
+			for (final PairChat chat : Lists.newArrayList(chats.values())) {
 				chat.close();
 			}
 		}
@@ -89,16 +104,14 @@ public final class PairChatManagerImpl implements PairChatManager, SessionStatus
 	public final void onMessageReceived(final MessageReceivedEvent event) {
 		final Message message = event.getMessage();
 		
-		if (Message.Type.groupchat.equals(message.getType()))
-			return;
-		
-		PairChat chat = getChat(message.getFrom());
+		PairChat chat = getChat(message.getFrom(), message.getThread());
 		if (chat == null && message.getBody() != null) {
 			// we need to create a chat for this incoming message
 			chat = openChat(message.getFrom());
 		}
 		
 		if (chat != null) {
+			touchChat(chat);
 			chat.receiveMessage(message);
 		}
 	}
@@ -113,7 +126,9 @@ public final class PairChatManagerImpl implements PairChatManager, SessionStatus
 		PairChat chat = getChat(uri);
 		if (chat == null) {
 			chat = new PairChat(this, eventBus, session, uri, session.getCurrentUserURI());
-			chats.add(chat);
+			chats.put(uri.getJID(), chat);
+			touchChat(chat);
+			scheduleEviction();
 			eventBus.fireEventFromSource(new PairChatChangedEvent(ChangeType.created, chat), this);
 		}
 		
@@ -122,22 +137,103 @@ public final class PairChatManagerImpl implements PairChatManager, SessionStatus
 	}
 
 	protected final boolean closeChat(final PairChat chat) {
-		return chats.remove(chat);
+		final XmppURI jid = chat.getURI().getJID();
+		if (chats.get(jid) != chat)
+			return false;
+
+		chats.remove(jid);
+		if (chat.getThread() != null && chatsByThread.get(chat.getThread()) == chat) {
+			chatsByThread.remove(chat.getThread());
+		}
+		return true;
+	}
+
+	/**
+	 * Marks a chat as active, moving it to the end of the eviction order.
+	 * 
+	 * @param chat the chat that sent or received a message
+	 */
+	protected final void touchChat(final PairChat chat) {
+		final XmppURI jid = chat.getURI().getJID();
+		if (chats.remove(jid) != null) {
+			chats.put(jid, chat);
+		}
+		chat.setLastActivity(System.currentTimeMillis());
+	}
+
+	protected final void threadChanged(final PairChat chat, @Nullable final String oldThread) {
+		if (oldThread != null && chatsByThread.get(oldThread) == chat) {
+			chatsByThread.remove(oldThread);
+		}
+		if (chats.get(chat.getURI().getJID()) == chat) {
+			chatsByThread.put(chat.getThread(), chat);
+		}
 	}
 	
 	@Override
 	@Nullable
 	public final PairChat getChat(final XmppURI uri) {
-		for (final PairChat chat : chats) {
-			if (chat.getURI().equalsNoResource(uri))
+		return chats.get(uri.getJID());
+	}
+
+	@Nullable
+	private PairChat getChat(final XmppURI uri, @Nullable final String thread) {
+		if (thread != null) {
+			final PairChat chat = chatsByThread.get(thread);
+			if (chat != null && chat.getURI().equalsNoResource(uri))
 				return chat;
 		}
-		return null;
+		return getChat(uri);
 	}
 	
 	@Override
 	public final Collection<PairChat> getChats() {
-		return Collections.unmodifiableCollection(chats);
+		return Collections.unmodifiableCollection(chats.values());
+	}
+
+	@Override
+	public final void setIdleTimeout(final int msecs) {
+		checkArgument(msecs >= 0, "The idle timeout can not be negative");
+		idleTimeout = msecs;
+		scheduleEviction();
+	}
+
+	private void scheduleEviction() {
+		if (idleTimeout == 0 || evictionScheduled || chats.isEmpty())
+			return;
+
+		// The first chat is the least recently active one
+		final PairChat eldest = chats.values().iterator().next();
+		evictionScheduled = true;
+		scheduler.schedule((int) Math.max(0, eldest.getLastActivity() + idleTimeout - System.currentTimeMillis()), new ScheduledAction() {
+			@Override
+			public void run() {
+				evictionScheduled = false;
+				evictIdleChats();
+			}
+		});
+	}
+
+	private void evictIdleChats() {
+		if (idleTimeout > 0) {
+			final long limit = System.currentTimeMillis() - idleTimeout;
+			final List<PairChat> idle = Lists.newArrayList();
+			for (final PairChat chat : chats.values()) {
+				if (chat.getLastActivity() > limit) {
+					break;
+				}
+				idle.add(chat);
+			}
+
+			for (final PairChat chat : idle) {
+				if (chat.isReady()) {
+					chat.close();
+				} else {
+					closeChat(chat);
+				}
+			}
+		}
+		scheduleEviction();
 	}
 
 }
@@ -52,4 +52,19 @@ public interface PresenceManager {
 	 */
 	Presence getOwnPresence();
 
+	/**
+	 * Set the time during which changes of the user's presence are
+	 * coalesced.
+	 * 
+	 * A change is sent at once if no presence was sent during that time.
+	 * Otherwise it is sent when the time is over, unless a newer change
+	 * supersedes it. By default, changes are not coalesced, so every change
+	 * is sent at once.
+	 * 
+	 * @param msecs
+	 *            the coalescing time (in milliseconds), or 0 to send every
+	 *            change at once
+	 */
+	void setCoalescingDelay(int msecs);
+
 }
@@ -20,13 +20,19 @@
 
 package com.calclab.emite.im.presence;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
+import javax.annotation.Nullable;
+
+import com.calclab.emite.base.util.ActionScheduler;
+import com.calclab.emite.base.util.ScheduledAction;
 import com.calclab.emite.core.XmppURI;
 import com.calclab.emite.core.events.PresenceReceivedEvent;
 import com.calclab.emite.core.events.SessionStatusChangedEvent;
 import com.calclab.emite.core.session.SessionReady;
 import com.calclab.emite.core.session.SessionStatus;
+import com.calclab.emite.core.session.StanzaRoute;
 import com.calclab.emite.core.session.XmppSession;
 import com.calclab.emite.core.stanzas.Presence;
 import com.calclab.emite.im.events.OwnPresenceChangedEvent;
@@ -44,45 +50,64 @@ public final class PresenceManagerImpl implements PresenceManager, SessionStatus
 
 	static final Presence INITIAL_PRESENCE = new Presence(Presence.Type.unavailable);
 
+	/**
+	 * Default time during which presence changes are coalesced, in
+	 * milliseconds: none, every change is sent at once.
+	 */
+	static final int DEFAULT_COALESCING_DELAY = 0;
+
 	private final EventBus eventBus;
 	private final XmppSession session;
+	private final ActionScheduler scheduler;
 
 	private Presence ownPresence;
+	@Nullable private Presence lostPresence;
+	private int coalescingDelay;
+	@Nullable private Presence pendingPresence;
+	private long lastSentTime;
+	private int sentPresences;
 
 	@Inject
-	protected PresenceManagerImpl(@Named("emite") final EventBus eventBus, final XmppSession session) {
+	protected PresenceManagerImpl(@Named("emite") final EventBus eventBus, final XmppSession session, final ActionScheduler scheduler) {
 		this.eventBus = checkNotNull(eventBus);
 		this.session = checkNotNull(session);
+		this.scheduler = checkNotNull(scheduler);
 		ownPresence = INITIAL_PRESENCE;
+		coalescingDelay = DEFAULT_COALESCING_DELAY;
 
 		SessionReady.disable();
 
 		// Upon connecting to the server and becoming an active resource, a
 		// client SHOULD request the roster before sending initial presence
 		session.addSessionStatusChangedHandler(this, true);
-		session.addPresenceReceivedHandler(this);
+		session.addPresenceReceivedHandler(StanzaRoute.ANY.ofType(Presence.Type.probe.toString()), this);
 	}
 
 	@Override
 	public void onSessionStatusChanged(final SessionStatusChangedEvent event) {
 		if (SessionStatus.rosterReady.equals(event.getStatus())) {
 			final Presence initialPresence = ownPresence != INITIAL_PRESENCE ? ownPresence : new Presence((Presence.Type)null);
-			session.send(initialPresence);
+			sendNow(initialPresence);
 			setOwnPresence(initialPresence);
 			session.setStatus(SessionStatus.ready);
 		} else if (SessionStatus.loggingOut.equals(event.getStatus())) {
 			sendUnavailablePresence(session.getCurrentUserURI());
+		} else if (SessionStatus.resume.equals(event.getStatus())) {
+			// A resumed stream keeps the presence it had
+			if (lostPresence != null) {
+				setOwnPresence(lostPresence);
+				lostPresence = null;
+			}
 		} else if (SessionStatus.disconnected.equals(event.getStatus())) {
+			pendingPresence = null;
+			lostPresence = ownPresence != INITIAL_PRESENCE && !Presence.Type.unavailable.equals(ownPresence.getType()) ? ownPresence : null;
 			setOwnPresence(INITIAL_PRESENCE);
 		}
 	}
 
 	@Override
 	public void onPresenceReceived(final PresenceReceivedEvent event) {
-		final Presence presence = event.getPresence();
-		if (Presence.Type.probe.equals(presence.getType())) {
-			session.send(ownPresence);
-		}
+		session.send(ownPresence);
 	}
 
 	@Override
@@ -100,8 +125,40 @@ public final class PresenceManagerImpl implements PresenceManager, SessionStatus
 	 */
 	@Override
 	public void changeOwnPresence(final Presence presence) {
-		session.send(presence);
 		setOwnPresence(presence);
+
+		// Directed presences do not replace the broadcast one
+		if (presence.getTo() != null) {
+			session.send(presence);
+			return;
+		}
+
+		// The session already queues the presences sent before it is ready
+		final long now = System.currentTimeMillis();
+		if (coalescingDelay == 0 || !session.isReady() || pendingPresence == null && now - lastSentTime >= coalescingDelay) {
+			sendNow(presence);
+			return;
+		}
+
+		if (pendingPresence == null) {
+			final int sent = sentPresences;
+			scheduler.schedule((int) Math.max(0, lastSentTime + coalescingDelay - now), new ScheduledAction() {
+				@Override
+				public void run() {
+					// Ignore it if the pending presence was already superseded
+					if (sent == sentPresences && pendingPresence != null) {
+						sendNow(pendingPresence);
+					}
+				}
+			});
+		}
+		pendingPresence = presence;
+	}
+
+	@Override
+	public void setCoalescingDelay(final int msecs) {
+		checkArgument(msecs >= 0, "The coalescing delay can not be negative");
+		coalescingDelay = msecs;
 	}
 
 	@Override
@@ -123,10 +180,18 @@ public final class PresenceManagerImpl implements PresenceManager, SessionStatus
 	 */
 	private void sendUnavailablePresence(final XmppURI userURI) {
 		final Presence presence = new Presence(Presence.Type.unavailable);
-		session.send(presence);
+		sendNow(presence);
 		setOwnPresence(presence);
 	}
 
+	private void sendNow(final Presence presence) {
+		// A pending change is superseded by any presence sent before it
+		pendingPresence = null;
+		lastSentTime = System.currentTimeMillis();
+		sentPresences++;
+		session.send(presence);
+	}
+
 	private void setOwnPresence(final Presence presence) {
 		final Presence oldPresence = ownPresence;
 		ownPresence = presence;
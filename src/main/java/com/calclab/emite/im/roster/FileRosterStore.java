@@ -0,0 +1,192 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.im.roster;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+import com.calclab.emite.base.xml.XMLBuilder;
+import com.calclab.emite.base.xml.XMLPacket;
+import com.calclab.emite.core.XmppURI;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * A roster store kept in local files, one per user.
+ * 
+ * Only available on a JVM. A file holds a record per roster item, with the
+ * roster version and the item XML. A full roster rewrites the file, while a
+ * roster push only appends its item, so the last record of an item wins when
+ * the file is read again. The file is rewritten when the appended records
+ * outnumber the roster items.
+ * 
+ * The store is not thread safe, like the session using it.
+ */
+public final class FileRosterStore implements RosterStore {
+
+	private static final Logger logger = Logger.getLogger(FileRosterStore.class.getName());
+
+	private final File directory;
+	private final MemoryRosterStore loaded;
+	private final Map<XmppURI, Integer> appended;
+
+	/**
+	 * Creates a roster store in a directory, creating it if needed.
+	 * 
+	 * @param directory the directory for the roster files
+	 */
+	public FileRosterStore(final File directory) {
+		this.directory = checkNotNull(directory);
+		loaded = new MemoryRosterStore();
+		appended = Maps.newHashMap();
+	}
+
+	@Override
+	@Nullable
+	public String getVersion(final XmppURI user) {
+		load(user.getJID());
+		return loaded.getVersion(user);
+	}
+
+	@Override
+	public List<XMLPacket> getItems(final XmppURI user) {
+		load(user.getJID());
+		return loaded.getItems(user);
+	}
+
+	@Override
+	public void setRoster(final XmppURI user, final String version, final List<XMLPacket> items) {
+		loaded.setRoster(user, version, items);
+		write(user.getJID(), version, items, false);
+		appended.put(user.getJID(), 0);
+	}
+
+	@Override
+	public void updateItem(final XmppURI user, final String version, final XMLPacket item) {
+		final XmppURI jid = user.getJID();
+		load(jid);
+		loaded.updateItem(jid, version, item);
+
+		final int records = appended.get(jid) + 1;
+		final List<XMLPacket> items = loaded.getItems(jid);
+		if (records > items.size()) {
+			setRoster(jid, version, items);
+		} else {
+			write(jid, version, Collections.singletonList(item), true);
+			appended.put(jid, records);
+		}
+	}
+
+	private void load(final XmppURI jid) {
+		if (appended.containsKey(jid))
+			return;
+
+		appended.put(jid, 0);
+		final File file = fileOf(jid);
+		if (!file.exists())
+			return;
+
+		final Map<String, XMLPacket> items = Maps.newLinkedHashMap();
+		String version = null;
+		int records = 0;
+		try {
+			final DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				while (true) {
+					final String recordVersion = input.readUTF();
+					final String xml = input.readUTF();
+					version = recordVersion;
+					records++;
+					final XMLPacket item = xml.length() > 0 ? XMLBuilder.fromXML(xml) : null;
+					if (item == null) {
+						continue;
+					}
+					if (SubscriptionState.remove.name().equals(item.getAttribute("subscription"))) {
+						items.remove(item.getAttribute("jid"));
+					} else {
+						items.put(item.getAttribute("jid"), item);
+					}
+				}
+			} catch (final EOFException e) {
+				// An incomplete record at the end is ignored
+			} finally {
+				input.close();
+			}
+		} catch (final IOException e) {
+			logger.log(Level.WARNING, "Error reading the roster file of " + jid, e);
+			return;
+		}
+
+		if (version != null) {
+			loaded.setRoster(jid, version, Lists.newArrayList(items.values()));
+			appended.put(jid, Math.max(0, records - items.size()));
+		}
+	}
+
+	private void write(final XmppURI jid, final String version, final List<XMLPacket> items, final boolean append) {
+		try {
+			final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileOf(jid), append)));
+			try {
+				if (items.isEmpty()) {
+					// Keep the version of an empty roster
+					output.writeUTF(version);
+					output.writeUTF("");
+				}
+				for (final XMLPacket item : items) {
+					output.writeUTF(version);
+					output.writeUTF(item.toString());
+				}
+			} finally {
+				output.close();
+			}
+		} catch (final IOException e) {
+			logger.log(Level.WARNING, "Error writing the roster file of " + jid, e);
+		}
+	}
+
+	private File fileOf(final XmppURI jid) {
+		directory.mkdirs();
+		try {
+			return new File(directory, URLEncoder.encode(jid.toString(), "UTF-8") + ".roster");
+		} catch (final UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
@@ -0,0 +1,88 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.im.roster;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import com.calclab.emite.base.xml.XMLPacket;
+import com.calclab.emite.core.XmppURI;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * A roster store kept in memory.
+ * 
+ * The stored rosters are lost when the application ends, but they still save
+ * the roster retrieval when a session logs in again.
+ */
+public class MemoryRosterStore implements RosterStore {
+
+	private final Map<XmppURI, String> versions;
+	private final Map<XmppURI, Map<String, XMLPacket>> rosters;
+
+	public MemoryRosterStore() {
+		versions = Maps.newHashMap();
+		rosters = Maps.newHashMap();
+	}
+
+	@Override
+	@Nullable
+	public String getVersion(final XmppURI user) {
+		return versions.get(user.getJID());
+	}
+
+	@Override
+	public List<XMLPacket> getItems(final XmppURI user) {
+		final Map<String, XMLPacket> items = rosters.get(user.getJID());
+		return items != null ? Lists.newArrayList(items.values()) : Lists.<XMLPacket> newArrayList();
+	}
+
+	@Override
+	public void setRoster(final XmppURI user, final String version, final List<XMLPacket> items) {
+		final Map<String, XMLPacket> roster = Maps.newLinkedHashMap();
+		for (final XMLPacket item : items) {
+			roster.put(item.getAttribute("jid"), item);
+		}
+		versions.put(user.getJID(), checkNotNull(version));
+		rosters.put(user.getJID(), roster);
+	}
+
+	@Override
+	public void updateItem(final XmppURI user, final String version, final XMLPacket item) {
+		Map<String, XMLPacket> roster = rosters.get(user.getJID());
+		if (roster == null) {
+			roster = Maps.newLinkedHashMap();
+			rosters.put(user.getJID(), roster);
+		}
+		if (SubscriptionState.remove.name().equals(item.getAttribute("subscription"))) {
+			roster.remove(item.getAttribute("jid"));
+		} else {
+			roster.put(item.getAttribute("jid"), item);
+		}
+		versions.put(user.getJID(), checkNotNull(version));
+	}
+
+}
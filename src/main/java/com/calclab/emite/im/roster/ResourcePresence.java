@@ -0,0 +1,139 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.im.roster;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import com.calclab.emite.core.stanzas.Presence;
+import com.google.common.base.Objects;
+
+/**
+ * The last available presence received from a resource of a roster item.
+ * 
+ * @see RosterItem#getResourcePresences()
+ */
+@Immutable
+public final class ResourcePresence {
+
+	@Nullable private final String resource;
+	private final int priority;
+	@Nullable private final Presence.Show show;
+	@Nullable private final String status;
+	private final long timestamp;
+
+	ResourcePresence(@Nullable final String resource, final int priority, @Nullable final Presence.Show show, @Nullable final String status, final long timestamp) {
+		this.resource = resource;
+		this.priority = priority;
+		this.show = show;
+		this.status = status;
+		this.timestamp = timestamp;
+	}
+
+	/**
+	 * Returns the resource that sent the presence.
+	 * 
+	 * @return the resource, or {@code null} if the presence came from the bare
+	 *         JID
+	 */
+	@Nullable
+	public String getResource() {
+		return resource;
+	}
+
+	/**
+	 * Returns the priority of the resource.
+	 * 
+	 * @return the priority of the resource
+	 */
+	public int getPriority() {
+		return priority;
+	}
+
+	/**
+	 * Returns the show of the presence.
+	 * 
+	 * @return the show, or {@code null} if the resource is just available
+	 */
+	@Nullable
+	public Presence.Show getShow() {
+		return show;
+	}
+
+	/**
+	 * Returns the status message of the presence.
+	 * 
+	 * @return the status message, or {@code null} if there is none
+	 */
+	@Nullable
+	public String getStatus() {
+		return status;
+	}
+
+	/**
+	 * Returns the time the presence was received.
+	 * 
+	 * @return the time of the presence (in milliseconds since the epoch)
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * Checks if this resource is preferred to another one to reach the
+	 * contact: a higher priority first, then a more available show. Equal
+	 * resources are not preferred, so the current best one keeps a tie.
+	 * 
+	 * @param other the other resource presence
+	 * @return {@code true} if this resource is preferred
+	 */
+	boolean isBetterThan(final ResourcePresence other) {
+		if (priority != other.priority)
+			return priority > other.priority;
+
+		final int level = getShowLevel(show);
+		final int otherLevel = getShowLevel(other.show);
+		return level > otherLevel;
+	}
+
+	private static int getShowLevel(@Nullable final Presence.Show show) {
+		if (show == null)
+			return 4;
+
+		switch (show) {
+		case chat:
+			return 5;
+		case away:
+			return 3;
+		case xa:
+			return 2;
+		default:
+			return 1;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return Objects.toStringHelper(this).add("resource", resource).add("priority", priority).add("show", show).add("status", status)
+				.add("timestamp", timestamp).toString();
+	}
+
+}
@@ -47,6 +47,7 @@ public class RosterGroup implements Iterable<RosterItem> {
 
 	private final String name;
 	private final Map<XmppURI, RosterItem> itemsByJID;
+	private final Map<Comparator<RosterItem>, List<RosterItem>> sortedViews;
 
 	/**
 	 * Creates a new roster group. If name is null, its supposed to be the
@@ -60,7 +61,8 @@ public class RosterGroup implements Iterable<RosterItem> {
 	public RosterGroup(final EventBus eventBus, final String groupName) {
 		this.eventBus = eventBus;
 		name = groupName;
-		itemsByJID = Maps.newHashMap();
+		itemsByJID = Maps.newLinkedHashMap();
+		sortedViews = Maps.newHashMap();
 	}
 
 	public HandlerRegistration addRosterItemChangedHandler(final RosterItemChangedEvent.Handler handler) {
@@ -75,7 +77,13 @@ public class RosterGroup implements Iterable<RosterItem> {
 	 *            same jid, it's replaced
 	 */
 	public void add(final RosterItem item) {
-		itemsByJID.put(item.getJID(), item);
+		final RosterItem old = itemsByJID.put(item.getJID(), item);
+		for (final Map.Entry<Comparator<RosterItem>, List<RosterItem>> view : sortedViews.entrySet()) {
+			if (old != null) {
+				removeFromView(view.getValue(), old);
+			}
+			insertInView(view.getValue(), view.getKey(), item);
+		}
 		eventBus.fireEventFromSource(new RosterItemChangedEvent(ChangeType.added, item), this);
 	}
 
@@ -105,6 +113,10 @@ public class RosterGroup implements Iterable<RosterItem> {
 	 * 
 	 */
 	public List<RosterItem> getItemList(final Comparator<RosterItem> comparator) {
+		final List<RosterItem> view = sortedViews.get(comparator);
+		if (view != null)
+			return new ArrayList<RosterItem>(view);
+
 		final List<RosterItem> list = new ArrayList<RosterItem>(getItems());
 		if (comparator != null) {
 			Collections.sort(list, comparator);
@@ -112,12 +124,36 @@ public class RosterGroup implements Iterable<RosterItem> {
 		return list;
 	}
 
+	/**
+	 * Return a read-only list of the roster items kept sorted by the given
+	 * comparator.
+	 * 
+	 * The items are only sorted on the first call. Then the list is updated as
+	 * items are added, removed or changed, and {@link #getItemList} uses it
+	 * instead of sorting the items again.
+	 * 
+	 * @param comparator
+	 *            The comparator using to sort the items
+	 * @return a view-only list of the roster items of this group
+	 * 
+	 * @see RosterItemsOrder
+	 */
+	public List<RosterItem> getSortedItems(final Comparator<RosterItem> comparator) {
+		List<RosterItem> view = sortedViews.get(comparator);
+		if (view == null) {
+			view = new ArrayList<RosterItem>(getItems());
+			Collections.sort(view, comparator);
+			sortedViews.put(comparator, view);
+		}
+		return Collections.unmodifiableList(view);
+	}
+
 	/**
 	 * Return the collection of roster items in this group. This collection
 	 * should be not modified directly (since is the backend of the group).
 	 * 
-	 * @return a view-only collection of roster items of this group with no
-	 *         specific order
+	 * @return a view-only collection of roster items of this group in the
+	 *         order they were added
 	 */
 	public Collection<RosterItem> getItems() {
 		return itemsByJID.values();
@@ -147,13 +183,49 @@ public class RosterGroup implements Iterable<RosterItem> {
 	public RosterItem remove(final XmppURI jid) {
 		final RosterItem removed = itemsByJID.remove(jid);
 		if (removed != null) {
+			for (final List<RosterItem> view : sortedViews.values()) {
+				removeFromView(view, removed);
+			}
 			eventBus.fireEventFromSource(new RosterItemChangedEvent(ChangeType.removed, removed), this);
 		}
 		return removed;
 	}
 
+	/**
+	 * Moves a changed item to its place in the sorted views.
+	 * 
+	 * @param item
+	 *            the item whose name or presence has changed
+	 */
+	void itemChanged(final RosterItem item) {
+		for (final Map.Entry<Comparator<RosterItem>, List<RosterItem>> view : sortedViews.entrySet()) {
+			if (removeFromView(view.getValue(), item)) {
+				insertInView(view.getValue(), view.getKey(), item);
+			}
+		}
+	}
+
 	void clear() {
 		itemsByJID.clear();
+		for (final List<RosterItem> view : sortedViews.values()) {
+			view.clear();
+		}
+	}
+
+	private static boolean removeFromView(final List<RosterItem> view, final RosterItem item) {
+		// The item may have changed, so its old place is looked up by identity
+		for (int i = 0; i < view.size(); i++) {
+			if (view.get(i) == item) {
+				view.remove(i);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static void insertInView(final List<RosterItem> view, final Comparator<RosterItem> comparator, final RosterItem item) {
+		final int index = Collections.binarySearch(view, item, comparator);
+		view.add(index < 0 ? -index - 1 : index, item);
 	}
 
 }
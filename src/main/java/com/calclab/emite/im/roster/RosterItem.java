@@ -22,14 +22,19 @@ package com.calclab.emite.im.roster;
 
 import static com.calclab.emite.core.XmppURI.uri;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
+import javax.annotation.Nullable;
+
 import com.calclab.emite.base.xml.XMLPacket;
 import com.calclab.emite.core.XmppURI;
 import com.calclab.emite.core.stanzas.Presence;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Sets;
+import com.google.common.collect.Maps;
 
 /**
  * Represents a item (contact) in the Roster. Usually you don't create this
@@ -83,7 +88,9 @@ public class RosterItem {
 
 	private SubscriptionState subscriptionState;
 	private final Presence.Type ask;
-	private final Set<String> availableResources;
+	private final Map<String, ResourcePresence> resources;
+	// The preferred available resource, updated with every resource presence
+	@Nullable private ResourcePresence best;
 
 	/**
 	 * Create a RosterItem object
@@ -103,7 +110,7 @@ public class RosterItem {
 		this.subscriptionState = subscriptionState;
 		this.name = name;
 		groups = Lists.newArrayList();
-		availableResources = Sets.newHashSet();
+		resources = Maps.newLinkedHashMap();
 		status = null;
 	}
 
@@ -155,7 +162,40 @@ public class RosterItem {
 	 * @return
 	 */
 	Set<String> getAvailableResources() {
-		return availableResources;
+		return resources.keySet();
+	}
+
+	/**
+	 * Return the last presence of every available resource of this item.
+	 * 
+	 * @return a read-only collection of resource presences
+	 */
+	public Collection<ResourcePresence> getResourcePresences() {
+		return Collections.unmodifiableCollection(resources.values());
+	}
+
+	/**
+	 * Return the last presence of an available resource of this item.
+	 * 
+	 * @param resource
+	 *            the resource
+	 * @return the resource presence, or null if the resource is not available
+	 */
+	@Nullable
+	public ResourcePresence getResourcePresence(@Nullable final String resource) {
+		return resources.get(resource);
+	}
+
+	/**
+	 * Return the presence of the preferred resource to reach this item: the
+	 * one with the highest priority, then the most available show. On a tie
+	 * the current best resource is kept.
+	 * 
+	 * @return the best resource presence, or null if the item is not available
+	 */
+	@Nullable
+	public ResourcePresence getBestResource() {
+		return best;
 	}
 
 	/**
@@ -187,21 +227,23 @@ public class RosterItem {
 	}
 
 	/**
-	 * Get the current show of this item
+	 * Get the current show of this item, which is the show of the best
+	 * resource if the item is available
 	 * 
 	 * @return the show of the item
 	 */
 	public Presence.Show getShow() {
-		return show;
+		return best != null ? best.getShow() : show;
 	}
 
 	/**
-	 * Get the current status of this item
+	 * Get the current status of this item, which is the status of the best
+	 * resource if the item is available
 	 * 
 	 * @return the status message
 	 */
 	public String getStatus() {
-		return status;
+		return best != null ? best.getStatus() : status;
 	}
 
 	public SubscriptionState getSubscriptionState() {
@@ -214,7 +256,7 @@ public class RosterItem {
 	 * @return true if contact is available
 	 */
 	public boolean isAvailable() {
-		return !availableResources.isEmpty();
+		return !resources.isEmpty();
 	}
 
 	/**
@@ -252,8 +294,53 @@ public class RosterItem {
 	 * @param availableResources
 	 */
 	void setAvaialableResources(final Set<String> availableResources) {
-		this.availableResources.clear();
-		this.availableResources.addAll(availableResources);
+		resources.clear();
+		best = null;
+		for (final String resource : availableResources) {
+			setResourcePresence(new ResourcePresence(resource, 0, null, null, 0));
+		}
+	}
+
+	/**
+	 * Store the presence of an available resource and update the best
+	 * resource. Another resource only takes over when it is strictly better.
+	 * Only when the best resource gets worse all the resources are checked
+	 * again, and then the most recent of the equal ones wins.
+	 * 
+	 * @param presence
+	 *            the resource presence
+	 */
+	void setResourcePresence(final ResourcePresence presence) {
+		final ResourcePresence old = resources.put(presence.getResource(), presence);
+		if (best == null || presence.isBetterThan(best)) {
+			best = presence;
+		} else if (old == best) {
+			best = findBest();
+		}
+	}
+
+	/**
+	 * Remove the presence of a resource that is not available anymore.
+	 * 
+	 * @param resource
+	 *            the resource
+	 */
+	void removeResourcePresence(@Nullable final String resource) {
+		final ResourcePresence old = resources.remove(resource);
+		if (old != null && old == best) {
+			best = findBest();
+		}
+	}
+
+	@Nullable
+	private ResourcePresence findBest() {
+		ResourcePresence result = null;
+		for (final ResourcePresence presence : resources.values()) {
+			if (result == null || presence.isBetterThan(result) || !result.isBetterThan(presence) && presence.getTimestamp() > result.getTimestamp()) {
+				result = presence;
+			}
+		}
+		return result;
 	}
 
 	/**
@@ -270,10 +357,10 @@ public class RosterItem {
 	 *            the resource (if any)
 	 */
 	public void setAvailable(final boolean isAvailable, final String resource) {
-		if (isAvailable) {
-			availableResources.add(resource);
-		} else {
-			availableResources.remove(resource);
+		if (!isAvailable) {
+			removeResourcePresence(resource);
+		} else if (!resources.containsKey(resource)) {
+			setResourcePresence(new ResourcePresence(resource, 0, null, null, System.currentTimeMillis()));
 		}
 	}
 
@@ -299,6 +386,9 @@ public class RosterItem {
 	 * This method is called by the roster to reflect the state change of the
 	 * items: usually you don't call this method.
 	 * 
+	 * While the item is available, the show of the best resource is used
+	 * instead.
+	 * 
 	 * @param show
 	 *            the new presence show state
 	 */
@@ -311,6 +401,9 @@ public class RosterItem {
 	 * server side. This method is called by the roster to reflect the state
 	 * change of the items: usually you don't call this method.
 	 * 
+	 * While the item is available, the status of the best resource is used
+	 * instead.
+	 * 
 	 * @param status
 	 *            the new status
 	 */
@@ -55,6 +55,9 @@ public class RosterItemsOrder {
 		}
 
 		private int getShowLevel(final RosterItem item) {
+			if (item.getShow() == null)
+				return 3;
+
 			switch (item.getShow()) {
 			case dnd:
 				return 1;
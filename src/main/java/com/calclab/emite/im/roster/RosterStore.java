@@ -0,0 +1,80 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.im.roster;
+
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import com.calclab.emite.base.xml.XMLPacket;
+import com.calclab.emite.core.XmppURI;
+
+/**
+ * A local copy of the roster of each user, used for roster versioning.
+ * 
+ * The roster keeps the items of the last retrieved roster and every roster
+ * push in the store, so the next login only needs the changes made since the
+ * stored version.
+ * 
+ * @see <a href="http://xmpp.org/rfcs/rfc6121.html#roster-versioning">RFC 6121
+ *      Roster Versioning</a>
+ * @see XmppRoster#setStore(RosterStore)
+ */
+public interface RosterStore {
+
+	/**
+	 * Returns the version of the stored roster.
+	 * 
+	 * @param user the bare JID of the roster owner
+	 * @return the roster version, or {@code null} if no roster is stored
+	 */
+	@Nullable
+	String getVersion(XmppURI user);
+
+	/**
+	 * Returns the stored roster items.
+	 * 
+	 * @param user the bare JID of the roster owner
+	 * @return the roster item elements, empty if no roster is stored
+	 */
+	List<XMLPacket> getItems(XmppURI user);
+
+	/**
+	 * Replaces the stored roster.
+	 * 
+	 * @param user the bare JID of the roster owner
+	 * @param version the version of the roster
+	 * @param items the roster item elements
+	 */
+	void setRoster(XmppURI user, String version, List<XMLPacket> items);
+
+	/**
+	 * Updates a stored roster item.
+	 * 
+	 * Items with a {@code remove} subscription are removed from the store.
+	 * 
+	 * @param user the bare JID of the roster owner
+	 * @param version the version of the roster after the change
+	 * @param item the roster item element
+	 */
+	void updateItem(XmppURI user, String version, XMLPacket item);
+
+}
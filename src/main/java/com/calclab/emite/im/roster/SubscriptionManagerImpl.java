@@ -28,6 +28,7 @@ import com.calclab.emite.base.xml.XMLPacket;
 import com.calclab.emite.core.XmppNamespaces;
 import com.calclab.emite.core.XmppURI;
 import com.calclab.emite.core.events.PresenceReceivedEvent;
+import com.calclab.emite.core.session.StanzaRoute;
 import com.calclab.emite.core.session.XmppSession;
 import com.calclab.emite.core.stanzas.Presence;
 import com.calclab.emite.im.events.RosterItemChangedEvent;
@@ -54,17 +55,15 @@ public class SubscriptionManagerImpl implements SubscriptionManager, PresenceRec
 		this.session = checkNotNull(session);
 		this.roster = checkNotNull(roster);
 
-		session.addPresenceReceivedHandler(this);
+		session.addPresenceReceivedHandler(StanzaRoute.ANY.ofType(Presence.Type.subscribe.toString()), this);
 		roster.addRosterItemChangedHandler(this);
 	}
 
 	@Override
 	public void onPresenceReceived(final PresenceReceivedEvent event) {
 		final Presence presence = event.getPresence();
-		if (presence.getType() == Presence.Type.subscribe) {
-			final XMLPacket nick = presence.getExtension("nick", XmppNamespaces.NICK);
-			eventBus.fireEventFromSource(new SubscriptionRequestReceivedEvent(presence.getFrom(), nick.getText()), this);
-		}
+		final XMLPacket nick = presence.getExtension("nick", XmppNamespaces.NICK);
+		eventBus.fireEventFromSource(new SubscriptionRequestReceivedEvent(presence.getFrom(), nick.getText()), this);
 	}
 
 	@Override
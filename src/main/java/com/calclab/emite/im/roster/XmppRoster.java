@@ -23,6 +23,8 @@ package com.calclab.emite.im.roster;
 import java.util.Collection;
 import java.util.Set;
 
+import javax.annotation.Nullable;
+
 import com.calclab.emite.core.XmppURI;
 import com.calclab.emite.im.events.RosterGroupChangedEvent;
 import com.calclab.emite.im.events.RosterItemChangedEvent;
@@ -174,4 +176,17 @@ public interface XmppRoster {
 	 */
 	void reRequestRoster();
 
+	/**
+	 * Set a store to keep a local copy of the roster.
+	 * 
+	 * If the server supports roster versioning, the stored roster is used as
+	 * soon as the session is logged in, and the server only sends the changes
+	 * made since the stored version.
+	 * 
+	 * @param store
+	 *            the roster store, or {@code null} to always retrieve the full
+	 *            roster
+	 */
+	void setStore(@Nullable RosterStore store);
+
 }
@@ -25,6 +25,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import javax.annotation.Nullable;
+
 import com.calclab.emite.base.xml.XMLPacket;
 import com.calclab.emite.core.IQCallback;
 import com.calclab.emite.core.XmppNamespaces;
@@ -35,14 +37,19 @@ import com.calclab.emite.core.events.RequestFailedEvent;
 import com.calclab.emite.core.events.SessionStatusChangedEvent;
 import com.calclab.emite.core.events.ChangedEvent.ChangeType;
 import com.calclab.emite.core.session.SessionStatus;
+import com.calclab.emite.core.session.StanzaRoute;
 import com.calclab.emite.core.session.XmppSession;
 import com.calclab.emite.core.stanzas.IQ;
 import com.calclab.emite.core.stanzas.Presence;
 import com.calclab.emite.im.events.RosterGroupChangedEvent;
 import com.calclab.emite.im.events.RosterItemChangedEvent;
 import com.calclab.emite.im.events.RosterRetrievedEvent;
+import com.google.common.base.Objects;
+import com.google.common.collect.LinkedHashMultimap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.SetMultimap;
+import com.google.common.collect.Sets;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.google.inject.name.Named;
@@ -58,6 +65,10 @@ public final class XmppRosterImpl implements XmppRoster, SessionStatusChangedEve
 	private boolean rosterReady = false;
 	private final Map<String, RosterGroup> groups;
 	private final RosterGroup all;
+	// The names of the groups of each item, not including the whole roster
+	private final SetMultimap<XmppURI, String> groupsByJID;
+
+	@Nullable private RosterStore store;
 
 	@Inject
 	protected XmppRosterImpl(@Named("emite") final EventBus eventBus, final XmppSession session) {
@@ -66,10 +77,12 @@ public final class XmppRosterImpl implements XmppRoster, SessionStatusChangedEve
 
 		groups = Maps.newHashMap();
 		all = new RosterGroup(eventBus, null);
+		groupsByJID = LinkedHashMultimap.create();
 
 		session.addSessionStatusChangedHandler(this, true);
-		session.addPresenceReceivedHandler(this);
-		session.addIQRequestReceivedHandler(this);
+		// Available (without a type) and unavailable presences
+		session.addPresenceReceivedHandler(StanzaRoute.ANY.ofType("", Presence.Type.unavailable.toString()), this);
+		session.addIQRequestReceivedHandler(StanzaRoute.ANY.withChild(XmppNamespaces.ROSTER), this);
 	}
 
 	@Override
@@ -86,40 +99,34 @@ public final class XmppRosterImpl implements XmppRoster, SessionStatusChangedEve
 		if (item != null) {
 			final String resource = presence.getFrom().getResource();
 
-			boolean hasChanged = false;
-
-			final boolean wasAvailable = item.getAvailableResources().contains(resource);
+			final boolean wasAvailable = item.isAvailable();
+			final Presence.Show show = item.getShow();
+			final String status = item.getStatus();
 
 			if (presence.getType() == Presence.Type.unavailable) {
-				if (wasAvailable) {
-					hasChanged = true;
-					item.setAvailable(false, resource);
+				item.removeResourcePresence(resource);
+				if (!item.isAvailable()) {
+					// Keep the show and status of the last resource
+					item.setShow(presence.getShow());
+					item.setStatus(presence.getStatus());
 				}
 			} else {
-				if (!wasAvailable) {
-					hasChanged = true;
-					item.setAvailable(true, resource);
-				}
-			}
-			
-			if (!presence.getShow().equals(item.getShow())) {
-				hasChanged = true;
-				item.setShow(presence.getShow());
-			}
-
-			if (item.getStatus() == null && presence.getStatus() != null || item.getStatus() != null && !item.getStatus().equals(presence.getStatus())) {
-				hasChanged = true;
-				item.setStatus(presence.getStatus());
+				item.setResourcePresence(new ResourcePresence(resource, presence.getPriority(), presence.getShow(), presence.getStatus(),
+						System.currentTimeMillis()));
 			}
 
+			// Only changes of the best resource change the item
+			final boolean hasChanged = wasAvailable != item.isAvailable() || !Objects.equal(show, item.getShow())
+					|| !Objects.equal(status, item.getStatus());
 			if (hasChanged) {
+				all.itemChanged(item);
 				final RosterItemChangedEvent changeEvent = new RosterItemChangedEvent(ChangeType.modified, item);
 				eventBus.fireEventFromSource(changeEvent, this);
 
-				for (final RosterGroup group : groups.values()) {
-					if (group.hasItem(item.getJID())) {
-						eventBus.fireEventFromSource(changeEvent, this);
-					}
+				for (final String groupName : groupsByJID.get(item.getJID())) {
+					final RosterGroup group = groups.get(groupName);
+					group.itemChanged(item);
+					eventBus.fireEventFromSource(changeEvent, group);
 				}
 			}
 		}
@@ -131,8 +138,13 @@ public final class XmppRosterImpl implements XmppRoster, SessionStatusChangedEve
 		if (IQ.Type.set.equals(iq.getType())) {
 			final XMLPacket query = iq.getQuery(XmppNamespaces.ROSTER);
 			if (query != null) {
+				final XmppURI user = session.getCurrentUserURI();
+				final String version = query.getAttribute("ver");
 				for (final XMLPacket child : query.getChildren()) {
 					handleItemChanged(RosterItem.parse(child));
+					if (store != null && user != null && version != null) {
+						store.updateItem(user, version, child);
+					}
 				}
 			}
 
@@ -178,10 +190,17 @@ public final class XmppRosterImpl implements XmppRoster, SessionStatusChangedEve
 			group = addGroup(groupName);
 		}
 		group.add(item);
+		if (groupName != null) {
+			groupsByJID.put(item.getJID(), groupName);
+		}
 	}
 
 	private void clearGroupAll() {
 		all.clear();
+		for (final RosterGroup group : groups.values()) {
+			group.clear();
+		}
+		groupsByJID.clear();
 	}
 
 	@Override
@@ -294,27 +313,41 @@ public final class XmppRosterImpl implements XmppRoster, SessionStatusChangedEve
 		});
 	}
 
+	@Override
+	public void setStore(@Nullable final RosterStore store) {
+		this.store = store;
+	}
+
 	@Override
 	public void reRequestRoster() {
-		if (session.getCurrentUserURI() != null) {
+		final XmppURI user = session.getCurrentUserURI();
+		if (user != null) {
 			final IQ iq = new IQ(IQ.Type.get);
-			iq.addQuery(XmppNamespaces.ROSTER);
+			final XMLPacket query = iq.addQuery(XmppNamespaces.ROSTER);
+
+			final RosterStore versionStore = isVersioningSupported() ? store : null;
+			if (versionStore != null) {
+				final String version = versionStore.getVersion(user);
+				query.setAttribute("ver", version != null ? version : "");
+				if (version != null) {
+					// Use the local copy until the server sends the changes
+					setRoster(versionStore.getItems(user));
+				}
+			}
 
 			session.sendIQ("roster", iq, new IQCallback() {
 				@Override
 				public void onIQSuccess(final IQ iq) {
-					clearGroupAll();
-
-					for (final XMLPacket child : iq.getQuery(XmppNamespaces.ROSTER).getChildren()) {
-						final RosterItem item = RosterItem.parse(child);
-						storeItem(item);
-					}
-
-					if (!rosterReady) {
-						rosterReady = true;
-						session.setStatus(SessionStatus.rosterReady);
+					final XMLPacket result = iq.getQuery(XmppNamespaces.ROSTER);
+					if (result == null)
+						// The local copy is up to date, changes come as pushes
+						return;
+
+					setRoster(result.getChildren());
+					final String version = result.getAttribute("ver");
+					if (versionStore != null && version != null) {
+						versionStore.setRoster(user, version, result.getChildren());
 					}
-					eventBus.fireEventFromSource(new RosterRetrievedEvent(getItems()), this);
 				}
 
 				@Override
@@ -325,6 +358,33 @@ public final class XmppRosterImpl implements XmppRoster, SessionStatusChangedEve
 		}
 	}
 
+	private boolean isVersioningSupported() {
+		final XMLPacket features = session.getStreamFeatures();
+		return features != null && features.hasChild("ver", XmppNamespaces.ROSTER_VER);
+	}
+
+	private void setRoster(final List<XMLPacket> items) {
+		clearGroupAll();
+
+		for (final XMLPacket child : items) {
+			final RosterItem item = RosterItem.parse(child);
+			storeItem(item);
+		}
+
+		// Remove the groups left without items
+		for (final String groupName : Lists.newArrayList(groups.keySet())) {
+			if (groupName != null && groups.get(groupName).getSize() == 0) {
+				removeGroup(groupName);
+			}
+		}
+
+		if (!rosterReady) {
+			rosterReady = true;
+			session.setStatus(SessionStatus.rosterReady);
+		}
+		eventBus.fireEventFromSource(new RosterRetrievedEvent(getItems()), this);
+	}
+
 	private void addOrUpdateItem(final XmppURI jid, final String name, final SubscriptionState subscriptionState, final String... groups) {
 		final RosterItem item = new RosterItem(jid, subscriptionState, name, null);
 		item.setGroups(groups);
@@ -363,15 +423,16 @@ public final class XmppRosterImpl implements XmppRoster, SessionStatusChangedEve
 	}
 
 	private void removeItem(final RosterItem item) {
-		final List<String> groupsToRemove = Lists.newArrayList();
-		for (final String groupName : getGroupNames()) {
-			final RosterGroup group = getRosterGroup(groupName);
-			group.remove(item.getJID());
-			if (group.getName() != null && group.getSize() == 0) {
-				groupsToRemove.add(groupName);
-			}
+		all.remove(item.getJID());
+		for (final String groupName : groupsByJID.removeAll(item.getJID())) {
+			removeFromGroup(item, groupName);
 		}
-		for (final String groupName : groupsToRemove) {
+	}
+
+	private void removeFromGroup(final RosterItem item, final String groupName) {
+		final RosterGroup group = groups.get(groupName);
+		group.remove(item.getJID());
+		if (group.getSize() == 0) {
 			removeGroup(groupName);
 		}
 	}
@@ -380,52 +441,28 @@ public final class XmppRosterImpl implements XmppRoster, SessionStatusChangedEve
 		item.setSubscriptionState(newItem.getSubscriptionState());
 		item.setName(newItem.getName());
 
-		final List<String> groups = item.getGroups();
-		final List<String> newGroups = newItem.getGroups();
+		final Set<String> groups = groupsByJID.get(item.getJID());
+		final Set<String> newGroups = Sets.newLinkedHashSet(newItem.getGroups());
 
-		// Go through and remove any old groups which aren't on the new item
-		for (final String group : groups) {
-			if (!newGroups.contains(group)) {
-				item.removeFromGroup(group);
-			}
+		// Remove the item from the groups which aren't on the new item
+		for (final String group : Lists.newArrayList(Sets.difference(groups, newGroups))) {
+			item.removeFromGroup(group);
+			groupsByJID.remove(item.getJID(), group);
+			removeFromGroup(item, group);
 		}
 
-		// Then go through and add in any new groups which aren't on the
-		// existing item
+		// Then add it to the new groups
 		for (final String group : newGroups) {
-			// Update the existing item
 			if (!groups.contains(group)) {
 				item.addToGroup(group);
-			}
-
-			// And update the roster group accordingly
-			RosterGroup rosterGroup = XmppRosterImpl.this.getRosterGroup(group);
-
-			if (rosterGroup == null) {
-				rosterGroup = addGroup(group);
-			}
-
-			if (!rosterGroup.hasItem(item.getJID())) {
-				rosterGroup.add(item);
-			}
-		}
-
-		// And remove the item from any groups it may still be in
-		final List<String> groupsToRemove = Lists.newArrayList();
-
-		for (final RosterGroup rosterGroup : getRosterGroups()) {
-			if (rosterGroup.getName() != null && !newGroups.contains(rosterGroup.getName()) && rosterGroup.hasItem(item.getJID())) {
-				rosterGroup.remove(item.getJID());
-
-				if (rosterGroup.getSize() == 0) {
-					groupsToRemove.add(rosterGroup.getName());
-				}
+				addToGroup(item, group);
 			}
 		}
 
-		// Remove any groups which are now empty
-		for (final String groupName : groupsToRemove) {
-			removeGroup(groupName);
+		// The name may have changed the order of the item
+		all.itemChanged(item);
+		for (final String group : groups) {
+			this.groups.get(group).itemChanged(item);
 		}
 	}
 
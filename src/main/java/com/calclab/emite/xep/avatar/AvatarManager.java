@@ -24,6 +24,7 @@ import com.calclab.emite.base.xml.XMLPacket;
 import com.calclab.emite.core.IQCallback;
 import com.calclab.emite.core.XmppURI;
 import com.calclab.emite.core.events.PresenceReceivedEvent;
+import com.calclab.emite.core.session.StanzaRoute;
 import com.calclab.emite.core.session.XmppSession;
 import com.calclab.emite.core.stanzas.IQ;
 import com.calclab.emite.core.stanzas.Presence;
@@ -49,7 +50,7 @@ public class AvatarManager implements PresenceReceivedEvent.Handler {
 		this.eventBus = eventBus;
 		this.session = session;
 
-		session.addPresenceReceivedHandler(this);
+		session.addPresenceReceivedHandler(StanzaRoute.ANY.withChild("vcard-temp:x:update"), this);
 	}
 
 	@Override
@@ -29,6 +29,7 @@ import com.calclab.emite.core.IQCallback;
 import com.calclab.emite.core.XmppNamespaces;
 import com.calclab.emite.core.XmppURI;
 import com.calclab.emite.core.events.IQRequestReceivedEvent;
+import com.calclab.emite.core.session.StanzaRoute;
 import com.calclab.emite.core.session.XmppSession;
 import com.calclab.emite.core.stanzas.IQ;
 import com.google.common.collect.ImmutableSet;
@@ -57,7 +58,8 @@ public final class DiscoveryManagerImpl implements DiscoveryManager, IQRequestRe
 		featureCache = Maps.newHashMap();
 		identityCache = Maps.newHashMap();
 		
-		session.addIQRequestReceivedHandler(this);
+		session.addIQRequestReceivedHandler(StanzaRoute.ANY.withChild(XmppNamespaces.DISCO_INFO), this);
+		session.addIQRequestReceivedHandler(StanzaRoute.ANY.withChild(XmppNamespaces.DISCO_ITEMS), this);
 	}
 	
 	@Override
@@ -20,10 +20,18 @@
 
 package com.calclab.emite.xep.muc;
 
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Arrays;
+import java.util.Map;
+
 import javax.annotation.Nullable;
 
 import com.calclab.emite.core.XmppURI;
 import com.calclab.emite.core.stanzas.Presence;
+import com.google.common.base.Functions;
+import com.google.common.base.Objects;
+import com.google.common.collect.Maps;
 
 /**
  * A room occupant: each occupant in a room is identified as
@@ -31,6 +39,9 @@ import com.calclab.emite.core.stanzas.Presence;
  * specified on entering the room or subsequently changed during the occupant's
  * visit.
  * 
+ * Large rooms keep thousands of occupants, so the affiliation, role and show
+ * are packed in a single int.
+ * 
  * @see http://xmpp.org/extensions/xep-0045.html
  */
 public final class Occupant {
@@ -43,24 +54,60 @@ public final class Occupant {
 		moderator, participant, unknown, visitor
 	}
 
+	private static final Affiliation[] AFFILIATIONS = Affiliation.values();
+	private static final Role[] ROLES = Role.values();
+	private static final Presence.Show[] SHOWS = Presence.Show.values();
+
+	private static final Map<String, Affiliation> AFFILIATIONS_BY_NAME = Maps.uniqueIndex(Arrays.asList(AFFILIATIONS), Functions.toStringFunction());
+	private static final Map<String, Role> ROLES_BY_NAME = Maps.uniqueIndex(Arrays.asList(ROLES), Functions.toStringFunction());
+
+	// Four bits per field, the show is stored plus one so 0 is no show
+	private static final int MASK = 0xf;
+	private static final int ROLE_SHIFT = 4;
+	private static final int SHOW_SHIFT = 8;
+
 	private final XmppURI occupantUri;
-	private final XmppURI userUri;
-	
-	private Affiliation affiliation;
-	private Role role;
-	private Presence.Show show;
+	@Nullable private final XmppURI userUri;
+
+	private int state;
 	@Nullable private String statusMessage;
 
-	public Occupant(final XmppURI occupantUri, final XmppURI userUri, final String affiliation, final String role, final Presence.Show show, final String statusMessage) {
+	public Occupant(final XmppURI occupantUri, @Nullable final XmppURI userUri, @Nullable final String affiliation, @Nullable final String role, @Nullable final Presence.Show show, @Nullable final String statusMessage) {
+		this.occupantUri = checkNotNull(occupantUri);
 		this.userUri = userUri;
-		this.occupantUri = occupantUri;
-		
-		setAffiliation(affiliation);
-		setRole(role);
-		setShow(show);
 		this.statusMessage = statusMessage;
+		state = pack(parseAffiliation(affiliation), parseRole(role), show);
 	}
-	
+
+	/**
+	 * Parses an affiliation attribute.
+	 * 
+	 * @param affiliation
+	 *            the attribute value
+	 * @return the affiliation, or {@code none} if it is not valid
+	 */
+	static final Affiliation parseAffiliation(@Nullable final String affiliation) {
+		final Affiliation result = affiliation != null ? AFFILIATIONS_BY_NAME.get(affiliation) : null;
+		return result != null ? result : Affiliation.none;
+	}
+
+	/**
+	 * Parses a role attribute.
+	 * 
+	 * @param role
+	 *            the attribute value
+	 * @return the role, or {@code unknown} if it is not valid
+	 */
+	static final Role parseRole(@Nullable final String role) {
+		final Role result = role != null ? ROLES_BY_NAME.get(role) : null;
+		return result != null ? result : Role.unknown;
+	}
+
+	private static final int pack(final Affiliation affiliation, final Role role, @Nullable final Presence.Show show) {
+		final int showBits = show != null ? show.ordinal() + 1 : 0;
+		return affiliation.ordinal() | role.ordinal() << ROLE_SHIFT | showBits << SHOW_SHIFT;
+	}
+
 	/**
 	 * Get the occupant uri (the room jid and the nick as resource)
 	 * 
@@ -73,8 +120,9 @@ public final class Occupant {
 	/**
 	 * Gets the user uri associated to this occupant
 	 * 
-	 * @return
+	 * @return the user uri, or {@code null} in anonymous rooms
 	 */
+	@Nullable
 	public final XmppURI getUserUri() {
 		return userUri;
 	}
@@ -94,39 +142,29 @@ public final class Occupant {
 	 * @return
 	 */
 	public final Affiliation getAffiliation() {
-		return affiliation;
+		return AFFILIATIONS[state & MASK];
 	}
 
-	public final void setAffiliation(final String affiliation) {
-		try {
-			this.affiliation = Affiliation.valueOf(affiliation);
-		} catch (final IllegalArgumentException e) {
-			this.affiliation = Affiliation.none;
-		} catch (final NullPointerException e) {
-			this.affiliation = Affiliation.none;
-		}
+	public final void setAffiliation(@Nullable final String affiliation) {
+		state = pack(parseAffiliation(affiliation), getRole(), getShow());
 	}
 
 	public final Role getRole() {
-		return role;
+		return ROLES[state >> ROLE_SHIFT & MASK];
 	}
 	
-	public final void setRole(final String role) {
-		try {
-			this.role = Role.valueOf(role);
-		} catch (final IllegalArgumentException e) {
-			this.role = Role.unknown;
-		} catch (final NullPointerException e) {
-			this.role = Role.unknown;
-		}
+	public final void setRole(@Nullable final String role) {
+		state = pack(getAffiliation(), parseRole(role), getShow());
 	}
 
+	@Nullable
 	public final Presence.Show getShow() {
-		return show;
+		final int showBits = state >> SHOW_SHIFT & MASK;
+		return showBits != 0 ? SHOWS[showBits - 1] : null;
 	}
 	
-	public final void setShow(final Presence.Show show) {
-		this.show = show;
+	public final void setShow(@Nullable final Presence.Show show) {
+		state = pack(getAffiliation(), getRole(), show);
 	}
 
 	/**
@@ -143,9 +181,24 @@ public final class Occupant {
 		this.statusMessage = statusMessage;
 	}
 
+	/**
+	 * Updates the presence of this occupant.
+	 * 
+	 * @return {@code true} if anything changed, {@code false} otherwise
+	 */
+	final boolean update(final Affiliation affiliation, final Role role, @Nullable final Presence.Show show, @Nullable final String statusMessage) {
+		final int newState = pack(affiliation, role, show);
+		if (newState == state && Objects.equal(this.statusMessage, statusMessage))
+			return false;
+
+		state = newState;
+		this.statusMessage = statusMessage;
+		return true;
+	}
+
 	@Override
 	public final String toString() {
-		return occupantUri.toString() + "(" + affiliation + "," + role + "," + show + "," + statusMessage + ")";
+		return occupantUri.toString() + "(" + getAffiliation() + "," + getRole() + "," + getShow() + "," + statusMessage + ")";
 	}
 
 }
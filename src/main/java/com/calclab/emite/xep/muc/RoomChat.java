@@ -24,7 +24,12 @@ import static com.google.common.base.Preconditions.checkNotNull;
 
 import java.util.Collection;
 import java.util.Map;
+import java.util.Set;
 
+import javax.annotation.Nullable;
+
+import com.calclab.emite.base.util.ActionScheduler;
+import com.calclab.emite.base.util.ScheduledAction;
 import com.calclab.emite.base.util.XmppDateTime;
 import com.calclab.emite.base.xml.XMLPacket;
 import com.calclab.emite.core.IQCallback;
@@ -44,20 +49,33 @@ import com.calclab.emite.core.stanzas.Stanza;
 import com.calclab.emite.xep.dataforms.Form;
 import com.calclab.emite.xep.muc.events.BeforeRoomInvitationSentEvent;
 import com.calclab.emite.xep.muc.events.OccupantChangedEvent;
+import com.calclab.emite.xep.muc.events.OccupantsChangedEvent;
 import com.calclab.emite.xep.muc.events.RoomChatChangedEvent;
 import com.calclab.emite.xep.muc.events.RoomInvitationSentEvent;
 import com.calclab.emite.xep.muc.events.RoomSubjectChangedEvent;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.web.bindery.event.shared.EventBus;
 import com.google.web.bindery.event.shared.HandlerRegistration;
 
 /**
  * A Room implementation. You can create rooms using RoomManager.
  * 
+ * The presences of the occupants already in the room are not announced one by
+ * one: a complete {@link OccupantsChangedEvent} is fired when our own presence
+ * arrives. Later changes fire an {@link OccupantChangedEvent} each, and are
+ * also coalesced in {@link OccupantsChangedEvent} batches.
+ * 
  * @see RoomChatManager
  */
 public final class RoomChat {
 	
+	/**
+	 * Default delay before firing a batch of occupant changes (in milliseconds).
+	 */
+	public static final int DEFAULT_OCCUPANT_CHANGES_DELAY = 250;
+
 	private static enum RoomStatus {
 		ready, locked;
 	}
@@ -65,26 +83,41 @@ public final class RoomChat {
 	private final RoomChatManagerImpl roomManager;
 	private final EventBus eventBus;
 	private final XmppSession session;
+	private final ActionScheduler scheduler;
 	
 	private final XmppURI roomUri;
 	private final XmppURI initiatorUri;
 	
-	private final Map<XmppURI, Occupant> occupantsByOccupantUri;
+	// Occupants by nick, the resource of their occupant uri
+	private final Map<String, Occupant> occupantsByNick;
 	private final Map<XmppURI, Occupant> occupantsByUserUri;
-	
+
+	// Changes not fired in a batch yet
+	private final Set<Occupant> addedOccupants;
+	private final Set<Occupant> modifiedOccupants;
+	private final Set<Occupant> removedOccupants;
+
 	private RoomStatus status;
+	private boolean occupantsComplete;
+	private boolean changesScheduled;
+	private int changesDelay;
 	
-	protected RoomChat(final RoomChatManagerImpl roomManager, final EventBus eventBus, final XmppSession session, final XmppURI roomUri, final XmppURI initiatorUri) {
+	protected RoomChat(final RoomChatManagerImpl roomManager, final EventBus eventBus, final XmppSession session, final ActionScheduler scheduler, final XmppURI roomUri, final XmppURI initiatorUri) {
 		this.roomManager = checkNotNull(roomManager);
 		this.eventBus = checkNotNull(eventBus);
 		this.session = checkNotNull(session);
+		this.scheduler = checkNotNull(scheduler);
 		this.roomUri = checkNotNull(roomUri);
 		this.initiatorUri = checkNotNull(initiatorUri);
 
-		occupantsByOccupantUri = Maps.newLinkedHashMap();
-		occupantsByUserUri = Maps.newLinkedHashMap();
+		occupantsByNick = Maps.newLinkedHashMap();
+		occupantsByUserUri = Maps.newHashMap();
+		addedOccupants = Sets.newLinkedHashSet();
+		modifiedOccupants = Sets.newLinkedHashSet();
+		removedOccupants = Sets.newLinkedHashSet();
 		
 		status = RoomStatus.locked;
+		changesDelay = DEFAULT_OCCUPANT_CHANGES_DELAY;
 	}
 
 	protected void receivePresence(final Presence presence) {
@@ -100,30 +133,34 @@ public final class RoomChat {
 		} else if (!Presence.Type.error.equals(type)) {
 			final XMLPacket xmuc = presence.getExtension("x", XmppNamespaces.MUC_USER);
 			if (xmuc != null) {
-				final XMLPacket item = xmuc.getFirstChild("item");
-				final String affiliation = item.getAttribute("affiliation");
-				final String role = item.getAttribute("role");
-				final XmppURI userUri = XmppURI.uri(item.getAttribute("jid"));
-				setOccupantPresence(userUri, occupantURI, affiliation, role, presence.getShow(), presence.getStatus());
-				if (hasStatus(xmuc, 201)) {
-					final IQ iq = new IQ(IQ.Type.set);
-					iq.setTo(roomUri.getJID());
-					iq.addQuery(XmppNamespaces.MUC_OWNER).addChild(new Form(Form.Type.submit));
-
-					session.sendIQ("rooms", iq, new IQCallback() {
-						@Override
-						public void onIQSuccess(final IQ iq) {
-							status = RoomStatus.ready;
-							eventBus.fireEventFromSource(new RoomChatChangedEvent(ChangeType.opened, RoomChat.this), roomManager);
-						}
-
-						@Override
-						public void onIQFailure(final IQ iq) {
-						}
-					});
-				} else {
-					status = RoomStatus.ready;
-					eventBus.fireEventFromSource(new RoomChatChangedEvent(ChangeType.opened, this), roomManager);
+				setOccupantPresence(occupantURI, xmuc.getFirstChild("item"), presence.getShow(), presence.getStatus());
+				// The room sends our own presence after the other occupants
+				if (hasStatus(xmuc, 110) || roomUri.equals(occupantURI)) {
+					if (!occupantsComplete) {
+						occupantsComplete = true;
+						eventBus.fireEventFromSource(new OccupantsChangedEvent(true, ImmutableList.copyOf(occupantsByNick.values()), ImmutableList.<Occupant> of(),
+								ImmutableList.<Occupant> of()), this);
+					}
+					if (hasStatus(xmuc, 201)) {
+						final IQ iq = new IQ(IQ.Type.set);
+						iq.setTo(roomUri.getJID());
+						iq.addQuery(XmppNamespaces.MUC_OWNER).addChild(new Form(Form.Type.submit));
+
+						session.sendIQ("rooms", iq, new IQCallback() {
+							@Override
+							public void onIQSuccess(final IQ iq) {
+								status = RoomStatus.ready;
+								eventBus.fireEventFromSource(new RoomChatChangedEvent(ChangeType.opened, RoomChat.this), roomManager);
+							}
+
+							@Override
+							public void onIQFailure(final IQ iq) {
+							}
+						});
+					} else if (!RoomStatus.ready.equals(status)) {
+						status = RoomStatus.ready;
+						eventBus.fireEventFromSource(new RoomChatChangedEvent(ChangeType.opened, this), roomManager);
+					}
 				}
 			}
 		}
@@ -208,6 +245,18 @@ public final class RoomChat {
 		return eventBus.addHandlerToSource(OccupantChangedEvent.TYPE, this, handler);
 	}
 
+	/**
+	 * Adds a handler to know when the occupants change, in batches. The first
+	 * batch after entering the room has all the occupants, use it instead of
+	 * OccupantChangedEvent to follow large rooms.
+	 * 
+	 * @param handler
+	 * @return
+	 */
+	public HandlerRegistration addOccupantsChangedHandler(final OccupantsChangedEvent.Handler handler) {
+		return eventBus.addHandlerToSource(OccupantsChangedEvent.TYPE, this, handler);
+	}
+
 	/**
 	 * Adds a handler to know when a invitation to this room is going to be
 	 * sent. This handler allows to decorate the Message object before is sent
@@ -234,26 +283,38 @@ public final class RoomChat {
 	}
 	
 	protected void addOccupant(final Occupant occupant) {
-		occupantsByOccupantUri.put(occupant.getOccupantUri(), occupant);
+		occupantsByNick.put(occupant.getNick(), occupant);
 		final XmppURI userUri = occupant.getUserUri();
 		if (userUri != null) {
 			occupantsByUserUri.put(userUri.getJID(), occupant);
 		}
-		eventBus.fireEventFromSource(new OccupantChangedEvent(ChangeType.added, occupant), this);
+		occupantChanged(ChangeType.added, occupant);
 	}
 
 	protected void removeOccupant(final XmppURI occupantUri) {
-		final Occupant occupant = occupantsByOccupantUri.remove(occupantUri);
+		if (!roomUri.equalsNoResource(occupantUri))
+			return;
+
+		final Occupant occupant = occupantsByNick.remove(occupantUri.getResource());
 		if (occupant != null) {
 			final XmppURI userUri = occupant.getUserUri();
 			if (userUri != null) {
 				occupantsByUserUri.remove(userUri.getJID());
 			}
-			eventBus.fireEventFromSource(new OccupantChangedEvent(ChangeType.removed, occupant), this);
+			occupantChanged(ChangeType.removed, occupant);
 		}
 	}
 
 	protected void open(final HistoryOptions historyOptions) {
+		if (!RoomStatus.ready.equals(status)) {
+			// The room sends every occupant again
+			occupantsByNick.clear();
+			occupantsByUserUri.clear();
+			addedOccupants.clear();
+			modifiedOccupants.clear();
+			removedOccupants.clear();
+			occupantsComplete = false;
+		}
 		session.send(createEnterPresence(historyOptions));
 	}
 
@@ -264,9 +325,21 @@ public final class RoomChat {
 				exitPresence.setStatus(exitStatus);
 			}
 			session.send(exitPresence);
+			status = RoomStatus.locked;
 		}
 	}
 
+	/**
+	 * Changes the delay before firing a batch of occupant changes.
+	 * 
+	 * @param msecs
+	 *            the delay (in milliseconds), or 0 to fire every change in its
+	 *            own batch
+	 */
+	public void setOccupantChangesDelay(final int msecs) {
+		changesDelay = msecs;
+	}
+
 	/**
 	 * To check if is an echo message
 	 * 
@@ -384,8 +457,9 @@ public final class RoomChat {
 	 *            occupant uri is the room jid with nick name as resource
 	 * @return the occupant if found, null if not
 	 */
+	@Nullable
 	public Occupant getOccupantByOccupantUri(final XmppURI occupantUri) {
-		return occupantsByOccupantUri.get(occupantUri);
+		return roomUri.equalsNoResource(occupantUri) ? occupantsByNick.get(occupantUri.getResource()) : null;
 	}
 
 	/**
@@ -406,7 +480,7 @@ public final class RoomChat {
 	 * @return
 	 */
 	public Collection<Occupant> getOccupants() {
-		return occupantsByOccupantUri.values();
+		return occupantsByNick.values();
 	}
 
 	/**
@@ -415,7 +489,7 @@ public final class RoomChat {
 	 * @return
 	 */
 	public int getOccupantsCount() {
-		return occupantsByOccupantUri.size();
+		return occupantsByNick.size();
 	}
 
 	@Override
@@ -460,19 +534,62 @@ public final class RoomChat {
 		return false;
 	}
 
-	private Occupant setOccupantPresence(final XmppURI userUri, final XmppURI occupantUri, final String affiliation, final String role, final Presence.Show show, final String statusMessage) {
+	private Occupant setOccupantPresence(final XmppURI occupantUri, final XMLPacket item, final Presence.Show show, final String statusMessage) {
+		final String affiliation = item.getAttribute("affiliation");
+		final String role = item.getAttribute("role");
+
 		Occupant occupant = getOccupantByOccupantUri(occupantUri);
 		if (occupant == null) {
-			occupant = new Occupant(occupantUri, userUri, affiliation, role, show, statusMessage);
+			// The real jid does not change while in the room, parse it once
+			occupant = new Occupant(occupantUri, XmppURI.uri(item.getAttribute("jid")), affiliation, role, show, statusMessage);
 			addOccupant(occupant);
-		} else {
-			occupant.setAffiliation(affiliation);
-			occupant.setRole(role);
-			occupant.setShow(show);
-			occupant.setStatusMessage(statusMessage);
-			eventBus.fireEventFromSource(new OccupantChangedEvent(ChangeType.modified, occupant), this);
+		} else if (occupant.update(Occupant.parseAffiliation(affiliation), Occupant.parseRole(role), show, statusMessage)) {
+			occupantChanged(ChangeType.modified, occupant);
 		}
 		return occupant;
 	}
 
+	private void occupantChanged(final ChangeType changeType, final Occupant occupant) {
+		if (!occupantsComplete)
+			return;
+
+		eventBus.fireEventFromSource(new OccupantChangedEvent(changeType, occupant), this);
+
+		if (ChangeType.added.equals(changeType)) {
+			addedOccupants.add(occupant);
+		} else if (ChangeType.modified.equals(changeType)) {
+			if (!addedOccupants.contains(occupant)) {
+				modifiedOccupants.add(occupant);
+			}
+		} else if (!addedOccupants.remove(occupant)) {
+			modifiedOccupants.remove(occupant);
+			removedOccupants.add(occupant);
+		}
+
+		if (changesDelay <= 0) {
+			fireOccupantChanges();
+		} else if (!changesScheduled) {
+			changesScheduled = true;
+			scheduler.schedule(changesDelay, new ScheduledAction() {
+				@Override
+				public void run() {
+					changesScheduled = false;
+					fireOccupantChanges();
+				}
+			});
+		}
+	}
+
+	private void fireOccupantChanges() {
+		if (addedOccupants.isEmpty() && modifiedOccupants.isEmpty() && removedOccupants.isEmpty())
+			return;
+
+		final OccupantsChangedEvent event = new OccupantsChangedEvent(false, ImmutableList.copyOf(addedOccupants), ImmutableList.copyOf(modifiedOccupants),
+				ImmutableList.copyOf(removedOccupants));
+		addedOccupants.clear();
+		modifiedOccupants.clear();
+		removedOccupants.clear();
+		eventBus.fireEventFromSource(event, this);
+	}
+
 }
@@ -28,6 +28,7 @@ import java.util.Map;
 
 import javax.annotation.Nullable;
 
+import com.calclab.emite.base.util.ActionScheduler;
 import com.calclab.emite.base.xml.XMLPacket;
 import com.calclab.emite.core.XmppNamespaces;
 import com.calclab.emite.core.XmppURI;
@@ -36,11 +37,14 @@ import com.calclab.emite.core.events.PresenceReceivedEvent;
 import com.calclab.emite.core.events.SessionStatusChangedEvent;
 import com.calclab.emite.core.events.ChangedEvent.ChangeType;
 import com.calclab.emite.core.session.SessionStatus;
+import com.calclab.emite.core.session.StanzaRoute;
 import com.calclab.emite.core.session.XmppSession;
 import com.calclab.emite.core.stanzas.Message;
 import com.calclab.emite.core.stanzas.Presence;
 import com.calclab.emite.xep.muc.events.RoomChatChangedEvent;
 import com.calclab.emite.xep.muc.events.RoomInvitationReceivedEvent;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Maps;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
@@ -58,24 +62,34 @@ public final class RoomChatManagerImpl implements RoomChatManager, SessionStatus
 
 	private final EventBus eventBus;
 	private final XmppSession session;
+	private final ActionScheduler scheduler;
 	private final Map<XmppURI, RoomChat> roomsByJID;
+	// The routes of the stanzas of each room
+	private final ListMultimap<XmppURI, HandlerRegistration> routesByJID;
 
 	@Nullable private XmppURI currentChatUser;
 	
 	@Inject
-	protected RoomChatManagerImpl(@Named("emite") final EventBus eventBus, final XmppSession session) {
+	protected RoomChatManagerImpl(@Named("emite") final EventBus eventBus, final XmppSession session, final ActionScheduler scheduler) {
 		this.eventBus = checkNotNull(eventBus);
 		this.session = checkNotNull(session);
+		this.scheduler = checkNotNull(scheduler);
 		roomsByJID = Maps.newHashMap();
+		routesByJID = ArrayListMultimap.create();
 		
 		// Control chat status when the user logout and login again
 		session.addSessionStatusChangedHandler(this, true);
 
-		// Forward the presence messages to the room event bus
-		session.addPresenceReceivedHandler(this);
-
-		// Check if the incoming message is a room invitation to the user
-		session.addMessageReceivedHandler(this);
+		// Check if the incoming message is a room invitation to the user, the
+		// stanzas of open rooms come through their own routes
+		session.addMessageReceivedHandler(StanzaRoute.ANY.withChild(XmppNamespaces.MUC_USER), new MessageReceivedEvent.Handler() {
+			@Override
+			public void onMessageReceived(final MessageReceivedEvent event) {
+				if (getRoom(event.getMessage().getFrom()) == null) {
+					RoomChatManagerImpl.this.onMessageReceived(event);
+				}
+			}
+		});
 	}
 
 	@Override
@@ -148,8 +162,13 @@ public final class RoomChatManagerImpl implements RoomChatManager, SessionStatus
 	public final RoomChat openRoom(final XmppURI uri, final HistoryOptions historyOptions) {
 		RoomChat chat = getRoom(uri);
 		if (chat == null) {
-			chat = new RoomChat(this, eventBus, session, uri, session.getCurrentUserURI());
+			chat = new RoomChat(this, eventBus, session, scheduler, uri, session.getCurrentUserURI());
 			roomsByJID.put(uri.getJID(), chat);
+
+			// Forward the stanzas of the room to the room event bus
+			final StanzaRoute route = StanzaRoute.ANY.fromJID(uri);
+			routesByJID.put(uri.getJID(), session.addPresenceReceivedHandler(route, this));
+			routesByJID.put(uri.getJID(), session.addMessageReceivedHandler(route, this));
 			eventBus.fireEventFromSource(new RoomChatChangedEvent(ChangeType.created, chat), this);
 		}
 		
@@ -158,7 +177,11 @@ public final class RoomChatManagerImpl implements RoomChatManager, SessionStatus
 	}
 
 	protected final boolean closeRoom(final RoomChat room) {
-		return roomsByJID.remove(room.getRoomURI().getJID()) != null;
+		final XmppURI jid = room.getRoomURI().getJID();
+		for (final HandlerRegistration registration : routesByJID.removeAll(jid)) {
+			registration.removeHandler();
+		}
+		return roomsByJID.remove(jid) != null;
 	}
 
 	@Override
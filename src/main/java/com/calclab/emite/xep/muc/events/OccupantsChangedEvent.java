@@ -0,0 +1,94 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.xep.muc.events;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Collection;
+
+import com.calclab.emite.xep.muc.Occupant;
+import com.google.web.bindery.event.shared.Event;
+
+/**
+ * A batch of occupant changes in a room.
+ * 
+ * The first batch after entering a room is complete: it is fired when the
+ * room sends our own presence, all the occupants are added, and it replaces
+ * any previous list of occupants. Later batches coalesce the changes received
+ * in a short time, an occupant is in one collection at most.
+ */
+public class OccupantsChangedEvent extends Event<OccupantsChangedEvent.Handler> {
+
+	public interface Handler {
+		void onOccupantsChanged(OccupantsChangedEvent event);
+	}
+
+	public static final Type<Handler> TYPE = new Type<Handler>();
+
+	private final boolean complete;
+	private final Collection<Occupant> added;
+	private final Collection<Occupant> modified;
+	private final Collection<Occupant> removed;
+
+	public OccupantsChangedEvent(final boolean complete, final Collection<Occupant> added, final Collection<Occupant> modified, final Collection<Occupant> removed) {
+		this.complete = complete;
+		this.added = checkNotNull(added);
+		this.modified = checkNotNull(modified);
+		this.removed = checkNotNull(removed);
+	}
+
+	/**
+	 * Returns whether this batch has the complete list of occupants of the room.
+	 * 
+	 * @return {@code true} for the first batch after entering the room
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+
+	public Collection<Occupant> getAdded() {
+		return added;
+	}
+
+	public Collection<Occupant> getModified() {
+		return modified;
+	}
+
+	public Collection<Occupant> getRemoved() {
+		return removed;
+	}
+
+	@Override
+	public Type<Handler> getAssociatedType() {
+		return TYPE;
+	}
+
+	@Override
+	public String toDebugString() {
+		return super.toDebugString() + (complete ? "complete " : "") + added.size() + " added, " + modified.size() + " modified, " + removed.size() + " removed";
+	}
+
+	@Override
+	protected void dispatch(final Handler handler) {
+		handler.onOccupantsChanged(this);
+	}
+
+}
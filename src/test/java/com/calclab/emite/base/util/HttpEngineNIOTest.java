@@ -0,0 +1,235 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.base.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.calclab.emite.base.xml.XMLBuilder;
+import com.calclab.emite.base.xml.XMLPacket;
+import com.calclab.emite.core.AsyncResult;
+import com.google.common.collect.Sets;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class HttpEngineNIOTest {
+
+	private HttpServer server;
+	private String url;
+	private HttpEngineNIO engine;
+
+	private final Set<Integer> clientPorts = Collections.synchronizedSet(Sets.<Integer> newHashSet());
+	private final AtomicInteger concurrent = new AtomicInteger();
+	private final AtomicInteger maxConcurrent = new AtomicInteger();
+	private volatile int status = 200;
+	private volatile int delay;
+	private volatile boolean chunked;
+	private volatile boolean malformed;
+
+	@Before
+	public void beforeTests() throws Exception {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/http-bind", new HttpHandler() {
+			@Override
+			public void handle(final HttpExchange exchange) throws IOException {
+				clientPorts.add(exchange.getRemoteAddress().getPort());
+				maxConcurrent.set(Math.max(maxConcurrent.get(), concurrent.incrementAndGet()));
+				try {
+					Thread.sleep(delay);
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				concurrent.decrementAndGet();
+
+				final byte[] body = malformed ? "<body><iq></body>".getBytes("UTF-8") : readAll(exchange.getRequestBody());
+				exchange.sendResponseHeaders(status, chunked ? 0 : body.length);
+				final OutputStream out = exchange.getResponseBody();
+				if (chunked) {
+					out.write(body, 0, body.length / 2);
+					out.flush();
+					out.write(body, body.length / 2, body.length - body.length / 2);
+				} else {
+					out.write(body);
+				}
+				out.close();
+			}
+		});
+		server.start();
+		url = "http://127.0.0.1:" + server.getAddress().getPort() + "/http-bind";
+		engine = new HttpEngineNIO(2);
+	}
+
+	@After
+	public void afterTests() {
+		engine.shutdown();
+		server.stop(0);
+	}
+
+	@Test
+	public void shouldReuseConnections() throws Exception {
+		for (int i = 0; i < 20; i++) {
+			final String content = "<body rid=\"" + i + "\">caf\u00e9</body>";
+			assertEquals(content, post(content).take().result.toString());
+		}
+		assertEquals("connections", 1, clientPorts.size());
+	}
+
+	@Test
+	public void shouldDecodeChunkedResponses() throws Exception {
+		chunked = true;
+		final String content = "<body>\u4e2d\u6587</body>";
+		assertEquals(content, post(content).take().result.toString());
+		assertEquals(content, post(content).take().result.toString());
+		assertEquals("connections", 1, clientPorts.size());
+	}
+
+	@Test
+	public void shouldFailOnBadStatus() throws Exception {
+		status = 404;
+		final Result result = post("<body/>").take();
+		assertTrue(result.error instanceof IOException);
+		assertTrue(result.error.getMessage().startsWith("Invalid status 404"));
+	}
+
+	@Test
+	public void shouldFailOnMalformedResponses() throws Exception {
+		malformed = true;
+		assertTrue(post("<body/>").take().error.getMessage().startsWith("Bad response"));
+	}
+
+	@Test
+	public void shouldTimeOut() throws Exception {
+		delay = 1000;
+		final long start = System.nanoTime();
+		final Result result = post("<body/>", 100).take();
+		assertEquals("Request timed out", result.error.getMessage());
+		assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(900));
+	}
+
+	@Test
+	public void shouldLimitConnections() throws Exception {
+		delay = 100;
+		final BlockingQueue<Result> results = new LinkedBlockingQueue<Result>();
+		for (int i = 0; i < 6; i++) {
+			engine.sendXML(url, XMLBuilder.fromXML("<body rid='" + i + "'/>"), 0, new Collector(results));
+		}
+		for (int i = 0; i < 6; i++) {
+			final Result result = results.poll(5, TimeUnit.SECONDS);
+			assertTrue("response " + i, result != null && result.error == null);
+		}
+		assertEquals("concurrent requests", 2, maxConcurrent.get());
+		assertEquals("connections", 2, clientPorts.size());
+	}
+
+	@Test
+	public void shouldFailUnknownHostsWithoutStallingOthers() throws Exception {
+		final BlockingQueue<Result> unknown = new LinkedBlockingQueue<Result>();
+		engine.sendXML("http://unknown.invalid/http-bind", XMLBuilder.fromXML("<body/>"), 0, new Collector(unknown));
+		assertEquals("<body/>", post("<body/>").take().result.toString());
+		assertTrue(unknown.take().error instanceof UnknownHostException);
+	}
+
+	@Test
+	public void shouldRejectUnsupportedURLs() throws Exception {
+		final BlockingQueue<Result> results = new LinkedBlockingQueue<Result>();
+		engine.sendXML("ftp://127.0.0.1/http-bind", XMLBuilder.fromXML("<body/>"), 0, new Collector(results));
+		assertTrue(results.take().error instanceof IllegalArgumentException);
+	}
+
+	@Test
+	public void shouldSendHttpsThroughURLConnection() throws Exception {
+		final BlockingQueue<Result> results = new LinkedBlockingQueue<Result>();
+		// The test server does not speak TLS, so the handshake fails
+		engine.sendXML(url.replace("http:", "https:"), XMLBuilder.fromXML("<body/>"), 5000, new Collector(results));
+		final Result result = results.poll(10, TimeUnit.SECONDS);
+		assertTrue("TLS error", result != null && result.error instanceof IOException);
+		assertTrue("no plain HTTP connection", clientPorts.isEmpty());
+	}
+
+	private BlockingQueue<Result> post(final String content) {
+		return post(content, 5000);
+	}
+
+	private BlockingQueue<Result> post(final String content, final int timeout) {
+		final BlockingQueue<Result> results = new LinkedBlockingQueue<Result>();
+		engine.sendXML(url, XMLBuilder.fromXML(content), timeout, new Collector(results));
+		return results;
+	}
+
+	private static byte[] readAll(final InputStream in) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final byte[] buffer = new byte[4096];
+		int read;
+		while ((read = in.read(buffer)) >= 0) {
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+
+	private static final class Result {
+		private final XMLPacket result;
+		private final Throwable error;
+
+		private Result(final XMLPacket result, final Throwable error) {
+			this.result = result;
+			this.error = error;
+		}
+	}
+
+	private static final class Collector implements AsyncResult<XMLPacket> {
+		private final BlockingQueue<Result> results;
+
+		private Collector(final BlockingQueue<Result> results) {
+			this.results = results;
+		}
+
+		@Override
+		public void onSuccess(final XMLPacket result) {
+			results.add(new Result(result, null));
+		}
+
+		@Override
+		public void onError(final Throwable error) {
+			results.add(new Result(null, error));
+		}
+	}
+
+}
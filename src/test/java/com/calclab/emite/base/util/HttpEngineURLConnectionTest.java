@@ -0,0 +1,159 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.base.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.calclab.emite.base.xml.XMLBuilder;
+import com.calclab.emite.base.xml.XMLPacket;
+import com.calclab.emite.core.AsyncResult;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class HttpEngineURLConnectionTest {
+
+	private HttpServer server;
+	private String url;
+	private HttpEngineURLConnection engine;
+
+	private volatile int status = 200;
+	private volatile boolean malformed;
+
+	@Before
+	public void beforeTests() throws Exception {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/http-bind", new HttpHandler() {
+			@Override
+			public void handle(final HttpExchange exchange) throws IOException {
+				final byte[] body = malformed ? "<body><iq></body>".getBytes("UTF-8") : readAll(exchange.getRequestBody());
+				exchange.sendResponseHeaders(status, body.length);
+				final OutputStream out = exchange.getResponseBody();
+				out.write(body);
+				out.close();
+			}
+		});
+		server.start();
+		url = "http://127.0.0.1:" + server.getAddress().getPort() + "/http-bind";
+		engine = new HttpEngineURLConnection();
+	}
+
+	@After
+	public void afterTests() {
+		server.stop(0);
+	}
+
+	@Test
+	public void shouldSendRequests() throws Exception {
+		final String content = "<body rid=\"1\">caf\u00e9 \u4e2d\u6587</body>";
+		assertEquals(content, post(content).result.toString());
+	}
+
+	@Test
+	public void shouldFailOnBadStatus() throws Exception {
+		status = 404;
+		final Result result = post("<body/>");
+		assertTrue(result.error instanceof IOException);
+		assertTrue(result.error.getMessage().startsWith("Invalid status 404"));
+	}
+
+	@Test
+	public void shouldFailOnMalformedResponses() throws Exception {
+		malformed = true;
+		assertTrue(post("<body/>").error.getMessage().startsWith("Bad response"));
+	}
+
+	@Test
+	public void shouldRunCallbacksOnTheSendingExecutor() throws Exception {
+		final SerialExecutor executor = new SerialExecutor(Executors.newSingleThreadExecutor());
+		final BlockingQueue<Boolean> confined = new LinkedBlockingQueue<Boolean>();
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				engine.sendXML(url, XMLBuilder.fromXML("<body/>"), 5000, new AsyncResult<XMLPacket>() {
+					@Override
+					public void onSuccess(final XMLPacket result) {
+						confined.add(executor.isCurrent());
+					}
+
+					@Override
+					public void onError(final Throwable error) {
+						confined.add(false);
+					}
+				});
+			}
+		});
+		assertEquals(Boolean.TRUE, confined.poll(5, TimeUnit.SECONDS));
+	}
+
+	private Result post(final String content) throws InterruptedException {
+		final BlockingQueue<Result> results = new LinkedBlockingQueue<Result>();
+		engine.sendXML(url, XMLBuilder.fromXML(content), 5000, new AsyncResult<XMLPacket>() {
+			@Override
+			public void onSuccess(final XMLPacket result) {
+				results.add(new Result(result, null));
+			}
+
+			@Override
+			public void onError(final Throwable error) {
+				results.add(new Result(null, error));
+			}
+		});
+		return results.poll(5, TimeUnit.SECONDS);
+	}
+
+	private static byte[] readAll(final InputStream in) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final byte[] buffer = new byte[4096];
+		int read;
+		while ((read = in.read(buffer)) >= 0) {
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+
+	private static final class Result {
+		private final XMLPacket result;
+		private final Throwable error;
+
+		private Result(final XMLPacket result, final Throwable error) {
+			this.result = result;
+			this.error = error;
+		}
+	}
+
+}
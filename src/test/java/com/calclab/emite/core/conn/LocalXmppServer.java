@@ -0,0 +1,172 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.core.conn;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.calclab.emite.base.xml.XMLPacket;
+import com.calclab.emite.base.xml.XMLPacketImpl;
+import com.calclab.emite.base.xml.XMLParseException;
+import com.calclab.emite.base.xml.XMLStreamParser;
+import com.calclab.emite.core.XmppNamespaces;
+
+/**
+ * A minimal in-process XMPP server for socket connection tests and
+ * throughput measurements.
+ * 
+ * It accepts any SASL authentication, binds the requested resource, and
+ * echoes every message back to its sender.
+ */
+public class LocalXmppServer {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final ServerSocket serverSocket;
+	private final ExecutorService executor;
+	private final AtomicInteger streamIds;
+
+	public LocalXmppServer() throws IOException {
+		serverSocket = new ServerSocket();
+		serverSocket.bind(new InetSocketAddress("127.0.0.1", 0));
+		executor = Executors.newCachedThreadPool();
+		streamIds = new AtomicInteger();
+
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				while (!serverSocket.isClosed()) {
+					try {
+						executor.execute(new ClientHandler(serverSocket.accept()));
+					} catch (final IOException e) {
+						// closed
+					}
+				}
+			}
+		});
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	public void stop() throws IOException {
+		serverSocket.close();
+		executor.shutdownNow();
+	}
+
+	private class ClientHandler implements Runnable, XMLStreamParser.Handler {
+
+		private final Socket socket;
+		private final XMLStreamParser parser;
+		private OutputStream output;
+		private boolean authenticated;
+
+		public ClientHandler(final Socket socket) {
+			this.socket = socket;
+			parser = new XMLStreamParser(XMLPacketImpl.FACTORY, this);
+		}
+
+		@Override
+		public void run() {
+			try {
+				socket.setTcpNoDelay(true);
+				output = socket.getOutputStream();
+				final Reader reader = new InputStreamReader(socket.getInputStream(), UTF8);
+				final char[] buffer = new char[8192];
+				int read;
+				while ((read = reader.read(buffer)) > 0) {
+					parser.feed(new String(buffer, 0, read));
+				}
+			} catch (final XMLParseException e) {
+				throw new IllegalStateException(e);
+			} catch (final IOException e) {
+				// client gone
+			} finally {
+				try {
+					socket.close();
+				} catch (final IOException e) {
+					// ignore
+				}
+			}
+		}
+
+		@Override
+		public void onStreamStart(final XMLPacket header) {
+			write("<?xml version='1.0'?><stream:stream from='localhost' id='" + streamIds.incrementAndGet() + "' version='1.0' xmlns='" + XmppNamespaces.CLIENT
+					+ "' xmlns:stream='" + XmppNamespaces.STREAMS + "'>");
+			if (authenticated) {
+				write("<stream:features><bind xmlns='" + XmppNamespaces.BIND + "'/><session xmlns='" + XmppNamespaces.SESSION + "'/></stream:features>");
+			} else {
+				write("<stream:features><mechanisms xmlns='" + XmppNamespaces.SASL + "'><mechanism>PLAIN</mechanism><mechanism>ANONYMOUS</mechanism></mechanisms></stream:features>");
+			}
+		}
+
+		@Override
+		public void onStanza(final XMLPacket packet) {
+			final String name = packet.getTagName();
+			if ("auth".equals(name)) {
+				authenticated = true;
+				parser.reset();
+				write("<success xmlns='" + XmppNamespaces.SASL + "'/>");
+			} else if ("iq".equals(name) && packet.hasChild("bind")) {
+				final String resource = packet.getFirstChild("bind").getChildText("resource");
+				write("<iq type='result' id='" + packet.getAttribute("id") + "'><bind xmlns='" + XmppNamespaces.BIND + "'><jid>user@localhost/" + (resource != null ? resource : "emite")
+						+ "</jid></bind></iq>");
+			} else if ("iq".equals(name) && packet.hasChild("session")) {
+				write("<iq type='result' id='" + packet.getAttribute("id") + "' to='" + packet.getAttribute("from") + "'/>");
+			} else if ("message".equals(name)) {
+				// Echo the message back to its sender
+				write("<message from='" + packet.getAttribute("to") + "' to='" + packet.getAttribute("from") + "'><body>" + packet.getChildText("body") + "</body></message>");
+			}
+		}
+
+		@Override
+		public void onStreamEnd() {
+			write("</stream:stream>");
+			try {
+				socket.close();
+			} catch (final IOException e) {
+				// ignore
+			}
+		}
+
+		private void write(final String data) {
+			try {
+				output.write(data.getBytes(UTF8));
+				output.flush();
+			} catch (final IOException e) {
+				// client gone
+			}
+		}
+
+	}
+
+}
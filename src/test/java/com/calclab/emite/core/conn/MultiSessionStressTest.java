@@ -0,0 +1,190 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.core.conn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.calclab.emite.base.util.SerialExecutor;
+import com.calclab.emite.core.EmiteSocketModule;
+import com.calclab.emite.core.XmppURI;
+import com.calclab.emite.core.events.MessageReceivedEvent;
+import com.calclab.emite.core.events.SessionStatusChangedEvent;
+import com.calclab.emite.core.sasl.Credentials;
+import com.calclab.emite.core.session.SessionStatus;
+import com.calclab.emite.core.session.XmppSession;
+import com.calclab.emite.core.stanzas.Message;
+import com.google.common.collect.Lists;
+import com.google.gwt.inject.rebind.adapter.GinModuleAdapter;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+/**
+ * Drives many sessions concurrently in the same JVM.
+ */
+public class MultiSessionStressTest {
+
+	private static final int SESSIONS = 200;
+	private static final int MESSAGES = 50;
+
+	private LocalXmppServer server;
+	private List<Bot> bots;
+
+	@Before
+	public void beforeTests() throws Exception {
+		server = new LocalXmppServer();
+		bots = Lists.newArrayList();
+	}
+
+	@After
+	public void afterTests() throws Exception {
+		for (final Bot bot : bots) {
+			bot.executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					bot.session.logout();
+				}
+			});
+		}
+		server.stop();
+	}
+
+	@Test
+	public void shouldRunManySessionsConcurrently() throws Exception {
+		final CountDownLatch loggedIn = new CountDownLatch(SESSIONS);
+		final CountDownLatch received = new CountDownLatch(SESSIONS * MESSAGES);
+
+		for (int i = 0; i < SESSIONS; i++) {
+			final Bot bot = new Bot(XmppURI.uri("bot" + i + "@localhost/stress"), loggedIn, received);
+			bots.add(bot);
+			bot.login();
+		}
+		assertTrue("all sessions logged in", loggedIn.await(60, TimeUnit.SECONDS));
+
+		for (final Bot bot : bots) {
+			bot.sendMessages();
+		}
+		assertTrue("all messages echoed", received.await(60, TimeUnit.SECONDS));
+
+		final List<String> expected = Lists.newArrayList();
+		for (int i = 0; i < MESSAGES; i++) {
+			expected.add("message " + i);
+		}
+		for (final Bot bot : bots) {
+			assertEquals(bot.uri + " received in order", expected, bot.getBodies());
+			assertEquals(bot.uri + " errors", 0, bot.errors.get());
+		}
+	}
+
+	private final class Bot {
+
+		private final XmppURI uri;
+		private final SerialExecutor executor;
+		private final XmppSession session;
+		private final CountDownLatch loggedIn;
+		private final CountDownLatch allReceived;
+
+		// Updated from the session executor only, read by the test thread
+		private final List<String> bodies;
+		private final AtomicInteger errors;
+		private final AtomicInteger running;
+
+		private Bot(final XmppURI uri, final CountDownLatch loggedIn, final CountDownLatch allReceived) {
+			this.uri = uri;
+			this.loggedIn = loggedIn;
+			this.allReceived = allReceived;
+			bodies = Collections.synchronizedList(Lists.<String> newArrayList());
+			errors = new AtomicInteger();
+			running = new AtomicInteger();
+
+			final Injector injector = Guice.createInjector(new GinModuleAdapter(new EmiteSocketModule()));
+			injector.getInstance(XmppConnection.class).setSettings(new ConnectionSettings("/http-bind", "localhost", "127.0.0.1", server.getPort(), false, 60, 1));
+			executor = injector.getInstance(SerialExecutor.class);
+			session = injector.getInstance(XmppSession.class);
+		}
+
+		private void login() {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					session.addSessionStatusChangedHandler(new SessionStatusChangedEvent.Handler() {
+						@Override
+						public void onSessionStatusChanged(final SessionStatusChangedEvent event) {
+							checkConfined();
+							if (SessionStatus.loggedIn.equals(event.getStatus())) {
+								loggedIn.countDown();
+							}
+						}
+					}, false);
+
+					session.addMessageReceivedHandler(new MessageReceivedEvent.Handler() {
+						@Override
+						public void onMessageReceived(final MessageReceivedEvent event) {
+							checkConfined();
+							bodies.add(event.getMessage().getBody());
+							allReceived.countDown();
+						}
+					});
+
+					session.login(new Credentials(uri, "secret"));
+				}
+			});
+		}
+
+		private void sendMessages() {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < MESSAGES; i++) {
+						final Message message = new Message("message " + i);
+						message.setTo(XmppURI.uri("other@localhost"));
+						session.send(message);
+					}
+				}
+			});
+		}
+
+		private List<String> getBodies() {
+			synchronized (bodies) {
+				return Lists.newArrayList(bodies);
+			}
+		}
+
+		private void checkConfined() {
+			if (!executor.isCurrent() || running.incrementAndGet() != 1) {
+				errors.incrementAndGet();
+			}
+			running.decrementAndGet();
+		}
+
+	}
+
+}
@@ -0,0 +1,442 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.core.conn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.calclab.emite.base.util.ActionScheduler;
+import com.calclab.emite.base.util.HttpEngine;
+import com.calclab.emite.base.util.ScheduledAction;
+import com.calclab.emite.base.util.SerialExecutor;
+import com.calclab.emite.base.xml.XMLPacket;
+import com.calclab.emite.base.xml.XMLPacketImpl;
+import com.calclab.emite.core.AsyncResult;
+import com.calclab.emite.core.EmiteJvmModule;
+import com.calclab.emite.core.XmppNamespaces;
+import com.calclab.emite.core.XmppURI;
+import com.calclab.emite.core.events.ConnectionStatusChangedEvent;
+import com.calclab.emite.core.events.PacketReceivedEvent;
+import com.calclab.emite.core.stanzas.Message;
+import com.google.gwt.inject.rebind.adapter.GinModuleAdapter;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.web.bindery.event.shared.SimpleEventBus;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs a BOSH connection against a fake connection manager, which allows two
+ * requests, holds empty ones until the test ends (or for up to two seconds),
+ * and echoes every stanza at once. Tests can change the requests and hold it
+ * reports.
+ */
+public class XmppConnectionBoshTest {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int WAIT = 2000;
+
+	private HttpServer server;
+	private SerialExecutor executor;
+	private XmppConnectionBosh connection;
+
+	private final List<XMLPacket> requests = new CopyOnWriteArrayList<XMLPacket>();
+	private final AtomicInteger held = new AtomicInteger();
+	private final AtomicInteger open = new AtomicInteger();
+	private final AtomicInteger maxOpen = new AtomicInteger();
+	private final CountDownLatch holding = new CountDownLatch(1);
+	private final CountDownLatch release = new CountDownLatch(1);
+	private volatile int requestsAllowed = 2;
+	private volatile int holdAllowed = 1;
+
+	@Before
+	public void beforeTests() throws Exception {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/http-bind", new HttpHandler() {
+			@Override
+			public void handle(final HttpExchange exchange) throws IOException {
+				final int current = open.incrementAndGet();
+				synchronized (maxOpen) {
+					maxOpen.set(Math.max(maxOpen.get(), current));
+				}
+				final XMLPacket response;
+				try {
+					response = connectionManager(XMLPacketImpl.fromString(new String(readAll(exchange.getRequestBody()), UTF8)));
+				} finally {
+					// The client may send the next request as soon as it gets the response
+					open.decrementAndGet();
+				}
+				respond(exchange, response);
+			}
+		});
+		server.start();
+
+		final Injector injector = Guice.createInjector(new GinModuleAdapter(new EmiteJvmModule()));
+		connection = injector.getInstance(XmppConnectionBosh.class);
+		connection.setSettings(new ConnectionSettings("http://127.0.0.1:" + server.getAddress().getPort() + "/http-bind", "localhost", null, 0, false,
+				WAIT / 1000, 1));
+		executor = injector.getInstance(SerialExecutor.class);
+	}
+
+	@After
+	public void afterTests() throws Exception {
+		release.countDown();
+		inSession(new Runnable() {
+			@Override
+			public void run() {
+				if (connection.isConnected()) {
+					connection.disconnect();
+				}
+			}
+		});
+		server.stop(0);
+	}
+
+	@Test
+	public void shouldKeepARequestHeldAndSendStanzasAtOnce() throws Exception {
+		connect();
+		assertEquals("held requests", 1, held.get());
+
+		final CountDownLatch received = expectMessages(1);
+		send(1);
+		assertTrue("echoed message", received.await(WAIT / 2, TimeUnit.MILLISECONDS));
+		assertEquals("sent while the request was held", 1, held.get());
+		assertTrue("open requests", maxOpen.get() <= 2);
+	}
+
+	@Test
+	public void shouldKeepARequestFreeWhenHoldFillsTheWindow() throws Exception {
+		holdAllowed = 2;
+		connect();
+		assertEquals("stream hold", Integer.valueOf(1), inSession(new Callable<Integer>() {
+			@Override
+			public Integer call() {
+				return connection.getStreamSettings().getHold();
+			}
+		}));
+		assertEquals("held requests", 1, held.get());
+
+		final CountDownLatch received = expectMessages(1);
+		send(1);
+		assertTrue("echoed message before the held request returned", received.await(WAIT / 2, TimeUnit.MILLISECONDS));
+		assertTrue("open requests", maxOpen.get() <= 2);
+	}
+
+	@Test
+	public void shouldQueueStanzasWhileTheWindowIsFull() throws Exception {
+		connect();
+
+		final CountDownLatch received = expectMessages(5);
+		send(5);
+		assertTrue("echoed messages", received.await(WAIT / 2, TimeUnit.MILLISECONDS));
+		// The first message takes the free slot, the rest wait for its response
+		assertEquals("requests with stanzas", 2, countRequestsWithStanzas());
+		assertTrue("open requests", maxOpen.get() <= 2);
+	}
+
+	@Test
+	public void shouldBatchStanzas() throws Exception {
+		connect();
+		inSession(new Runnable() {
+			@Override
+			public void run() {
+				connection.setBatching(10, 0, 100);
+			}
+		});
+
+		final CountDownLatch received = expectMessages(5);
+		send(5);
+		assertTrue("echoed messages", received.await(WAIT / 2, TimeUnit.MILLISECONDS));
+		assertEquals("requests with stanzas", 1, countRequestsWithStanzas());
+
+		final BatchStats stats = inSession(new Callable<BatchStats>() {
+			@Override
+			public BatchStats call() {
+				return connection.getBatchStats();
+			}
+		});
+		assertEquals(1, stats.getBatches());
+		assertEquals(5, stats.getStanzas());
+		assertEquals(5, stats.getLargestBatch());
+	}
+
+	@Test
+	public void shouldDispatchOnlyTheLastPresenceOfEachSender() throws Exception {
+		connect();
+
+		final List<XMLPacket> received = new CopyOnWriteArrayList<XMLPacket>();
+		final CountDownLatch done = expectMessages(1);
+		inSession(new Runnable() {
+			@Override
+			public void run() {
+				connection.addPacketReceivedHandler(new PacketReceivedEvent.Handler() {
+					@Override
+					public void onPacketReceived(final PacketReceivedEvent event) {
+						if ("presence".equals(event.getPacket().getTagName())) {
+							received.add(event.getPacket());
+						}
+					}
+				});
+				// Sent in a single request, so the echoes arrive in a single response
+				connection.setBatching(10, 0, 100);
+				connection.send(presence("a@localhost/x", null, "away"));
+				connection.send(presence("b@localhost/x", null, "away"));
+				connection.send(presence("a@localhost/x", null, "dnd"));
+				connection.send(presence("a@localhost/x", "subscribe", null));
+				connection.send(presence("a@localhost/x", "unavailable", null));
+				final Message message = new Message("done");
+				message.setTo(XmppURI.uri("other@localhost"));
+				connection.send(message);
+			}
+		});
+		assertTrue("echoed message", done.await(WAIT / 2, TimeUnit.MILLISECONDS));
+
+		// The message goes first in the request, so wait for the rest of the response
+		assertEquals(Long.valueOf(2), inSession(new Callable<Long>() {
+			@Override
+			public Long call() {
+				return connection.getCoalescedPresences();
+			}
+		}));
+		assertEquals(3, received.size());
+		assertEquals("b@localhost/x", received.get(0).getAttribute("from"));
+		assertEquals("subscribe", received.get(1).getAttribute("type"));
+		assertEquals("unavailable", received.get(2).getAttribute("type"));
+	}
+
+	@Test
+	public void shouldSendAgainAReportedRequestThatFails() {
+		final FakeHttpEngine engine = new FakeHttpEngine();
+		final XmppConnectionBosh bosh = new XmppConnectionBosh(new SimpleEventBus(), engine, new ActionScheduler() {
+			@Override
+			public void schedule(final int msecs, final ScheduledAction action) {
+			}
+		});
+		bosh.setSettings(new ConnectionSettings("http://localhost/http-bind", "localhost", null, 0, false, WAIT / 1000, 1));
+		bosh.connect();
+		final XMLPacket created = XMLPacketImpl.FACTORY.create("body", XmppNamespaces.HTTPBIND);
+		created.setAttribute("sid", "test");
+		created.setAttribute("requests", "2");
+		created.setAttribute("hold", "1");
+		created.setAttribute("ack", engine.requests.get(0).getAttribute("rid"));
+		engine.respond(0, created);
+		assertEquals("held request", 2, engine.requests.size());
+
+		final Message message = new Message("reported");
+		message.setTo(XmppURI.uri("other@localhost"));
+		bosh.send(message);
+		assertEquals(3, engine.requests.size());
+		final String rid = engine.requests.get(2).getAttribute("rid");
+
+		// The held request comes back reporting the response of the open one lost
+		final XMLPacket report = XMLPacketImpl.FACTORY.create("body", XmppNamespaces.HTTPBIND);
+		report.setAttribute("ack", rid);
+		report.setAttribute("report", rid);
+		report.setAttribute("time", "100");
+		engine.respond(1, report);
+		assertEquals("not sent again while open", 3, engine.requests.size());
+
+		engine.fail(2);
+		assertEquals(4, engine.requests.size());
+		final XMLPacket again = engine.requests.get(3);
+		assertEquals(rid, again.getAttribute("rid"));
+		assertEquals("message", again.getChildren().get(0).getTagName());
+	}
+
+	private static XMLPacket presence(final String from, final String type, final String show) {
+		final XMLPacket presence = XMLPacketImpl.FACTORY.create("presence", null);
+		presence.setAttribute("from", from);
+		presence.setAttribute("type", type);
+		if (show != null) {
+			presence.setChildText("show", show);
+		}
+		return presence;
+	}
+
+	private XMLPacket connectionManager(final XMLPacket request) {
+		requests.add(request);
+		final XMLPacket response = XMLPacketImpl.FACTORY.create("body", XmppNamespaces.HTTPBIND);
+		if (request.getAttribute("sid") == null) {
+			response.setAttribute("sid", "test");
+			response.setAttribute("wait", String.valueOf(WAIT / 1000));
+			response.setAttribute("requests", String.valueOf(requestsAllowed));
+			response.setAttribute("hold", String.valueOf(holdAllowed));
+			response.setAttribute("ack", request.getAttribute("rid"));
+		} else if (request.getChildren().isEmpty()) {
+			held.incrementAndGet();
+			holding.countDown();
+			try {
+				release.await(WAIT, TimeUnit.MILLISECONDS);
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			held.decrementAndGet();
+		} else {
+			for (final XMLPacket child : request.getChildren()) {
+				response.addChild(child);
+			}
+		}
+		return response;
+	}
+
+	private int countRequestsWithStanzas() {
+		return requestsWithStanzas().size();
+	}
+
+	private List<XMLPacket> requestsWithStanzas() {
+		final List<XMLPacket> result = new ArrayList<XMLPacket>();
+		for (final XMLPacket request : requests) {
+			if (!request.getChildren().isEmpty()) {
+				result.add(request);
+			}
+		}
+		return result;
+	}
+
+	private void connect() throws Exception {
+		final CountDownLatch connected = new CountDownLatch(1);
+		inSession(new Runnable() {
+			@Override
+			public void run() {
+				connection.addConnectionStatusChangedHandler(new ConnectionStatusChangedEvent.Handler() {
+					@Override
+					public void onConnectionStatusChanged(final ConnectionStatusChangedEvent event) {
+						if (event.is(ConnectionStatus.connected)) {
+							connected.countDown();
+						}
+					}
+				});
+				connection.connect();
+			}
+		});
+		assertTrue("connected", connected.await(5, TimeUnit.SECONDS));
+		assertTrue("held request", holding.await(5, TimeUnit.SECONDS));
+	}
+
+	private CountDownLatch expectMessages(final int count) throws Exception {
+		final CountDownLatch received = new CountDownLatch(count);
+		inSession(new Runnable() {
+			@Override
+			public void run() {
+				connection.addPacketReceivedHandler(new PacketReceivedEvent.Handler() {
+					@Override
+					public void onPacketReceived(final PacketReceivedEvent event) {
+						if ("message".equals(event.getPacket().getTagName())) {
+							received.countDown();
+						}
+					}
+				});
+			}
+		});
+		return received;
+	}
+
+	private void send(final int count) throws Exception {
+		inSession(new Runnable() {
+			@Override
+			public void run() {
+				for (int i = 0; i < count; i++) {
+					final Message message = new Message("message " + i);
+					message.setTo(XmppURI.uri("other@localhost"));
+					connection.send(message);
+				}
+			}
+		});
+	}
+
+	// Session objects are confined to the session executor
+	private void inSession(final Runnable task) throws Exception {
+		final FutureTask<Void> future = new FutureTask<Void>(task, null);
+		executor.execute(future);
+		future.get(10, TimeUnit.SECONDS);
+	}
+
+	private <T> T inSession(final Callable<T> task) throws Exception {
+		final FutureTask<T> future = new FutureTask<T>(task);
+		executor.execute(future);
+		return future.get(10, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Keeps the requests, answered or failed by the tests.
+	 */
+	private static final class FakeHttpEngine implements HttpEngine {
+
+		private final List<XMLPacket> requests = new ArrayList<XMLPacket>();
+		private final List<AsyncResult<XMLPacket>> callbacks = new ArrayList<AsyncResult<XMLPacket>>();
+
+		@Override
+		public void sendXML(final String url, final XMLPacket request, final int timeout, final AsyncResult<XMLPacket> callback) {
+			requests.add(XMLPacketImpl.fromString(request.toString()));
+			callbacks.add(callback);
+		}
+
+		private void respond(final int request, final XMLPacket response) {
+			callbacks.get(request).onSuccess(response);
+		}
+
+		private void fail(final int request) {
+			callbacks.get(request).onError(new IOException("Connection reset"));
+		}
+
+	}
+
+	private static void respond(final HttpExchange exchange, final XMLPacket response) throws IOException {
+		final byte[] body = response.toString().getBytes(UTF8);
+		exchange.sendResponseHeaders(200, body.length);
+		final OutputStream out = exchange.getResponseBody();
+		out.write(body);
+		out.close();
+	}
+
+	private static byte[] readAll(final InputStream in) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final byte[] buffer = new byte[4096];
+		int read;
+		while ((read = in.read(buffer)) >= 0) {
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+
+}
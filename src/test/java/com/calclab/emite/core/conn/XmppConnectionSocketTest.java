@@ -0,0 +1,189 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.core.conn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.calclab.emite.base.util.SerialExecutor;
+import com.calclab.emite.core.EmiteSocketModule;
+import com.calclab.emite.core.XmppURI;
+import com.calclab.emite.core.events.MessageReceivedEvent;
+import com.calclab.emite.core.events.SessionStatusChangedEvent;
+import com.calclab.emite.core.sasl.Credentials;
+import com.calclab.emite.core.session.SessionStatus;
+import com.calclab.emite.core.session.XmppSession;
+import com.calclab.emite.core.stanzas.Message;
+import com.google.common.collect.Lists;
+import com.google.gwt.inject.rebind.adapter.GinModuleAdapter;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.web.bindery.event.shared.HandlerRegistration;
+
+public class XmppConnectionSocketTest {
+
+	private static final int MESSAGES = 2000;
+
+	private LocalXmppServer server;
+	private SerialExecutor executor;
+	private XmppSession session;
+
+	@Before
+	public void beforeTests() throws Exception {
+		server = new LocalXmppServer();
+
+		final Injector injector = Guice.createInjector(new GinModuleAdapter(new EmiteSocketModule()));
+		injector.getInstance(XmppConnection.class).setSettings(new ConnectionSettings("/http-bind", "localhost", "127.0.0.1", server.getPort(), false, 60, 1));
+		executor = injector.getInstance(SerialExecutor.class);
+		session = injector.getInstance(XmppSession.class);
+	}
+
+	@After
+	public void afterTests() throws Exception {
+		inSession(new Runnable() {
+			@Override
+			public void run() {
+				session.logout();
+			}
+		});
+		server.stop();
+	}
+
+	@Test
+	public void shouldLoginAndExchangeMessages() throws Exception {
+		login();
+
+		final CountDownLatch received = new CountDownLatch(MESSAGES);
+		final List<String> bodies = Lists.newArrayList();
+		inSession(new Runnable() {
+			@Override
+			public void run() {
+				session.addMessageReceivedHandler(new MessageReceivedEvent.Handler() {
+					@Override
+					public void onMessageReceived(final MessageReceivedEvent event) {
+						bodies.add(event.getMessage().getBody());
+						received.countDown();
+					}
+				});
+
+				for (int i = 0; i < MESSAGES; i++) {
+					session.send(message("message " + i));
+				}
+			}
+		});
+		assertTrue("echoed messages", received.await(30, TimeUnit.SECONDS));
+
+		final List<String> expected = Lists.newArrayList();
+		for (int i = 0; i < MESSAGES; i++) {
+			expected.add("message " + i);
+		}
+		assertEquals(expected, inSession(new Callable<List<String>>() {
+			@Override
+			public List<String> call() {
+				return Lists.newArrayList(bodies);
+			}
+		}));
+	}
+
+	@Test
+	public void shouldEchoOneMessageAtATime() throws Exception {
+		login();
+
+		for (int i = 0; i < 100; i++) {
+			final String body = "ping " + i;
+			final CountDownLatch received = new CountDownLatch(1);
+			final MessageReceivedEvent.Handler handler = new MessageReceivedEvent.Handler() {
+				@Override
+				public void onMessageReceived(final MessageReceivedEvent event) {
+					if (body.equals(event.getMessage().getBody())) {
+						received.countDown();
+					}
+				}
+			};
+			final HandlerRegistration registration = inSession(new Callable<HandlerRegistration>() {
+				@Override
+				public HandlerRegistration call() {
+					final HandlerRegistration registration = session.addMessageReceivedHandler(handler);
+					session.send(message(body));
+					return registration;
+				}
+			});
+			assertTrue(body + " echoed", received.await(5, TimeUnit.SECONDS));
+			inSession(new Runnable() {
+				@Override
+				public void run() {
+					registration.removeHandler();
+				}
+			});
+		}
+	}
+
+	// Session objects are confined to the session executor
+	private void inSession(final Runnable task) throws Exception {
+		final FutureTask<Void> future = new FutureTask<Void>(task, null);
+		executor.execute(future);
+		future.get(10, TimeUnit.SECONDS);
+	}
+
+	private <T> T inSession(final Callable<T> task) throws Exception {
+		final FutureTask<T> future = new FutureTask<T>(task);
+		executor.execute(future);
+		return future.get(10, TimeUnit.SECONDS);
+	}
+
+	private static Message message(final String body) {
+		final Message message = new Message(body);
+		message.setTo(XmppURI.uri("other@localhost"));
+		return message;
+	}
+
+	private void login() throws Exception {
+		final CountDownLatch loggedIn = new CountDownLatch(1);
+		inSession(new Runnable() {
+			@Override
+			public void run() {
+				session.addSessionStatusChangedHandler(new SessionStatusChangedEvent.Handler() {
+					@Override
+					public void onSessionStatusChanged(final SessionStatusChangedEvent event) {
+						if (SessionStatus.loggedIn.equals(event.getStatus())) {
+							loggedIn.countDown();
+						}
+					}
+				}, false);
+
+				session.login(new Credentials(XmppURI.uri("user@localhost/emite"), "secret"));
+			}
+		});
+		assertTrue("logged in", loggedIn.await(10, TimeUnit.SECONDS));
+		assertEquals(XmppURI.uri("user@localhost/emite"), session.getCurrentUserURI());
+	}
+
+}
@@ -0,0 +1,176 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.core.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.calclab.emite.base.util.ActionScheduler;
+import com.calclab.emite.base.util.ScheduledAction;
+import com.calclab.emite.core.IQCallback;
+import com.calclab.emite.core.XmppNamespaces;
+import com.calclab.emite.core.conn.XmppConnection;
+import com.calclab.emite.core.events.PacketReceivedEvent;
+import com.calclab.emite.core.stanzas.IQ;
+import com.google.common.collect.Lists;
+import com.google.web.bindery.event.shared.SimpleEventBus;
+
+public class IQManagerTest {
+
+	private final List<ScheduledAction> scheduled = Lists.newArrayList();
+	private final ActionScheduler scheduler = new ActionScheduler() {
+		@Override
+		public void schedule(final int msecs, final ScheduledAction action) {
+			scheduled.add(action);
+		}
+	};
+	private XmppConnection connection;
+	private XmppSessionImpl session;
+
+	@Before
+	public void beforeTests() {
+		connection = MockConnection.create();
+		session = new XmppSessionImpl(new SimpleEventBus(), connection, scheduler);
+	}
+
+	@Test
+	public void shouldCompleteRequests() {
+		final ResultCallback callback = new ResultCallback();
+		final IQ request = new IQ(IQ.Type.get);
+		session.sendIQ("test", request, callback);
+		assertEquals(1, session.getIQStats().getPending());
+
+		respond(request.getId(), "result");
+		assertNotNull(callback.success);
+		assertEquals(0, session.getIQStats().getPending());
+		assertEquals(1, session.getIQStats().getCompleted());
+	}
+
+	@Test
+	public void shouldFailExpiredRequests() throws InterruptedException {
+		final ResultCallback callback = new ResultCallback();
+		final IQ request = new IQ(IQ.Type.get);
+		session.sendIQ("test", request, callback, 1);
+
+		Thread.sleep(10);
+		sweep();
+		assertNull(callback.success);
+		assertNotNull(callback.failure);
+		assertEquals(IQ.Type.error, callback.failure.getType());
+		assertEquals(request.getId(), callback.failure.getId());
+		assertNotNull(callback.failure.getXML().getFirstChild("error").getFirstChild("remote-server-timeout", XmppNamespaces.STANZAS));
+		assertEquals(1, session.getIQStats().getExpired());
+
+		// Late responses are ignored
+		callback.failure = null;
+		respond(request.getId(), "result");
+		assertNull(callback.success);
+		assertEquals(0, session.getIQStats().getCompleted());
+	}
+
+	@Test
+	public void shouldNotSendExpiredQueuedRequests() throws InterruptedException {
+		// Not logged in yet, so both requests wait in the send queue
+		final IQ expired = new IQ(IQ.Type.get);
+		session.sendIQ("test", expired, new ResultCallback(), 1);
+		final IQ alive = new IQ(IQ.Type.get);
+		session.sendIQ("test", alive, new ResultCallback());
+
+		Thread.sleep(10);
+		sweep();
+		session.setStatus(SessionStatus.ready);
+		verify(connection, never()).send(expired.getXML());
+		verify(connection).send(alive.getXML());
+	}
+
+	@Test
+	public void shouldUseCategoryTimeouts() throws InterruptedException {
+		session.setIQTimeout("slow", 60000);
+		session.setIQTimeout(null, 1);
+		final ResultCallback slow = new ResultCallback();
+		final ResultCallback fast = new ResultCallback();
+		session.sendIQ("slow", new IQ(IQ.Type.get), slow);
+		session.sendIQ("fast", new IQ(IQ.Type.get), fast);
+
+		Thread.sleep(10);
+		sweep();
+		assertNull(slow.failure);
+		assertNotNull(fast.failure);
+		assertEquals(1, session.getIQStats().getPending());
+		assertEquals(1, scheduled.size());
+	}
+
+	@Test
+	public void shouldQueueTooManyRequests() {
+		session.setMaxPendingIQs(2);
+		final IQ first = new IQ(IQ.Type.get);
+		session.sendIQ("test", first, null);
+		session.sendIQ("test", new IQ(IQ.Type.get), null);
+		session.sendIQ("test", new IQ(IQ.Type.get), null);
+		assertEquals(2, session.getIQStats().getPending());
+		assertEquals(1, session.getIQStats().getQueued());
+
+		respond(first.getId(), "error");
+		assertEquals(2, session.getIQStats().getPending());
+		assertEquals(0, session.getIQStats().getQueued());
+		assertEquals(1, session.getIQStats().getCompleted());
+	}
+
+	private void respond(final String id, final String type) {
+		final IQ response = new IQ(IQ.Type.valueOf(type));
+		response.setId(id);
+		session.onPacketReceived(new PacketReceivedEvent(response.getXML()));
+	}
+
+	private void sweep() {
+		final List<ScheduledAction> actions = Lists.newArrayList(scheduled);
+		scheduled.clear();
+		for (final ScheduledAction action : actions) {
+			action.run();
+		}
+	}
+
+	private static final class ResultCallback implements IQCallback {
+
+		private IQ success;
+		private IQ failure;
+
+		@Override
+		public void onIQSuccess(final IQ iq) {
+			success = iq;
+		}
+
+		@Override
+		public void onIQFailure(final IQ iq) {
+			failure = iq;
+		}
+
+	}
+
+}
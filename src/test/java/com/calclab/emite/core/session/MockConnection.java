@@ -0,0 +1,70 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.core.session;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+import java.util.List;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.calclab.emite.base.xml.XMLPacket;
+import com.calclab.emite.core.conn.Outbox;
+import com.calclab.emite.core.conn.XmppConnection;
+import com.google.common.collect.Lists;
+
+/**
+ * Mock connections which take the packets of the session outbox as soon as
+ * the session flushes it, and pass them to {@link XmppConnection#send}.
+ */
+final class MockConnection {
+
+	static XmppConnection create() {
+		final XmppConnection connection = mock(XmppConnection.class);
+		final List<Outbox> outbox = Lists.newArrayList();
+		doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(final InvocationOnMock invocation) {
+				outbox.add((Outbox) invocation.getArguments()[0]);
+				return null;
+			}
+		}).when(connection).setOutbox(any(Outbox.class));
+		doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(final InvocationOnMock invocation) {
+				final List<XMLPacket> packets = Lists.newArrayList();
+				outbox.get(0).drainTo(packets);
+				for (final XMLPacket packet : packets) {
+					connection.send(packet);
+				}
+				return null;
+			}
+		}).when(connection).flush();
+		return connection;
+	}
+
+	private MockConnection() {
+	}
+
+}
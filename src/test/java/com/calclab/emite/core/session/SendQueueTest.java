@@ -0,0 +1,212 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.core.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.io.File;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+
+import com.calclab.emite.base.util.ActionScheduler;
+import com.calclab.emite.base.xml.HasXML;
+import com.calclab.emite.core.XmppURI;
+import com.calclab.emite.core.conn.XmppConnection;
+import com.calclab.emite.core.events.StanzaDroppedEvent;
+import com.calclab.emite.core.stanzas.IQ;
+import com.calclab.emite.core.stanzas.Message;
+import com.calclab.emite.core.stanzas.Presence;
+import com.calclab.emite.core.stanzas.Stanza;
+import com.google.common.collect.Lists;
+import com.google.web.bindery.event.shared.SimpleEventBus;
+
+public class SendQueueTest {
+
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	private final List<StanzaDroppedEvent> dropped = Lists.newArrayList();
+	private XmppConnection connection;
+	private XmppSessionImpl session;
+
+	@Before
+	public void beforeTests() {
+		connection = MockConnection.create();
+		session = new XmppSessionImpl(new SimpleEventBus(), connection, mock(ActionScheduler.class));
+		session.addStanzaDroppedHandler(new StanzaDroppedEvent.Handler() {
+			@Override
+			public void onStanzaDropped(final StanzaDroppedEvent event) {
+				dropped.add(event);
+			}
+		});
+	}
+
+	@Test
+	public void shouldDropTheOldestStanzas() {
+		session.setSendQueue(2, SendQueuePolicy.dropOldest);
+		final Message first = new Message("1");
+		session.send(first);
+		session.send(new Message("2"));
+		session.send(new Message("3"));
+
+		assertEquals(1, dropped.size());
+		assertEquals(first, dropped.get(0).getStanza());
+		assertFalse(dropped.get(0).isRejected());
+		assertEquals(2, session.getSendQueueStats().getDepth());
+		assertEquals(1, session.getSendQueueStats().getDropped());
+
+		assertEquals(Lists.newArrayList("2", "3"), replay(2));
+		assertEquals(0, session.getSendQueueStats().getDepth());
+		assertEquals(2, session.getSendQueueStats().getReplayed());
+	}
+
+	@Test
+	public void shouldRejectStanzasWhenFull() {
+		session.setSendQueue(1, SendQueuePolicy.reject);
+		session.send(new Message("1"));
+		final Message second = new Message("2");
+		session.send(second);
+
+		assertEquals(1, dropped.size());
+		assertEquals(second, dropped.get(0).getStanza());
+		assertTrue(dropped.get(0).isRejected());
+		assertEquals(Lists.newArrayList("1"), replay(1));
+	}
+
+	@Test
+	public void shouldCoalescePresencesToTheSameDestination() {
+		session.setSendQueue(10, SendQueuePolicy.coalescePresence);
+		session.send(presence("away", null));
+		session.send(presence("away", "room@conference.localhost/me"));
+		session.send(new Message("1"));
+		session.send(presence("dnd", null));
+		session.send(new Presence(Presence.Type.subscribe, XmppURI.uri("friend@localhost")));
+
+		assertEquals(4, session.getSendQueueStats().getDepth());
+		assertEquals(1, session.getSendQueueStats().getCoalesced());
+		assertTrue(dropped.isEmpty());
+
+		final List<HasXML> sent = sent(4);
+		assertEquals("dnd", sent.get(0).getXML().getChildText("show"));
+		assertEquals("room@conference.localhost/me", sent.get(1).getXML().getAttribute("to"));
+		assertEquals("1", sent.get(2).getXML().getChildText("body"));
+		assertEquals("subscribe", sent.get(3).getXML().getAttribute("type"));
+	}
+
+	@Test
+	public void shouldSpillToTheJournal() throws Exception {
+		final File file = folder.newFile("journal");
+		FileStanzaJournal journal = new FileStanzaJournal(file, 0);
+		session.setSendQueue(2, SendQueuePolicy.dropOldest);
+		session.setSendQueueJournal(journal);
+		for (int i = 1; i <= 5; i++) {
+			session.send(new Message(String.valueOf(i)));
+		}
+		assertTrue(dropped.isEmpty());
+		assertEquals(5, session.getSendQueueStats().getDepth());
+		assertEquals(3, session.getSendQueueStats().getJournaled());
+
+		// A new journal finds the stanzas not taken yet
+		assertEquals("3", journal.poll().getChildText("body"));
+		journal.close();
+		journal = new FileStanzaJournal(file, 0);
+		assertEquals(2, journal.size());
+		session.setSendQueueJournal(journal);
+
+		assertEquals(Lists.newArrayList("1", "2", "4", "5"), replay(4));
+		assertEquals(0, journal.size());
+		journal.close();
+	}
+
+	@Test
+	public void shouldNotReplayCancelledIQs() throws Exception {
+		final FileStanzaJournal journal = new FileStanzaJournal(folder.newFile("journal"), 0);
+		session.setSendQueue(1, SendQueuePolicy.dropOldest);
+		session.setSendQueueJournal(journal);
+		final IQ inMemory = iq("test_1");
+		session.send(inMemory);
+		session.send(new Message("1"));
+		final IQ inJournal = iq("test_2");
+		session.send(inJournal);
+		session.send(new Message("2"));
+		assertEquals(3, session.getSendQueueStats().getJournaled());
+
+		session.cancelQueued(inMemory);
+		session.cancelQueued(inJournal);
+		assertEquals(Lists.newArrayList("1", "2"), replay(2));
+		journal.close();
+	}
+
+	@Test
+	public void shouldRejectStanzasWhenTheJournalIsFull() throws Exception {
+		final FileStanzaJournal journal = new FileStanzaJournal(folder.newFile("journal"), 100);
+		session.setSendQueue(1, SendQueuePolicy.dropOldest);
+		session.setSendQueueJournal(journal);
+		for (int i = 1; i <= 5; i++) {
+			session.send(new Message(String.valueOf(i)));
+		}
+		assertTrue(journal.size() > 0);
+		assertEquals(5 - 1 - journal.size(), session.getSendQueueStats().getRejected());
+		assertTrue(dropped.get(0).isRejected());
+		journal.close();
+	}
+
+	private List<String> replay(final int expected) {
+		final List<String> bodies = Lists.newArrayList();
+		for (final HasXML packet : sent(expected)) {
+			bodies.add(packet.getXML().getChildText("body"));
+		}
+		return bodies;
+	}
+
+	private List<HasXML> sent(final int expected) {
+		session.setStatus(SessionStatus.ready);
+		final ArgumentCaptor<HasXML> captor = ArgumentCaptor.forClass(HasXML.class);
+		verify(connection, times(expected)).send(captor.capture());
+		return captor.getAllValues();
+	}
+
+	private static IQ iq(final String id) {
+		final IQ iq = new IQ(IQ.Type.get);
+		iq.setId(id);
+		return iq;
+	}
+
+	private static Stanza presence(final String show, final String to) {
+		final Presence presence = new Presence();
+		presence.getXML().setChildText("show", show);
+		if (to != null) {
+			presence.setTo(XmppURI.uri(to));
+		}
+		return presence;
+	}
+
+}
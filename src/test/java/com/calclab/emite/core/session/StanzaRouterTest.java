@@ -0,0 +1,262 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.core.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.calclab.emite.base.util.ActionScheduler;
+import com.calclab.emite.core.XmppNamespaces;
+import com.calclab.emite.core.XmppURI;
+import com.calclab.emite.core.conn.XmppConnection;
+import com.calclab.emite.core.events.IQRequestReceivedEvent;
+import com.calclab.emite.core.events.MessageReceivedEvent;
+import com.calclab.emite.core.events.PacketReceivedEvent;
+import com.calclab.emite.core.events.PresenceReceivedEvent;
+import com.calclab.emite.core.stanzas.IQ;
+import com.calclab.emite.core.stanzas.Message;
+import com.calclab.emite.core.stanzas.Presence;
+import com.calclab.emite.core.stanzas.Stanza;
+import com.google.common.collect.Lists;
+import com.google.web.bindery.event.shared.HandlerRegistration;
+import com.google.web.bindery.event.shared.SimpleEventBus;
+
+public class StanzaRouterTest {
+
+	private SimpleEventBus eventBus;
+	private XmppSessionImpl session;
+
+	@Before
+	public void beforeTests() {
+		eventBus = new SimpleEventBus();
+		session = new XmppSessionImpl(eventBus, mock(XmppConnection.class), mock(ActionScheduler.class));
+	}
+
+	@Test
+	public void shouldRouteByChildNamespace() {
+		final List<IQ> roster = Lists.newArrayList();
+		final List<IQ> all = Lists.newArrayList();
+		session.addIQRequestReceivedHandler(StanzaRoute.ANY.withChild(XmppNamespaces.ROSTER), new IQRequestReceivedEvent.Handler() {
+			@Override
+			public void onIQRequestReceived(final IQRequestReceivedEvent event) {
+				roster.add(event.getIQ());
+			}
+		});
+		session.addIQRequestReceivedHandler(new IQRequestReceivedEvent.Handler() {
+			@Override
+			public void onIQRequestReceived(final IQRequestReceivedEvent event) {
+				all.add(event.getIQ());
+			}
+		});
+
+		final IQ push = new IQ(IQ.Type.set);
+		push.addQuery(XmppNamespaces.ROSTER);
+		receive(push);
+		final IQ disco = new IQ(IQ.Type.get);
+		disco.addQuery(XmppNamespaces.DISCO_INFO);
+		receive(disco);
+
+		assertEquals(1, roster.size());
+		assertEquals(2, all.size());
+	}
+
+	@Test
+	public void shouldRouteBySender() {
+		final List<Presence> fromRoom = Lists.newArrayList();
+		final List<Presence> fromDomain = Lists.newArrayList();
+		session.addPresenceReceivedHandler(StanzaRoute.ANY.fromJID(XmppURI.uri("room@conference.localhost/me")), new PresenceReceivedEvent.Handler() {
+			@Override
+			public void onPresenceReceived(final PresenceReceivedEvent event) {
+				fromRoom.add(event.getPresence());
+			}
+		});
+		session.addPresenceReceivedHandler(StanzaRoute.ANY.fromDomain("localhost").withChild("vcard-temp:x:update"), new PresenceReceivedEvent.Handler() {
+			@Override
+			public void onPresenceReceived(final PresenceReceivedEvent event) {
+				fromDomain.add(event.getPresence());
+			}
+		});
+
+		receive(presence("room@conference.localhost/other"));
+		receive(presence("other@conference.localhost/other"));
+		final Presence avatar = presence("friend@localhost/phone");
+		avatar.getXML().addChild("x", "vcard-temp:x:update");
+		avatar.getXML().addChild("x", "vcard-temp:x:update");
+		receive(avatar);
+		final Presence otherDomain = presence("friend@example.com/phone");
+		otherDomain.getXML().addChild("x", "vcard-temp:x:update");
+		receive(otherDomain);
+
+		assertEquals(1, fromRoom.size());
+		// Two children in the namespace fire once
+		assertEquals(1, fromDomain.size());
+	}
+
+	@Test
+	public void shouldNeverCallNonMatchingHandlers() {
+		final List<Message> all = Lists.newArrayList();
+		session.addMessageReceivedHandler(StanzaRoute.ANY.fromJID(XmppURI.uri("room@conference.localhost")), new MessageReceivedEvent.Handler() {
+			@Override
+			public void onMessageReceived(final MessageReceivedEvent event) {
+				fail("Message routed to another room: " + event.getMessage());
+			}
+		});
+		session.addMessageReceivedHandler(StanzaRoute.ANY.withChild(XmppNamespaces.MUC_USER), new MessageReceivedEvent.Handler() {
+			@Override
+			public void onMessageReceived(final MessageReceivedEvent event) {
+				fail("Message routed without a muc#user child: " + event.getMessage());
+			}
+		});
+		session.addMessageReceivedHandler(new MessageReceivedEvent.Handler() {
+			@Override
+			public void onMessageReceived(final MessageReceivedEvent event) {
+				all.add(event.getMessage());
+			}
+		});
+
+		final Message message = new Message("hello");
+		message.setFrom(XmppURI.uri("other@conference.localhost/someone"));
+		receive(message);
+
+		assertEquals(1, all.size());
+		for (final RouteStats stats : session.getRouteStats()) {
+			assertEquals(0, stats.getMatched());
+		}
+	}
+
+	@Test
+	public void shouldFireEveryStanzaOnceOnTheEventBus() {
+		final List<Message> routed = Lists.newArrayList();
+		final MessageReceivedEvent.Handler handler = new MessageReceivedEvent.Handler() {
+			@Override
+			public void onMessageReceived(final MessageReceivedEvent event) {
+				routed.add(event.getMessage());
+			}
+		};
+		session.addMessageReceivedHandler(StanzaRoute.ANY, handler);
+		session.addMessageReceivedHandler(StanzaRoute.ANY.fromDomain("conference.localhost"), handler);
+		session.addMessageReceivedHandler(StanzaRoute.ANY.withChild(XmppNamespaces.MUC_USER), handler);
+		final List<Message> all = Lists.newArrayList();
+		eventBus.addHandler(MessageReceivedEvent.TYPE, new MessageReceivedEvent.Handler() {
+			@Override
+			public void onMessageReceived(final MessageReceivedEvent event) {
+				all.add(event.getMessage());
+			}
+		});
+
+		final Message message = new Message("hello");
+		message.setFrom(XmppURI.uri("room@conference.localhost/someone"));
+		message.getXML().addChild("x", XmppNamespaces.MUC_USER);
+		receive(message);
+		assertEquals(1, all.size());
+		assertEquals(3, routed.size());
+
+		// Stanzas without matching routes still reach the event bus
+		final Presence presence = presence("friend@localhost/phone");
+		final List<Presence> presences = Lists.newArrayList();
+		eventBus.addHandler(PresenceReceivedEvent.TYPE, new PresenceReceivedEvent.Handler() {
+			@Override
+			public void onPresenceReceived(final PresenceReceivedEvent event) {
+				presences.add(event.getPresence());
+			}
+		});
+		receive(presence);
+		assertEquals(1, presences.size());
+	}
+
+	@Test
+	public void shouldRouteByType() {
+		final List<Presence> available = Lists.newArrayList();
+		final List<Presence> subscriptions = Lists.newArrayList();
+		session.addPresenceReceivedHandler(StanzaRoute.ANY.ofType("", "unavailable"), new PresenceReceivedEvent.Handler() {
+			@Override
+			public void onPresenceReceived(final PresenceReceivedEvent event) {
+				available.add(event.getPresence());
+			}
+		});
+		session.addPresenceReceivedHandler(StanzaRoute.ANY.ofType("subscribe"), new PresenceReceivedEvent.Handler() {
+			@Override
+			public void onPresenceReceived(final PresenceReceivedEvent event) {
+				subscriptions.add(event.getPresence());
+			}
+		});
+
+		receive(presence("friend@localhost/phone"));
+		final Presence unavailable = presence("friend@localhost/phone");
+		unavailable.setType(Presence.Type.unavailable);
+		receive(unavailable);
+		final Presence subscribe = presence("other@localhost");
+		subscribe.setType(Presence.Type.subscribe);
+		receive(subscribe);
+
+		assertEquals(2, available.size());
+		assertEquals(1, subscriptions.size());
+		assertEquals(StanzaRoute.ANY.ofType("unavailable", ""), StanzaRoute.ANY.ofType("", "unavailable"));
+	}
+
+	@Test
+	public void shouldCountAndRemoveRoutes() {
+		final StanzaRoute route = StanzaRoute.ANY.withChild(XmppNamespaces.MUC_USER);
+		final PresenceReceivedEvent.Handler handler = new PresenceReceivedEvent.Handler() {
+			@Override
+			public void onPresenceReceived(final PresenceReceivedEvent event) {
+			}
+		};
+		final HandlerRegistration first = session.addPresenceReceivedHandler(route, handler);
+		final HandlerRegistration second = session.addPresenceReceivedHandler(StanzaRoute.ANY.withChild(XmppNamespaces.MUC_USER), handler);
+
+		final Presence presence = presence("room@conference.localhost/other");
+		presence.getXML().addChild("x", XmppNamespaces.MUC_USER);
+		receive(presence);
+		receive(presence("room@conference.localhost/other"));
+
+		assertEquals(1, session.getRouteStats().size());
+		final RouteStats stats = session.getRouteStats().get(0);
+		assertEquals("presence", stats.getStanza());
+		assertEquals(route, stats.getRoute());
+		assertEquals(2, stats.getHandlers());
+		assertEquals(1, stats.getMatched());
+
+		first.removeHandler();
+		first.removeHandler();
+		assertEquals(1, session.getRouteStats().get(0).getHandlers());
+		second.removeHandler();
+		assertTrue(session.getRouteStats().isEmpty());
+	}
+
+	private void receive(final Stanza stanza) {
+		session.onPacketReceived(new PacketReceivedEvent(stanza.getXML()));
+	}
+
+	private static Presence presence(final String from) {
+		final Presence presence = new Presence();
+		presence.setFrom(XmppURI.uri(from));
+		return presence;
+	}
+
+}
@@ -0,0 +1,175 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.core.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.calclab.emite.base.xml.XMLBuilder;
+import com.calclab.emite.base.xml.XMLPacket;
+import com.calclab.emite.core.XmppNamespaces;
+import com.calclab.emite.core.stanzas.IQ;
+import com.calclab.emite.core.stanzas.Message;
+import com.calclab.emite.core.stanzas.Presence;
+import com.calclab.emite.core.stanzas.Stanza;
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+
+public class StanzaSchedulerTest {
+
+	private final List<Stanza> stanzasSent = Lists.newArrayList();
+	private final List<XMLPacket> elementsSent = Lists.newArrayList();
+	private StanzaScheduler scheduler;
+
+	@Before
+	public void beforeTests() {
+		scheduler = new StanzaScheduler() {
+			@Override
+			protected void onStanzaSent(final Stanza stanza) {
+				stanzasSent.add(stanza);
+			}
+
+			@Override
+			protected void onElementSent(final XMLPacket element) {
+				elementsSent.add(element);
+			}
+		};
+	}
+
+	@Test
+	public void shouldSendHigherLanesFirst() {
+		final Presence presence = new Presence();
+		final Message message = new Message("hi");
+		final IQ result = new IQ(IQ.Type.result);
+		scheduler.add(presence, null);
+		scheduler.add(message, null);
+		scheduler.add(result, null);
+		assertEquals(3, scheduler.size());
+
+		assertEquals(Lists.newArrayList(result.getXML(), message.getXML(), presence.getXML()), drain());
+		assertEquals(Lists.<Stanza> newArrayList(result, message, presence), stanzasSent);
+		assertEquals(0, scheduler.size());
+		assertEquals(0, scheduler.bytes());
+	}
+
+	@Test
+	public void shouldUseTheGivenLane() {
+		final Message message = new Message("hi");
+		final Presence presence = new Presence();
+		scheduler.add(message, null);
+		scheduler.add(presence, StanzaLane.control);
+
+		assertEquals(Lists.newArrayList(presence.getXML(), message.getXML()), drain());
+		assertEquals(1, scheduler.getStats(StanzaLane.control).getStanzas());
+		assertEquals(0, scheduler.getStats(StanzaLane.presence).getStanzas());
+	}
+
+	@Test
+	public void shouldSpreadBulkStanzas() {
+		scheduler.setBulkLimits(1024, 2048);
+		final List<IQ> uploads = Lists.newArrayList();
+		for (int i = 0; i < 3; i++) {
+			final IQ iq = upload();
+			uploads.add(iq);
+			scheduler.add(iq, null);
+		}
+		final Message message = new Message("typing");
+		scheduler.add(message, null);
+
+		// The first upload always goes, the second one does not fit
+		assertEquals(Lists.newArrayList(message.getXML(), uploads.get(0).getXML()), drain());
+		assertEquals(Lists.newArrayList(uploads.get(1).getXML()), drain());
+		assertEquals(Lists.newArrayList(uploads.get(2).getXML()), drain());
+
+		final LaneStats bulk = scheduler.getStats(StanzaLane.bulk);
+		assertEquals(3, bulk.getStanzas());
+		assertTrue(bulk.getBytes() > 3 * 1500);
+		assertTrue(bulk.getMaxLatency() <= bulk.getLatencyPercentile(100));
+	}
+
+	@Test
+	public void shouldNotReorderStanzasAndElements() {
+		final XMLPacket answer = XMLBuilder.create("a", XmppNamespaces.SM).attribute("h", "1").getXML();
+		final Presence presence = new Presence();
+		final XMLPacket request = XMLBuilder.create("r", XmppNamespaces.SM).getXML();
+		final Message message = new Message("after");
+		final IQ result = new IQ(IQ.Type.result);
+		scheduler.add(answer);
+		scheduler.add(presence, null);
+		scheduler.add(request);
+		scheduler.add(message, null);
+		scheduler.add(result, null);
+
+		// The IQ result only overtakes the message sent after the request
+		assertEquals(Lists.newArrayList(answer, presence.getXML(), request, result.getXML(), message.getXML()), drain());
+		assertEquals(Lists.newArrayList(answer, request), elementsSent);
+	}
+
+	@Test
+	public void shouldKeepElementsAfterTheBulkStanzasLeft() {
+		scheduler.setBulkLimits(1024, 2048);
+		final IQ first = upload();
+		final IQ second = upload();
+		final XMLPacket request = XMLBuilder.create("r", XmppNamespaces.SM).getXML();
+		final Message message = new Message("after");
+		scheduler.add(first, null);
+		scheduler.add(second, null);
+		scheduler.add(request);
+		scheduler.add(message, null);
+
+		assertEquals(Lists.newArrayList(first.getXML()), drain());
+		assertEquals(Lists.newArrayList(second.getXML(), request, message.getXML()), drain());
+	}
+
+	@Test
+	public void shouldReturnTheQueuedStanzasInOrder() {
+		final Presence presence = new Presence();
+		final Message message = new Message("hi");
+		final IQ result = new IQ(IQ.Type.result);
+		scheduler.add(presence, null);
+		scheduler.add(XMLBuilder.create("r", XmppNamespaces.SM).getXML());
+		scheduler.add(message, null);
+		scheduler.add(result, null);
+
+		assertEquals(Lists.<Stanza> newArrayList(presence, message, result), scheduler.clear());
+		assertEquals(0, scheduler.size());
+		assertTrue(drain().isEmpty());
+		assertTrue(stanzasSent.isEmpty());
+	}
+
+	private List<XMLPacket> drain() {
+		final List<XMLPacket> packets = Lists.newArrayList();
+		assertEquals(scheduler.drainTo(packets), packets.size());
+		return packets;
+	}
+
+	private static IQ upload() {
+		final IQ iq = new IQ(IQ.Type.set);
+		iq.addExtension("vCard", "vcard-temp").setChildText("DESC", Strings.repeat("x", 1500));
+		return iq;
+	}
+
+}
@@ -0,0 +1,227 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.core.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.calclab.emite.base.util.ActionScheduler;
+import com.calclab.emite.base.util.ScheduledAction;
+import com.calclab.emite.base.xml.HasXML;
+import com.calclab.emite.base.xml.XMLPacket;
+import com.calclab.emite.base.xml.XMLPacketImpl;
+import com.calclab.emite.core.XmppURI;
+import com.calclab.emite.core.conn.ConnectionStatus;
+import com.calclab.emite.core.conn.XmppConnection;
+import com.calclab.emite.core.events.ConnectionStatusChangedEvent;
+import com.calclab.emite.core.events.PacketReceivedEvent;
+import com.calclab.emite.core.sasl.Credentials;
+import com.calclab.emite.core.stanzas.Message;
+import com.google.common.collect.Lists;
+import com.google.web.bindery.event.shared.SimpleEventBus;
+
+public class StreamManagerTest {
+
+	private static final XmppURI USER = XmppURI.uri("user@localhost/emite");
+
+	private final List<ScheduledAction> scheduled = Lists.newArrayList();
+	private final ActionScheduler scheduler = new ActionScheduler() {
+		@Override
+		public void schedule(final int msecs, final ScheduledAction action) {
+			scheduled.add(action);
+		}
+	};
+	private XmppConnection connection;
+	private XmppSessionImpl session;
+
+	@Before
+	public void beforeTests() {
+		connection = MockConnection.create();
+		when(connection.isConnected()).thenReturn(true);
+		session = new XmppSessionImpl(new SimpleEventBus(), connection, scheduler);
+	}
+
+	@Test
+	public void shouldAcknowledgeAndAnswerAcknowledgementRequests() {
+		login(true);
+		receive("<enabled xmlns='urn:xmpp:sm:3' id='stream-1' resume='true'/>");
+
+		session.send(message("1"));
+		receive("<message from='other@localhost/x'><body>hi</body></message>");
+		receive("<r xmlns='urn:xmpp:sm:3'/>");
+		assertEquals("1", lastSent("a").getAttribute("h"));
+
+		// The acknowledgement request waits for more stanzas
+		session.send(message("2"));
+		runScheduled();
+		assertNotNull(lastSent("r"));
+	}
+
+	@Test
+	public void shouldResumeAndSendOnlyUnacknowledgedStanzas() {
+		login(true);
+		receive("<enabled xmlns='urn:xmpp:sm:3' id='stream-1' resume='true'/>");
+		session.send(message("1"));
+		session.send(message("2"));
+		session.send(message("3"));
+		receive("<a xmlns='urn:xmpp:sm:3' h='1'/>");
+		receive("<message from='other@localhost/x'><body>hi</body></message>");
+
+		disconnect();
+		session.send(message("4"));
+		assertEquals(1, session.getSendQueueStats().getDepth());
+
+		final int sentBefore = sent().size();
+		authenticate();
+		final XMLPacket resume = lastSent("resume");
+		assertEquals("stream-1", resume.getAttribute("previd"));
+		assertEquals("1", resume.getAttribute("h"));
+		assertNull("no resource bound", lastSent("iq", sentBefore));
+
+		receive("<resumed xmlns='urn:xmpp:sm:3' previd='stream-1' h='2'/>");
+		assertEquals(SessionStatus.ready, session.getStatus());
+		assertEquals(USER, session.getCurrentUserURI());
+		final List<String> bodies = Lists.newArrayList();
+		for (final XMLPacket packet : sent().subList(sentBefore, sent().size())) {
+			if ("message".equals(packet.getTagName())) {
+				bodies.add(packet.getChildText("body"));
+			}
+		}
+		assertEquals(Lists.newArrayList("3", "4"), bodies);
+
+		// Counting goes on from the resumed numbers
+		receive("<a xmlns='urn:xmpp:sm:3' h='4'/>");
+		receive("<r xmlns='urn:xmpp:sm:3'/>");
+		assertEquals("1", lastSent("a").getAttribute("h"));
+	}
+
+	@Test
+	public void shouldBindANewResourceIfResumptionFails() {
+		login(true);
+		receive("<enabled xmlns='urn:xmpp:sm:3' id='stream-1' resume='true'/>");
+		session.send(message("1"));
+
+		disconnect();
+		authenticate();
+		receive("<failed xmlns='urn:xmpp:sm:3'/>");
+		respondToIQs(sent().size() - 1);
+		assertEquals(SessionStatus.loggedIn, session.getStatus());
+		assertEquals(1, session.getSendQueueStats().getDepth());
+		assertNotNull("enabled again", lastSent("enable"));
+	}
+
+	@Test
+	public void shouldLoginAgainWithoutStreamManagement() {
+		login(false);
+		assertNull(lastSent("enable"));
+
+		disconnect();
+		final int sentBefore = sent().size();
+		authenticate();
+		assertNull(lastSent("resume"));
+		assertNotNull("resource bound", lastSent("iq", sentBefore));
+	}
+
+	private void login(final boolean streamManagement) {
+		authenticate();
+		if (streamManagement) {
+			receive("<stream:features xmlns:stream='http://etherx.jabber.org/streams'><bind xmlns='urn:ietf:params:xml:ns:xmpp-bind'/><sm xmlns='urn:xmpp:sm:3'/></stream:features>");
+		}
+		respondToIQs(0);
+		assertEquals(SessionStatus.loggedIn, session.getStatus());
+		session.setStatus(SessionStatus.ready);
+	}
+
+	private void authenticate() {
+		session.login(new Credentials(USER, "secret"));
+		receive("<stream:features xmlns:stream='http://etherx.jabber.org/streams'><mechanisms xmlns='urn:ietf:params:xml:ns:xmpp-sasl'><mechanism>PLAIN</mechanism></mechanisms></stream:features>");
+		receive("<success xmlns='urn:ietf:params:xml:ns:xmpp-sasl'/>");
+	}
+
+	private void disconnect() {
+		session.onConnectionStatusChanged(new ConnectionStatusChangedEvent(ConnectionStatus.error, "lost"));
+		session.onConnectionStatusChanged(new ConnectionStatusChangedEvent(ConnectionStatus.disconnected, "lost"));
+		assertEquals(SessionStatus.disconnected, session.getStatus());
+	}
+
+	// Answers the bind and session requests
+	private void respondToIQs(final int from) {
+		for (int i = from; i < sent().size(); i++) {
+			final XMLPacket iq = sent().get(i);
+			if ("iq".equals(iq.getTagName()) && "set".equals(iq.getAttribute("type"))) {
+				receive("<iq type='result' id='" + iq.getAttribute("id") + "' to='" + USER
+						+ "'><bind xmlns='urn:ietf:params:xml:ns:xmpp-bind'><jid>" + USER + "</jid></bind></iq>");
+			}
+		}
+	}
+
+	private void receive(final String xml) {
+		session.onPacketReceived(new PacketReceivedEvent(XMLPacketImpl.fromString(xml)));
+	}
+
+	private void runScheduled() {
+		final List<ScheduledAction> actions = Lists.newArrayList(scheduled);
+		scheduled.clear();
+		for (final ScheduledAction action : actions) {
+			action.run();
+		}
+	}
+
+	private List<XMLPacket> sent() {
+		final ArgumentCaptor<HasXML> captor = ArgumentCaptor.forClass(HasXML.class);
+		verify(connection, atLeastOnce()).send(captor.capture());
+		final List<XMLPacket> packets = Lists.newArrayList();
+		for (final HasXML packet : captor.getAllValues()) {
+			packets.add(packet.getXML());
+		}
+		return packets;
+	}
+
+	private XMLPacket lastSent(final String name) {
+		return lastSent(name, 0);
+	}
+
+	private XMLPacket lastSent(final String name, final int from) {
+		final List<XMLPacket> packets = sent();
+		for (int i = packets.size() - 1; i >= from; i--) {
+			if (name.equals(packets.get(i).getTagName()))
+				return packets.get(i);
+		}
+		return null;
+	}
+
+	private static Message message(final String body) {
+		final Message message = new Message(body);
+		message.setTo(XmppURI.uri("other@localhost"));
+		return message;
+	}
+
+}
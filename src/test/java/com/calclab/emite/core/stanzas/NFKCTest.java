@@ -0,0 +1,81 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.core.stanzas;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+import org.junit.Test;
+
+import com.calclab.emite.base.stringprep.NFKC;
+
+public class NFKCTest {
+
+	@Test
+	public void shouldReturnStableStrings() {
+		final String ascii = "user@example.com/Resource";
+		assertSame(ascii, NFKC.normalizeNFKC(ascii));
+		final String latin = "Jos\u00e9 M\u00fcller";
+		assertSame(latin, NFKC.normalizeNFKC(latin));
+	}
+
+	@Test
+	public void shouldComposeAndDecompose() {
+		assertEquals("caf\u00e9", NFKC.normalizeNFKC("cafe\u0301"));
+		assertEquals("caf\u00e9 fix", NFKC.normalizeNFKC("caf\u00e9 \ufb01x"));
+		assertEquals("\u1ec7", NFKC.normalizeNFKC("e\u0302\u0323"));
+		assertEquals("\uac01", NFKC.normalizeNFKC("\u1100\u1161\u11a8"));
+	}
+
+	@Test
+	public void shouldPassConformanceTests() throws IOException {
+		final InputStream input = NFKCTest.class.getResourceAsStream("NFKCTest.txt");
+		assertNotNull(input);
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(input, "US-ASCII"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith("#"))
+					continue;
+
+				final String[] columns = line.split(";");
+				assertEquals(line, decode(columns[1]), NFKC.normalizeNFKC(decode(columns[0])));
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	private static String decode(final String codePoints) {
+		final StringBuilder result = new StringBuilder();
+		for (final String codePoint : codePoints.split(" ")) {
+			result.append((char) Integer.parseInt(codePoint, 16));
+		}
+		return result.toString();
+	}
+
+}
@@ -0,0 +1,69 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.core.stanzas;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import com.calclab.emite.base.stringprep.Stringprep;
+import com.calclab.emite.base.stringprep.StringprepException;
+import com.calclab.emite.core.XmppURI;
+
+public class StringprepTest {
+
+	@Test
+	public void shouldCaseFoldNodes() throws StringprepException {
+		assertEquals("user", Stringprep.nodeprep("User"));
+		assertEquals("strasse", Stringprep.nodeprep("Stra\u00dfe"));
+		assertEquals("user", Stringprep.nodeprep("us\u00ader"));
+	}
+
+	@Test
+	public void shouldKeepResourceCase() throws StringprepException {
+		assertEquals("My Resource", Stringprep.resourceprep("My Resource"));
+		assertEquals("fix", Stringprep.resourceprep("\ufb01x"));
+	}
+
+	@Test(expected = StringprepException.class)
+	public void shouldProhibitSpacesInNodes() throws StringprepException {
+		Stringprep.nodeprep("a b");
+	}
+
+	@Test(expected = StringprepException.class)
+	public void shouldProhibitNodeprepCharacters() throws StringprepException {
+		Stringprep.nodeprep("a:b");
+	}
+
+	@Test(expected = StringprepException.class)
+	public void shouldCheckBidi() throws StringprepException {
+		Stringprep.resourceprep("\u05d0a\u05d0");
+	}
+
+	@Test
+	public void shouldRejectPartsMappedToNothing() throws StringprepException {
+		assertEquals("", Stringprep.nodeprep("\u00ad"));
+		assertNull(XmppURI.uri("\u00ad@domain"));
+		assertNull(XmppURI.uri("node@domain/\u00ad"));
+	}
+
+}
@@ -0,0 +1,96 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.core.stanzas;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.calclab.emite.core.XmppURI;
+import com.google.common.cache.CacheStats;
+
+public class XmppURICacheTest {
+
+	@Before
+	public void beforeTests() {
+		XmppURI.setCacheSize(100);
+	}
+
+	@After
+	public void afterTests() {
+		XmppURI.setCacheSize(XmppURI.DEFAULT_CACHE_SIZE);
+	}
+
+	@Test
+	public void shouldCountHitsAndMisses() {
+		final XmppURI uri = XmppURI.uri("node@domain/resource");
+		assertSame(uri, XmppURI.uri("node@domain/resource"));
+		assertSame(uri, XmppURI.uri("node@domain/resource"));
+		assertNull(XmppURI.uri("@domain"));
+
+		final CacheStats stats = XmppURI.getCacheStats();
+		assertEquals(2, stats.hitCount());
+		assertEquals(2, stats.missCount());
+		assertEquals(1, stats.loadSuccessCount());
+		assertEquals(1, stats.loadExceptionCount());
+		assertEquals(0, stats.evictionCount());
+	}
+
+	@Test
+	public void shouldBoundTheCacheSize() {
+		for (int i = 0; i < 1000; i++) {
+			XmppURI.uri("occupant" + i + "@room.domain/nick" + i);
+		}
+
+		final CacheStats stats = XmppURI.getCacheStats();
+		assertEquals(1000, stats.missCount());
+		assertTrue("evictions: " + stats.evictionCount(), stats.evictionCount() >= 900);
+	}
+
+	@Test
+	public void shouldNotCacheWhenDisabled() {
+		XmppURI.setCacheSize(0);
+		final XmppURI uri = XmppURI.uri("node@domain");
+		assertNotSame(uri, XmppURI.uri("node@domain"));
+		assertEquals(uri, XmppURI.uri("node@domain"));
+	}
+
+	@Test
+	public void shouldGetJIDWithoutParsing() {
+		final XmppURI uri = XmppURI.uri("Node@domain/Resource");
+		final XmppURI jid = uri.getJID();
+		assertEquals(XmppURI.uri("node@domain"), jid);
+		assertSame(jid, uri.getJID());
+		assertSame(jid, jid.getJID());
+
+		final XmppURI host = uri.getHostURI();
+		assertEquals(XmppURI.uri("domain"), host);
+		assertSame(host, host.getHostURI());
+		assertEquals(0, XmppURI.getCacheStats().hitCount());
+	}
+
+}
@@ -0,0 +1,145 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.core.xml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.calclab.emite.base.xml.XMLPacket;
+import com.calclab.emite.base.xml.XMLPacketImpl;
+import com.calclab.emite.base.xml.XMLPacketImplLite;
+
+public class XMLPacketImplLiteTest {
+
+	private static final String STANZA = "<message xmlns=\"jabber:client\" to=\"someone@domain\" type=\"chat\">"
+			+ "<body>hello &amp; &lt;bye&gt;</body><x xmlns=\"jabber:x:event\"><composing/></x></message>";
+
+	@Test
+	public void shouldCreatePackets() {
+		final XMLPacket packet = XMLPacketImplLite.FACTORY.create("iq", "jabber:client");
+		assertEquals("iq", packet.getTagName());
+		assertEquals("jabber:client", packet.getNamespace());
+		assertNull(packet.getParent());
+		assertSame(packet, packet.getFirstParent());
+		assertTrue(packet.getChildren().isEmpty());
+		assertEquals("", packet.getText());
+	}
+
+	@Test
+	public void shouldSetAndClearAttributes() {
+		final XMLPacket packet = XMLPacketImplLite.FACTORY.create("packet", null);
+		packet.setAttribute("a", "1");
+		packet.setAttribute("b", "2");
+		packet.setAttribute("c", "3");
+		packet.setAttribute("a", "4");
+		assertEquals("4", packet.getAttribute("a"));
+		packet.setAttribute("b", null);
+		assertFalse(packet.hasAttribute("b"));
+		assertEquals("3", packet.getAttribute("c"));
+		assertEquals(2, packet.getAttributes().size());
+	}
+
+	@Test
+	public void shouldNavigateChildren() {
+		final XMLPacket packet = XMLPacketImplLite.fromString(STANZA);
+		assertNotNull(packet);
+		assertEquals("hello & <bye>", packet.getChildText("body"));
+		assertNotNull(packet.getFirstChild("x", "jabber:x:event"));
+		assertNull(packet.getFirstChild("x", "jabber:client"));
+		assertEquals(2, packet.getChildren("*").size());
+		assertEquals(1, packet.getChildren("*", "jabber:client").size());
+
+		final XMLPacket x = packet.getFirstChild("x");
+		assertSame(packet, x.getParent());
+		assertSame(packet, x.getFirstChild("composing").getFirstParent());
+	}
+
+	@Test
+	public void shouldRemoveChildren() {
+		final XMLPacket packet = XMLPacketImplLite.FACTORY.create("root", null);
+		final XMLPacket first = packet.addChild("first");
+		final XMLPacket second = packet.addChild("second");
+		packet.removeChild(first);
+		assertEquals(1, packet.getChildren().size());
+		assertSame(second, packet.getFirstChild("*"));
+		assertNull(first.getParent());
+	}
+
+	@Test
+	public void shouldJoinMixedTextAroundRemovedChildren() {
+		final XMLPacket packet = XMLPacketImplLite.fromString("<p>a<b>b</b>c<i>i</i>d</p>");
+		packet.removeChild(packet.getFirstChild("b"));
+		assertEquals("acid", packet.getText());
+		assertEquals("<p>ac<i>i</i>d</p>", packet.toString());
+		packet.removeChild(packet.getFirstChild("i"));
+		assertEquals("acd", packet.getText());
+		assertEquals("<p>acd</p>", packet.toString());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void shouldFailToRemoveUnknownChild() {
+		final XMLPacket packet = XMLPacketImplLite.FACTORY.create("root", null);
+		packet.removeChild(XMLPacketImplLite.FACTORY.create("other", null));
+	}
+
+	@Test
+	public void shouldReplaceChildrenWithText() {
+		final XMLPacket packet = XMLPacketImplLite.FACTORY.create("root", null);
+		packet.addChild("child").setText("inner");
+		assertEquals("inner", packet.getText());
+		packet.setText("outer");
+		assertTrue(packet.getChildren().isEmpty());
+		assertEquals("<root>outer</root>", packet.toString());
+		packet.setText(null);
+		assertEquals("<root/>", packet.toString());
+	}
+
+	@Test
+	public void shouldCopyChildrenFromOtherImplementations() {
+		final XMLPacket dom = XMLPacketImpl.fromString(STANZA);
+		final XMLPacket packet = XMLPacketImplLite.FACTORY.create("forwarded", "urn:xmpp:forward:0");
+		final XMLPacket copy = packet.addChild(dom);
+		assertEquals(dom.toString(), copy.toString());
+		copy.setAttribute("to", "other@domain");
+		assertEquals("someone@domain", dom.getAttribute("to"));
+	}
+
+	@Test
+	public void shouldSerializeLikeDOMImplementation() {
+		final XMLPacket packet = XMLPacketImplLite.fromString(STANZA);
+		assertEquals(XMLPacketImpl.fromString(STANZA).toString(), packet.toString());
+		assertEquals(packet.toString(), XMLPacketImplLite.fromString(packet.toString()).toString());
+	}
+
+	@Test
+	public void shouldEscapeAttributes() {
+		final XMLPacket packet = XMLPacketImplLite.FACTORY.create("root", null);
+		packet.setAttribute("value", "\"<&>\"");
+		assertEquals("<root value=\"&quot;&lt;&amp;&gt;&quot;\"/>", packet.toString());
+	}
+
+}
@@ -0,0 +1,108 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.core.xml;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+import com.calclab.emite.base.xml.XMLPacket;
+import com.calclab.emite.base.xml.XMLPacketImpl;
+import com.calclab.emite.base.xml.XMLPacketImplLite;
+import com.calclab.emite.base.xml.XMLSerializer;
+import com.calclab.emite.base.xml.XMLSerializerNIO;
+
+public class XMLSerializerTest {
+
+	@Test
+	public void shouldWriteNamespacesOnlyWhenChanged() {
+		final XMLPacket body = XMLPacketImplLite.FACTORY.create("body", "http://jabber.org/protocol/httpbind");
+		final XMLPacket iq = body.addChild("iq", "jabber:client");
+		iq.addChild("bind", "urn:ietf:params:xml:ns:xmpp-bind").setChildText("resource", "emite");
+		iq.addChild("ping");
+		assertEquals("<body xmlns=\"http://jabber.org/protocol/httpbind\"><iq xmlns=\"jabber:client\">"
+				+ "<bind xmlns=\"urn:ietf:params:xml:ns:xmpp-bind\"><resource>emite</resource></bind><ping/></iq></body>",
+				XMLSerializer.toString(body));
+	}
+
+	@Test
+	public void shouldEscapeTextAndAttributes() {
+		final XMLPacket packet = XMLPacketImplLite.FACTORY.create("body", null);
+		packet.setAttribute("id", "a\"b<c>&");
+		packet.setText("1 < 2 && \"3\" > 2");
+		assertEquals("<body id=\"a&quot;b&lt;c&gt;&amp;\">1 &lt; 2 &amp;&amp; \"3\" &gt; 2</body>", XMLSerializer.toString(packet));
+	}
+
+	@Test
+	public void shouldKeepLineBreaksInAttributes() throws Exception {
+		final XMLPacket packet = XMLPacketImplLite.FACTORY.create("presence", null);
+		packet.setAttribute("reason", "first\r\nsecond\tthird");
+		final String xml = XMLSerializer.toString(packet);
+		assertEquals("<presence reason=\"first&#13;&#10;second&#9;third\"/>", xml);
+
+		// A conforming parser normalizes raw whitespace in attributes
+		final Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new InputSource(new StringReader(xml)));
+		assertEquals("first\r\nsecond\tthird", document.getDocumentElement().getAttribute("reason"));
+		assertEquals("first\r\nsecond\tthird", XMLPacketImplLite.fromString(xml).getAttribute("reason"));
+	}
+
+	@Test
+	public void shouldSerializeAllImplementationsTheSame() {
+		final String xml = "<message xmlns=\"jabber:client\" to=\"a@b\"><body>hi &amp; bye</body><x xmlns=\"jabber:x:event\"><composing/></x></message>";
+		assertEquals(xml, XMLSerializer.toString(XMLPacketImpl.fromString(xml)));
+		assertEquals(xml, XMLSerializer.toString(XMLPacketImplLite.fromString(xml)));
+	}
+
+	@Test
+	public void shouldWriteToWriters() throws Exception {
+		final XMLPacket packet = XMLPacketImplLite.fromString("<presence><show>away</show></presence>");
+		final StringWriter writer = new StringWriter();
+		XMLSerializer.write(packet, writer);
+		assertEquals(packet.toString(), writer.toString());
+	}
+
+	@Test
+	public void shouldEncodeUTF8() throws Exception {
+		final XMLPacket packet = XMLPacketImplLite.FACTORY.create("body", null);
+		packet.setAttribute("name", "Jos\u00e9");
+		packet.setText("\u00f1 \u20ac \ud83d\ude00 \ud800 end");
+
+		final byte[] expected = XMLSerializer.toString(packet).getBytes("UTF-8");
+		assertEquals(expected.length, XMLSerializer.utf8Length(packet));
+
+		final ByteBuffer buffer = XMLSerializerNIO.toByteBuffer(packet);
+		assertEquals(0, buffer.position());
+		assertEquals(expected.length, buffer.remaining());
+		final byte[] actual = new byte[buffer.remaining()];
+		buffer.get(actual);
+		assertArrayEquals(expected, actual);
+	}
+
+}
@@ -0,0 +1,225 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.core.xml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.calclab.emite.base.xml.XMLPacket;
+import com.calclab.emite.base.xml.XMLPacketImpl;
+import com.calclab.emite.base.xml.XMLPacketImplLite;
+import com.calclab.emite.base.xml.XMLParseException;
+import com.calclab.emite.base.xml.XMLParserNIO;
+import com.calclab.emite.base.xml.XMLSerializer;
+import com.calclab.emite.base.xml.XMLStreamParser;
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+
+public class XMLStreamParserTest {
+
+	private static final String STREAM = "<?xml version='1.0'?><stream:stream xmlns='jabber:client' xmlns:stream='http://etherx.jabber.org/streams' id='42'>";
+
+	private List<XMLPacket> stanzas;
+	private XMLPacket header;
+	private boolean ended;
+	private XMLStreamParser parser;
+
+	@Before
+	public void beforeTests() {
+		stanzas = Lists.newArrayList();
+		parser = new XMLStreamParser(XMLPacketImpl.FACTORY, new XMLStreamParser.Handler() {
+			@Override
+			public void onStreamStart(final XMLPacket header) {
+				XMLStreamParserTest.this.header = header;
+			}
+
+			@Override
+			public void onStanza(final XMLPacket stanza) {
+				stanzas.add(stanza);
+			}
+
+			@Override
+			public void onStreamEnd() {
+				ended = true;
+			}
+		});
+	}
+
+	@Test
+	public void shouldEmitHeaderStanzasAndEnd() throws XMLParseException {
+		parser.feed(STREAM);
+		assertEquals("stream:stream", header.getTagName());
+		assertEquals("http://etherx.jabber.org/streams", header.getNamespace());
+		assertEquals("42", header.getAttribute("id"));
+
+		parser.feed("<stream:features><bind xmlns='urn:ietf:params:xml:ns:xmpp-bind'/></stream:features> ");
+		parser.feed("<message to='a@b'><body>hi</body></message></stream:stream>");
+
+		assertEquals(2, stanzas.size());
+		assertEquals("stream:features", stanzas.get(0).getTagName());
+		assertTrue(stanzas.get(0).hasChild("bind", "urn:ietf:params:xml:ns:xmpp-bind"));
+		assertEquals("jabber:client", stanzas.get(1).getNamespace());
+		assertEquals("hi", stanzas.get(1).getChildText("body"));
+		assertTrue(ended);
+	}
+
+	@Test
+	public void shouldSerializePrefixedStanzasWithTheirPrefix() throws XMLParseException {
+		parser.feed(STREAM + "<stream:features><bind xmlns='urn:ietf:params:xml:ns:xmpp-bind'/><register/></stream:features>");
+		final String xml = XMLSerializer.toString(stanzas.get(0));
+		assertTrue(xml, xml.startsWith("<stream:features xmlns:stream=\"http://etherx.jabber.org/streams\""));
+		assertFalse(xml, xml.contains("xmlns=\"http://etherx.jabber.org/streams\""));
+
+		final XMLPacket features = XMLStreamParser.parse(XMLPacketImpl.FACTORY, xml);
+		assertEquals("stream:features", features.getTagName());
+		assertEquals("http://etherx.jabber.org/streams", features.getNamespace());
+		assertTrue(features.hasChild("bind", "urn:ietf:params:xml:ns:xmpp-bind"));
+		assertEquals("jabber:client", features.getFirstChild("register").getNamespace());
+		assertEquals(xml, XMLSerializer.toString(features));
+	}
+
+	@Test
+	public void shouldKeepPrefixDeclarationsOfAttributes() {
+		final String xml = "<body xmlns=\"http://jabber.org/protocol/httpbind\" xmlns:xmpp=\"urn:xmpp:xbosh\" xmpp:version=\"1.0\"/>";
+		final XMLPacket body = XMLStreamParser.parse(XMLPacketImpl.FACTORY, xml);
+		assertEquals("urn:xmpp:xbosh", body.getAttribute("xmlns:xmpp"));
+		assertEquals(body.toString(), XMLSerializer.toString(XMLStreamParser.parse(XMLPacketImpl.FACTORY, XMLSerializer.toString(body))));
+	}
+
+	@Test
+	public void shouldKeepTextMixedWithChildren() throws XMLParseException {
+		parser.feed(STREAM + "<message><body>a<b>b</b>c<![CDATA[&]]><i/>d</body></message>");
+		final XMLPacket body = stanzas.get(0).getFirstChild("body");
+		assertEquals("abc&d", body.getText());
+		assertEquals(2, body.getChildren().size());
+		assertEquals("<message xmlns=\"jabber:client\"><body>a<b>b</b>c&amp;<i/>d</body></message>", XMLSerializer.toString(stanzas.get(0)));
+	}
+
+	@Test
+	public void shouldKeepMixedTextInEveryPacketImplementation() {
+		final String xml = "<p>a<b>b</b>c</p>";
+		assertEquals("abc", XMLPacketImpl.fromString(xml).getText());
+		assertEquals(xml, XMLPacketImpl.fromString(xml).toString());
+		assertEquals("abc", XMLPacketImplLite.fromString(xml).getText());
+		assertEquals(xml, XMLPacketImplLite.fromString(xml).toString());
+		assertEquals(xml, XMLPacketImplLite.FACTORY.create("div", null).addChild(XMLPacketImpl.fromString(xml)).toString());
+	}
+
+	@Test
+	public void shouldEmitStanzasFromPartialInput() throws XMLParseException {
+		final String input = STREAM + "<message to='a@b' id=\"x>y\"><body>a &lt; b &amp; &#169;&#x1F600;</body><!-- c > d --></message><iq type='get' id='1'/>";
+		for (int i = 0; i < input.length(); i++) {
+			parser.feed(input.substring(i, i + 1));
+			if (i < input.indexOf("</message>") + 9) {
+				assertEquals(0, stanzas.size());
+			}
+		}
+
+		assertEquals(2, stanzas.size());
+		assertEquals("x>y", stanzas.get(0).getAttribute("id"));
+		assertEquals("a < b & \u00a9\ud83d\ude00", stanzas.get(0).getChildText("body"));
+		assertEquals("iq", stanzas.get(1).getTagName());
+	}
+
+	@Test
+	public void shouldKeepCDataContents() throws XMLParseException {
+		parser.feed(STREAM + "<message><body><![CDATA[<b>&amp;</b>]]></body></message>");
+		assertEquals("<b>&amp;</b>", stanzas.get(0).getChildText("body"));
+	}
+
+	@Test
+	public void shouldRestartFromHandler() throws XMLParseException {
+		parser.feed(STREAM + "<success xmlns='urn:ietf:params:xml:ns:xmpp-sasl'/>");
+		parser.reset();
+		parser.feed(STREAM + "<iq type='result' id='1'/>");
+		assertEquals(2, stanzas.size());
+		assertEquals("iq", stanzas.get(1).getTagName());
+	}
+
+	@Test(expected = XMLParseException.class)
+	public void shouldRejectMismatchedTags() throws XMLParseException {
+		parser.feed(STREAM + "<message><body></message>");
+	}
+
+	@Test(expected = XMLParseException.class)
+	public void shouldRejectDoctypes() throws XMLParseException {
+		parser.feed("<!DOCTYPE foo [<!ENTITY x 'y'>]>");
+	}
+
+	@Test
+	public void shouldParseDocuments() {
+		final XMLPacket body = XMLStreamParser.parse(XMLPacketImpl.FACTORY, "<body xmlns='http://jabber.org/protocol/httpbind' sid='1'><message/><presence/></body>");
+		assertEquals("body", body.getTagName());
+		assertEquals("1", body.getAttribute("sid"));
+		assertEquals(2, body.getChildren().size());
+		assertEquals("http://jabber.org/protocol/httpbind", body.getFirstChild("presence").getNamespace());
+
+		assertNull(XMLStreamParser.parse(XMLPacketImpl.FACTORY, "<body><message></body>"));
+		assertNull(XMLStreamParser.parse(XMLPacketImpl.FACTORY, "<body>"));
+	}
+
+	@Test
+	public void shouldKeepIncompleteMarkupBetweenFeeds() throws XMLParseException {
+		parser.feed(STREAM + "<message id='1'/><message id=");
+		parser.feed("'2'><body>b</bo");
+		parser.feed("dy></message>");
+
+		assertEquals(2, stanzas.size());
+		assertEquals("2", stanzas.get(1).getAttribute("id"));
+		assertEquals("b", stanzas.get(1).getChildText("body"));
+	}
+
+	@Test
+	public void shouldParseDocumentsFromBytes() throws Exception {
+		final byte[] input = "..<body xmlns='http://jabber.org/protocol/httpbind'><message><body>\u00e9</body></message></body>..".getBytes("UTF-8");
+		final XMLPacket body = XMLStreamParser.parse(XMLPacketImpl.FACTORY, input, 2, input.length - 4);
+		assertEquals("\u00e9", body.getFirstChild("message").getChildText("body"));
+
+		assertNull(XMLStreamParser.parse(XMLPacketImpl.FACTORY, input, 2, input.length - 10));
+	}
+
+	@Test
+	public void shouldParseDocumentsDecodedInChunks() throws Exception {
+		// Multibyte characters and surrogate pairs across the decoded chunks
+		final String text = Strings.repeat("a\u00e9\u20ac\ud83d\ude00", 3000);
+		final String xml = "<body xmlns='http://jabber.org/protocol/httpbind'><message><body>" + text + "</body></message></body>";
+		final byte[] input = ("..." + xml + "...").getBytes("UTF-8");
+
+		final ByteBuffer buffer = ByteBuffer.wrap(input, 3, input.length - 6);
+		final XMLPacket body = XMLParserNIO.parse(XMLPacketImpl.FACTORY, buffer);
+		assertEquals(text, body.getFirstChild("message").getChildText("body"));
+		assertFalse(buffer.hasRemaining());
+		assertEquals(text, XMLParserNIO.parse(XMLPacketImplLite.FACTORY, new StringReader(xml)).getFirstChild("message").getChildText("body"));
+
+		assertNull(XMLParserNIO.parse(XMLPacketImpl.FACTORY, ByteBuffer.wrap(input, 3, input.length - 12)));
+		assertNull(XMLParserNIO.parse(XMLPacketImpl.FACTORY, new StringReader("<body><message></body>")));
+	}
+
+}
@@ -0,0 +1,132 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.im.chat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.calclab.emite.base.util.ActionScheduler;
+import com.calclab.emite.base.util.ScheduledAction;
+import com.calclab.emite.core.XmppURI;
+import com.calclab.emite.core.events.ChangedEvent.ChangeType;
+import com.calclab.emite.core.events.MessageReceivedEvent;
+import com.calclab.emite.core.session.XmppSession;
+import com.calclab.emite.core.stanzas.Message;
+import com.calclab.emite.im.events.PairChatChangedEvent;
+import com.google.common.collect.Lists;
+import com.google.web.bindery.event.shared.SimpleEventBus;
+
+public class PairChatIndexTest {
+
+	private final List<ScheduledAction> scheduled = Lists.newArrayList();
+	private final ActionScheduler scheduler = new ActionScheduler() {
+		@Override
+		public void schedule(final int msecs, final ScheduledAction action) {
+			scheduled.add(action);
+		}
+	};
+	private PairChatManagerImpl manager;
+
+	@Before
+	public void beforeTests() {
+		final XmppSession session = mock(XmppSession.class);
+		when(session.isReady()).thenReturn(true);
+		when(session.getCurrentUserURI()).thenReturn(XmppURI.uri("user@localhost/emite"));
+		manager = new PairChatManagerImpl(new SimpleEventBus(), session, scheduler);
+	}
+
+	@Test
+	public void shouldFindChatsByBareJID() {
+		receive("one@localhost/phone", "hello", null);
+		receive("one@localhost/desktop", "again", null);
+		receive("two@localhost/phone", "hi", null);
+		assertEquals(2, manager.getChats().size());
+		assertSame(manager.getChat(XmppURI.uri("one@localhost/other")), manager.getChat(XmppURI.uri("one@localhost")));
+		assertNull(manager.getChat(XmppURI.uri("three@localhost")));
+	}
+
+	@Test
+	public void shouldFindChatsByThread() {
+		final PairChat chat = manager.openChat(XmppURI.uri("one@localhost"));
+		chat.setThread("t1");
+		final List<Message> received = Lists.newArrayList();
+		chat.addMessageReceivedHandler(new MessageReceivedEvent.Handler() {
+			@Override
+			public void onMessageReceived(final MessageReceivedEvent event) {
+				received.add(event.getMessage());
+			}
+		});
+
+		receive("one@localhost/phone", "in thread", "t1");
+		receive("one@localhost/phone", "other thread", "t2");
+		assertEquals(2, received.size());
+
+		// A thread of another contact does not find the chat
+		receive("two@localhost/phone", "hi", "t1");
+		assertEquals(2, received.size());
+		assertEquals(2, manager.getChats().size());
+	}
+
+	@Test
+	public void shouldEvictIdleChats() throws Exception {
+		final List<PairChat> closed = Lists.newArrayList();
+		manager.addPairChatChangedHandler(new PairChatChangedEvent.Handler() {
+			@Override
+			public void onPairChatChanged(final PairChatChangedEvent event) {
+				if (event.getChangeType() == ChangeType.closed) {
+					closed.add(event.getChat());
+				}
+			}
+		});
+		manager.setIdleTimeout(50);
+		final PairChat idle = manager.openChat(XmppURI.uri("one@localhost"));
+		final PairChat active = manager.openChat(XmppURI.uri("two@localhost"));
+		assertEquals(1, scheduled.size());
+
+		Thread.sleep(60);
+		receive("two@localhost/phone", "still here", null);
+		scheduled.remove(0).run();
+		assertEquals(Lists.newArrayList(idle), closed);
+		assertEquals(Lists.newArrayList(active), Lists.newArrayList(manager.getChats()));
+		assertEquals(1, scheduled.size());
+
+		manager.setIdleTimeout(0);
+		scheduled.remove(0).run();
+		assertEquals(1, manager.getChats().size());
+		assertEquals(0, scheduled.size());
+	}
+
+	private void receive(final String from, final String body, final String thread) {
+		final Message message = new Message(body);
+		message.setFrom(XmppURI.uri(from));
+		message.setThread(thread);
+		manager.onMessageReceived(new MessageReceivedEvent(message));
+	}
+
+}
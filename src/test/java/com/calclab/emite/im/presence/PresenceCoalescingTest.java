@@ -0,0 +1,112 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.im.presence;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.calclab.emite.base.util.ActionScheduler;
+import com.calclab.emite.base.util.ScheduledAction;
+import com.calclab.emite.core.XmppURI;
+import com.calclab.emite.core.session.XmppSession;
+import com.calclab.emite.core.stanzas.Presence;
+import com.calclab.emite.core.stanzas.Stanza;
+import com.google.common.collect.Lists;
+import com.google.web.bindery.event.shared.SimpleEventBus;
+
+public class PresenceCoalescingTest {
+
+	private final List<ScheduledAction> scheduled = Lists.newArrayList();
+	private final ActionScheduler scheduler = new ActionScheduler() {
+		@Override
+		public void schedule(final int msecs, final ScheduledAction action) {
+			scheduled.add(action);
+		}
+	};
+	private XmppSession session;
+	private PresenceManager manager;
+
+	@Before
+	public void beforeTests() {
+		session = mock(XmppSession.class);
+		when(session.isReady()).thenReturn(true);
+		manager = new PresenceManagerImpl(new SimpleEventBus(), session, scheduler);
+	}
+
+	@Test
+	public void shouldSendOnlyTheLastOfQuickChanges() {
+		manager.setCoalescingDelay(500);
+		manager.changeOwnPresence(presence(Presence.Show.away));
+		manager.changeOwnPresence(presence(Presence.Show.dnd));
+		manager.changeOwnPresence(presence(Presence.Show.xa));
+		assertEquals(Presence.Show.xa, manager.getOwnPresence().getShow());
+		assertEquals(1, scheduled.size());
+
+		scheduled.get(0).run();
+		final List<Stanza> sent = sent(2);
+		assertEquals(Presence.Show.away, ((Presence) sent.get(0)).getShow());
+		assertEquals(Presence.Show.xa, ((Presence) sent.get(1)).getShow());
+	}
+
+	@Test
+	public void shouldNotDelayDirectedPresences() {
+		manager.setCoalescingDelay(500);
+		manager.changeOwnPresence(presence(Presence.Show.away));
+		manager.changeOwnPresence(presence(Presence.Show.dnd));
+		final Presence directed = presence(Presence.Show.chat);
+		directed.setTo(XmppURI.uri("room@conference.localhost/me"));
+		manager.changeOwnPresence(directed);
+		assertEquals(2, sent(2).size());
+
+		scheduled.get(0).run();
+		assertEquals(Presence.Show.dnd, ((Presence) sent(3).get(2)).getShow());
+	}
+
+	@Test
+	public void shouldSendEveryChangeAtOnceByDefault() {
+		manager.changeOwnPresence(presence(Presence.Show.away));
+		manager.changeOwnPresence(presence(Presence.Show.dnd));
+		assertEquals(2, sent(2).size());
+		assertEquals(0, scheduled.size());
+	}
+
+	private List<Stanza> sent(final int expected) {
+		final ArgumentCaptor<Stanza> captor = ArgumentCaptor.forClass(Stanza.class);
+		verify(session, times(expected)).send(captor.capture());
+		return captor.getAllValues();
+	}
+
+	private static Presence presence(final Presence.Show show) {
+		final Presence presence = new Presence();
+		presence.setShow(show);
+		return presence;
+	}
+
+}
@@ -0,0 +1,156 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.im.roster;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.calclab.emite.core.IQCallback;
+import com.calclab.emite.core.XmppNamespaces;
+import com.calclab.emite.core.XmppURI;
+import com.calclab.emite.core.events.PresenceReceivedEvent;
+import com.calclab.emite.core.session.XmppSession;
+import com.calclab.emite.core.stanzas.IQ;
+import com.calclab.emite.core.stanzas.Presence;
+import com.calclab.emite.im.events.RosterItemChangedEvent;
+import com.google.common.collect.Lists;
+import com.google.web.bindery.event.shared.SimpleEventBus;
+
+public class ResourcePresenceTest {
+
+	private static final XmppURI CONTACT = XmppURI.uri("contact@localhost");
+
+	private RosterItem item;
+
+	@Before
+	public void beforeTests() {
+		item = new RosterItem(CONTACT, SubscriptionState.both, "contact", null);
+	}
+
+	@Test
+	public void shouldPreferTheHighestPriority() {
+		item.setResourcePresence(new ResourcePresence("phone", 0, Presence.Show.chat, "on the road", 1));
+		item.setResourcePresence(new ResourcePresence("desktop", 5, Presence.Show.away, "lunch", 2));
+		assertEquals("desktop", item.getBestResource().getResource());
+		assertEquals(Presence.Show.away, item.getShow());
+		assertEquals("lunch", item.getStatus());
+
+		// Changes of other resources do not change the item
+		item.setResourcePresence(new ResourcePresence("phone", 0, Presence.Show.dnd, "meeting", 3));
+		assertEquals(Presence.Show.away, item.getShow());
+		assertEquals(2, item.getResourcePresences().size());
+	}
+
+	@Test
+	public void shouldPreferTheMostAvailableShow() {
+		item.setResourcePresence(new ResourcePresence("phone", 0, Presence.Show.xa, null, 1));
+		item.setResourcePresence(new ResourcePresence("desktop", 0, null, null, 2));
+		assertEquals("desktop", item.getBestResource().getResource());
+
+		item.setResourcePresence(new ResourcePresence("laptop", 0, null, null, 3));
+		assertEquals("desktop", item.getBestResource().getResource());
+	}
+
+	@Test
+	public void shouldKeepTheBestResourceOnTies() {
+		item.setResourcePresence(new ResourcePresence("desktop", 1, null, null, 1));
+		for (int i = 2; i < 20; i++) {
+			item.setResourcePresence(new ResourcePresence(i % 2 == 0 ? "laptop" : "desktop", 1, null, "status " + i, i));
+			assertEquals("desktop", item.getBestResource().getResource());
+		}
+
+		// A worse best resource hands over to the latest of the others
+		item.setResourcePresence(new ResourcePresence("phone", 1, null, null, 20));
+		item.setResourcePresence(new ResourcePresence("desktop", 1, Presence.Show.away, null, 21));
+		assertEquals("phone", item.getBestResource().getResource());
+	}
+
+	@Test
+	public void shouldFindTheNextBestResource() {
+		item.setResourcePresence(new ResourcePresence("phone", 0, null, null, 1));
+		item.setResourcePresence(new ResourcePresence("desktop", 5, null, null, 2));
+		item.setResourcePresence(new ResourcePresence("desktop", -1, null, null, 3));
+		assertEquals("phone", item.getBestResource().getResource());
+
+		item.removeResourcePresence("phone");
+		assertEquals("desktop", item.getBestResource().getResource());
+		item.removeResourcePresence("desktop");
+		assertNull(item.getBestResource());
+		assertFalse(item.isAvailable());
+	}
+
+	@Test
+	public void shouldNotFlapOnPresencesOfOtherResources() {
+		final XmppSession session = mock(XmppSession.class);
+		when(session.getCurrentUserURI()).thenReturn(XmppURI.uri("user@localhost/emite"));
+		final XmppRosterImpl roster = new XmppRosterImpl(new SimpleEventBus(), session);
+		roster.reRequestRoster();
+		final ArgumentCaptor<IQCallback> callback = ArgumentCaptor.forClass(IQCallback.class);
+		verify(session).sendIQ(eq("roster"), any(IQ.class), callback.capture());
+		final IQ result = new IQ(IQ.Type.result);
+		result.addQuery(XmppNamespaces.ROSTER).addChild("item").setAttribute("jid", CONTACT.toString());
+		callback.getValue().onIQSuccess(result);
+
+		final List<RosterItemChangedEvent> changes = Lists.newArrayList();
+		roster.addRosterItemChangedHandler(new RosterItemChangedEvent.Handler() {
+			@Override
+			public void onRosterItemChanged(final RosterItemChangedEvent event) {
+				changes.add(event);
+			}
+		});
+
+		roster.onPresenceReceived(new PresenceReceivedEvent(presence("desktop", 5, null)));
+		assertEquals(1, changes.size());
+		for (int i = 0; i < 10; i++) {
+			roster.onPresenceReceived(new PresenceReceivedEvent(presence("phone", 0, i % 2 == 0 ? Presence.Show.away : Presence.Show.dnd)));
+		}
+		assertEquals(1, changes.size());
+
+		final Presence unavailable = new Presence(Presence.Type.unavailable);
+		unavailable.setFrom(XmppURI.uri(CONTACT + "/desktop"));
+		roster.onPresenceReceived(new PresenceReceivedEvent(unavailable));
+		assertEquals(2, changes.size());
+		assertTrue(roster.getItemByJID(CONTACT).isAvailable());
+		assertEquals(Presence.Show.dnd, roster.getItemByJID(CONTACT).getShow());
+	}
+
+	private static Presence presence(final String resource, final int priority, final Presence.Show show) {
+		final Presence presence = new Presence();
+		presence.setFrom(XmppURI.uri(CONTACT + "/" + resource));
+		presence.setPriority(priority);
+		presence.setShow(show);
+		return presence;
+	}
+
+}
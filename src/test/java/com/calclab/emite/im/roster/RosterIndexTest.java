@@ -0,0 +1,179 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.im.roster;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.calclab.emite.base.xml.XMLBuilder;
+import com.calclab.emite.base.xml.XMLPacket;
+import com.calclab.emite.core.IQCallback;
+import com.calclab.emite.core.XmppNamespaces;
+import com.calclab.emite.core.XmppURI;
+import com.calclab.emite.core.events.IQRequestReceivedEvent;
+import com.calclab.emite.core.events.PresenceReceivedEvent;
+import com.calclab.emite.core.session.XmppSession;
+import com.calclab.emite.core.stanzas.IQ;
+import com.calclab.emite.core.stanzas.Presence;
+import com.calclab.emite.im.events.RosterItemChangedEvent;
+import com.google.common.collect.Lists;
+import com.google.web.bindery.event.shared.SimpleEventBus;
+
+public class RosterIndexTest {
+
+	private XmppSession session;
+	private XmppRosterImpl roster;
+
+	@Before
+	public void beforeTests() {
+		session = mock(XmppSession.class);
+		when(session.getCurrentUserURI()).thenReturn(XmppURI.uri("user@localhost/emite"));
+		roster = new XmppRosterImpl(new SimpleEventBus(), session);
+	}
+
+	@Test
+	public void shouldKeepTheGroupsOfEachItem() {
+		receiveRoster(3, 2);
+		assertEquals(2, roster.getRosterGroup("group0").getSize());
+		assertEquals(1, roster.getRosterGroup("group1").getSize());
+
+		push(item("contact0@localhost", "group1"));
+		assertEquals(1, roster.getRosterGroup("group0").getSize());
+		assertEquals(2, roster.getRosterGroup("group1").getSize());
+		assertEquals(Lists.newArrayList("group1"), roster.getItemByJID(XmppURI.uri("contact0@localhost")).getGroups());
+
+		push(item("contact2@localhost", null).attribute("subscription", "remove"));
+		assertNull(roster.getRosterGroup("group0"));
+		assertEquals(2, roster.getRosterGroup("group1").getSize());
+		assertEquals(2, roster.getItems().size());
+	}
+
+	@Test
+	public void shouldFirePresenceChangesOnlyFromTheGroupsOfTheItem() {
+		receiveRoster(4, 2);
+		final List<RosterItem> changed = Lists.newArrayList();
+		roster.getRosterGroup("group1").addRosterItemChangedHandler(new RosterItemChangedEvent.Handler() {
+			@Override
+			public void onRosterItemChanged(final RosterItemChangedEvent event) {
+				changed.add(event.getRosterItem());
+			}
+		});
+
+		presence("contact0@localhost/res");
+		presence("contact1@localhost/res");
+		assertEquals(1, changed.size());
+		assertEquals(XmppURI.uri("contact1@localhost"), changed.get(0).getJID());
+	}
+
+	@Test
+	public void shouldKeepSortedViewsUpToDate() {
+		receiveRoster(3, 1);
+		final List<RosterItem> view = roster.getRosterGroup("group0").getSortedItems(RosterItemsOrder.order(RosterItemsOrder.byAvailability, RosterItemsOrder.byName));
+		assertEquals(XmppURI.uri("contact0@localhost"), view.get(0).getJID());
+
+		presence("contact2@localhost/res");
+		assertEquals(XmppURI.uri("contact2@localhost"), view.get(0).getJID());
+
+		push(item("contact3@localhost", "group0"));
+		assertEquals(4, view.size());
+		assertEquals(XmppURI.uri("contact3@localhost"), view.get(3).getJID());
+	}
+
+	@Test
+	public void shouldKeepSortedViewsSortedAfterChanges() {
+		receiveRoster(40, 3);
+		final Comparator<RosterItem> order = RosterItemsOrder.order(RosterItemsOrder.byAvailability, RosterItemsOrder.byName);
+		final List<RosterItem> view = roster.getRosterGroup("group1").getSortedItems(order);
+
+		for (int i = 0; i < 40; i += 2) {
+			presence("contact" + i + "@localhost/res");
+		}
+		push(item("contact40@localhost", "group1"));
+		push(item("contact4@localhost", null).attribute("subscription", "remove"));
+		push(item("contact7@localhost", "group2"));
+		push(item("contact5@localhost", "group1"));
+		unavailable("contact10@localhost/res");
+
+		final List<RosterItem> expected = Lists.newArrayList(roster.getRosterGroup("group1").getItems());
+		Collections.sort(expected, order);
+		assertEquals(expected, view);
+		assertTrue(view.contains(roster.getItemByJID(XmppURI.uri("contact5@localhost"))));
+		assertFalse(view.contains(roster.getItemByJID(XmppURI.uri("contact7@localhost"))));
+	}
+
+	private void receiveRoster(final int contacts, final int groups) {
+		roster.reRequestRoster();
+		final ArgumentCaptor<IQCallback> callback = ArgumentCaptor.forClass(IQCallback.class);
+		verify(session).sendIQ(eq("roster"), any(IQ.class), callback.capture());
+		reset(session);
+		when(session.getCurrentUserURI()).thenReturn(XmppURI.uri("user@localhost/emite"));
+
+		final IQ result = new IQ(IQ.Type.result);
+		final XMLPacket query = result.addQuery(XmppNamespaces.ROSTER);
+		for (int i = 0; i < contacts; i++) {
+			query.addChild(item("contact" + i + "@localhost", "group" + i % groups));
+		}
+		callback.getValue().onIQSuccess(result);
+	}
+
+	private void push(final XMLBuilder item) {
+		final IQ iq = new IQ(IQ.Type.set);
+		iq.addQuery(XmppNamespaces.ROSTER).addChild(item);
+		roster.onIQRequestReceived(new IQRequestReceivedEvent(iq));
+	}
+
+	private void presence(final String from) {
+		final Presence presence = new Presence();
+		presence.setFrom(XmppURI.uri(from));
+		roster.onPresenceReceived(new PresenceReceivedEvent(presence));
+	}
+
+	private void unavailable(final String from) {
+		final Presence presence = new Presence(Presence.Type.unavailable);
+		presence.setFrom(XmppURI.uri(from));
+		roster.onPresenceReceived(new PresenceReceivedEvent(presence));
+	}
+
+	private static XMLBuilder item(final String jid, final String group) {
+		final XMLBuilder item = XMLBuilder.create("item", XmppNamespaces.ROSTER).attribute("jid", jid).attribute("subscription", "both");
+		if (group != null) {
+			item.childText("group", group);
+		}
+		return item;
+	}
+
+}
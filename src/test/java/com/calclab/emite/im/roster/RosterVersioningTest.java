@@ -0,0 +1,157 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.im.roster;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+
+import com.calclab.emite.base.xml.XMLBuilder;
+import com.calclab.emite.base.xml.XMLPacket;
+import com.calclab.emite.core.IQCallback;
+import com.calclab.emite.core.XmppNamespaces;
+import com.calclab.emite.core.XmppURI;
+import com.calclab.emite.core.events.IQRequestReceivedEvent;
+import com.calclab.emite.core.session.XmppSession;
+import com.calclab.emite.core.stanzas.IQ;
+import com.google.common.collect.Lists;
+import com.google.web.bindery.event.shared.SimpleEventBus;
+
+public class RosterVersioningTest {
+
+	private static final XmppURI USER = XmppURI.uri("user@localhost/emite");
+
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	private XmppSession session;
+	private XmppRosterImpl roster;
+	private RosterStore store;
+
+	@Before
+	public void beforeTests() {
+		session = mock(XmppSession.class);
+		when(session.getCurrentUserURI()).thenReturn(USER);
+		when(session.getStreamFeatures()).thenReturn(XMLBuilder.create("stream:features").child("ver", XmppNamespaces.ROSTER_VER).getXML());
+		roster = new XmppRosterImpl(new SimpleEventBus(), session);
+		store = new MemoryRosterStore();
+		roster.setStore(store);
+	}
+
+	@Test
+	public void shouldUseTheLocalCopyWhenTheRosterIsCurrent() {
+		store.setRoster(USER, "v1", Lists.newArrayList(item("a@localhost", "both"), item("b@localhost", "both")));
+
+		roster.reRequestRoster();
+		assertTrue(roster.isRosterReady());
+		assertEquals(2, roster.getItems().size());
+
+		final ArgumentCaptor<IQ> request = ArgumentCaptor.forClass(IQ.class);
+		final ArgumentCaptor<IQCallback> callback = ArgumentCaptor.forClass(IQCallback.class);
+		verify(session).sendIQ(eq("roster"), request.capture(), callback.capture());
+		assertEquals("v1", request.getValue().getQuery(XmppNamespaces.ROSTER).getAttribute("ver"));
+
+		callback.getValue().onIQSuccess(new IQ(IQ.Type.result));
+		assertEquals(2, roster.getItems().size());
+	}
+
+	@Test
+	public void shouldStoreTheFullRosterAndThePushes() {
+		roster.reRequestRoster();
+		assertFalse(roster.isRosterReady());
+
+		final ArgumentCaptor<IQ> request = ArgumentCaptor.forClass(IQ.class);
+		final ArgumentCaptor<IQCallback> callback = ArgumentCaptor.forClass(IQCallback.class);
+		verify(session).sendIQ(eq("roster"), request.capture(), callback.capture());
+		assertEquals("", request.getValue().getQuery(XmppNamespaces.ROSTER).getAttribute("ver"));
+
+		callback.getValue().onIQSuccess(rosterIQ(IQ.Type.result, "v1", item("a@localhost", "both"), item("b@localhost", "to")));
+		assertEquals(2, roster.getItems().size());
+		assertEquals("v1", store.getVersion(USER));
+		assertEquals(2, store.getItems(USER).size());
+
+		roster.onIQRequestReceived(new IQRequestReceivedEvent(rosterIQ(IQ.Type.set, "v2", item("c@localhost", "none"))));
+		roster.onIQRequestReceived(new IQRequestReceivedEvent(rosterIQ(IQ.Type.set, "v3", item("a@localhost", "remove"))));
+		assertEquals(2, roster.getItems().size());
+		assertEquals("v3", store.getVersion(USER));
+		assertEquals(2, store.getItems(USER).size());
+	}
+
+	@Test
+	public void shouldNotSendTheVersionIfNotSupported() {
+		when(session.getStreamFeatures()).thenReturn(XMLBuilder.create("stream:features").getXML());
+		store.setRoster(USER, "v1", Lists.newArrayList(item("a@localhost", "both")));
+
+		roster.reRequestRoster();
+		assertFalse(roster.isRosterReady());
+
+		final ArgumentCaptor<IQ> request = ArgumentCaptor.forClass(IQ.class);
+		verify(session).sendIQ(eq("roster"), request.capture(), any(IQCallback.class));
+		assertNull(request.getValue().getQuery(XmppNamespaces.ROSTER).getAttribute("ver"));
+	}
+
+	@Test
+	public void shouldKeepTheRosterInFiles() throws Exception {
+		FileRosterStore files = new FileRosterStore(folder.getRoot());
+		files.setRoster(USER, "v1", Lists.newArrayList(item("a@localhost", "both"), item("b@localhost", "both")));
+		files.updateItem(USER, "v2", item("c@localhost", "none"));
+		files.updateItem(USER, "v3", item("a@localhost", "remove"));
+
+		files = new FileRosterStore(folder.getRoot());
+		assertEquals("v3", files.getVersion(USER));
+		final List<XMLPacket> items = files.getItems(USER);
+		assertEquals(2, items.size());
+		assertEquals("b@localhost", items.get(0).getAttribute("jid"));
+		assertEquals("c@localhost", items.get(1).getAttribute("jid"));
+		assertNotNull(RosterItem.parse(items.get(1)));
+		assertNull(files.getVersion(XmppURI.uri("other@localhost")));
+	}
+
+	private static IQ rosterIQ(final IQ.Type type, final String version, final XMLPacket... items) {
+		final IQ iq = new IQ(type);
+		final XMLPacket query = iq.addQuery(XmppNamespaces.ROSTER);
+		query.setAttribute("ver", version);
+		for (final XMLPacket item : items) {
+			query.addChild(item);
+		}
+		return iq;
+	}
+
+	private static XMLPacket item(final String jid, final String subscription) {
+		return XMLBuilder.create("item", XmppNamespaces.ROSTER).attribute("jid", jid).attribute("subscription", subscription).getXML();
+	}
+
+}
@@ -0,0 +1,225 @@
+/*
+ * ((e)) emite: A pure Google Web Toolkit XMPP library
+ * Copyright (c) 2008-2011 The Emite development team
+ * 
+ * This file is part of Emite.
+ *
+ * Emite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * Emite is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Emite.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.calclab.emite.xep.muc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.calclab.emite.base.util.ActionScheduler;
+import com.calclab.emite.base.util.ScheduledAction;
+import com.calclab.emite.base.xml.XMLPacket;
+import com.calclab.emite.core.XmppNamespaces;
+import com.calclab.emite.core.XmppURI;
+import com.calclab.emite.core.events.ChangedEvent.ChangeType;
+import com.calclab.emite.core.session.XmppSession;
+import com.calclab.emite.core.stanzas.Presence;
+import com.calclab.emite.xep.muc.Occupant.Affiliation;
+import com.calclab.emite.xep.muc.Occupant.Role;
+import com.calclab.emite.xep.muc.events.OccupantChangedEvent;
+import com.calclab.emite.xep.muc.events.OccupantsChangedEvent;
+import com.calclab.emite.xep.muc.events.RoomChatChangedEvent;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.web.bindery.event.shared.SimpleEventBus;
+
+public class RoomOccupantsTest {
+
+	private static final int OCCUPANTS = 3000;
+
+	private final List<ScheduledAction> scheduled = Lists.newArrayList();
+	private final ActionScheduler scheduler = new ActionScheduler() {
+		@Override
+		public void schedule(final int msecs, final ScheduledAction action) {
+			scheduled.add(action);
+		}
+	};
+	private final List<OccupantChangedEvent> changes = Lists.newArrayList();
+	private final List<OccupantsChangedEvent> batches = Lists.newArrayList();
+	private final List<RoomChatChangedEvent> roomChanges = Lists.newArrayList();
+	private RoomChat room;
+
+	@Before
+	public void beforeTests() {
+		final XmppSession session = mock(XmppSession.class);
+		when(session.getCurrentUserURI()).thenReturn(XmppURI.uri("user@localhost/emite"));
+		final RoomChatManagerImpl manager = new RoomChatManagerImpl(new SimpleEventBus(), session, scheduler);
+		room = manager.openRoom(XmppURI.uri("room@conference.localhost/me"), null);
+		manager.addRoomChatChangedHandler(new RoomChatChangedEvent.Handler() {
+			@Override
+			public void onRoomChatChanged(final RoomChatChangedEvent event) {
+				roomChanges.add(event);
+			}
+		});
+		room.addOccupantChangedHandler(new OccupantChangedEvent.Handler() {
+			@Override
+			public void onOccupantChanged(final OccupantChangedEvent event) {
+				changes.add(event);
+			}
+		});
+		room.addOccupantsChangedHandler(new OccupantsChangedEvent.Handler() {
+			@Override
+			public void onOccupantsChanged(final OccupantsChangedEvent event) {
+				batches.add(event);
+			}
+		});
+	}
+
+	@Test
+	public void shouldPackOccupantPresence() {
+		final Occupant occupant = new Occupant(XmppURI.uri("room@conference.localhost/nick"), null, "owner", "moderator", Presence.Show.dnd, "busy");
+		assertEquals(Affiliation.owner, occupant.getAffiliation());
+		assertEquals(Role.moderator, occupant.getRole());
+		assertEquals(Presence.Show.dnd, occupant.getShow());
+		assertEquals("nick", occupant.getNick());
+
+		occupant.setShow(null);
+		occupant.setRole("not valid");
+		assertNull(occupant.getShow());
+		assertEquals(Role.unknown, occupant.getRole());
+		assertEquals(Affiliation.owner, occupant.getAffiliation());
+		assertEquals(Affiliation.none, new Occupant(occupant.getOccupantUri(), null, null, null, null, null).getAffiliation());
+	}
+
+	@Test
+	public void shouldFireOneBatchWhenEnteringTheRoom() {
+		for (int i = 0; i < OCCUPANTS; i++) {
+			room.receivePresence(occupantPresence("user" + i, "participant", null, null));
+		}
+		assertTrue(changes.isEmpty());
+		assertTrue(batches.isEmpty());
+		assertTrue(roomChanges.isEmpty());
+
+		room.receivePresence(occupantPresence("me", "participant", null, "110"));
+
+		assertEquals(1, batches.size());
+		assertTrue(batches.get(0).isComplete());
+		assertEquals(OCCUPANTS + 1, batches.get(0).getAdded().size());
+		assertEquals(OCCUPANTS + 1, room.getOccupantsCount());
+		assertTrue(changes.isEmpty());
+		assertEquals(1, roomChanges.size());
+		assertEquals(ChangeType.opened, roomChanges.get(0).getChangeType());
+
+		final Occupant occupant = room.getOccupantByOccupantUri(XmppURI.uri("room@conference.localhost/user7"));
+		assertEquals("user7", occupant.getNick());
+		assertSame(occupant, room.getOccupantByUserUri(XmppURI.uri("user7@localhost")));
+		assertNull(room.getOccupantByOccupantUri(XmppURI.uri("other@conference.localhost/user7")));
+	}
+
+	@Test
+	public void shouldCoalesceLaterChanges() {
+		room.receivePresence(occupantPresence("old", "participant", null, null));
+		room.receivePresence(occupantPresence("visitor", "visitor", null, null));
+		room.receivePresence(occupantPresence("me", "participant", null, "110"));
+		batches.clear();
+
+		room.receivePresence(occupantPresence("new", "participant", null, null));
+		room.receivePresence(occupantPresence("new", "participant", Presence.Show.away, null));
+		room.receivePresence(occupantPresence("brief", "participant", null, null));
+		room.receivePresence(unavailable("brief"));
+		room.receivePresence(occupantPresence("visitor", "participant", null, null));
+		room.receivePresence(occupantPresence("visitor", "participant", null, null));
+		room.receivePresence(unavailable("old"));
+		assertEquals(6, changes.size());
+		assertTrue(batches.isEmpty());
+
+		assertEquals(1, scheduled.size());
+		scheduled.remove(0).run();
+		assertEquals(1, batches.size());
+		final OccupantsChangedEvent batch = batches.get(0);
+		assertEquals(false, batch.isComplete());
+		assertEquals(ImmutableList.of("new"), nicks(batch.getAdded()));
+		assertEquals(ImmutableList.of("visitor"), nicks(batch.getModified()));
+		assertEquals(ImmutableList.of("old"), nicks(batch.getRemoved()));
+		assertEquals(Role.participant, room.getOccupantByOccupantUri(XmppURI.uri("room@conference.localhost/visitor")).getRole());
+		assertEquals(1, roomChanges.size());
+	}
+
+	@Test
+	public void shouldFireOneBatchPerFlood() {
+		for (int i = 0; i < OCCUPANTS; i++) {
+			room.receivePresence(occupantPresence("user" + i, "participant", null, null));
+		}
+		room.receivePresence(occupantPresence("me", "participant", null, "110"));
+		batches.clear();
+
+		// Everybody goes away at once
+		for (int i = 0; i < OCCUPANTS; i++) {
+			room.receivePresence(occupantPresence("user" + i, "participant", Presence.Show.away, null));
+		}
+		assertEquals(OCCUPANTS, changes.size());
+		assertTrue(batches.isEmpty());
+		assertEquals(1, scheduled.size());
+
+		scheduled.remove(0).run();
+		assertEquals(1, batches.size());
+		assertEquals(OCCUPANTS, batches.get(0).getModified().size());
+		assertTrue(batches.get(0).getAdded().isEmpty());
+
+		// The next flood is a new batch
+		for (int i = 0; i < OCCUPANTS; i++) {
+			room.receivePresence(unavailable("user" + i));
+		}
+		assertEquals(1, scheduled.size());
+		scheduled.remove(0).run();
+		assertEquals(2, batches.size());
+		assertEquals(OCCUPANTS, batches.get(1).getRemoved().size());
+		assertEquals(1, room.getOccupantsCount());
+	}
+
+	private static List<String> nicks(final Iterable<Occupant> occupants) {
+		final List<String> result = Lists.newArrayList();
+		for (final Occupant occupant : occupants) {
+			result.add(occupant.getNick());
+		}
+		return result;
+	}
+
+	private static Presence occupantPresence(final String nick, final String role, final Presence.Show show, final String statusCode) {
+		final Presence presence = new Presence();
+		presence.setFrom(XmppURI.uri("room@conference.localhost/" + nick));
+		presence.setShow(show);
+		final XMLPacket x = presence.getXML().addChild("x", XmppNamespaces.MUC_USER);
+		final XMLPacket item = x.addChild("item");
+		item.setAttribute("affiliation", "none");
+		item.setAttribute("role", role);
+		item.setAttribute("jid", nick + "@localhost/res");
+		if (statusCode != null) {
+			x.addChild("status").setAttribute("code", statusCode);
+		}
+		return presence;
+	}
+
+	private static Presence unavailable(final String nick) {
+		final Presence presence = new Presence(Presence.Type.unavailable);
+		presence.setFrom(XmppURI.uri("room@conference.localhost/" + nick));
+		return presence;
+	}
+
+}